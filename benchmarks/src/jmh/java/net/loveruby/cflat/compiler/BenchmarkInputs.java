@@ -0,0 +1,71 @@
+package net.loveruby.cflat.compiler;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Input programs of benchmarks.
+ *
+ * "corpus" is all test/*.cb files which compile without errors.
+ * "synthetic-N" is a generated program with N functions
+ * (see SyntheticProgram).
+ * The project root is given by the system property cbc.root.
+ */
+public class BenchmarkInputs {
+    static private final String SYNTHETIC = "synthetic-";
+
+    static public File rootDirectory() {
+        return new File(System.getProperty("cbc.root", "."));
+    }
+
+    static public String importDirectory() {
+        return new File(rootDirectory(), "import").getPath();
+    }
+
+    /** Returns compilation units of input NAME. */
+    static public List<CompilationUnit> load(String name) throws IOException {
+        List<CompilationUnit> units = new ArrayList<CompilationUnit>();
+        for (String path : sourceFiles(name)) {
+            CompilationUnit unit = new CompilationUnit(path, importDirectory());
+            if (unit.isValid()) {
+                units.add(unit);
+            }
+        }
+        if (units.isEmpty()) {
+            throw new IOException("no valid source file for input: " + name);
+        }
+        return units;
+    }
+
+    static private List<String> sourceFiles(String name) throws IOException {
+        if (name.equals("corpus")) {
+            return corpusFiles();
+        }
+        else if (name.startsWith(SYNTHETIC)) {
+            SyntheticProgram prog = new SyntheticProgram();
+            prog.functions = Integer.parseInt(name.substring(SYNTHETIC.length()));
+            return Arrays.asList(prog.writeTempFile().getPath());
+        }
+        else {
+            throw new IllegalArgumentException("unknown input: " + name);
+        }
+    }
+
+    static private List<String> corpusFiles() throws IOException {
+        File dir = new File(rootDirectory(), "test");
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".cb");
+            }
+        });
+        if (files == null) {
+            throw new IOException("no such directory: " + dir
+                    + " (set -Dcbc.root)");
+        }
+        Arrays.sort(files);
+        List<String> paths = new ArrayList<String>();
+        for (File f : files) {
+            paths.add(f.getPath());
+        }
+        return paths;
+    }
+}
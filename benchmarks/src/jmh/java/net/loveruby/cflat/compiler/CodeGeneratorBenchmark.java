@@ -0,0 +1,63 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of IR generation, code generation and
+ * assembly source output.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodeGeneratorBenchmark {
+    public static class TypesChecked extends InputState {
+        @Setup(Level.Invocation)
+        public void setup() throws Exception {
+            prepare(CompilationUnit.Phase.TYPES_CHECKED);
+        }
+    }
+
+    public static class IRGenerated extends InputState {
+        @Setup(Level.Invocation)
+        public void setup() throws Exception {
+            prepare(CompilationUnit.Phase.IR_GENERATED);
+        }
+    }
+
+    public static class Generated extends InputState {
+        public List<AssemblyCode> assemblies;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            assemblies = new ArrayList<AssemblyCode>();
+            for (CompilationUnit unit : units) {
+                unit.prepare(CompilationUnit.Phase.IR_GENERATED);
+                assemblies.add(unit.generateAssembly());
+            }
+        }
+    }
+
+    @Benchmark
+    public void irGenerator(TypesChecked in, Blackhole bh) throws Exception {
+        for (CompilationUnit unit : in.units) {
+            bh.consume(unit.generateIR());
+        }
+    }
+
+    @Benchmark
+    public void codeGenerator(IRGenerated in, Blackhole bh) {
+        for (CompilationUnit unit : in.units) {
+            bh.consume(unit.generateAssembly());
+        }
+    }
+
+    @Benchmark
+    public void toSource(Generated in, Blackhole bh) {
+        for (AssemblyCode asm : in.assemblies) {
+            bh.consume(asm.toSource());
+        }
+    }
+}
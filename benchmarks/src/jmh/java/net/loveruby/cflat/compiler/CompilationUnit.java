@@ -0,0 +1,130 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.parser.Parser;
+import net.loveruby.cflat.parser.LibraryLoader;
+import net.loveruby.cflat.parser.SourceCache;
+import net.loveruby.cflat.ast.AST;
+import net.loveruby.cflat.ast.Declarations;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.sysdep.AssemblyCode;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.*;
+import java.io.*;
+
+/**
+ * A source file compiled phase by phase, for benchmarks.
+ * Phases modify the AST, so the unit must be prepared again
+ * before running the same phase again.
+ */
+public class CompilationUnit {
+    public enum Phase {
+        NONE,
+        PARSED,
+        LOCALS_RESOLVED,
+        TYPES_RESOLVED,
+        DEREFERENCES_CHECKED,
+        TYPES_CHECKED,
+        IR_GENERATED
+    }
+
+    private final String path;
+    private final Options opts;
+    private final ErrorHandler errorHandler;
+    private Phase phase;
+    private AST ast;
+    private TypeTable types;
+    private IR ir;
+
+    public CompilationUnit(String path, String importDir) {
+        this.path = path;
+        // Also imports header files in the directory of the source file.
+        String srcDir = new File(path).getAbsoluteFile().getParent();
+        this.opts = Options.parse(new String[] {
+                "-I", importDir, "-I", srcDir, "-S", path });
+        // Warnings are not interesting in benchmarks.
+        this.errorHandler = new ErrorHandler(Compiler.ProgramName,
+                new ByteArrayOutputStream());
+    }
+
+    public String path() {
+        return path;
+    }
+
+    /** Compiles from scratch until PHASE. */
+    public void prepare(Phase target) throws CompileException {
+        phase = Phase.NONE;
+        while (phase.compareTo(target) < 0) {
+            runNextPhase();
+        }
+    }
+
+    private void runNextPhase() throws CompileException {
+        switch (phase) {
+        case NONE:                  parse(); break;
+        case PARSED:                resolveLocals(); break;
+        case LOCALS_RESOLVED:       resolveTypes(); break;
+        case TYPES_RESOLVED:        checkDereferences(); break;
+        case DEREFERENCES_CHECKED:  checkTypes(); break;
+        case TYPES_CHECKED:         generateIR(); break;
+        default:
+            throw new Error("no more phase: " + phase);
+        }
+    }
+
+    /** True if the whole compilation succeeds without errors. */
+    public boolean isValid() {
+        try {
+            prepare(Phase.IR_GENERATED);
+            generateAssembly();
+            return ! errorHandler.errorOccured();
+        }
+        catch (CompileException ex) {
+            return false;
+        }
+    }
+
+    public AST parse() throws CompileException {
+        Reader src = SourceCache.openFile(new File(path));
+        types = opts.typeTable();
+        ast = new Parser(src, path, opts.loader(), errorHandler).parse();
+        phase = Phase.PARSED;
+        return ast;
+    }
+
+    public Declarations loadLibrary(String libid) throws CompileException {
+        LibraryLoader loader = opts.loader();
+        return loader.loadLibrary(libid, errorHandler);
+    }
+
+    public void resolveLocals() throws SemanticException {
+        new LocalResolver(errorHandler).resolve(ast);
+        phase = Phase.LOCALS_RESOLVED;
+    }
+
+    public void resolveTypes() throws SemanticException {
+        new TypeResolver(types, errorHandler).resolve(ast);
+        phase = Phase.TYPES_RESOLVED;
+    }
+
+    public void checkDereferences() throws SemanticException {
+        types.semanticCheck(errorHandler);
+        new DereferenceChecker(types, errorHandler).check(ast);
+        phase = Phase.DEREFERENCES_CHECKED;
+    }
+
+    public void checkTypes() throws SemanticException {
+        new TypeChecker(types, errorHandler).check(ast);
+        phase = Phase.TYPES_CHECKED;
+    }
+
+    public IR generateIR() throws SemanticException {
+        ir = new IRGenerator(types, errorHandler).generate(ast);
+        phase = Phase.IR_GENERATED;
+        return ir;
+    }
+
+    /** Generates assembly code.  The IR must be generated again after this. */
+    public AssemblyCode generateAssembly() {
+        return opts.codeGenerator(errorHandler).generate(ir);
+    }
+}
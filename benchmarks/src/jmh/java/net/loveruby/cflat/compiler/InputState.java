@@ -0,0 +1,29 @@
+package net.loveruby.cflat.compiler;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.io.IOException;
+
+/**
+ * Benchmark state holding compilation units of an input.
+ * Subclasses prepare the units for the phase to measure.
+ */
+@State(Scope.Thread)
+public class InputState {
+    @Param({ "corpus", "synthetic-100", "synthetic-1000" })
+    public String input;
+
+    public List<CompilationUnit> units;
+
+    @Setup(Level.Trial)
+    public void loadInput() throws IOException {
+        units = BenchmarkInputs.load(input);
+    }
+
+    // Level.Invocation is acceptable here because each invocation
+    // processes a whole input, which takes milliseconds.
+    protected void prepare(CompilationUnit.Phase phase) throws Exception {
+        for (CompilationUnit unit : units) {
+            unit.prepare(phase);
+        }
+    }
+}
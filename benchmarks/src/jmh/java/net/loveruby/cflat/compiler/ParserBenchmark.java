@@ -0,0 +1,39 @@
+package net.loveruby.cflat.compiler;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParserBenchmark {
+    static private final String[] LIBRARIES = {
+        "stdio", "stdlib", "string", "unistd", "setjmp", "alloca"
+    };
+
+    @State(Scope.Thread)
+    public static class Loader {
+        public CompilationUnit unit;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            // The source file is not read; only the loader is used.
+            unit = new CompilationUnit("lib.cb",
+                    BenchmarkInputs.importDirectory());
+        }
+    }
+
+    @Benchmark
+    public void parseFile(InputState in, Blackhole bh) throws Exception {
+        for (CompilationUnit unit : in.units) {
+            bh.consume(unit.parse());
+        }
+    }
+
+    /** Loads import files by a new LibraryLoader, without any cache. */
+    @Benchmark
+    public void loadLibrary(Loader state, Blackhole bh) throws Exception {
+        for (String libid : LIBRARIES) {
+            bh.consume(state.unit.loadLibrary(libid));
+        }
+    }
+}
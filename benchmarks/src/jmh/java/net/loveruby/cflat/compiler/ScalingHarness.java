@@ -0,0 +1,346 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import java.util.*;
+import java.util.regex.*;
+import java.io.*;
+
+/**
+ * Measures how compile time and allocation of each phase grow
+ * with the input size, to find super-linear phases.
+ *
+ * Generates SyntheticProgram with one parameter scaled over SIZES,
+ * compiles each program in this process with --time-report=json,
+ * and prints the phases by size with the growth exponent k of
+ * time ~ size^k.  Phases whose k exceeds 1.3 are marked.
+ * Results can be written as CSV with a gnuplot script to plot them.
+ *
+ * Usage: ScalingHarness [--scale PARAM] [--sizes N,N,...]
+ *            [--PARAM N]... [--repeat N] [--warmup N] [-O]
+ *            [--csv FILE] [--gnuplot FILE]
+ */
+public class ScalingHarness {
+    static private final double SUPERLINEAR = 1.3;
+    // Phases faster than this are too noisy to judge.
+    static private final long MIN_WALL_NANOS = 5000000;
+
+    static private final Pattern PHASE = Pattern.compile(
+            "\\{\"name\":\"([^\"]*)\",\"depth\":(\\d+),\"wallNanos\":(\\d+),"
+            + "\"cpuNanos\":(\\d+),\"allocatedBytes\":(\\d+)\\}");
+    static private final Pattern TOTAL = Pattern.compile(
+            "\"total\":\\{\"name\":\"total\",\"wallNanos\":(\\d+),"
+            + "\"cpuNanos\":(\\d+),\"allocatedBytes\":(\\d+)\\}");
+
+    private final SyntheticProgram program = new SyntheticProgram();
+    private String scale = "functions";
+    private List<Integer> sizes = Arrays.asList(100, 200, 400, 800, 1600);
+    private int repeat = 3;
+    private int warmup = 3;
+    private boolean optimize = false;
+    private String csvPath;
+    private String gnuplotPath;
+    private File workDir;
+
+    // phase name -> measures by size; in the order of phases
+    private final Map<String, Phase> phases =
+            new LinkedHashMap<String, Phase>();
+
+    static private final class Phase {
+        final String name;
+        final int depth;
+        final long[] wall;
+        final long[] allocated;
+
+        Phase(String name, int depth, int nsizes) {
+            this.name = name;
+            this.depth = depth;
+            this.wall = new long[nsizes];
+            this.allocated = new long[nsizes];
+        }
+    }
+
+    static public void main(String[] args) throws Exception {
+        ScalingHarness h = new ScalingHarness();
+        try {
+            h.parseArgs(args);
+        }
+        catch (IllegalArgumentException ex) {
+            System.err.println("ScalingHarness: " + ex.getMessage());
+            System.err.println("Usage: ScalingHarness [--scale PARAM]"
+                    + " [--sizes N,N,...] [--PARAM N]... [--repeat N]"
+                    + " [--warmup N] [-O] [--csv FILE] [--gnuplot FILE]");
+            System.err.println("PARAM: "
+                    + Arrays.asList(SyntheticProgram.PARAMETER_NAMES));
+            System.exit(1);
+        }
+        h.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-O")) {
+                optimize = true;
+                continue;
+            }
+            if (! arg.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("bad argument: " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--scale")) {
+                scale = value;
+                program.set(scale, 1);  // checks the name
+            }
+            else if (arg.equals("--sizes")) {
+                sizes = new ArrayList<Integer>();
+                for (String s : value.split(",")) {
+                    sizes.add(Integer.parseInt(s.trim()));
+                }
+            }
+            else if (arg.equals("--repeat")) {
+                repeat = Math.max(Integer.parseInt(value), 1);
+            }
+            else if (arg.equals("--warmup")) {
+                warmup = Integer.parseInt(value);
+            }
+            else if (arg.equals("--csv")) {
+                csvPath = value;
+            }
+            else if (arg.equals("--gnuplot")) {
+                gnuplotPath = value;
+            }
+            else {
+                program.set(arg.substring(2), Long.parseLong(value));
+            }
+        }
+        if (sizes.size() < 2) {
+            throw new IllegalArgumentException("--sizes needs 2 sizes at least");
+        }
+        if (gnuplotPath != null && csvPath == null) {
+            throw new IllegalArgumentException("--gnuplot requires --csv");
+        }
+    }
+
+    private void run() throws IOException {
+        workDir = File.createTempFile("scaling", "");
+        if (! workDir.delete() || ! workDir.mkdir()) {
+            throw new IOException("cannot create directory: " + workDir);
+        }
+        try {
+            for (int i = 0; i < warmup; i++) {
+                measure(sizes.get(0));
+            }
+            for (int i = 0; i < sizes.size(); i++) {
+                System.err.println("scaling: " + scale + "=" + sizes.get(i));
+                record(i, measure(sizes.get(i)));
+            }
+        }
+        finally {
+            deleteTree(workDir);
+        }
+        printTable();
+        if (csvPath != null) writeCSV(csvPath);
+        if (gnuplotPath != null) writeGnuplot(gnuplotPath);
+    }
+
+    /**
+     * Compiles the program of SIZE REPEAT times, and returns
+     * the time report of the fastest run.
+     */
+    private String measure(int size) throws IOException {
+        program.set(scale, size);
+        File dir = new File(workDir, Integer.toString(size));
+        File src = program.writeTo(dir);
+        String best = null;
+        long bestWall = Long.MAX_VALUE;
+        for (int i = 0; i < repeat; i++) {
+            String report = compile(src, dir);
+            Matcher m = TOTAL.matcher(report);
+            if (! m.find()) {
+                throw new IllegalStateException("no time report: " + report);
+            }
+            long wall = Long.parseLong(m.group(1));
+            if (wall < bestWall) {
+                bestWall = wall;
+                best = report;
+            }
+        }
+        return best;
+    }
+
+    private String compile(File src, File dir) {
+        List<String> args = new ArrayList<String>();
+        args.add("--time-report=json");
+        if (optimize) args.add("-O");
+        args.add("-I");
+        args.add(BenchmarkInputs.importDirectory());
+        args.add("-I");
+        args.add(dir.getPath());
+        args.add("-S");
+        args.add("-o");
+        args.add(new File(dir, "synthetic.s").getPath());
+        args.add(src.getPath());
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Compiler compiler = new Compiler(Compiler.ProgramName,
+                CommandEnvironment.inherited(), new PrintStream(err), null);
+        int status = compiler.commandMain(args.toArray(new String[] {}));
+        if (status != 0) {
+            throw new IllegalStateException("compile failed: " + src
+                    + "\n" + err.toString());
+        }
+        return err.toString();
+    }
+
+    private void record(int index, String report) {
+        Matcher m = PHASE.matcher(report);
+        while (m.find()) {
+            String name = m.group(1);
+            Phase ph = phases.get(name);
+            if (ph == null) {
+                ph = new Phase(name, Integer.parseInt(m.group(2)), sizes.size());
+                phases.put(name, ph);
+            }
+            ph.wall[index] = Long.parseLong(m.group(3));
+            ph.allocated[index] = Long.parseLong(m.group(5));
+        }
+        Matcher t = TOTAL.matcher(report);
+        t.find();
+        Phase total = phases.get("total");
+        if (total == null) {
+            total = new Phase("total", 0, sizes.size());
+        }
+        // Keeps total at the end.
+        phases.remove("total");
+        phases.put("total", total);
+        total.wall[index] = Long.parseLong(t.group(1));
+        total.allocated[index] = Long.parseLong(t.group(3));
+    }
+
+    /**
+     * Returns k of VALUES ~ size^k by least squares on log-log scale,
+     * or NaN if VALUES are too small to judge.
+     */
+    private double exponent(long[] values, long minValue) {
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] <= 0) continue;
+            double x = Math.log(sizes.get(i));
+            double y = Math.log(values[i]);
+            sx += x; sy += y; sxx += x * x; sxy += x * y;
+            n++;
+        }
+        if (n < 2 || values[values.length - 1] < minValue) {
+            return Double.NaN;
+        }
+        return (n * sxy - sx * sy) / (n * sxx - sx * sx);
+    }
+
+    private void printTable() {
+        PrintStream out = System.out;
+        out.println("wall time (ms) by " + scale);
+        printRows(out, true);
+        out.println();
+        out.println("allocation (KB) by " + scale);
+        printRows(out, false);
+    }
+
+    private void printRows(PrintStream out, boolean wall) {
+        StringBuilder head = new StringBuilder(String.format("%-32s", "phase"));
+        for (int size : sizes) {
+            head.append(String.format(" %10d", size));
+        }
+        head.append(String.format(" %6s", "k"));
+        out.println(head);
+        for (Phase ph : phases.values()) {
+            long[] values = wall ? ph.wall : ph.allocated;
+            StringBuilder line = new StringBuilder(
+                    String.format("%-32s", indent(ph.depth) + ph.name));
+            for (long v : values) {
+                line.append(wall ? String.format(" %10.2f", v / 1e6)
+                                 : String.format(" %10d", v / 1024));
+            }
+            double k = exponent(values, wall ? MIN_WALL_NANOS : 1024 * 1024);
+            if (Double.isNaN(k)) {
+                line.append(String.format(" %6s", "-"));
+            }
+            else {
+                line.append(String.format(" %6.2f", k));
+                if (k > SUPERLINEAR) line.append("  super-linear");
+            }
+            out.println(line);
+        }
+    }
+
+    static private String indent(int depth) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            buf.append("  ");
+        }
+        return buf.toString();
+    }
+
+    /** Writes a row per size: size, wall time (ms) and allocation (KB) of phases. */
+    private void writeCSV(String path) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(path));
+        try {
+            StringBuilder head = new StringBuilder(scale);
+            for (Phase ph : phases.values()) {
+                head.append(",").append(ph.name).append(" ms");
+            }
+            for (Phase ph : phases.values()) {
+                head.append(",").append(ph.name).append(" KB");
+            }
+            out.println(head);
+            for (int i = 0; i < sizes.size(); i++) {
+                StringBuilder line = new StringBuilder();
+                line.append(sizes.get(i));
+                for (Phase ph : phases.values()) {
+                    line.append(String.format(Locale.ROOT, ",%.3f", ph.wall[i] / 1e6));
+                }
+                for (Phase ph : phases.values()) {
+                    line.append(",").append(ph.allocated[i] / 1024);
+                }
+                out.println(line);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /** Writes a gnuplot script which plots the CSV file on log-log scale. */
+    private void writeGnuplot(String path) throws IOException {
+        int n = phases.size();
+        PrintStream out = new PrintStream(new FileOutputStream(path));
+        try {
+            out.println("set datafile separator ','");
+            out.println("set terminal pngcairo size 1000,1200");
+            out.println("set output '" + new File(path).getName()
+                    .replaceFirst("\\.[^.]*$", "") + ".png'");
+            out.println("set logscale xy");
+            out.println("set key outside right");
+            out.println("set xlabel '" + scale + "'");
+            out.println("set multiplot layout 2,1");
+            out.println("set ylabel 'wall time (ms)'");
+            out.println("plot for [i=2:" + (n + 1) + "] '" + csvPath
+                    + "' using 1:i with linespoints title columnheader(i)");
+            out.println("set ylabel 'allocation (KB)'");
+            out.println("plot for [i=" + (n + 2) + ":" + (2 * n + 1) + "] '"
+                    + csvPath + "' using 1:i with linespoints title columnheader(i)");
+            out.println("unset multiplot");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    static private void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteTree(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,53 @@
+package net.loveruby.cflat.compiler;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of semantic analysis passes.  Each pass modifies
+ * the AST, so the input is compiled again before each invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SemanticBenchmark {
+    public static class Parsed extends InputState {
+        @Setup(Level.Invocation)
+        public void setup() throws Exception {
+            prepare(CompilationUnit.Phase.PARSED);
+        }
+    }
+
+    public static class LocalsResolved extends InputState {
+        @Setup(Level.Invocation)
+        public void setup() throws Exception {
+            prepare(CompilationUnit.Phase.LOCALS_RESOLVED);
+        }
+    }
+
+    public static class DereferencesChecked extends InputState {
+        @Setup(Level.Invocation)
+        public void setup() throws Exception {
+            prepare(CompilationUnit.Phase.DEREFERENCES_CHECKED);
+        }
+    }
+
+    @Benchmark
+    public void localResolver(Parsed in) throws Exception {
+        for (CompilationUnit unit : in.units) {
+            unit.resolveLocals();
+        }
+    }
+
+    @Benchmark
+    public void typeResolver(LocalsResolved in) throws Exception {
+        for (CompilationUnit unit : in.units) {
+            unit.resolveTypes();
+        }
+    }
+
+    @Benchmark
+    public void typeChecker(DereferencesChecked in) throws Exception {
+        for (CompilationUnit unit : in.units) {
+            unit.checkTypes();
+        }
+    }
+}
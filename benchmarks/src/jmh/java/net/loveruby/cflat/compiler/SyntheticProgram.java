@@ -0,0 +1,309 @@
+package net.loveruby.cflat.compiler;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Generates a valid Cflat program of tunable size, to test how
+ * the compiler scales with its input.
+ *
+ * The program has a chain of structs, each containing the previous
+ * one, import files declaring external functions, and functions
+ * made of assignments, nested blocks, loops, switch statements,
+ * string literals and calls of the previous function.
+ * The same parameters and seed always generate the same program.
+ *
+ * Usage: SyntheticProgram [--PARAM N]... [-o DIR]
+ * writes DIR/synthetic.cb and DIR/synth*.hb.
+ */
+public class SyntheticProgram {
+    // Parameters; see PARAMETER_NAMES for options.
+    public int functions = 100;
+    public int statements = 20;     // statements per function
+    public int exprDepth = 3;       // depth of binary expressions
+    public int scopeDepth = 2;      // depth of nested blocks
+    public int switchCases = 4;
+    public int structs = 3;
+    public int structMembers = 4;
+    public int imports = 1;         // generated import files
+    public int strings = 2;         // string literals per function
+    public long seed = 1;
+
+    static private final String[] OPS = { "+", "-", "*", "&", "|", "^" };
+
+    private Random random;
+    private StringBuilder buf;
+    private int varSeq;
+
+    /** Names of parameters as command line options. */
+    static public final String[] PARAMETER_NAMES = {
+        "functions", "statements", "expr-depth", "scope-depth",
+        "switch-cases", "structs", "struct-members", "imports",
+        "strings", "seed"
+    };
+
+    /** Sets parameter NAME (one of PARAMETER_NAMES) to VALUE. */
+    public void set(String name, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(
+                    "negative value for " + name + ": " + value);
+        }
+        int n = (int)value;
+        if (name.equals("functions")) functions = Math.max(n, 1);
+        else if (name.equals("statements")) statements = n;
+        else if (name.equals("expr-depth")) exprDepth = n;
+        else if (name.equals("scope-depth")) scopeDepth = n;
+        else if (name.equals("switch-cases")) switchCases = n;
+        else if (name.equals("structs")) structs = n;
+        else if (name.equals("struct-members")) structMembers = Math.max(n, 1);
+        else if (name.equals("imports")) imports = n;
+        else if (name.equals("strings")) strings = n;
+        else if (name.equals("seed")) seed = value;
+        else {
+            throw new IllegalArgumentException("unknown parameter: " + name);
+        }
+    }
+
+    /**
+     * Writes the program and its import files into DIR.
+     * Returns the path of the program.
+     */
+    public File writeTo(File dir) throws IOException {
+        if (! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException("cannot create directory: " + dir);
+        }
+        for (int i = 0; i < imports; i++) {
+            writeFile(new File(dir, importName(i) + ".hb"), header(i));
+        }
+        File src = new File(dir, "synthetic.cb");
+        writeFile(src, source());
+        return src;
+    }
+
+    /** Writes the program into a new temporary directory. */
+    public File writeTempFile() throws IOException {
+        File dir = File.createTempFile("synthetic", "");
+        if (! dir.delete() || ! dir.mkdir()) {
+            throw new IOException("cannot create directory: " + dir);
+        }
+        File src = writeTo(dir);
+        for (File f : dir.listFiles()) {
+            f.deleteOnExit();
+        }
+        dir.deleteOnExit();
+        return src;
+    }
+
+    static private void writeFile(File f, String content) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            w.write(content);
+        }
+        finally {
+            w.close();
+        }
+    }
+
+    static private String importName(int i) {
+        return "synth" + i;
+    }
+
+    private String header(int i) {
+        StringBuilder h = new StringBuilder();
+        for (int j = 0; j < 4; j++) {
+            h.append("extern int ").append(importName(i)).append("_f")
+             .append(j).append("(int x, int y);\n");
+        }
+        return h.toString();
+    }
+
+    public String source() {
+        random = new Random(seed);
+        buf = new StringBuilder();
+        buf.append("import stdio;\n");
+        for (int i = 0; i < imports; i++) {
+            buf.append("import ").append(importName(i)).append(";\n");
+        }
+        buf.append("\n");
+        for (int i = 0; i < structs; i++) {
+            appendStruct(i);
+        }
+        for (int i = 0; i < functions; i++) {
+            appendFunction(i);
+        }
+        buf.append("int\nmain(int argc, char **argv)\n{\n");
+        buf.append("    return f").append(functions - 1).append("(argc, 3);\n");
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    private void appendStruct(int n) {
+        buf.append("struct s").append(n).append(" {\n");
+        for (int i = 0; i < structMembers; i++) {
+            buf.append("    int m").append(i).append(";\n");
+        }
+        if (n > 0) {
+            buf.append("    struct s").append(n - 1).append(" inner;\n");
+        }
+        buf.append("};\n\n");
+    }
+
+    private void appendFunction(int n) {
+        varSeq = 0;
+        buf.append("int\nf").append(n).append("(int a, int b)\n{\n");
+        buf.append("    int t = ").append(n).append(";\n");
+        if (structs > 0) {
+            buf.append("    struct s").append(structs - 1).append(" p;\n");
+        }
+        buf.append("\n");
+        for (int i = 0; i < strings; i++) {
+            buf.append("    printf(\"f").append(n).append(" string ")
+               .append(i).append(": %d\\n\", t);\n");
+        }
+        int nstmts = 0;
+        while (nstmts < statements) {
+            nstmts += appendStatement(n, 1, statements - nstmts);
+        }
+        if (n > 0) {
+            buf.append("    return t + f").append(n - 1).append("(b, a);\n");
+        }
+        else {
+            buf.append("    return t;\n");
+        }
+        buf.append("}\n\n");
+    }
+
+    /**
+     * Appends statements up to MAX in nesting level LEVEL,
+     * and returns the number of appended statements.
+     */
+    private int appendStatement(int func, int level, int max) {
+        String indent = indent(level);
+        switch (random.nextInt(6)) {
+        case 0:
+            if (level <= scopeDepth && max > 1) {
+                return appendBlock(func, level, max);
+            }
+            break;
+        case 1:
+            if (switchCases > 0) {
+                appendSwitch(level);
+                return 1;
+            }
+            break;
+        case 2:
+            if (structs > 0) {
+                buf.append(indent).append(memberAccess()).append(" = ")
+                   .append(expr(exprDepth, "t")).append(";\n");
+                return 1;
+            }
+            break;
+        case 3:
+            if (imports > 0) {
+                buf.append(indent).append("t = ")
+                   .append(importName(random.nextInt(imports)))
+                   .append("_f").append(random.nextInt(4))
+                   .append("(t, ").append(expr(exprDepth, "a")).append(");\n");
+                return 1;
+            }
+            break;
+        case 4:
+            buf.append(indent).append("while (t > ").append(func)
+               .append(") {\n");
+            buf.append(indent).append("    t = t - 1;\n");
+            buf.append(indent).append("}\n");
+            return 1;
+        default:
+            break;
+        }
+        buf.append(indent).append("t = ").append(expr(exprDepth, "t"))
+           .append(";\n");
+        return 1;
+    }
+
+    private int appendBlock(int func, int level, int max) {
+        String indent = indent(level);
+        String var = "v" + varSeq++;
+        buf.append(indent).append("if (t > a) {\n");
+        buf.append(indent).append("    int ").append(var).append(" = ")
+           .append(expr(exprDepth, "b")).append(";\n");
+        int n = 1;
+        int len = 1 + random.nextInt(Math.min(max - 1, 4));
+        for (int i = 0; i < len && n < max; ) {
+            int k = appendStatement(func, level + 1, max - n);
+            n += k;
+            i += k;
+        }
+        buf.append(indent).append("    t = t + ").append(var).append(";\n");
+        buf.append(indent).append("}\n");
+        return n;
+    }
+
+    private void appendSwitch(int level) {
+        String indent = indent(level);
+        buf.append(indent).append("switch (t & ").append(switchCases * 2 - 1)
+           .append(") {\n");
+        for (int i = 0; i < switchCases; i++) {
+            buf.append(indent).append("case ").append(i * 2).append(":\n");
+            buf.append(indent).append("    t = ").append(expr(exprDepth, "a"))
+               .append(";\n");
+            buf.append(indent).append("    break;\n");
+        }
+        buf.append(indent).append("default:\n");
+        buf.append(indent).append("    t = t + 1;\n");
+        buf.append(indent).append("    break;\n");
+        buf.append(indent).append("}\n");
+    }
+
+    // Members of inner structs are not accessed, since cbc cannot
+    // load a member of a struct-typed member (p.inner.m0).
+    private String memberAccess() {
+        return "p.m" + random.nextInt(structMembers);
+    }
+
+    /** Left-deep binary expression of DEPTH operators, starting with VAR. */
+    private String expr(int depth, String var) {
+        StringBuilder b = new StringBuilder(var);
+        for (int i = 0; i < depth; i++) {
+            b.insert(0, '(');
+            b.append(' ').append(OPS[random.nextInt(OPS.length)]).append(' ');
+            b.append(leaf()).append(')');
+        }
+        return b.toString();
+    }
+
+    private String leaf() {
+        switch (random.nextInt(4)) {
+        case 0: return "a";
+        case 1: return "b";
+        case 2: return "t";
+        default: return Integer.toString(random.nextInt(100));
+        }
+    }
+
+    static private String indent(int level) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < level; i++) {
+            b.append("    ");
+        }
+        return b.toString();
+    }
+
+    static public void main(String[] args) throws IOException {
+        SyntheticProgram prog = new SyntheticProgram();
+        File dir = new File(".");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                dir = new File(args[++i]);
+            }
+            else if (args[i].startsWith("--") && i + 1 < args.length) {
+                prog.set(args[i].substring(2), Long.parseLong(args[++i]));
+            }
+            else {
+                System.err.println("Usage: SyntheticProgram [--PARAM N]... [-o DIR]");
+                System.err.println("PARAM: " + Arrays.asList(PARAMETER_NAMES));
+                System.exit(1);
+            }
+        }
+        System.out.println(prog.writeTo(dir).getPath());
+    }
+}
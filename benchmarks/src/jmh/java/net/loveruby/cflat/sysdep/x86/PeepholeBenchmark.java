@@ -0,0 +1,40 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.compiler.CompilationUnit;
+import net.loveruby.cflat.compiler.InputState;
+import net.loveruby.cflat.asm.Assembly;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of PeepholeOptimizer#optimize on unoptimized (-O0) code
+ * of whole files.  optimize does not modify its input.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PeepholeBenchmark {
+    public static class Generated extends InputState {
+        public List<List<Assembly>> assemblies;
+        public PeepholeOptimizer optimizer;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            assemblies = new ArrayList<List<Assembly>>();
+            for (CompilationUnit unit : units) {
+                unit.prepare(CompilationUnit.Phase.IR_GENERATED);
+                AssemblyCode asm = (AssemblyCode)unit.generateAssembly();
+                assemblies.add(asm.assemblies());
+            }
+            optimizer = PeepholeOptimizer.defaultSet();
+        }
+    }
+
+    @Benchmark
+    public void optimize(Generated in, Blackhole bh) {
+        for (List<Assembly> list : in.assemblies) {
+            bh.consume(in.optimizer.optimize(list));
+        }
+    }
+}
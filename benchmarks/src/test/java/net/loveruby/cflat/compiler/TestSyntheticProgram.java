@@ -0,0 +1,118 @@
+package net.loveruby.cflat.compiler;
+import org.junit.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Generated programs must compile, or benchmarks silently drop them
+ * (see BenchmarkInputs#load).
+ */
+public class TestSyntheticProgram {
+    File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("synthetic", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test public void test_compile() throws IOException {
+        SyntheticProgram prog = small();
+        assertCompiles(prog);
+        assertCompiles(prog, "-O");
+        assertCompiles(prog, "-O2");
+    }
+
+    @Test public void test_compile_all_parameters() throws IOException {
+        SyntheticProgram prog = small();
+        prog.set("expr-depth", 6);
+        prog.set("scope-depth", 4);
+        prog.set("switch-cases", 8);
+        prog.set("structs", 5);
+        prog.set("imports", 3);
+        prog.set("strings", 4);
+        prog.set("seed", 7);
+        assertCompiles(prog);
+    }
+
+    @Test public void test_compile_no_features() throws IOException {
+        SyntheticProgram prog = small();
+        prog.set("statements", 0);
+        prog.set("switch-cases", 0);
+        prog.set("structs", 0);
+        prog.set("imports", 0);
+        prog.set("strings", 0);
+        assertCompiles(prog);
+    }
+
+    @Test public void test_compilation_unit() throws IOException {
+        File src = small().writeTo(dir);
+        CompilationUnit unit = new CompilationUnit(src.getPath(),
+                BenchmarkInputs.importDirectory());
+        assertTrue(unit.isValid());
+    }
+
+    @Test public void test_seed() {
+        SyntheticProgram a = small();
+        SyntheticProgram b = small();
+        assertEquals(a.source(), b.source());
+        b.set("seed", 2);
+        assertFalse(a.source().equals(b.source()));
+    }
+
+    @Test public void test_functions() {
+        SyntheticProgram prog = small();
+        prog.set("functions", 7);
+        String src = prog.source();
+        assertTrue(src.contains("\nf6(int a, int b)\n"));
+        assertFalse(src.contains("\nf7(int a, int b)\n"));
+        assertTrue(src.contains("    return f6(argc, 3);\n"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void test_unknown_parameter() {
+        small().set("loops", 1);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void test_negative_parameter() {
+        small().set("statements", -1);
+    }
+
+    private SyntheticProgram small() {
+        SyntheticProgram prog = new SyntheticProgram();
+        prog.set("functions", 5);
+        prog.set("statements", 10);
+        return prog;
+    }
+
+    private void assertCompiles(SyntheticProgram prog, String... opts)
+                                                    throws IOException {
+        File src = prog.writeTo(dir);
+        File asm = new File(dir, "synthetic.s");
+        List<String> args = new ArrayList<String>(Arrays.asList(opts));
+        args.add("-I");
+        args.add(BenchmarkInputs.importDirectory());
+        args.add("-I");
+        args.add(dir.getPath());
+        args.add("-S");
+        args.add("-o");
+        args.add(asm.getPath());
+        args.add(src.getPath());
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Compiler compiler = new Compiler(Compiler.ProgramName,
+                CommandEnvironment.inherited(), new PrintStream(err), null);
+        int status = compiler.commandMain(args.toArray(new String[] {}));
+        assertEquals(err.toString(), 0, status);
+        assertTrue(asm.length() > 0);
+    }
+}
@@ -1,9 +1,9 @@
 package net.loveruby.cflat.asm;
 
 public class AbsoluteAddress extends Operand {
-    protected Register register;
+    protected Operand register;   // register or memory reference
 
-    public AbsoluteAddress(Register reg) {
+    public AbsoluteAddress(Operand reg) {
         this.register = reg;
     }
 
@@ -19,6 +19,11 @@ public class AbsoluteAddress extends Operand {
         return "*" + register.toSource(table);
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write('*');
+        register.writeTo(w, table);
+    }
+
     public String dump() {
         return "(AbsoluteAddress " + register.dump() + ")";
     }
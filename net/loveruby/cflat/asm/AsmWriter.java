@@ -0,0 +1,110 @@
+package net.loveruby.cflat.asm;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.io.IOException;
+
+/**
+ * Writes assembly source into a reusable byte buffer, which is
+ * written to a channel when it is full.
+ * Assembly source is almost ASCII, so ASCII characters and numbers
+ * are stored into the buffer directly, without making Strings.
+ *
+ * Write methods do not throw IOException.  The first error is
+ * thrown by #flush, and output after the error is discarded.
+ */
+public class AsmWriter {
+    static private final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buf;
+    private final byte[] digits = new byte[20];
+    private IOException error;
+
+    public AsmWriter(WritableByteChannel out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    public AsmWriter(WritableByteChannel out, int bufferSize) {
+        this.out = out;
+        this.buf = ByteBuffer.allocate(bufferSize);
+    }
+
+    public void write(char c) {
+        if (c >= 0x80) {
+            writeBytes(String.valueOf(c).getBytes(Charset.defaultCharset()));
+            return;
+        }
+        if (! buf.hasRemaining()) drain();
+        buf.put((byte)c);
+    }
+
+    public void write(String s) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // Rare; comments only.  Encodes as PrintStream does.
+                writeBytes(s.substring(i).getBytes(Charset.defaultCharset()));
+                return;
+            }
+            if (! buf.hasRemaining()) drain();
+            buf.put((byte)c);
+        }
+    }
+
+    /** Writes N in decimal. */
+    public void write(long n) {
+        if (n == Long.MIN_VALUE) {
+            write(Long.toString(n));
+            return;
+        }
+        if (n < 0) {
+            write('-');
+            n = -n;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte)('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        writeBytes(digits, i, digits.length - i);
+    }
+
+    public void newline() {
+        write('\n');
+    }
+
+    private void writeBytes(byte[] b) {
+        writeBytes(b, 0, b.length);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (! buf.hasRemaining()) drain();
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Writes buffered bytes to the channel. */
+    public void flush() throws IOException {
+        drain();
+        if (error != null) throw error;
+    }
+
+    private void drain() {
+        buf.flip();
+        try {
+            while (buf.hasRemaining() && error == null) {
+                out.write(buf);
+            }
+        }
+        catch (IOException ex) {
+            error = ex;
+        }
+        buf.clear();
+    }
+}
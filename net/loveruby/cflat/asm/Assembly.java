@@ -2,6 +2,7 @@ package net.loveruby.cflat.asm;
 
 abstract public class Assembly {
     abstract public String toSource(SymbolTable table);
+    abstract public void writeTo(AsmWriter w, SymbolTable table);
     abstract public String dump();
 
     public boolean isInstruction() {
@@ -22,6 +22,15 @@ public class Comment extends Assembly {
         return "\t" + indent() + "# " + string;
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write('\t');
+        for (int i = 0; i < indentLevel; i++) {
+            w.write("  ");
+        }
+        w.write("# ");
+        w.write(string);
+    }
+
     protected String indent() {
         StringBuffer buf = new StringBuffer();
         for (int i = 0; i < indentLevel; i++) {
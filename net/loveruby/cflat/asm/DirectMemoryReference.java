@@ -27,6 +27,10 @@ public class DirectMemoryReference extends MemoryReference {
         return this.value.toSource(table);
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        value.writeTo(w, table);
+    }
+
     public int compareTo(MemoryReference mem) {
         return -(mem.cmp(this));
     }
@@ -39,6 +43,10 @@ public class DirectMemoryReference extends MemoryReference {
         return value.compareTo(mem.value);
     }
 
+    protected int cmp(IndexedMemoryReference mem) {
+        return 1;
+    }
+
     public String dump() {
         return "(DirectMemoryReference " + value.dump() + ")";
     }
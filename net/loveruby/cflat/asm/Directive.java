@@ -16,6 +16,10 @@ public class Directive extends Assembly {
         return this.content;
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write(content);
+    }
+
     public String dump() {
         return "(Directive " + TextUtils.dumpString(content.trim()) + ")";
     }
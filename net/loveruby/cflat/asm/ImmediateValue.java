@@ -29,6 +29,11 @@ public class ImmediateValue extends Operand {
         return "$" + expr.toSource(table);
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write('$');
+        expr.writeTo(w, table);
+    }
+
     public String dump() {
         return "(ImmediateValue " + expr.dump() + ")";
     }
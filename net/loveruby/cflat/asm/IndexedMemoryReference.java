@@ -0,0 +1,93 @@
+package net.loveruby.cflat.asm;
+
+/**
+ * Memory reference with an index register, "offset(base,index,scale)".
+ * BASE may be null.
+ */
+public class IndexedMemoryReference extends MemoryReference {
+    protected Literal offset;
+    protected Register base;
+    protected Register index;
+    protected long scale;
+
+    public IndexedMemoryReference(Literal offset, Register base,
+            Register index, long scale) {
+        this.offset = offset;
+        this.base = base;
+        this.index = index;
+        this.scale = scale;
+    }
+
+    public Literal offset() {
+        return offset;
+    }
+
+    public Register base() {
+        return base;
+    }
+
+    public Register index() {
+        return index;
+    }
+
+    public long scale() {
+        return scale;
+    }
+
+    public void fixOffset(long diff) {
+        throw new Error("IndexedMemoryReference#fixOffset");
+    }
+
+    public void collectStatistics(Statistics stats) {
+        offset.collectStatistics(stats);
+        if (base != null) base.collectStatistics(stats);
+        index.collectStatistics(stats);
+    }
+
+    public String toString() {
+        return toSource(SymbolTable.dummy());
+    }
+
+    public String toSource(SymbolTable table) {
+        return (offset.isZero() ? "" : offset.toSource(table))
+                + "(" + (base == null ? "" : base.toSource(table))
+                + "," + index.toSource(table) + "," + scale + ")";
+    }
+
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        if (! offset.isZero()) {
+            offset.writeTo(w, table);
+        }
+        w.write('(');
+        if (base != null) {
+            base.writeTo(w, table);
+        }
+        w.write(',');
+        index.writeTo(w, table);
+        w.write(',');
+        w.write(scale);
+        w.write(')');
+    }
+
+    public int compareTo(MemoryReference mem) {
+        return -(mem.cmp(this));
+    }
+
+    protected int cmp(DirectMemoryReference mem) {
+        return -1;
+    }
+
+    protected int cmp(IndirectMemoryReference mem) {
+        return 1;
+    }
+
+    protected int cmp(IndexedMemoryReference mem) {
+        return offset.compareTo(mem.offset);
+    }
+
+    public String dump() {
+        return "(IndexedMemoryReference " + offset.dump() + " "
+                + (base == null ? "nil" : base.dump()) + " "
+                + index.dump() + " " + scale + ")";
+    }
+}
@@ -37,6 +37,11 @@ public class IndirectMemoryReference extends MemoryReference {
         this.fixed = true;
     }
 
+    /** False while the offset is relative to an unknown frame area. */
+    public boolean isFixed() {
+        return fixed;
+    }
+
     public Register base() {
         return base;
     }
@@ -57,6 +62,18 @@ public class IndirectMemoryReference extends MemoryReference {
                 + "(" + base.toSource(table) + ")";
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        if (! fixed) {
+            throw new Error("must not happen: writing unfixed variable");
+        }
+        if (! offset.isZero()) {
+            offset.writeTo(w, table);
+        }
+        w.write('(');
+        base.writeTo(w, table);
+        w.write(')');
+    }
+
     public int compareTo(MemoryReference mem) {
         return -(mem.cmp(this));
     }
@@ -69,6 +86,10 @@ public class IndirectMemoryReference extends MemoryReference {
         return offset.compareTo(mem.offset);
     }
 
+    protected int cmp(IndexedMemoryReference mem) {
+        return -1;
+    }
+
     public String dump() {
         return "(IndirectMemoryReference "
                 + (fixed ? "" : "*")
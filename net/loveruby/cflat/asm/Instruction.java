@@ -50,6 +50,10 @@ public class Instruction extends Assembly {
         return this.mnemonic;
     }
 
+    public String suffix() {
+        return this.suffix;
+    }
+
     public boolean isJumpInstruction() {
         return mnemonic.equals("jmp")
                 || mnemonic.equals("jz")
@@ -100,6 +104,16 @@ public class Instruction extends Assembly {
         return buf.toString();
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write('\t');
+        w.write(mnemonic);
+        w.write(suffix);
+        for (int i = 0; i < operands.length; i++) {
+            w.write(i == 0 ? "\t" : ", ");
+            operands[i].writeTo(w, table);
+        }
+    }
+
     public String toString() {
         return "#<Insn " + mnemonic + ">";
     }
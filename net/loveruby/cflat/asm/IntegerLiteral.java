@@ -40,6 +40,10 @@ public class IntegerLiteral implements Literal {
         return toSource();
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write(value);
+    }
+
     public void collectStatistics(Statistics stats) {
         // does nothing
     }
@@ -23,6 +23,11 @@ public class Label extends Assembly {
         return symbol.toSource(table) + ":";
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        symbol.writeTo(w, table);
+        w.write(':');
+    }
+
     public String dump() {
         return "(Label " + symbol.dump() + ")";
     }
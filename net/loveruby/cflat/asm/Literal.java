@@ -3,6 +3,7 @@ package net.loveruby.cflat.asm;
 public interface Literal extends Comparable<Literal> {
     public String toSource();
     public String toSource(SymbolTable table);
+    public void writeTo(AsmWriter w, SymbolTable table);
     public String dump();
     public void collectStatistics(Statistics stats);
     public boolean isZero();
@@ -0,0 +1,34 @@
+package net.loveruby.cflat.asm;
+import net.loveruby.cflat.utils.TextUtils;
+
+/**
+ * Data directive whose value may be a label, e.g. ".long .L3".
+ * Counts its symbols as used, unlike Directive.
+ */
+public class LiteralDirective extends Directive {
+    protected Literal value;
+
+    public LiteralDirective(String name, Literal value) {
+        super(name);
+        this.value = value;
+    }
+
+    public void collectStatistics(Statistics stats) {
+        value.collectStatistics(stats);
+    }
+
+    public String toSource(SymbolTable table) {
+        return content + "\t" + value.toSource(table);
+    }
+
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write(content);
+        w.write('\t');
+        value.writeTo(w, table);
+    }
+
+    public String dump() {
+        return "(LiteralDirective " + TextUtils.dumpString(content)
+                + " " + value.dump() + ")";
+    }
+}
@@ -9,4 +9,5 @@ abstract public class MemoryReference
     abstract public void fixOffset(long diff);
     abstract protected int cmp(DirectMemoryReference mem);
     abstract protected int cmp(IndirectMemoryReference mem);
+    abstract protected int cmp(IndexedMemoryReference mem);
 }
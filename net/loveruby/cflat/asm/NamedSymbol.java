@@ -20,6 +20,10 @@ public class NamedSymbol extends BaseSymbol {
         return name;
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write(name);
+    }
+
     public String toString() {
         return "#" + name;
     }
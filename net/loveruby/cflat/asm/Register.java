@@ -10,5 +10,6 @@ abstract public class Register extends Operand {
     }
 
     abstract public String toSource(SymbolTable syms);
+    abstract public void writeTo(AsmWriter w, SymbolTable syms);
     abstract public String dump();
 }
@@ -34,6 +34,11 @@ public class SuffixedSymbol implements Symbol {
         return base.toSource(table) + suffix;
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        base.writeTo(w, table);
+        w.write(suffix);
+    }
+
     public String toString() {
         return base.toString() + suffix;
     }
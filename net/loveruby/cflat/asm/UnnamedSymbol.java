@@ -17,6 +17,10 @@ public class UnnamedSymbol extends BaseSymbol {
         return table.symbolString(this);
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write(table.symbolString(this));
+    }
+
     public String toString() {
         return super.toString();
     }
@@ -0,0 +1,269 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.parser.SourceCache;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import net.loveruby.cflat.utils.ErrorHandler;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ * Batch compilation (cbc --batch LISTFILE).
+ *
+ * Each line of the list file is a complete command line of cbc,
+ * e.g. "-O -o hello hello.cb".  Lines are split into words as
+ * a shell does, with '...', "..." and backslash escapes; empty lines
+ * and lines beginning with '#' are ignored.  LISTFILE "-" is stdin.
+ *
+ * Entries run concurrently in one JVM, each with its own Options,
+ * TypeTable and ErrorHandler, sharing JIT-compiled code and the
+ * header cache.  Options after LISTFILE are given to all entries,
+ * before the options of the entry.
+ * Entries must not write the same output file, including
+ * intermediate assembly and object files of the same source file.
+ *
+ * For each entry, in the order of the list, prints
+ * "LISTFILE:LINE: exit STATUS: COMMAND" and then the stdout and
+ * stderr of the entry, indented.  The exit status of the batch is 0
+ * if all entries succeeded, or 1 otherwise.
+ */
+class BatchCompiler {
+    static final String BATCH_OPTION = "--batch";
+
+    static boolean isBatchCommand(String[] args) {
+        return args.length > 0 && args[0].equals(BATCH_OPTION);
+    }
+
+    static int batchMain(String[] args) {
+        ErrorHandler h = new ErrorHandler(Compiler.ProgramName);
+        if (args.length < 2) {
+            h.error("missing list file");
+            printUsage(h);
+            return 1;
+        }
+        String listPath = args[1];
+        int jobs = Runtime.getRuntime().availableProcessors();
+        List<String> common = new ArrayList<String>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--batch-jobs") && i + 1 < args.length) {
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                }
+                catch (NumberFormatException ex) {
+                    jobs = 0;
+                }
+                if (jobs < 1) {
+                    h.error("--batch-jobs requires a positive number");
+                    return 1;
+                }
+            }
+            else {
+                common.add(args[i]);
+            }
+        }
+        try {
+            BatchCompiler batch = new BatchCompiler(listPath, common);
+            batch.readList(openList(listPath));
+            return batch.run(jobs, System.out) ? 0 : 1;
+        }
+        catch (IOException ex) {
+            h.error("cannot read batch list: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    static private void printUsage(ErrorHandler h) {
+        h.error("Usage: cbc --batch LISTFILE [--batch-jobs N] [option...]");
+    }
+
+    static private Reader openList(String path) throws IOException {
+        if (path.equals("-")) {
+            return new InputStreamReader(System.in);
+        }
+        return new InputStreamReader(new FileInputStream(path));
+    }
+
+    private final String listPath;
+    private final List<String> commonArgs;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final SourceCache headerCache = new SourceCache();
+
+    BatchCompiler(String listPath, List<String> commonArgs) {
+        this.listPath = listPath;
+        this.commonArgs = commonArgs;
+    }
+
+    static private class Entry {
+        final int lineno;
+        final String command;
+        final String[] args;
+
+        Entry(int lineno, String command, String[] args) {
+            this.lineno = lineno;
+            this.command = command;
+            this.args = args;
+        }
+    }
+
+    static private class Result {
+        final int status;
+        final String output;
+
+        Result(int status, String output) {
+            this.status = status;
+            this.output = output;
+        }
+    }
+
+    void readList(Reader r) throws IOException {
+        BufferedReader in = new BufferedReader(r);
+        try {
+            String line;
+            int lineno = 0;
+            while ((line = in.readLine()) != null) {
+                lineno++;
+                String command = line.trim();
+                if (command.isEmpty() || command.startsWith("#")) continue;
+                List<String> args = new ArrayList<String>(commonArgs);
+                try {
+                    args.addAll(splitWords(command));
+                }
+                catch (IllegalArgumentException ex) {
+                    throw new IOException(listPath + ":" + lineno + ": "
+                            + ex.getMessage());
+                }
+                entries.add(new Entry(lineno, command,
+                        args.toArray(new String[] {})));
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** Splits LINE into words as sh does, without expansions. */
+    static List<String> splitWords(String line) {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = null;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+                continue;
+            }
+            if (word == null) {
+                word = new StringBuilder();
+            }
+            if (c == '\'') {
+                int end = line.indexOf('\'', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unterminated quote");
+                }
+                word.append(line, i + 1, end);
+                i = end;
+            }
+            else if (c == '"') {
+                for (i++; i < line.length() && line.charAt(i) != '"'; i++) {
+                    c = line.charAt(i);
+                    if (c == '\\' && i + 1 < line.length()
+                            && "\\\"$`".indexOf(line.charAt(i + 1)) >= 0) {
+                        c = line.charAt(++i);
+                    }
+                    word.append(c);
+                }
+                if (i == line.length()) {
+                    throw new IllegalArgumentException("unterminated quote");
+                }
+            }
+            else if (c == '\\' && i + 1 < line.length()) {
+                word.append(line.charAt(++i));
+            }
+            else {
+                word.append(c);
+            }
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Runs all entries on JOBS threads, and prints the results to OUT
+     * in the order of the list.  Returns true if all entries succeeded.
+     */
+    boolean run(int jobs, PrintStream out) {
+        if (entries.isEmpty()) return true;
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(jobs, entries.size()));
+        try {
+            List<Future<Result>> results = new ArrayList<Future<Result>>();
+            for (final Entry ent : entries) {
+                results.add(pool.submit(new Callable<Result>() {
+                    public Result call() {
+                        return compile(ent);
+                    }
+                }));
+            }
+            int nfailed = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                Result result = waitFor(results.get(i));
+                if (result.status != 0) nfailed++;
+                printResult(out, entries.get(i), result);
+            }
+            out.println(Compiler.ProgramName + ": batch: " + entries.size()
+                    + " entries, " + nfailed + " failed");
+            out.flush();
+            return nfailed == 0;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private Result compile(Entry ent) {
+        // stdout and stderr are captured into one buffer, in order.
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream output = new PrintStream(buf, true);
+        CommandEnvironment env = new CommandEnvironment(null, null, output);
+        int status;
+        try {
+            status = new Compiler(Compiler.ProgramName,
+                    env, output, headerCache).commandMain(ent.args);
+        }
+        catch (RuntimeException ex) {
+            // Compiler bugs must not stop other entries.
+            ex.printStackTrace(output);
+            status = 1;
+        }
+        catch (Error ex) {
+            ex.printStackTrace(output);
+            status = 1;
+        }
+        output.flush();
+        return new Result(status, buf.toString());
+    }
+
+    private Result waitFor(Future<Result> f) {
+        try {
+            return f.get();
+        }
+        catch (ExecutionException ex) {
+            throw new Error("must not happen: " + ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            return new Result(1, "batch interrupted\n");
+        }
+    }
+
+    private void printResult(PrintStream out, Entry ent, Result result) {
+        out.println(listPath + ":" + ent.lineno + ": exit "
+                + result.status + ": " + ent.command);
+        if (result.output.isEmpty()) return;
+        for (String line : result.output.split("\n")) {
+            out.println("  " + line);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.parser.LibraryLoader;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.*;
+import java.util.*;
+import java.util.regex.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed cache of generated assembly and object files
+ * (--cache-dir DIR).
+ *
+ * The key of an assembly file is a hash of the compiler version,
+ * code generator options, the source file and all header files
+ * imported by it directly or indirectly.  The key of an object file
+ * is a hash of the compiler version, assembler options and
+ * the assembly source.  With -pipe, the key of an object file is
+ * a hash of both options and the source files.
+ * Warnings are cached with the output and reported again on hit.
+ */
+class BuildCache {
+    static private final String HASH_ALGORITHM = "SHA-256";
+    static private final String COMPILER_STAMP = compilerStamp();
+
+    private final File dir;
+    private final CommandEnvironment env;
+
+    BuildCache(File dir, CommandEnvironment env) {
+        this.dir = dir;
+        this.env = env;
+    }
+
+    String compileKey(String srcPath, Options opts) throws FileException {
+        Key key = newKey("compile");
+        addCflatSource(key, srcPath, opts);
+        return key.toString();
+    }
+
+    /** Key of an object file compiled with -pipe, without assembly file. */
+    String pipeKey(String srcPath, Options opts) throws FileException {
+        Key key = newKey("pipe");
+        key.add(opts.asOptions().fingerprint());
+        addCflatSource(key, srcPath, opts);
+        return key.toString();
+    }
+
+    String assembleKey(String srcPath, Options opts) throws FileException {
+        Key key = newKey("assemble");
+        key.add(opts.asOptions().fingerprint());
+        key.add(srcPath);
+        key.add(readFile(srcPath));
+        return key.toString();
+    }
+
+    private void addCflatSource(Key key, String srcPath, Options opts)
+                                                throws FileException {
+        key.add(opts.genOptions().fingerprint());
+        key.add(srcPath);
+        byte[] src = readFile(srcPath);
+        key.add(src);
+        addImports(key, src, opts.loader());
+    }
+
+    static private final Pattern IMPORT =
+            Pattern.compile("^\\s*import\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+    /**
+     * Adds header files imported by SRC, recursively.
+     * This is a textual scan, so it may find extra imports
+     * (e.g. in comments); it only makes the key stricter.
+     */
+    private void addImports(Key key, byte[] src, LibraryLoader loader) {
+        LinkedList<byte[]> queue = new LinkedList<byte[]>();
+        Set<String> seen = new HashSet<String>();
+        queue.add(src);
+        while (! queue.isEmpty()) {
+            Matcher m = IMPORT.matcher(decode(queue.removeFirst()));
+            while (m.find()) {
+                String libid = m.group(1);
+                if (! seen.add(libid)) continue;
+                key.add(libid);
+                try {
+                    byte[] header = readFile(
+                            loader.searchLibrary(libid).getPath());
+                    key.add(header);
+                    queue.add(header);
+                }
+                catch (FileException ex) {
+                    // Compiler reports it later.
+                    key.add("missing");
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the cached file of KEY to DESTPATH, and reports
+     * cached warnings.  Returns false if KEY is not cached.
+     */
+    boolean restore(String key, String destPath, ErrorHandler h) {
+        File ent = entryFile(key);
+        if (! ent.exists()) return false;
+        try {
+            Files.copy(ent.toPath(), env.file(destPath).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            File log = logFile(key);
+            if (log.exists()) {
+                for (String line : Files.readAllLines(log.toPath(), UTF8)) {
+                    h.print(line);
+                }
+            }
+            return true;
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Stores the file SRCPATH as the cache entry of KEY.
+     * A cache failure is not a build failure, just warned.
+     */
+    void store(String key, String srcPath, String log, ErrorHandler h) {
+        File ent = entryFile(key);
+        try {
+            if (! log.isEmpty()) {
+                writeAtomically(logFile(key), log.getBytes(UTF8));
+            }
+            writeAtomically(ent, Files.readAllBytes(env.file(srcPath).toPath()));
+        }
+        catch (IOException ex) {
+            h.warn("cannot write build cache: " + ex.getMessage());
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key.substring(2));
+    }
+
+    private File logFile(String key) {
+        return new File(entryFile(key).getPath() + ".log");
+    }
+
+    // Entries are written by rename, because other cbc processes
+    // may read them concurrently.
+    private void writeAtomically(File dest, byte[] data) throws IOException {
+        File parent = dest.getParentFile();
+        if (! parent.isDirectory() && ! parent.mkdirs()
+                && ! parent.isDirectory()) {
+            throw new IOException("cannot create directory: " + parent);
+        }
+        File tmp = File.createTempFile("tmp", null, parent);
+        try {
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    private byte[] readFile(String path) throws FileException {
+        try {
+            return Files.readAllBytes(env.file(path).toPath());
+        }
+        catch (IOException ex) {
+            throw new FileException("cannot read file: " + path);
+        }
+    }
+
+    static private final Charset UTF8 = Charset.forName("UTF-8");
+
+    static private String decode(byte[] bytes) {
+        return new String(bytes, UTF8);
+    }
+
+    private Key newKey(String kind) {
+        Key key = new Key();
+        key.add(Compiler.Version);
+        key.add(COMPILER_STAMP);
+        key.add(kind);
+        return key;
+    }
+
+    /**
+     * Identifies the compiler build, since Compiler.Version
+     * is not updated on each change.
+     */
+    static private String compilerStamp() {
+        try {
+            File f = new File(Compiler.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI());
+            if (f.isFile()) {
+                return f.length() + ":" + f.lastModified();
+            }
+        }
+        catch (Exception ex) {
+            // Not loaded from a jar file; no stamp.
+        }
+        return "";
+    }
+
+    static private class Key {
+        private final MessageDigest md;
+
+        Key() {
+            try {
+                md = MessageDigest.getInstance(HASH_ALGORITHM);
+            }
+            catch (NoSuchAlgorithmException ex) {
+                throw new Error(HASH_ALGORITHM + " is not supported??");
+            }
+        }
+
+        void add(String s) {
+            add(s.getBytes(UTF8));
+        }
+
+        // Prefixes length, so that ("ab", "c") differs from ("a", "bc").
+        void add(byte[] data) {
+            int len = data.length;
+            md.update(new byte[] {
+                (byte)(len >>> 24), (byte)(len >>> 16),
+                (byte)(len >>> 8), (byte)len });
+            md.update(data);
+        }
+
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            for (byte b : md.digest()) {
+                buf.append(String.format("%02x", b & 0xff));
+            }
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.ir.ssa.SSAForm;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+
+/**
+ * Local value numbering (-O2): eliminates common subexpressions
+ * within each basic block of the IR.
+ *
+ * Every expression gets a value number; two expressions get the same
+ * number if they are the same operation on operands of the same
+ * numbers.  A variable is numbered by its generation, which goes up
+ * when it is assigned.  A load by Mem is numbered by the generation of
+ * memory, which goes up on every store through a pointer, store to a
+ * variable whose address is taken or which is not local, and call;
+ * so are such variables themselves.  Stores to other local variables
+ * do not touch memory.
+ *
+ * The first evaluation of a value computed again is assigned to a new
+ * temporary just before its statement, and later evaluations read the
+ * temporary.  Only values of the natural size which involve a load
+ * or two or more operations are worth a temporary.
+ */
+class CommonSubexpressionEliminator {
+    private final Type naturalType;
+    private final Type pointerType;
+    private final net.loveruby.cflat.type.Type tmpType;
+
+    // Per function
+    private DefinedFunction function;
+    private Set<Entity> aliased;
+    private Set<Entity> locals;
+    private int reused;
+
+    // Per block
+    private final Map<List<Object>, Integer> numbers =
+            new HashMap<List<Object>, Integer>();
+    private final Map<Entity, Integer> generations =
+            new HashMap<Entity, Integer>();
+    private int memoryGeneration;
+    private int uniqueNumber;
+    private final Map<Integer, Occurrence> available =
+            new HashMap<Integer, Occurrence>();
+
+    CommonSubexpressionEliminator(Type naturalType, TypeTable types) {
+        this.naturalType = naturalType;
+        this.pointerType = naturalType;
+        this.tmpType = types.ptrDiffType();
+    }
+
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(optimize(f));
+        }
+    }
+
+    private List<Stmt> optimize(DefinedFunction f) {
+        ControlFlowGraph g = ControlFlowGraph.build(f.ir());
+        function = f;
+        aliased = SSAForm.addressTakenVariables(g);
+        locals = new HashSet<Entity>(f.parameters());
+        locals.addAll(f.localVariables());
+        reused = 0;
+        for (BasicBlock b : g.blocks()) {
+            optimize(b);
+        }
+        if (reused > 0) {
+            f.remarks().add("reused " + reused
+                    + (reused == 1 ? " common subexpression"
+                                   : " common subexpressions"));
+        }
+        function = null;
+        aliased = null;
+        locals = null;
+        return g.toStmts();
+    }
+
+    /**
+     * An evaluation of an expression in a statement, mirroring the
+     * tree of the expression.
+     */
+    static private final class Occurrence {
+        final Expr expr;
+        final List<Occurrence> children = new ArrayList<Occurrence>();
+        int number;
+        boolean candidate;
+        Occurrence first;           // earlier evaluation to reuse
+        boolean reused;             // is reused by later ones
+        DefinedVariable tmp;
+
+        Occurrence(Expr expr) {
+            this.expr = expr;
+        }
+    }
+
+    /** Occurrences of a statement in the order of evaluation. */
+    static private final class Entry {
+        final Stmt stmt;
+        final List<Occurrence> roots = new ArrayList<Occurrence>();
+
+        Entry(Stmt stmt) {
+            this.stmt = stmt;
+        }
+    }
+
+    private void optimize(BasicBlock b) {
+        numbers.clear();
+        generations.clear();
+        available.clear();
+        memoryGeneration = 0;
+        uniqueNumber = -1;
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Stmt s : b.stmts()) {
+            entries.add(analyze(s));
+        }
+        entries.add(analyze(b.terminator()));
+        List<Stmt> stmts = new ArrayList<Stmt>();
+        for (Entry ent : entries) {
+            Stmt s = rewrite(ent, stmts);
+            if (ent.stmt == b.terminator()) {
+                b.setTerminator(s);
+            }
+            else {
+                stmts.add(s);
+            }
+        }
+        b.stmts().clear();
+        b.stmts().addAll(stmts);
+    }
+
+    //
+    // Analysis
+    //
+
+    private Entry analyze(Stmt s) {
+        Entry ent = new Entry(s);
+        for (Expr e : evaluatedExprs(s)) {
+            ent.roots.add(number(e));
+        }
+        // Hoisting out of a statement would move values over a call
+        // in the middle of it; calls are statements themselves
+        // though, the callee or arguments of the outermost call.
+        if (! hasNestedCall(s)) {
+            for (Occurrence o : ent.roots) {
+                match(o);
+            }
+        }
+        if (s instanceof Assign) {
+            Assign a = (Assign)s;
+            if (a.lhs() instanceof Addr) {
+                Entity dest = ((Addr)a.lhs()).entity();
+                bump(dest);
+                if (isAliased(dest)) memoryGeneration++;
+            }
+            else {
+                memoryGeneration++;
+            }
+        }
+        if (hasCall(s)) memoryGeneration++;
+        return ent;
+    }
+
+    /** Expressions S evaluates, in the order of evaluation. */
+    private List<Expr> evaluatedExprs(Stmt s) {
+        List<Expr> result = new ArrayList<Expr>();
+        if (s instanceof Assign) {
+            result.add(((Assign)s).rhs());
+            if (! (((Assign)s).lhs() instanceof Addr)) {
+                result.add(((Assign)s).lhs());
+            }
+        }
+        else if (s instanceof ExprStmt) {
+            result.add(((ExprStmt)s).expr());
+        }
+        else if (s instanceof CJump) {
+            result.add(((CJump)s).cond());
+        }
+        else if (s instanceof Switch) {
+            result.add(((Switch)s).cond());
+        }
+        else if (s instanceof Return && ((Return)s).expr() != null) {
+            result.add(((Return)s).expr());
+        }
+        return result;
+    }
+
+    /** Numbers E and its operands bottom up. */
+    private Occurrence number(Expr e) {
+        Occurrence o = new Occurrence(e);
+        List<Object> key;
+        if (e instanceof Var) {
+            Entity ent = ((Var)e).entity();
+            key = key("var", ent, generation(ent),
+                    isAliased(ent) ? memoryGeneration : -1);
+        }
+        else if (e instanceof Int) {
+            key = key("int", e.type(), ((Int)e).value());
+        }
+        else if (e instanceof Addr) {
+            key = key("addr", ((Addr)e).entity());
+        }
+        else if (e instanceof Str) {
+            key = key("str", ((Str)e).entry());
+        }
+        else if (e instanceof Bin) {
+            Bin bin = (Bin)e;
+            Occurrence l = number(bin.left());
+            Occurrence r = number(bin.right());
+            o.children.add(l);
+            o.children.add(r);
+            int x = l.number, y = r.number;
+            if (isCommutative(bin.op()) && x > y) {
+                x = r.number;
+                y = l.number;
+            }
+            key = key("bin", bin.op(), e.type(), x, y);
+            o.candidate = true;
+        }
+        else if (e instanceof Uni) {
+            Occurrence c = number(((Uni)e).expr());
+            o.children.add(c);
+            key = key("uni", ((Uni)e).op(), e.type(), c.number);
+            o.candidate = true;
+        }
+        else if (e instanceof Mem) {
+            Occurrence c = number(((Mem)e).expr());
+            o.children.add(c);
+            key = key("mem", e.type(), c.number, memoryGeneration);
+            o.candidate = true;
+        }
+        else {
+            // Call: a new value at each evaluation.
+            for (Expr arg : callOperands(e)) {
+                o.children.add(number(arg));
+            }
+            key = null;
+        }
+        o.number = valueNumber(key);
+        o.candidate = o.candidate && e.type() != null
+                && e.type().size() == naturalType.size() && isWorthReusing(e);
+        return o;
+    }
+
+    private List<Object> key(Object... elems) {
+        return Arrays.asList(elems);
+    }
+
+    private int valueNumber(List<Object> key) {
+        if (key == null) return uniqueNumber--;
+        Integer n = numbers.get(key);
+        if (n == null) {
+            n = numbers.size();
+            numbers.put(key, n);
+        }
+        return n;
+    }
+
+    /**
+     * Marks evaluations of values available from earlier ones, and
+     * makes the others available.  Operands of a reused evaluation
+     * are not evaluated any more.
+     */
+    private void match(Occurrence o) {
+        if (o.candidate) {
+            Occurrence first = available.get(o.number);
+            if (first != null) {
+                o.first = first;
+                first.reused = true;
+                return;
+            }
+        }
+        for (Occurrence c : o.children) {
+            match(c);
+        }
+        if (o.candidate) available.put(o.number, o);
+    }
+
+    /** Returns true if E involves a load or two or more operations. */
+    private boolean isWorthReusing(Expr e) {
+        return operations(e) >= 2;
+    }
+
+    private int operations(Expr e) {
+        if (e instanceof Bin) {
+            return 1 + operations(((Bin)e).left())
+                    + operations(((Bin)e).right());
+        }
+        if (e instanceof Uni) return 1 + operations(((Uni)e).expr());
+        if (e instanceof Mem) return 2 + operations(((Mem)e).expr());
+        return 0;
+    }
+
+    private int generation(Entity ent) {
+        Integer n = generations.get(ent);
+        return n == null ? 0 : n;
+    }
+
+    private void bump(Entity ent) {
+        generations.put(ent, generation(ent) + 1);
+    }
+
+    /** Returns true if ENT may be changed by stores through pointers. */
+    private boolean isAliased(Entity ent) {
+        return aliased.contains(ent) || ! locals.contains(ent);
+    }
+
+    //
+    // Rewriting
+    //
+
+    /**
+     * Returns the statement of ENT reading reused values from
+     * temporaries.  Assignments of temporaries are added to STMTS.
+     */
+    private Stmt rewrite(Entry ent, List<Stmt> stmts) {
+        Stmt s = ent.stmt;
+        Location loc = s.location();
+        List<Expr> exprs = new ArrayList<Expr>();
+        boolean changed = false;
+        for (Occurrence o : ent.roots) {
+            Expr e = rewrite(o, loc, stmts);
+            if (e != o.expr) changed = true;
+            exprs.add(e);
+        }
+        if (! changed) return s;
+        if (s instanceof Assign) {
+            Assign a = (Assign)s;
+            Expr lhs = (a.lhs() instanceof Addr) ? a.lhs() : exprs.get(1);
+            return new Assign(loc, lhs, exprs.get(0));
+        }
+        else if (s instanceof ExprStmt) {
+            return new ExprStmt(loc, exprs.get(0));
+        }
+        else if (s instanceof CJump) {
+            CJump c = (CJump)s;
+            return new CJump(loc, exprs.get(0), c.thenLabel(), c.elseLabel());
+        }
+        else if (s instanceof Switch) {
+            Switch c = (Switch)s;
+            return new Switch(loc, exprs.get(0), c.cases(),
+                    c.defaultLabel(), c.endLabel());
+        }
+        else if (s instanceof Return) {
+            return new Return(loc, exprs.get(0));
+        }
+        else {
+            throw new Error("must not happen: rewriting " + s.getClass());
+        }
+    }
+
+    private Expr rewrite(Occurrence o, Location loc, List<Stmt> stmts) {
+        if (o.first != null) {
+            reused++;
+            return new Var(o.expr.type(), o.first.tmp);
+        }
+        Expr e = rebuild(o, loc, stmts);
+        if (! o.reused) return e;
+        o.tmp = function.lvarScope().allocateTmp(tmpType);
+        stmts.add(new Assign(loc, new Addr(pointerType, o.tmp), e));
+        return new Var(o.expr.type(), o.tmp);
+    }
+
+    private Expr rebuild(Occurrence o, Location loc, List<Stmt> stmts) {
+        Expr e = o.expr;
+        List<Expr> operands = new ArrayList<Expr>();
+        boolean changed = false;
+        for (Occurrence c : o.children) {
+            Expr x = rewrite(c, loc, stmts);
+            if (x != c.expr) changed = true;
+            operands.add(x);
+        }
+        if (! changed) return e;
+        if (e instanceof Bin) {
+            Bin bin = (Bin)e;
+            return new Bin(bin.type(), bin.op(), operands.get(0), operands.get(1));
+        }
+        else if (e instanceof Uni) {
+            return new Uni(e.type(), ((Uni)e).op(), operands.get(0));
+        }
+        else if (e instanceof Mem) {
+            return new Mem(e.type(), operands.get(0));
+        }
+        else if (e instanceof Call) {
+            return new Call(e.type(), operands.get(0),
+                    operands.subList(1, operands.size()));
+        }
+        else {
+            throw new Error("must not happen: rebuilding " + e.getClass());
+        }
+    }
+
+    //
+    // Utilities
+    //
+
+    /** The callee and arguments of a call. */
+    static private List<Expr> callOperands(Expr e) {
+        if (! (e instanceof Call)) {
+            throw new Error("must not happen: unknown expr " + e.getClass());
+        }
+        List<Expr> result = new ArrayList<Expr>();
+        result.add(((Call)e).expr());
+        result.addAll(((Call)e).args());
+        return result;
+    }
+
+    static private boolean isCommutative(Op op) {
+        switch (op) {
+        case ADD:
+        case MUL:
+        case BIT_AND:
+        case BIT_OR:
+        case BIT_XOR:
+        case EQ:
+        case NEQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private boolean hasCall(Stmt s) {
+        for (Expr e : evaluatedExprs(s)) {
+            if (countCalls(e) > 0) return true;
+        }
+        return false;
+    }
+
+    /** Returns true if S has a call other than the outermost expression. */
+    private boolean hasNestedCall(Stmt s) {
+        for (Expr e : evaluatedExprs(s)) {
+            if (e instanceof Call) {
+                for (Expr x : callOperands(e)) {
+                    if (countCalls(x) > 0) return true;
+                }
+            }
+            else if (countCalls(e) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int countCalls(Expr e) {
+        if (e instanceof Call) {
+            int n = 1;
+            for (Expr x : callOperands(e)) {
+                n += countCalls(x);
+            }
+            return n;
+        }
+        if (e instanceof Bin) {
+            return countCalls(((Bin)e).left()) + countCalls(((Bin)e).right());
+        }
+        if (e instanceof Uni) return countCalls(((Uni)e).expr());
+        if (e instanceof Mem) return countCalls(((Mem)e).expr());
+        return 0;
+    }
+}
@@ -0,0 +1,311 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.parser.SourceCache;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import net.loveruby.cflat.utils.ErrorHandler;
+import java.util.*;
+import java.util.concurrent.*;
+import java.net.*;
+import java.io.*;
+import java.security.SecureRandom;
+import java.security.MessageDigest;
+
+/**
+ * Compile server (cbc --server).
+ *
+ * Runs compilations requested by the bin/cbc client in one JVM,
+ * so that each compilation does not pay JVM startup and class loading,
+ * and JIT-compiled code and the header cache stay warm.
+ *
+ * The server listens on a loopback TCP port, and writes the port
+ * number and a random token to the server file (~/.cbc/server),
+ * which is readable only by the owner.
+ *
+ * A request is a sequence of NUL-terminated records,
+ * "token=TOKEN", "cwd=DIR", "env=NAME=VALUE" and "arg=ARG",
+ * terminated by an empty record.
+ * A response is a sequence of lines: "ok", then "1:LINE" for stdout
+ * and "2:LINE" for stderr ("1-TEXT" and "2-TEXT" for a last line
+ * without newline), and "exit:STATUS" at last.
+ */
+class CompileServer {
+    static final String SERVER_OPTION = "--server";
+
+    static boolean isServerCommand(String[] args) {
+        return args.length > 0 && args[0].equals(SERVER_OPTION);
+    }
+
+    static int serverMain(String[] args) {
+        ErrorHandler h = new ErrorHandler(Compiler.ProgramName);
+        File serverFile = defaultServerFile();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--server-file") && i + 1 < args.length) {
+                serverFile = new File(args[++i]);
+            }
+            else {
+                h.error("unknown server option: " + args[i]);
+                h.error("Usage: cbc --server [--server-file PATH]");
+                return 1;
+            }
+        }
+        try {
+            new CompileServer(serverFile).run();
+            return 0;
+        }
+        catch (IOException ex) {
+            h.error("compile server failed: " + ex.getMessage());
+            return 1;
+        }
+    }
+
+    static private File defaultServerFile() {
+        return new File(System.getProperty("user.home"), ".cbc/server");
+    }
+
+    private final File serverFile;
+    private final SourceCache headerCache = new SourceCache();
+    private final String token = newToken();
+
+    CompileServer(File serverFile) {
+        this.serverFile = serverFile;
+    }
+
+    void run() throws IOException {
+        ServerSocket server =
+                new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try {
+            writeServerFile(server.getLocalPort());
+            ExecutorService pool = Executors.newCachedThreadPool();
+            while (true) {
+                final Socket sock = server.accept();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        serve(sock);
+                    }
+                });
+            }
+        }
+        finally {
+            server.close();
+        }
+    }
+
+    static private String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes) {
+            buf.append(String.format("%02x", b & 0xff));
+        }
+        return buf.toString();
+    }
+
+    private void writeServerFile(int port) throws IOException {
+        File dir = serverFile.getAbsoluteFile().getParentFile();
+        if (! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException("cannot create directory: " + dir);
+        }
+        File tmp = new File(dir, serverFile.getName() + ".tmp");
+        tmp.delete();
+        if (! tmp.createNewFile()) {
+            throw new IOException("cannot create file: " + tmp);
+        }
+        // The token is the only authentication of clients.
+        tmp.setReadable(false, false);
+        tmp.setWritable(false, false);
+        tmp.setReadable(true, true);
+        tmp.setWritable(true, true);
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII");
+        try {
+            w.write(port + " " + token + "\n");
+        }
+        finally {
+            w.close();
+        }
+        if (! tmp.renameTo(serverFile)) {
+            throw new IOException("cannot rename " + tmp + " to " + serverFile);
+        }
+        serverFile.deleteOnExit();
+    }
+
+    private void serve(Socket sock) {
+        try {
+            try {
+                Request req = readRequest(
+                        new BufferedInputStream(sock.getInputStream()));
+                if (! isValidToken(req.token)) {
+                    return;
+                }
+                Response res = new Response(sock.getOutputStream());
+                res.println("ok");
+                res.finish(compile(req, res));
+            }
+            finally {
+                sock.close();
+            }
+        }
+        catch (IOException ex) {
+            // The client has gone away.  Nothing to do.
+        }
+    }
+
+    private boolean isValidToken(String t) throws IOException {
+        if (t == null) return false;
+        // Constant-time comparison not to leak the token by timing.
+        return MessageDigest.isEqual(token.getBytes("UTF-8"),
+                t.getBytes("UTF-8"));
+    }
+
+    private int compile(Request req, Response res) {
+        PrintStream out = new PrintStream(res.channel('1'));
+        PrintStream err = new PrintStream(res.channel('2'));
+        CommandEnvironment env = new CommandEnvironment(req.cwd, req.env, out);
+        try {
+            return new Compiler(Compiler.ProgramName,
+                    env, err, headerCache).commandMain(req.args());
+        }
+        catch (RuntimeException ex) {
+            // Compiler bugs must not kill the server.
+            ex.printStackTrace(err);
+            return 1;
+        }
+        catch (Error ex) {
+            ex.printStackTrace(err);
+            return 1;
+        }
+        finally {
+            out.flush();
+            err.flush();
+        }
+    }
+
+    static private class Request {
+        String token;
+        File cwd;
+        Map<String, String> env;
+        List<String> args = new ArrayList<String>();
+
+        String[] args() {
+            return args.toArray(new String[] {});
+        }
+    }
+
+    private Request readRequest(InputStream in) throws IOException {
+        Request req = new Request();
+        String rec;
+        while (! (rec = readRecord(in)).isEmpty()) {
+            int eq = rec.indexOf('=');
+            if (eq < 0) {
+                throw new IOException("broken request: " + rec);
+            }
+            String key = rec.substring(0, eq);
+            String value = rec.substring(eq + 1);
+            if (key.equals("token")) {
+                req.token = value;
+            }
+            else if (key.equals("cwd")) {
+                req.cwd = new File(value);
+            }
+            else if (key.equals("arg")) {
+                req.args.add(value);
+            }
+            else if (key.equals("env")) {
+                int i = value.indexOf('=');
+                if (i < 0) continue;
+                if (req.env == null) {
+                    req.env = new HashMap<String, String>();
+                }
+                req.env.put(value.substring(0, i), value.substring(i + 1));
+            }
+            else {
+                throw new IOException("unknown request record: " + key);
+            }
+        }
+        return req;
+    }
+
+    private String readRecord(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != 0) {
+            if (c < 0) {
+                throw new IOException("unexpected EOF in request");
+            }
+            buf.write(c);
+        }
+        return buf.toString("UTF-8");
+    }
+
+    /**
+     * Multiplexes stdout and stderr of a compilation into lines
+     * of one socket.
+     */
+    static private class Response {
+        private final OutputStream sock;
+        private final List<Channel> channels = new ArrayList<Channel>();
+
+        Response(OutputStream sock) {
+            this.sock = new BufferedOutputStream(sock);
+        }
+
+        OutputStream channel(char tag) {
+            Channel ch = new Channel(tag);
+            channels.add(ch);
+            return ch;
+        }
+
+        synchronized void println(String line) throws IOException {
+            sock.write(line.getBytes("US-ASCII"));
+            sock.write('\n');
+        }
+
+        synchronized void writeLine(char tag, char sep, byte[] buf, int len)
+                                                    throws IOException {
+            sock.write(tag);
+            sock.write(sep);
+            sock.write(buf, 0, len);
+            sock.write('\n');
+        }
+
+        void finish(int status) throws IOException {
+            for (Channel ch : channels) {
+                ch.flushPartialLine();
+            }
+            println("exit:" + status);
+            sock.flush();
+        }
+
+        class Channel extends OutputStream {
+            private final char tag;
+            private final ByteArrayOutputStream line =
+                    new ByteArrayOutputStream();
+
+            Channel(char tag) {
+                this.tag = tag;
+            }
+
+            public synchronized void write(int b) throws IOException {
+                if (b == '\n') {
+                    writeLine(tag, ':', line.toByteArray(), line.size());
+                    line.reset();
+                }
+                else {
+                    line.write(b);
+                }
+            }
+
+            public synchronized void write(byte[] buf, int off, int len)
+                                                    throws IOException {
+                for (int i = off; i < off + len; i++) {
+                    write(buf[i]);
+                }
+            }
+
+            synchronized void flushPartialLine() throws IOException {
+                if (line.size() > 0) {
+                    writeLine(tag, '-', line.toByteArray(), line.size());
+                    line.reset();
+                }
+            }
+        }
+    }
+}
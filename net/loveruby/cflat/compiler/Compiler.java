@@ -1,16 +1,26 @@
 package net.loveruby.cflat.compiler;
 import net.loveruby.cflat.parser.Parser;
+import net.loveruby.cflat.parser.SourceCache;
+import net.loveruby.cflat.parser.PrecompiledHeaderCache;
 import net.loveruby.cflat.ast.AST;
 import net.loveruby.cflat.ast.StmtNode;
 import net.loveruby.cflat.ast.ExprNode;
 import net.loveruby.cflat.type.TypeTable;
 import net.loveruby.cflat.ir.IR;
+import net.loveruby.cflat.ir.cfg.CFGSimplifier;
 import net.loveruby.cflat.sysdep.CodeGenerator;
 import net.loveruby.cflat.sysdep.AssemblyCode;
+import net.loveruby.cflat.asm.AsmWriter;
 import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.utils.BufferedErrorHandler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import net.loveruby.cflat.utils.PipedCommand;
+import net.loveruby.cflat.utils.TimeReport;
 import net.loveruby.cflat.exception.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.channels.Channels;
 
 public class Compiler {
     // #@@range/main{
@@ -18,41 +28,103 @@ public class Compiler {
     static final public String Version = "1.0.0";
 
     static public void main(String[] args) {
-        new Compiler(ProgramName).commandMain(args);
+        if (CompileServer.isServerCommand(args)) {
+            System.exit(CompileServer.serverMain(args));
+        }
+        if (BatchCompiler.isBatchCommand(args)) {
+            System.exit(BatchCompiler.batchMain(args));
+        }
+        System.exit(new Compiler(ProgramName).commandMain(args));
     }
 
     private final ErrorHandler errorHandler;
+    private final CommandEnvironment env;
+    private final SourceCache headerCache;
 
     public Compiler(String programName) {
-        this.errorHandler = new ErrorHandler(programName);
+        this(new ErrorHandler(programName),
+                CommandEnvironment.inherited(), null);
     }
     // #@@}
 
-    public void commandMain(String[] args) {
+    /**
+     * Creates a compiler which runs in ENV and reports errors to ERR.
+     * HEADERCACHE is shared by all compilations of a compile server,
+     * and may be null.
+     */
+    public Compiler(String programName, CommandEnvironment env,
+                    PrintStream err, SourceCache headerCache) {
+        this(new ErrorHandler(programName, err), env, headerCache);
+    }
+
+    private Compiler(ErrorHandler errorHandler,
+            CommandEnvironment env, SourceCache headerCache) {
+        this.errorHandler = errorHandler;
+        this.env = env;
+        this.headerCache = headerCache;
+    }
+
+    /**
+     * Runs the compiler as a command and returns its exit status.
+     * This method does not call System.exit, so it can be called
+     * many times in one process.
+     */
+    public int commandMain(String[] args) {
         Options opts = parseOptions(args);
+        if (opts == null) return 1;
+        if (opts.isQuitRequested()) return 0;
+        int status = run(opts);
+        if (opts.timeReport().isEnabled()) {
+            printTimeReport(opts);
+        }
+        if (opts.isPchStatsRequired()) {
+            PrecompiledHeaderCache pch = opts.pchCache();
+            errorHandler.print(ProgramName + ": pch: "
+                    + pch.hits() + " hits, " + pch.misses() + " misses");
+        }
+        if (opts.peepholeStats().isEnabled()) {
+            for (String line : opts.peepholeStats().report()) {
+                errorHandler.print(ProgramName + ": peephole: " + line);
+            }
+        }
+        return status;
+    }
+
+    private void printTimeReport(Options opts) {
+        TimeReport report = opts.timeReport();
+        if (opts.isJSONTimeReport()) {
+            errorHandler.print(report.jsonReport(opts.timeReportTop()));
+        }
+        else {
+            for (String line : report.textReport(opts.timeReportTop())) {
+                errorHandler.print(line);
+            }
+        }
+    }
+
+    private int run(Options opts) {
         if (opts.mode() == CompilerMode.CheckSyntax) {
-            System.exit(checkSyntax(opts) ? 0 : 1);
+            return checkSyntax(opts) ? 0 : 1;
         }
         try {
             List<SourceFile> srcs = opts.sourceFiles();
             build(srcs, opts);
-            System.exit(0);
+            return 0;
         }
         catch (CompileException ex) {
             errorHandler.error(ex.getMessage());
-            System.exit(1);
+            return 1;
         }
     }
 
     private Options parseOptions(String[] args) {
         try {
-            return Options.parse(args);
+            return Options.parse(args, env, headerCache);
         }
         catch (OptionParseError err) {
             errorHandler.error(err.getMessage());
             errorHandler.error("Try \"cbc --help\" for usage");
-            System.exit(1);
-            return null;   // never reach
+            return null;
         }
     }
 
@@ -60,10 +132,10 @@ public class Compiler {
         boolean failed = false;
         for (SourceFile src : opts.sourceFiles()) {
             if (isValidSyntax(src.path(), opts)) {
-                System.out.println(src.path() + ": Syntax OK");
+                env.out().println(src.path() + ": Syntax OK");
             }
             else {
-                System.out.println(src.path() + ": Syntax Error");
+                env.out().println(src.path() + ": Syntax Error");
                 failed = true;
             }
         }
@@ -87,17 +159,12 @@ public class Compiler {
     // #@@range/build{
     public void build(List<SourceFile> srcs, Options opts)
                                         throws CompileException {
-        for (SourceFile src : srcs) {
-            if (src.isCflatSource()) {
-                String destPath = opts.asmFileNameOf(src);
-                compile(src.path(), destPath, opts);
-                src.setCurrentName(destPath);
-            }
-            if (! opts.isAssembleRequired()) continue;
-            if (src.isAssemblySource()) {
-                String destPath = opts.objFileNameOf(src);
-                assemble(src.path(), destPath, opts);
-                src.setCurrentName(destPath);
+        if (isParallelBuild(srcs, opts)) {
+            buildParallel(srcs, opts);
+        }
+        else {
+            for (SourceFile src : srcs) {
+                buildFile(src, opts);
             }
         }
         if (! opts.isLinkRequired()) return;
@@ -105,6 +172,186 @@ public class Compiler {
     }
     // #@@}
 
+    private void buildFile(SourceFile src, Options opts)
+                                        throws CompileException {
+        BuildCache cache = opts.buildCache();
+        if (src.isCflatSource() && opts.isPipeMode()
+                && opts.isAssembleRequired()) {
+            String destPath = opts.objFileNameOf(src);
+            if (cache != null) {
+                compileAndAssembleWithCache(cache, src.path(), destPath, opts);
+            }
+            else {
+                compileAndAssemble(src.path(), destPath, opts);
+            }
+            src.setCurrentName(destPath);
+            return;
+        }
+        if (src.isCflatSource()) {
+            String destPath = opts.asmFileNameOf(src);
+            if (cache != null && isCacheable(destPath, opts)) {
+                compileWithCache(cache, src.path(), destPath, opts);
+            }
+            else {
+                compile(src.path(), destPath, opts);
+            }
+            src.setCurrentName(destPath);
+        }
+        if (! opts.isAssembleRequired()) return;
+        if (src.isAssemblySource()) {
+            String destPath = opts.objFileNameOf(src);
+            if (cache != null) {
+                assembleWithCache(cache, src.path(), destPath, opts);
+            }
+            else {
+                assemble(src.path(), destPath, opts);
+            }
+            src.setCurrentName(destPath);
+        }
+    }
+
+    private boolean isCacheable(String destPath, Options opts) {
+        // Dump modes and "-o -" write to stdout.
+        return opts.mode().requires(CompilerMode.Compile)
+                && ! destPath.equals("-");
+    }
+
+    private void compileWithCache(BuildCache cache, final String srcPath,
+            final String destPath, final Options opts) throws CompileException {
+        runWithCache(cache, cache.compileKey(srcPath, opts), destPath,
+                new BuildStep() {
+            public void run(Compiler c) throws CompileException {
+                c.compile(srcPath, destPath, opts);
+            }
+        });
+    }
+
+    private void assembleWithCache(BuildCache cache, final String srcPath,
+            final String destPath, final Options opts) throws CompileException {
+        runWithCache(cache, cache.assembleKey(srcPath, opts), destPath,
+                new BuildStep() {
+            public void run(Compiler c) throws CompileException {
+                c.assemble(srcPath, destPath, opts);
+            }
+        });
+    }
+
+    private void compileAndAssembleWithCache(BuildCache cache,
+            final String srcPath, final String destPath,
+            final Options opts) throws CompileException {
+        runWithCache(cache, cache.pipeKey(srcPath, opts), destPath,
+                new BuildStep() {
+            public void run(Compiler c) throws CompileException {
+                c.compileAndAssemble(srcPath, destPath, opts);
+            }
+        });
+    }
+
+    private interface BuildStep {
+        void run(Compiler c) throws CompileException;
+    }
+
+    /** Restores DESTPATH from CACHE, or runs STEP and stores the result. */
+    private void runWithCache(BuildCache cache, String key,
+            String destPath, BuildStep step) throws CompileException {
+        if (cache.restore(key, destPath, errorHandler)) return;
+        // Captures warnings to report them again on cache hit.
+        BufferedErrorHandler h = new BufferedErrorHandler(ProgramName);
+        String log;
+        try {
+            step.run(new Compiler(h, env, headerCache));
+        }
+        finally {
+            log = h.messages();
+            h.flushTo(errorHandler);
+        }
+        cache.store(key, destPath, log, errorHandler);
+    }
+
+    private boolean isParallelBuild(List<SourceFile> srcs, Options opts) {
+        // Dump modes print to stdout, never run them in parallel.
+        return opts.jobs() > 1
+                && srcs.size() > 1
+                && opts.mode().requires(CompilerMode.Compile);
+    }
+
+    /**
+     * Compiles and assembles source files on a worker pool.
+     * Each file has its own ErrorHandler, LibraryLoader, TypeTable
+     * and CodeGenerator.
+     * Diagnostics are printed in the order of source files, and
+     * the build stops at the first failed file, as sequential build does.
+     */
+    private void buildParallel(List<SourceFile> srcs, final Options opts)
+                                        throws CompileException {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(opts.jobs(), srcs.size()));
+        try {
+            List<Future<BuildResult>> results =
+                    new ArrayList<Future<BuildResult>>();
+            for (final SourceFile src : srcs) {
+                results.add(pool.submit(new Callable<BuildResult>() {
+                    public BuildResult call() {
+                        return buildFileInWorker(src, opts);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                BuildResult result = waitFor(results.get(i));
+                result.errorHandler.flushTo(errorHandler);
+                if (result.exception != null) {
+                    for (Future<BuildResult> f : results.subList(i + 1, results.size())) {
+                        f.cancel(false);
+                    }
+                    throw result.exception;
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    static private class BuildResult {
+        final BufferedErrorHandler errorHandler;
+        CompileException exception;
+
+        BuildResult(BufferedErrorHandler h) {
+            this.errorHandler = h;
+        }
+    }
+
+    static private BuildResult buildFileInWorker(SourceFile src, Options opts) {
+        BufferedErrorHandler h = new BufferedErrorHandler(ProgramName);
+        BuildResult result = new BuildResult(h);
+        try {
+            new Compiler(h, opts.environment(), null).buildFile(src, opts);
+        }
+        catch (CompileException ex) {
+            result.exception = ex;
+        }
+        return result;
+    }
+
+    private BuildResult waitFor(Future<BuildResult> f) throws CompileException {
+        try {
+            return f.get();
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new Error("must not happen: " + cause);
+        }
+        catch (InterruptedException ex) {
+            throw new CompileException("build interrupted");
+        }
+    }
+
     public void compile(String srcPath, String destPath,
                         Options opts) throws CompileException {
         AST ast = parseFile(srcPath, opts);
@@ -112,53 +359,266 @@ public class Compiler {
         TypeTable types = opts.typeTable();
         AST sem = semanticAnalyze(ast, types, opts);
         if (dumpSemant(sem, opts.mode())) return;
-        IR ir = new IRGenerator(types, errorHandler).generate(sem);
+        IR ir = generateIR(sem, types, opts);
         if (dumpIR(ir, opts.mode())) return;
         AssemblyCode asm = generateAssembly(ir, opts);
         if (dumpAsm(asm, opts.mode())) return;
         if (printAsm(asm, opts.mode())) return;
-        writeFile(destPath, asm.toSource());
+        TimeReport.Timer timer = opts.timeReport().startPhase("writeFile");
+        try {
+            writeFile(destPath, asm);
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Compiles SRCPATH and assembles it into DESTPATH without
+     * assembly file (-pipe).  The assembler reads assembly code
+     * from a pipe while the code generator writes it.
+     */
+    public void compileAndAssemble(String srcPath, String destPath,
+                        Options opts) throws CompileException {
+        AST ast = parseFile(srcPath, opts);
+        TypeTable types = opts.typeTable();
+        AST sem = semanticAnalyze(ast, types, opts);
+        IR ir = generateIR(sem, types, opts);
+        PipedCommand as = opts.assembler(errorHandler)
+                .start(destPath, opts.asOptions());
+        boolean succeeded = false;
+        try {
+            TimeReport report = opts.timeReport();
+            TimeReport.Timer timer = report.startPhase("CodeGenerator.generate");
+            try {
+                // Write errors are reported by PipedCommand#finish.
+                AsmWriter w = new AsmWriter(Channels.newChannel(as.input()));
+                opts.codeGenerator(errorHandler).generate(ir, w);
+                w.flush();
+            }
+            finally {
+                timer.stop();
+            }
+            timer = report.startPhase("as");
+            try {
+                as.finish(errorHandler);
+            }
+            finally {
+                timer.stop();
+            }
+            succeeded = true;
+        }
+        catch (IOException ex) {
+            throw new Error("must not happen: " + ex.getMessage());
+        }
+        finally {
+            if (! succeeded) {
+                // Do not leave a broken object file.
+                as.abort();
+                env.file(destPath).delete();
+            }
+        }
     }
 
     public AST parseFile(String path, Options opts)
                             throws SyntaxException, FileException {
-        return Parser.parseFile(new File(path),
-                opts.loader(), errorHandler, opts.doesDebugParser());
+        // Opens the file relative to the client's directory,
+        // but error messages refer the file by the path given.
+        TimeReport.Timer timer = opts.timeReport().startPhase("Parser.parseFile");
+        try {
+            Reader src = SourceCache.openFile(env.file(path));
+            return new Parser(src, path, opts.loader(),
+                    errorHandler, opts.doesDebugParser()).parse();
+        }
+        finally {
+            timer.stop();
+        }
     }
 
     public AST semanticAnalyze(AST ast, TypeTable types,
                 Options opts) throws SemanticException {
-        new LocalResolver(errorHandler).resolve(ast);
-        new TypeResolver(types, errorHandler).resolve(ast);
-        types.semanticCheck(errorHandler);
+        TimeReport report = opts.timeReport();
+        TimeReport.Timer timer = report.startPhase("LocalResolver");
+        try {
+            new LocalResolver(errorHandler).resolve(ast);
+        }
+        finally {
+            timer.stop();
+        }
+        timer = report.startPhase("TypeResolver");
+        try {
+            new TypeResolver(types, errorHandler).resolve(ast);
+        }
+        finally {
+            timer.stop();
+        }
+        timer = report.startPhase("TypeTable.semanticCheck");
+        try {
+            types.semanticCheck(errorHandler);
+        }
+        finally {
+            timer.stop();
+        }
         if (opts.mode() == CompilerMode.DumpReference) {
-            ast.dump();
+            ast.dump(env.out());
             return ast;
         }
-        new DereferenceChecker(types, errorHandler).check(ast);
-        new TypeChecker(types, errorHandler).check(ast);
+        timer = report.startPhase("DereferenceChecker");
+        try {
+            new DereferenceChecker(types, errorHandler).check(ast);
+        }
+        finally {
+            timer.stop();
+        }
+        timer = report.startPhase("TypeChecker");
+        try {
+            new TypeChecker(types, errorHandler).check(ast);
+        }
+        finally {
+            timer.stop();
+        }
         return ast;
     }
 
+    private IR generateIR(AST sem, TypeTable types, Options opts)
+                                            throws SemanticException {
+        TimeReport.Timer timer = opts.timeReport().startPhase("IRGenerator");
+        IR ir;
+        try {
+            ir = new IRGenerator(types, errorHandler).generate(sem);
+        }
+        finally {
+            timer.stop();
+        }
+        if (opts.genOptions().optimizeLevel() >= 1) {
+            optimizeIR(ir, types, opts);
+        }
+        return ir;
+    }
+
+    private void optimizeIR(IR ir, TypeTable types, Options opts) {
+        TimeReport report = opts.timeReport();
+        net.loveruby.cflat.asm.Type pointerType =
+                net.loveruby.cflat.asm.Type.get(types.pointerSize());
+        TimeReport.Timer timer = report.startPhase("Inliner");
+        try {
+            new Inliner(opts.genOptions().inlineThreshold(), pointerType)
+                    .inline(ir);
+        }
+        finally {
+            timer.stop();
+        }
+        timer = report.startPhase("ConstantFolder");
+        try {
+            new ConstantFolder().optimize(ir);
+        }
+        finally {
+            timer.stop();
+        }
+        if (opts.genOptions().optimizeLevel() >= 2) {
+            timer = report.startPhase("ConstantPropagator");
+            try {
+                new ConstantPropagator(pointerType).optimize(ir);
+            }
+            finally {
+                timer.stop();
+            }
+        }
+        timer = report.startPhase("CFGSimplifier");
+        try {
+            new CFGSimplifier().simplify(ir);
+        }
+        finally {
+            timer.stop();
+        }
+        if (opts.genOptions().optimizeLevel() >= 2) {
+            timer = report.startPhase("CommonSubexpressionEliminator");
+            try {
+                new CommonSubexpressionEliminator(pointerType, types)
+                        .optimize(ir);
+            }
+            finally {
+                timer.stop();
+            }
+            timer = report.startPhase("LoopInvariantHoister");
+            try {
+                new LoopInvariantHoister(pointerType, types).optimize(ir);
+            }
+            finally {
+                timer.stop();
+            }
+            if (opts.genOptions().unrollLimit() > 0) {
+                timer = report.startPhase("LoopUnroller");
+                try {
+                    new LoopUnroller(opts.genOptions().unrollLimit(),
+                            pointerType, types).optimize(ir);
+                }
+                finally {
+                    timer.stop();
+                }
+            }
+            timer = report.startPhase("StrengthReducer");
+            try {
+                new StrengthReducer(pointerType, types).optimize(ir);
+            }
+            finally {
+                timer.stop();
+            }
+            timer = report.startPhase("LoopRotator");
+            try {
+                new LoopRotator().optimize(ir);
+            }
+            finally {
+                timer.stop();
+            }
+        }
+        timer = report.startPhase("TailCallEliminator");
+        try {
+            new TailCallEliminator(pointerType).optimize(ir);
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
     public AssemblyCode generateAssembly(IR ir, Options opts) {
-        return opts.codeGenerator(errorHandler).generate(ir);
+        TimeReport.Timer timer =
+                opts.timeReport().startPhase("CodeGenerator.generate");
+        try {
+            return opts.codeGenerator(errorHandler).generate(ir);
+        }
+        finally {
+            timer.stop();
+        }
     }
 
     // #@@range/assemble{
     public void assemble(String srcPath, String destPath,
                             Options opts) throws IPCException {
-        opts.assembler(errorHandler)
-            .assemble(srcPath, destPath, opts.asOptions());
+        TimeReport.Timer timer = opts.timeReport().startPhase("as");
+        try {
+            opts.assembler(errorHandler)
+                .assemble(srcPath, destPath, opts.asOptions());
+        }
+        finally {
+            timer.stop();
+        }
     }
     // #@@}
 
     // #@@range/link{
     public void link(Options opts) throws IPCException {
-        if (! opts.isGeneratingSharedLibrary()) {
-            generateExecutable(opts);
+        TimeReport.Timer timer = opts.timeReport().startPhase("ld");
+        try {
+            if (! opts.isGeneratingSharedLibrary()) {
+                generateExecutable(opts);
+            }
+            else {
+                generateSharedLibrary(opts);
+            }
         }
-        else {
-            generateSharedLibrary(opts);
+        finally {
+            timer.stop();
         }
     }
     // #@@}
@@ -177,16 +637,18 @@ public class Compiler {
     }
     // #@@}
 
-    private void writeFile(String path, String str) throws FileException {
+    private void writeFile(String path, AssemblyCode asm)
+                                        throws FileException {
         if (path.equals("-")) {
-            System.out.print(str);
+            env.out().print(asm.toSource());
             return;
         }
         try {
-            BufferedWriter f = new BufferedWriter(
-                new OutputStreamWriter(new FileOutputStream(path)));
+            FileOutputStream f = new FileOutputStream(env.file(path));
             try {
-                f.write(str);
+                AsmWriter w = new AsmWriter(f.getChannel());
+                asm.writeTo(w);
+                w.flush();
             }
             finally {
                 f.close();
@@ -202,37 +664,39 @@ public class Compiler {
         }
     }
 
-    private boolean dumpAST(AST ast, CompilerMode mode) {
+    private boolean dumpAST(AST ast, CompilerMode mode)
+                                        throws CompileException {
         switch (mode) {
         case DumpTokens:
-            ast.dumpTokens(System.out);
+            ast.dumpTokens(env.out());
             return true;
         case DumpAST:
-            ast.dump();
+            ast.dump(env.out());
             return true;
         case DumpStmt:
-            findStmt(ast).dump();
+            findStmt(ast).dump(env.out());
             return true;
         case DumpExpr:
-            findExpr(ast).dump();
+            findExpr(ast).dump(env.out());
             return true;
         default:
             return false;
         }
     }
 
-    private StmtNode findStmt(AST ast) {
+    private StmtNode findStmt(AST ast) throws CompileException {
         StmtNode stmt = ast.getSingleMainStmt();
         if (stmt == null) {
-            errorExit("source file does not contains main()");
+            throw new CompileException("source file does not contains main()");
         }
         return stmt;
     }
 
-    private ExprNode findExpr(AST ast) {
+    private ExprNode findExpr(AST ast) throws CompileException {
         ExprNode expr = ast.getSingleMainExpr();
         if (expr == null) {
-            errorExit("source file does not contains single expression");
+            throw new CompileException(
+                    "source file does not contains single expression");
         }
         return expr;
     }
@@ -242,7 +706,7 @@ public class Compiler {
         case DumpReference:
             return true;
         case DumpSemantic:
-            ast.dump();
+            ast.dump(env.out());
             return true;
         default:
             return false;
@@ -251,7 +715,7 @@ public class Compiler {
 
     private boolean dumpIR(IR ir, CompilerMode mode) {
         if (mode == CompilerMode.DumpIR) {
-            ir.dump();
+            ir.dump(env.out());
             return true;
         }
         else {
@@ -261,7 +725,7 @@ public class Compiler {
 
     private boolean dumpAsm(AssemblyCode asm, CompilerMode mode) {
         if (mode == CompilerMode.DumpAsm) {
-            asm.dump(System.out);
+            asm.dump(env.out());
             return true;
         }
         else {
@@ -271,16 +735,11 @@ public class Compiler {
 
     private boolean printAsm(AssemblyCode asm, CompilerMode mode) {
         if (mode == CompilerMode.PrintAsm) {
-            System.out.print(asm.toSource());
+            env.out().print(asm.toSource());
             return true;
         }
         else {
             return false;
         }
     }
-
-    private void errorExit(String msg) {
-        errorHandler.error(msg);
-        System.exit(1);
-    }
 }
@@ -0,0 +1,439 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.entity.DefinedFunction;
+import net.loveruby.cflat.asm.Type;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Constant folding and algebraic simplification of the IR (-O1).
+ *
+ *   Int op Int             => Int, wrapped to the width of the type
+ *   (x + c1) + c2          => x + (c1+c2)
+ *   (x + c1) * c2          => x * c2 + c1*c2
+ *   x + 0, x * 1, x | 0    => x
+ *   x * 0, x & 0           => 0  (if x has no side effect)
+ *   c < x                  => x > c
+ *   !(x < y)               => x >= y
+ *   if (constant)          => jump
+ *
+ * Division by zero and the overflowing INT_MIN / -1 are left
+ * as is, to trap at runtime.
+ */
+class ConstantFolder implements IRVisitor<Stmt, Expr> {
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(optimize(f.ir()));
+        }
+    }
+
+    public List<Stmt> optimize(List<Stmt> stmts) {
+        List<Stmt> result = new ArrayList<Stmt>(stmts.size());
+        for (Stmt s : stmts) {
+            result.add(s.accept(this));
+        }
+        return result;
+    }
+
+    private Expr fold(Expr expr) {
+        return expr.accept(this);
+    }
+
+    //
+    // Statements
+    //
+
+    public Stmt visit(ExprStmt s) {
+        Expr e = fold(s.expr());
+        return e == s.expr() ? s : new ExprStmt(s.location(), e);
+    }
+
+    public Stmt visit(Assign s) {
+        Expr lhs = fold(s.lhs());
+        Expr rhs = fold(s.rhs());
+        if (lhs == s.lhs() && rhs == s.rhs()) return s;
+        return new Assign(s.location(), lhs, rhs);
+    }
+
+    public Stmt visit(CJump s) {
+        Expr cond = fold(s.cond());
+        if (cond instanceof Int) {
+            return new Jump(s.location(),
+                    ((Int)cond).value() != 0 ? s.thenLabel() : s.elseLabel());
+        }
+        if (isOp(cond, Op.NOT)) {
+            return new CJump(s.location(), ((Uni)cond).expr(),
+                    s.elseLabel(), s.thenLabel());
+        }
+        if (cond == s.cond()) return s;
+        return new CJump(s.location(), cond, s.thenLabel(), s.elseLabel());
+    }
+
+    public Stmt visit(Jump s) {
+        return s;
+    }
+
+    public Stmt visit(Switch s) {
+        Expr cond = fold(s.cond());
+        if (cond instanceof Int) {
+            Type t = cond.type();
+            long value = wrap(((Int)cond).value(), t);
+            Label dest = s.defaultLabel();
+            for (Case c : s.cases()) {
+                if (wrap(c.value, t) == value) {
+                    dest = c.label;
+                    break;
+                }
+            }
+            return new Jump(s.location(), dest);
+        }
+        if (cond == s.cond()) return s;
+        return new Switch(s.location(), cond, s.cases(),
+                s.defaultLabel(), s.endLabel());
+    }
+
+    public Stmt visit(LabelStmt s) {
+        return s;
+    }
+
+    public Stmt visit(Return s) {
+        if (s.expr() == null) return s;
+        Expr e = fold(s.expr());
+        return e == s.expr() ? s : new Return(s.location(), e);
+    }
+
+    //
+    // Expressions
+    //
+
+    public Expr visit(Uni node) {
+        Expr expr = fold(node.expr());
+        Type src = expr.type();
+        Type dest = node.type();
+        if (expr instanceof Int) {
+            long v = ((Int)expr).value();
+            switch (node.op()) {
+            case UMINUS:    return intValue(dest, -v);
+            case BIT_NOT:   return intValue(dest, ~v);
+            case NOT:       return intValue(dest, wrap(v, src) == 0 ? 1 : 0);
+            case S_CAST:    return intValue(dest, wrap(v, src));
+            case U_CAST:    return intValue(dest, unsigned(v, src));
+            default:
+                throw new Error("unknown unary operator: " + node.op());
+            }
+        }
+        switch (node.op()) {
+        case NOT:
+            if (isComparison(expr) && expr.type() == dest) {
+                Bin cmp = (Bin)expr;
+                return new Bin(dest, cmp.op().negated(), cmp.left(), cmp.right());
+            }
+            break;
+        case S_CAST:
+        case U_CAST:
+            if (src == dest) return expr;
+            break;
+        default:
+            break;
+        }
+        return expr == node.expr() ? node : new Uni(dest, node.op(), expr);
+    }
+
+    public Expr visit(Bin node) {
+        Expr left = fold(node.left());
+        Expr right = fold(node.right());
+        Op op = node.op();
+        Type t = node.type();
+        if (left instanceof Int && right instanceof Int) {
+            Expr value = foldBinary(t, op, (Int)left, (Int)right);
+            if (value != null) return value;
+        }
+        else if (left instanceof Int) {
+            // Keeps the constant on the right, as code generators expect.
+            Op swapped = op.swapped();
+            if (swapped != null) {
+                Expr tmp = left;
+                left = right;
+                right = tmp;
+                op = swapped;
+            }
+        }
+        if (right instanceof Int) {
+            Expr e = simplify(t, op, left, ((Int)right).value());
+            if (e != null) return e;
+        }
+        else if (op == Op.ADD) {
+            // x + (y + c), (x + c) + y  =>  (x + y) + c, so that
+            // constants become displacements of addressing modes.
+            Expr e = hoistOffset(t, left, right);
+            if (e == null) e = hoistOffset(t, right, left);
+            if (e != null) return e;
+        }
+        if (left == node.left() && right == node.right() && op == node.op()) {
+            return node;
+        }
+        return new Bin(t, op, left, right);
+    }
+
+    public Expr visit(Call node) {
+        Expr expr = fold(node.expr());
+        boolean changed = (expr != node.expr());
+        List<Expr> args = new ArrayList<Expr>(node.args().size());
+        for (Expr arg : node.args()) {
+            Expr a = fold(arg);
+            if (a != arg) changed = true;
+            args.add(a);
+        }
+        return changed ? new Call(node.type(), expr, args) : node;
+    }
+
+    public Expr visit(Addr node) {
+        return node;
+    }
+
+    public Expr visit(Mem node) {
+        Expr expr = fold(node.expr());
+        return expr == node.expr() ? node : new Mem(node.type(), expr);
+    }
+
+    public Expr visit(Var node) {
+        return node;
+    }
+
+    public Expr visit(Int node) {
+        return node;
+    }
+
+    public Expr visit(Str node) {
+        return node;
+    }
+
+    //
+    // Folding
+    //
+
+    /** Returns LEFT op RIGHT, or null if it must be computed at runtime. */
+    private Expr foldBinary(Type t, Op op, Int left, Int right) {
+        Type operandType = left.type();
+        long x = left.value();
+        long y = right.value();
+        switch (op) {
+        case ADD:       return intValue(t, x + y);
+        case SUB:       return intValue(t, x - y);
+        case MUL:       return intValue(t, x * y);
+        case BIT_AND:   return intValue(t, x & y);
+        case BIT_OR:    return intValue(t, x | y);
+        case BIT_XOR:   return intValue(t, x ^ y);
+        case S_DIV:
+        case S_MOD:
+            x = wrap(x, t);
+            y = wrap(y, t);
+            if (y == 0 || (y == -1 && x == minValue(t))) return null;
+            return intValue(t, op == Op.S_DIV ? x / y : x % y);
+        case U_DIV:
+        case U_MOD:
+            x = unsigned(x, t);
+            y = unsigned(y, t);
+            if (y == 0) return null;
+            return intValue(t, op == Op.U_DIV ? Long.divideUnsigned(x, y)
+                                              : Long.remainderUnsigned(x, y));
+        case BIT_LSHIFT:
+        case BIT_RSHIFT:
+        case ARITH_RSHIFT:
+            y = unsigned(y, right.type());
+            if (y >= bits(t)) return null;
+            if (op == Op.BIT_LSHIFT) return intValue(t, x << y);
+            if (op == Op.BIT_RSHIFT) return intValue(t, unsigned(x, t) >>> y);
+            return intValue(t, wrap(x, t) >> y);
+        case EQ:        return bool(t, wrap(x, operandType) == wrap(y, operandType));
+        case NEQ:       return bool(t, wrap(x, operandType) != wrap(y, operandType));
+        case S_GT:      return bool(t, wrap(x, operandType) > wrap(y, operandType));
+        case S_GTEQ:    return bool(t, wrap(x, operandType) >= wrap(y, operandType));
+        case S_LT:      return bool(t, wrap(x, operandType) < wrap(y, operandType));
+        case S_LTEQ:    return bool(t, wrap(x, operandType) <= wrap(y, operandType));
+        case U_GT:      return bool(t, compareUnsigned(x, y, operandType) > 0);
+        case U_GTEQ:    return bool(t, compareUnsigned(x, y, operandType) >= 0);
+        case U_LT:      return bool(t, compareUnsigned(x, y, operandType) < 0);
+        case U_LTEQ:    return bool(t, compareUnsigned(x, y, operandType) <= 0);
+        default:
+            throw new Error("unknown binary operator: " + op);
+        }
+    }
+
+    /**
+     * Simplifies X op C.  Returns null if there is nothing to do.
+     */
+    private Expr simplify(Type t, Op op, Expr x, long c) {
+        boolean same = (x.type() == t);
+        long cw = wrap(c, t);
+        switch (op) {
+        case ADD:
+        case SUB:
+            if (cw == 0 && same) return x;
+            if ((isOp(x, Op.ADD) || isOp(x, Op.SUB)) && same) {
+                Bin inner = (Bin)x;
+                if (inner.right() instanceof Int) {
+                    long c1 = ((Int)inner.right()).value();
+                    long sum = (inner.op() == Op.ADD ? c1 : -c1)
+                            + (op == Op.ADD ? c : -c);
+                    return offset(t, inner.left(), sum);
+                }
+            }
+            if (op == Op.SUB) {
+                return new Bin(t, Op.ADD, x, intValue(t, -c));
+            }
+            break;
+        case MUL:
+            if (cw == 1 && same) return x;
+            if (cw == 0 && isPure(x)) return intValue(t, 0);
+            if (isOp(x, Op.MUL) && same) {
+                Bin inner = (Bin)x;
+                if (inner.right() instanceof Int) {
+                    long c1 = ((Int)inner.right()).value();
+                    return simplifyOrBin(t, Op.MUL, inner.left(), c1 * c);
+                }
+            }
+            if ((isOp(x, Op.ADD) || isOp(x, Op.SUB)) && same) {
+                Bin inner = (Bin)x;
+                if (inner.right() instanceof Int) {
+                    long c1 = ((Int)inner.right()).value();
+                    if (inner.op() == Op.SUB) c1 = -c1;
+                    Expr scaled = simplifyOrBin(t, Op.MUL, inner.left(), c);
+                    return offset(t, scaled, c1 * c);
+                }
+            }
+            break;
+        case S_DIV:
+        case U_DIV:
+            if (cw == 1 && same) return x;
+            break;
+        case S_MOD:
+        case U_MOD:
+            if (cw == 1 && isPure(x)) return intValue(t, 0);
+            break;
+        case BIT_AND:
+            if (cw == 0 && isPure(x)) return intValue(t, 0);
+            if (cw == -1 && same) return x;
+            break;
+        case BIT_OR:
+            if (cw == 0 && same) return x;
+            if (cw == -1 && isPure(x)) return intValue(t, -1);
+            break;
+        case BIT_XOR:
+            if (cw == 0 && same) return x;
+            break;
+        case BIT_LSHIFT:
+        case BIT_RSHIFT:
+        case ARITH_RSHIFT:
+            if (cw == 0 && same) return x;
+            break;
+        case EQ:
+        case NEQ:
+            // (x < y) != 0  =>  x < y;  (x < y) == 0  =>  x >= y
+            if (isComparison(x) && x.type() == t && (cw == 0 || cw == 1)) {
+                Bin cmp = (Bin)x;
+                boolean keep = (op == Op.NEQ) == (cw == 0);
+                return keep ? cmp : new Bin(t, cmp.op().negated(),
+                                            cmp.left(), cmp.right());
+            }
+            break;
+        case U_LT:
+            if (unsigned(c, x.type()) == 0 && isPure(x)) return intValue(t, 0);
+            break;
+        case U_GTEQ:
+            if (unsigned(c, x.type()) == 0 && isPure(x)) return intValue(t, 1);
+            break;
+        case U_LTEQ:
+            if (unsigned(c, x.type()) == 0) {
+                return new Bin(t, Op.EQ, x, intValue(x.type(), 0));
+            }
+            break;
+        case U_GT:
+            if (unsigned(c, x.type()) == 0) {
+                return new Bin(t, Op.NEQ, x, intValue(x.type(), 0));
+            }
+            break;
+        default:
+            break;
+        }
+        return null;
+    }
+
+    private Expr simplifyOrBin(Type t, Op op, Expr x, long c) {
+        Expr e = simplify(t, op, x, c);
+        return e != null ? e : new Bin(t, op, x, intValue(t, c));
+    }
+
+    /** Returns (X + Y) + C if Y is Y + C, or null. */
+    private Expr hoistOffset(Type t, Expr x, Expr y) {
+        if (! isOp(y, Op.ADD) || x.type() != t || y.type() != t) return null;
+        Bin inner = (Bin)y;
+        if (! (inner.right() instanceof Int)) return null;
+        Expr sum = visit(new Bin(t, Op.ADD, x, inner.left()));
+        return simplifyOrBin(t, Op.ADD, sum, ((Int)inner.right()).value());
+    }
+
+    /** Returns X + C. */
+    private Expr offset(Type t, Expr x, long c) {
+        if (wrap(c, t) == 0) return x;
+        return new Bin(t, Op.ADD, x, intValue(t, c));
+    }
+
+    /** Returns true if EXPR has no side effect. */
+    private boolean isPure(Expr expr) {
+        if (expr instanceof Call) return false;
+        if (expr instanceof Bin) {
+            Bin b = (Bin)expr;
+            return isPure(b.left()) && isPure(b.right());
+        }
+        if (expr instanceof Uni) return isPure(((Uni)expr).expr());
+        if (expr instanceof Mem) return isPure(((Mem)expr).expr());
+        return true;
+    }
+
+    static private boolean isOp(Expr expr, Op op) {
+        if (expr instanceof Bin) return ((Bin)expr).op() == op;
+        if (expr instanceof Uni) return ((Uni)expr).op() == op;
+        return false;
+    }
+
+    static private boolean isComparison(Expr expr) {
+        return (expr instanceof Bin) && ((Bin)expr).op().isComparison();
+    }
+
+    //
+    // Integer semantics of asm types
+    //
+
+    private Int intValue(Type t, long v) {
+        return new Int(t, wrap(v, t));
+    }
+
+    private Int bool(Type t, boolean b) {
+        return new Int(t, b ? 1 : 0);
+    }
+
+    static private int bits(Type t) {
+        return t.size() * 8;
+    }
+
+    /** Truncates V to type T and sign-extends it. */
+    static long wrap(long v, Type t) {
+        int shift = 64 - bits(t);
+        return (v << shift) >> shift;
+    }
+
+    /** Truncates V to type T and zero-extends it. */
+    static long unsigned(long v, Type t) {
+        int shift = 64 - bits(t);
+        return (v << shift) >>> shift;
+    }
+
+    static private long minValue(Type t) {
+        return wrap(1L << (bits(t) - 1), t);
+    }
+
+    static private int compareUnsigned(long x, long y, Type t) {
+        return Long.compareUnsigned(unsigned(x, t), unsigned(y, t));
+    }
+}
@@ -0,0 +1,506 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.ir.ssa.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.Type;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation on SSA form (-O2),
+ * by Wegman and Zadeck.
+ *
+ * Each SSA name is unknown (not yet seen to be defined), a constant,
+ * or varying.  Starting from the entry, only blocks reached through
+ * executable edges are evaluated, and a branch on a constant makes
+ * only one edge executable, so constants flowing around loops and
+ * through branches they decide are found.  Expressions are evaluated
+ * by the ConstantFolder, so the semantics are the same.
+ *
+ * Then uses of constants are replaced by the constants, branches on
+ * constants become jumps and blocks never executed are removed, and
+ * assignments of promoted variables whose values are no longer used
+ * are removed.  Functions calling setjmp are not optimized.
+ */
+class ConstantPropagator {
+    static private final String[] RETURNS_TWICE = {
+        "setjmp", "_setjmp", "sigsetjmp", "__sigsetjmp"
+    };
+
+    static private final Int VARYING = new Int(null, 0);
+
+    private final Type naturalType;
+    private final ConstantFolder folder = new ConstantFolder();
+    private SSAForm ssa;
+    // Absent: unknown; VARYING: varying; otherwise the constant.
+    private Map<Value, Int> lattice;
+    private Set<BasicBlock> executable;
+    private Set<List<BasicBlock>> executableEdges;
+    private Map<Value, Set<BasicBlock>> users;
+    private Set<BasicBlock> work;
+
+    ConstantPropagator(Type naturalType) {
+        this.naturalType = naturalType;
+    }
+
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            if (callsReturnsTwice(f.ir())) continue;
+            f.setIR(optimize(f));
+        }
+    }
+
+    private List<Stmt> optimize(DefinedFunction f) {
+        ControlFlowGraph g = ControlFlowGraph.build(f.ir());
+        g.removeUnreachableBlocks();
+        if (! g.entry().predecessors().isEmpty()) return f.ir();
+        Set<Entity> promoted = SSAForm.promotableVariables(f, g, naturalType);
+        if (promoted.isEmpty()) return f.ir();
+        ssa = SSAForm.build(g, promoted);
+        propagate();
+        int constants = rewrite();
+        int branches = pruneBranches();
+        int stores = removeDeadStores();
+        if (constants + branches + stores > 0) {
+            f.remarks().add("propagated " + constants + " constants, pruned "
+                    + branches + " branches, removed " + stores + " stores");
+        }
+        List<Stmt> result = ssa.toStmts();
+        ssa = null;
+        lattice = null;
+        return result;
+    }
+
+    //
+    // Propagation
+    //
+
+    private void propagate() {
+        lattice = new HashMap<Value, Int>();
+        executable = new HashSet<BasicBlock>();
+        executableEdges = new HashSet<List<BasicBlock>>();
+        users = new HashMap<Value, Set<BasicBlock>>();
+        work = new LinkedHashSet<BasicBlock>();
+        for (Value v : ssa.values()) {
+            if (v.isEntryValue()) lattice.put(v, VARYING);
+        }
+        collectUsers();
+        executable.add(ssa.graph().entry());
+        work.add(ssa.graph().entry());
+        while (! work.isEmpty()) {
+            Iterator<BasicBlock> it = work.iterator();
+            BasicBlock b = it.next();
+            it.remove();
+            evaluate(b);
+        }
+    }
+
+    private void collectUsers() {
+        for (final BasicBlock b : ssa.graph().blocks()) {
+            for (Phi phi : ssa.phis(b)) {
+                for (Value v : phi.operands().values()) {
+                    addUser(v, b);
+                }
+            }
+            ExprScanner scanner = new ExprScanner() {
+                void use(Var var) {
+                    Value v = ssa.valueOf(var);
+                    if (v != null) addUser(v, b);
+                }
+            };
+            for (Stmt s : b.stmts()) {
+                scanner.scan(s);
+            }
+            scanner.scan(b.terminator());
+        }
+    }
+
+    private void addUser(Value v, BasicBlock b) {
+        Set<BasicBlock> blocks = users.get(v);
+        if (blocks == null) {
+            blocks = new HashSet<BasicBlock>();
+            users.put(v, blocks);
+        }
+        blocks.add(b);
+    }
+
+    private void evaluate(BasicBlock b) {
+        for (Phi phi : ssa.phis(b)) {
+            Int value = null;
+            for (Map.Entry<BasicBlock, Value> op : phi.operands().entrySet()) {
+                if (! executableEdges.contains(edge(op.getKey(), b))) continue;
+                value = meet(value, lattice.get(op.getValue()));
+            }
+            update(phi.value(), value);
+        }
+        for (Stmt s : b.stmts()) {
+            if (! (s instanceof Assign)) continue;
+            Value v = ssa.definedBy((Assign)s);
+            if (v != null) {
+                update(v, wrap(evaluate(((Assign)s).rhs()),
+                        ((Assign)s).rhs().type()));
+            }
+        }
+        Stmt t = b.terminator();
+        List<Label> targets;
+        if (t instanceof CJump) {
+            CJump s = (CJump)t;
+            Int cond = evaluate(s.cond());
+            if (cond == null || cond == VARYING) {
+                targets = Arrays.asList(s.thenLabel(), s.elseLabel());
+            }
+            else {
+                targets = Arrays.asList(cond.value() != 0
+                        ? s.thenLabel() : s.elseLabel());
+            }
+        }
+        else if (t instanceof Switch) {
+            Switch s = (Switch)t;
+            Int cond = evaluate(s.cond());
+            if (cond == null || cond == VARYING) {
+                targets = b.targets();
+            }
+            else {
+                Stmt folded = new Switch(s.location(), cond, s.cases(),
+                        s.defaultLabel(), s.endLabel()).accept(folder);
+                targets = Arrays.asList(((Jump)folded).label());
+            }
+        }
+        else {
+            targets = b.targets();
+        }
+        for (Label label : targets) {
+            BasicBlock succ = ssa.graph().blockOf(label);
+            if (executableEdges.add(edge(b, succ))) {
+                executable.add(succ);
+                work.add(succ);
+            }
+        }
+    }
+
+    private List<BasicBlock> edge(BasicBlock from, BasicBlock to) {
+        return Arrays.asList(from, to);
+    }
+
+    private Int meet(Int x, Int y) {
+        if (x == null) return y;
+        if (y == null) return x;
+        if (x == VARYING || y == VARYING) return VARYING;
+        return x.value() == y.value() ? x : VARYING;
+    }
+
+    private void update(Value v, Int value) {
+        Int old = lattice.get(v);
+        if (value == null || old == VARYING) return;
+        Int merged = meet(old, value);
+        if (old != null && merged != VARYING) return;
+        lattice.put(v, merged);
+        Set<BasicBlock> blocks = users.get(v);
+        if (blocks == null) return;
+        for (BasicBlock b : blocks) {
+            if (executable.contains(b)) work.add(b);
+        }
+    }
+
+    private Int wrap(Int value, Type t) {
+        if (value == null || value == VARYING) return value;
+        return new Int(t, ConstantFolder.wrap(value.value(), t));
+    }
+
+    /**
+     * Returns the value of E: null if unknown, VARYING, or a constant.
+     */
+    private Int evaluate(Expr e) {
+        final boolean[] unknown = { false };
+        final boolean[] varying = { false };
+        Expr subst = substitute(e, new Substitution() {
+            Expr valueOf(Var var, Value v) {
+                Int value = lattice.get(v);
+                if (value == null) unknown[0] = true;
+                else if (value == VARYING) varying[0] = true;
+                else return new Int(var.type(), value.value());
+                return var;
+            }
+        });
+        if (varying[0]) return VARYING;
+        if (unknown[0]) return null;
+        Expr folded = subst.accept(folder);
+        return (folded instanceof Int) ? (Int)folded : VARYING;
+    }
+
+    //
+    // Rewriting
+    //
+
+    /** Replaces uses of constants.  Returns the number of them. */
+    private int rewrite() {
+        final int[] n = { 0 };
+        Substitution constants = new Substitution() {
+            Expr valueOf(Var var, Value v) {
+                Int value = lattice.get(v);
+                if (value == null || value == VARYING) return var;
+                n[0]++;
+                return new Int(var.type(), value.value());
+            }
+        };
+        for (BasicBlock b : ssa.graph().blocks()) {
+            if (! executable.contains(b)) continue;
+            List<Stmt> stmts = b.stmts();
+            for (int i = 0; i < stmts.size(); i++) {
+                stmts.set(i, substitute(stmts.get(i), constants));
+            }
+            Stmt t = substitute(b.terminator(), constants);
+            b.setTerminator(t == b.terminator() ? t : t.accept(folder));
+        }
+        return n[0];
+    }
+
+    /** Removes blocks never executed.  Returns the number of branches. */
+    private int pruneBranches() {
+        int n = 0;
+        for (BasicBlock b : ssa.graph().blocks()) {
+            for (BasicBlock succ : new HashSet<BasicBlock>(b.successors())) {
+                if (executable.contains(b)
+                        && ! executableEdges.contains(edge(b, succ))) {
+                    n++;
+                }
+            }
+        }
+        ssa.graph().computeEdges();
+        ssa.graph().removeUnreachableBlocks();
+        return n;
+    }
+
+    /**
+     * Removes assignments of promoted variables whose values are not
+     * used, unless they have side effects.  Returns the number of them.
+     */
+    private int removeDeadStores() {
+        final Set<Value> live = new HashSet<Value>();
+        final LinkedList<Value> queue = new LinkedList<Value>();
+        ExprScanner marker = new ExprScanner() {
+            void use(Var var) {
+                Value v = ssa.valueOf(var);
+                if (v != null && live.add(v)) queue.add(v);
+            }
+        };
+        Map<Value, Assign> defs = new HashMap<Value, Assign>();
+        for (BasicBlock b : ssa.graph().blocks()) {
+            for (Stmt s : b.stmts()) {
+                Value v = removable(s);
+                if (v != null) {
+                    defs.put(v, (Assign)s);
+                }
+                else {
+                    marker.scan(s);
+                }
+            }
+            marker.scan(b.terminator());
+        }
+        while (! queue.isEmpty()) {
+            Value v = queue.removeFirst();
+            if (defs.containsKey(v)) {
+                marker.scan(defs.get(v).rhs());
+            }
+            else if (v.phi() != null) {
+                Phi phi = v.phi();
+                for (BasicBlock pred : phi.block().predecessors()) {
+                    Value op = phi.operands().get(pred);
+                    if (op != null && live.add(op)) queue.add(op);
+                }
+            }
+        }
+        int n = 0;
+        for (BasicBlock b : ssa.graph().blocks()) {
+            Iterator<Stmt> it = b.stmts().iterator();
+            while (it.hasNext()) {
+                Value v = removable(it.next());
+                if (v != null && ! live.contains(v)) {
+                    it.remove();
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** Returns the value S defines if S may be removed, or null. */
+    private Value removable(Stmt s) {
+        if (! (s instanceof Assign)) return null;
+        Value v = ssa.definedBy((Assign)s);
+        if (v == null || hasCall(((Assign)s).rhs())) return null;
+        return v;
+    }
+
+    //
+    // Utilities
+    //
+
+    static private Expr condOf(Stmt t) {
+        if (t instanceof CJump) return ((CJump)t).cond();
+        if (t instanceof Switch) return ((Switch)t).cond();
+        return null;
+    }
+
+    static private boolean hasCall(Expr e) {
+        final boolean[] found = { false };
+        new ExprScanner() {
+            void call(Call call) {
+                found[0] = true;
+            }
+        }.scan(e);
+        return found[0];
+    }
+
+    private boolean callsReturnsTwice(List<Stmt> stmts) {
+        final boolean[] found = { false };
+        ExprScanner scanner = new ExprScanner() {
+            void call(Call call) {
+                if (call.isStaticCall() && Arrays.asList(RETURNS_TWICE)
+                        .contains(call.function().name())) {
+                    found[0] = true;
+                }
+            }
+        };
+        for (Stmt s : stmts) {
+            scanner.scan(s);
+        }
+        return found[0];
+    }
+
+    /** Maps uses of promoted variables to expressions. */
+    abstract private class Substitution {
+        abstract Expr valueOf(Var var, Value v);
+    }
+
+    /**
+     * Returns S with uses replaced by SUBST.  An Assign defining an
+     * SSA name is rebuilt keeping its name.
+     */
+    private Stmt substitute(Stmt s, Substitution subst) {
+        if (s instanceof Assign) {
+            Assign a = (Assign)s;
+            Expr rhs = substitute(a.rhs(), subst);
+            Value v = ssa.definedBy(a);
+            if (v != null) {
+                return ssa.redefine(a, rhs.accept(folder));
+            }
+            Expr lhs = substitute(a.lhs(), subst);
+            if (lhs == a.lhs() && rhs == a.rhs()) return s;
+            return new Assign(a.location(), lhs, rhs).accept(folder);
+        }
+        else if (s instanceof ExprStmt) {
+            Expr e = substitute(((ExprStmt)s).expr(), subst);
+            if (e == ((ExprStmt)s).expr()) return s;
+            return new ExprStmt(s.location(), e).accept(folder);
+        }
+        else if (s instanceof CJump) {
+            CJump c = (CJump)s;
+            Expr cond = substitute(c.cond(), subst);
+            if (cond == c.cond()) return s;
+            return new CJump(s.location(), cond,
+                    c.thenLabel(), c.elseLabel());
+        }
+        else if (s instanceof Switch) {
+            Switch c = (Switch)s;
+            Expr cond = substitute(c.cond(), subst);
+            if (cond == c.cond()) return s;
+            return new Switch(s.location(), cond, c.cases(),
+                    c.defaultLabel(), c.endLabel());
+        }
+        else if (s instanceof Return && ((Return)s).expr() != null) {
+            Expr e = substitute(((Return)s).expr(), subst);
+            if (e == ((Return)s).expr()) return s;
+            return new Return(s.location(), e).accept(folder);
+        }
+        else {
+            return s;
+        }
+    }
+
+    private Expr substitute(Expr e, Substitution subst) {
+        if (e instanceof Var) {
+            Value v = ssa.valueOf((Var)e);
+            return v == null ? e : subst.valueOf((Var)e, v);
+        }
+        else if (e instanceof Bin) {
+            Bin b = (Bin)e;
+            Expr left = substitute(b.left(), subst);
+            Expr right = substitute(b.right(), subst);
+            if (left == b.left() && right == b.right()) return e;
+            return new Bin(b.type(), b.op(), left, right);
+        }
+        else if (e instanceof Uni) {
+            Uni u = (Uni)e;
+            Expr expr = substitute(u.expr(), subst);
+            return expr == u.expr() ? e : new Uni(u.type(), u.op(), expr);
+        }
+        else if (e instanceof Mem) {
+            Expr expr = substitute(((Mem)e).expr(), subst);
+            return expr == ((Mem)e).expr() ? e : new Mem(e.type(), expr);
+        }
+        else if (e instanceof Call) {
+            Call c = (Call)e;
+            boolean changed = false;
+            Expr expr = substitute(c.expr(), subst);
+            if (expr != c.expr()) changed = true;
+            List<Expr> args = new ArrayList<Expr>(c.args().size());
+            for (Expr arg : c.args()) {
+                Expr a = substitute(arg, subst);
+                if (a != arg) changed = true;
+                args.add(a);
+            }
+            return changed ? new Call(c.type(), expr, args) : e;
+        }
+        else {
+            return e;
+        }
+    }
+
+    /** Visits Var and Call nodes of statements and expressions. */
+    static private class ExprScanner {
+        void use(Var var) {}
+        void call(Call call) {}
+
+        void scan(Stmt s) {
+            if (s instanceof Assign) {
+                scan(((Assign)s).lhs());
+                scan(((Assign)s).rhs());
+            }
+            else if (s instanceof ExprStmt) {
+                scan(((ExprStmt)s).expr());
+            }
+            else if (s instanceof Return) {
+                scan(((Return)s).expr());
+            }
+            else {
+                scan(condOf(s));
+            }
+        }
+
+        void scan(Expr e) {
+            if (e == null) return;
+            if (e instanceof Var) {
+                use((Var)e);
+            }
+            else if (e instanceof Bin) {
+                scan(((Bin)e).left());
+                scan(((Bin)e).right());
+            }
+            else if (e instanceof Uni) {
+                scan(((Uni)e).expr());
+            }
+            else if (e instanceof Mem) {
+                scan(((Mem)e).expr());
+            }
+            else if (e instanceof Call) {
+                call((Call)e);
+                scan(((Call)e).expr());
+                for (Expr arg : ((Call)e).args()) {
+                    scan(arg);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.entity.Entity;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Deep-copies IR, replacing variables and labels by the maps given.
+ * Variables and labels not in the maps are kept.
+ */
+class IRCopier implements IRVisitor<Stmt, Expr> {
+    private final Map<Entity, Entity> vars;
+    private final Map<Label, Label> labels;
+
+    IRCopier(Map<Entity, Entity> vars, Map<Label, Label> labels) {
+        this.vars = vars;
+        this.labels = labels;
+    }
+
+    Stmt copy(Stmt s) {
+        return s.accept(this);
+    }
+
+    Expr copy(Expr e) {
+        return e.accept(this);
+    }
+
+    private Entity entity(Entity ent) {
+        Entity copy = vars.get(ent);
+        return copy == null ? ent : copy;
+    }
+
+    private Label label(Label label) {
+        Label copy = labels.get(label);
+        return copy == null ? label : copy;
+    }
+
+    public Stmt visit(ExprStmt s) {
+        return new ExprStmt(s.location(), copy(s.expr()));
+    }
+
+    public Stmt visit(Assign s) {
+        return new Assign(s.location(), copy(s.lhs()), copy(s.rhs()));
+    }
+
+    public Stmt visit(CJump s) {
+        return new CJump(s.location(), copy(s.cond()),
+                label(s.thenLabel()), label(s.elseLabel()));
+    }
+
+    public Stmt visit(Jump s) {
+        return new Jump(s.location(), label(s.label()));
+    }
+
+    public Stmt visit(Switch s) {
+        List<Case> cases = new ArrayList<Case>();
+        for (Case c : s.cases()) {
+            cases.add(new Case(c.value, label(c.label)));
+        }
+        return new Switch(s.location(), copy(s.cond()), cases,
+                label(s.defaultLabel()), label(s.endLabel()));
+    }
+
+    public Stmt visit(LabelStmt s) {
+        return new LabelStmt(s.location(), label(s.label()));
+    }
+
+    public Stmt visit(Return s) {
+        return new Return(s.location(),
+                s.expr() == null ? null : copy(s.expr()));
+    }
+
+    public Expr visit(Uni node) {
+        return new Uni(node.type(), node.op(), copy(node.expr()));
+    }
+
+    public Expr visit(Bin node) {
+        return new Bin(node.type(), node.op(),
+                copy(node.left()), copy(node.right()));
+    }
+
+    public Expr visit(Call node) {
+        List<Expr> args = new ArrayList<Expr>();
+        for (Expr arg : node.args()) {
+            args.add(copy(arg));
+        }
+        return new Call(node.type(), copy(node.expr()), args);
+    }
+
+    public Expr visit(Addr node) {
+        return new Addr(node.type(), entity(node.entity()));
+    }
+
+    public Expr visit(Mem node) {
+        return new Mem(node.type(), copy(node.expr()));
+    }
+
+    public Expr visit(Var node) {
+        return new Var(node.type(), entity(node.entity()));
+    }
+
+    public Expr visit(Int node) {
+        return new Int(node.type(), node.value());
+    }
+
+    public Expr visit(Str node) {
+        return new Str(node.type(), node.entry());
+    }
+}
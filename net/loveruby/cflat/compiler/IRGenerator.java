@@ -116,6 +116,36 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
         stmts.add(new CJump(loc, cond, thenLabel, elseLabel));
     }
 
+    /**
+     * Jumps to THENLABEL if COND is true, or ELSELABEL otherwise.
+     * &&, || and ! are compiled to branches, without computing
+     * their boolean values.
+     */
+    private void branch(Location loc, ExprNode cond,
+            Label thenLabel, Label elseLabel) {
+        if (cond instanceof LogicalAndNode) {
+            LogicalAndNode and = (LogicalAndNode)cond;
+            Label rightLabel = new Label();
+            branch(loc, and.left(), rightLabel, elseLabel);
+            label(rightLabel);
+            branch(loc, and.right(), thenLabel, elseLabel);
+        }
+        else if (cond instanceof LogicalOrNode) {
+            LogicalOrNode or = (LogicalOrNode)cond;
+            Label rightLabel = new Label();
+            branch(loc, or.left(), thenLabel, rightLabel);
+            label(rightLabel);
+            branch(loc, or.right(), thenLabel, elseLabel);
+        }
+        else if (cond instanceof UnaryOpNode
+                && ((UnaryOpNode)cond).operator().equals("!")) {
+            branch(loc, ((UnaryOpNode)cond).expr(), elseLabel, thenLabel);
+        }
+        else {
+            cjump(loc, transformExpr(cond), thenLabel, elseLabel);
+        }
+    }
+
     // #@@range/pushBreak{
     private void pushBreak(Label label) {
         breakStack.add(label);
@@ -198,10 +228,9 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
         Label thenLabel = new Label();
         Label elseLabel = new Label();
         Label endLabel = new Label();
-        Expr cond = transformExpr(node.cond());
         if (node.elseBody() == null) {
             // #@@range/If_noelse{
-            cjump(node.location(), cond, thenLabel, endLabel);
+            branch(node.location(), node.cond(), thenLabel, endLabel);
             label(thenLabel);
             transformStmt(node.thenBody());
             label(endLabel);
@@ -209,7 +238,7 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
         }
         else {
             // #@@range/If_withelse{
-            cjump(node.location(), cond, thenLabel, elseLabel);
+            branch(node.location(), node.cond(), thenLabel, elseLabel);
             label(thenLabel);
             transformStmt(node.thenBody());
             jump(endLabel);
@@ -261,8 +290,7 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
         Label endLabel = new Label();
 
         label(begLabel);
-        cjump(node.location(),
-                transformExpr(node.cond()), bodyLabel, endLabel);
+        branch(node.location(), node.cond(), bodyLabel, endLabel);
         label(bodyLabel);
         pushContinue(begLabel);
         pushBreak(endLabel);
@@ -287,7 +315,7 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
         popBreak();
         popContinue();
         label(contLabel);
-        cjump(node.location(), transformExpr(node.cond()), begLabel, endLabel);
+        branch(node.location(), node.cond(), begLabel, endLabel);
         label(endLabel);
         return null;
     }
@@ -299,8 +327,7 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
         Label endLabel = new Label();
         if (node.init() != null) transformStmt(node.init());
         label(begLabel);
-        cjump(node.location(),
-                transformExpr(node.cond()), bodyLabel, endLabel);
+        branch(node.location(), node.cond(), bodyLabel, endLabel);
         label(bodyLabel);
         pushContinue(contLabel);
         pushBreak(endLabel);
@@ -426,8 +453,7 @@ class IRGenerator implements ASTVisitor<Void, Expr> {
         Label endLabel = new Label();
         DefinedVariable var = tmpVar(node.type());
 
-        Expr cond = transformExpr(node.cond());
-        cjump(node.location(), cond, thenLabel, elseLabel);
+        branch(node.location(), node.cond(), thenLabel, elseLabel);
         label(thenLabel);
         assign(node.thenExpr().location(),
                 ref(var), transformExpr(node.thenExpr()));
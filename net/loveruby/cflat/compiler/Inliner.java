@@ -0,0 +1,376 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.ast.TypeNode;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Type;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Inlines calls of functions defined in the same file (-O1).
+ *
+ * A call is inlined if the callee is a private function called only
+ * there, or if the size of the callee in IR nodes, less the size of
+ * a call and a bonus for each constant argument, is within the
+ * threshold.  Functions are processed callees first, so an inlined
+ * body is already inlined itself; a call of a function still being
+ * processed is recursive and never inlined.
+ *
+ * Parameters and local variables of the callee are copied to new
+ * variables of the caller's scope.  Arguments are assigned to the
+ * parameters, and Return becomes an assignment of the result and a
+ * jump to the continuation.  Calls are always statements of the IR,
+ * ExprStmt or Assign to a temporary, so nothing has to be hoisted.
+ *
+ * Private functions whose calls are all inlined are removed.
+ * Decisions are recorded as remarks of the caller.
+ */
+class Inliner {
+    static private final int CALL_SIZE = 4;
+    static private final int CONSTANT_ARG_BONUS = 2;
+    static private final int MAX_FUNCTION_SIZE = 2000;
+
+    // alloca would grow the caller's frame in loops; setjmp would
+    // return to the caller's frame.
+    static private final String[] NOT_INLINED_CALLERS_OF = {
+        "alloca", "setjmp", "_setjmp", "sigsetjmp", "__sigsetjmp"
+    };
+
+    private final int threshold;
+    private final Type pointerType;
+    private final Set<DefinedFunction> defined = new HashSet<DefinedFunction>();
+    private final Set<DefinedFunction> active = new HashSet<DefinedFunction>();
+    private final Set<DefinedFunction> done = new HashSet<DefinedFunction>();
+    private final Map<Function, Integer> references =
+            new HashMap<Function, Integer>();
+    private final Set<DefinedFunction> inlined = new HashSet<DefinedFunction>();
+
+    Inliner(int threshold, Type pointerType) {
+        this.threshold = threshold;
+        this.pointerType = pointerType;
+    }
+
+    public void inline(IR ir) {
+        defined.addAll(ir.definedFunctions());
+        for (DefinedFunction f : ir.definedFunctions()) {
+            addReferences(scan(f.ir()));
+        }
+        for (Variable var : ir.allGlobalVariables()) {
+            if (var instanceof DefinedVariable
+                    && ((DefinedVariable)var).ir() != null) {
+                Scanner s = new Scanner();
+                ((DefinedVariable)var).ir().accept(s);
+                addReferences(s);
+            }
+        }
+        for (DefinedFunction f : ir.definedFunctions()) {
+            process(f);
+        }
+        removeInlinedFunctions(ir);
+    }
+
+    private void process(DefinedFunction f) {
+        if (done.contains(f) || active.contains(f)) return;
+        active.add(f);
+        for (Function callee : scan(f.ir()).references.keySet()) {
+            if (defined.contains(callee)) {
+                process((DefinedFunction)callee);
+            }
+        }
+        f.setIR(inlineCalls(f));
+        active.remove(f);
+        done.add(f);
+    }
+
+    private List<Stmt> inlineCalls(DefinedFunction caller) {
+        int size = scan(caller.ir()).size;
+        List<Stmt> result = new ArrayList<Stmt>();
+        for (Stmt s : caller.ir()) {
+            Call call = callOf(s);
+            DefinedFunction callee = (call == null) ? null
+                    : inlinableCallee(caller, call, size, s.location());
+            if (callee == null) {
+                result.add(s);
+                continue;
+            }
+            Expr lhs = (s instanceof Assign) ? ((Assign)s).lhs() : null;
+            List<Stmt> body = expand(caller, callee, call, lhs, s.location());
+            size += scan(body).size;
+            result.addAll(body);
+        }
+        return result;
+    }
+
+    /** Returns the call of statement S, or null if S is not a call. */
+    private Call callOf(Stmt s) {
+        if (s instanceof ExprStmt) {
+            Expr e = ((ExprStmt)s).expr();
+            return (e instanceof Call) ? (Call)e : null;
+        }
+        else if (s instanceof Assign) {
+            Assign a = (Assign)s;
+            if (a.lhs() instanceof Addr && a.rhs() instanceof Call) {
+                return (Call)a.rhs();
+            }
+        }
+        return null;
+    }
+
+    /** Returns the callee of CALL if it should be inlined. */
+    private DefinedFunction inlinableCallee(DefinedFunction caller,
+            Call call, int callerSize, Location loc) {
+        if (! call.isStaticCall()) return null;
+        if (! defined.contains(call.function())) return null;
+        DefinedFunction callee = (DefinedFunction)call.function();
+        String reason = notInlinedReason(callee, call, callerSize);
+        if (reason != null) {
+            caller.addRemark("not inlined " + callee.name() + ": " + reason, loc);
+            return null;
+        }
+        if (isCalledOnce(callee)) {
+            caller.addRemark("inlined " + callee.name() + " (called once)", loc);
+        }
+        else {
+            caller.addRemark("inlined " + callee.name()
+                    + " (size " + scan(callee.ir()).size + ")", loc);
+        }
+        return callee;
+    }
+
+    private String notInlinedReason(DefinedFunction callee,
+            Call call, int callerSize) {
+        if (active.contains(callee)) {
+            return "recursive";
+        }
+        if (callee.isVararg()) {
+            return "variadic";
+        }
+        if (call.args().size() != callee.parameters().size()) {
+            return "wrong number of arguments";
+        }
+        Scanner s = scan(callee.ir());
+        for (Function f : s.references.keySet()) {
+            if (Arrays.asList(NOT_INLINED_CALLERS_OF).contains(f.name())) {
+                return "calls " + f.name();
+            }
+        }
+        if (isCalledOnce(callee)) {
+            return null;
+        }
+        int cost = s.size - CALL_SIZE
+                - CONSTANT_ARG_BONUS * numConstantArgs(call);
+        if (cost > threshold) {
+            return "size " + s.size + " exceeds threshold";
+        }
+        if (callerSize + s.size > MAX_FUNCTION_SIZE) {
+            return "caller is too large";
+        }
+        return null;
+    }
+
+    private boolean isCalledOnce(DefinedFunction f) {
+        return f.isPrivate() && references.get(f) == 1;
+    }
+
+    private int numConstantArgs(Call call) {
+        int n = 0;
+        for (Expr arg : call.args()) {
+            if (arg.isConstant() || arg.isAddr()) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns statements which execute the body of CALLEE for CALL
+     * and assign the result to the address LHS if LHS is not null.
+     */
+    private List<Stmt> expand(DefinedFunction caller,
+            DefinedFunction callee, Call call, Expr lhs, Location loc) {
+        Map<Entity, Entity> vars = new HashMap<Entity, Entity>();
+        for (DefinedVariable var : callee.parameters()) {
+            vars.put(var, copyVariable(caller.lvarScope(), callee, var));
+        }
+        for (DefinedVariable var : callee.lvarScope().allLocalVariables()) {
+            vars.put(var, copyVariable(caller.lvarScope(), callee, var));
+        }
+        Map<Label, Label> labels = new HashMap<Label, Label>();
+        for (Stmt s : callee.ir()) {
+            if (s instanceof LabelStmt) {
+                labels.put(((LabelStmt)s).label(), new Label());
+            }
+        }
+        IRCopier copier = new IRCopier(vars, labels);
+        Label cont = new Label();
+        List<Stmt> result = new ArrayList<Stmt>();
+        for (int i = 0; i < call.args().size(); i++) {
+            Entity param = vars.get(callee.parameters().get(i));
+            result.add(new Assign(loc, new Addr(pointerType, param),
+                    call.args().get(i)));
+        }
+        for (Stmt s : callee.ir()) {
+            if (s instanceof Return) {
+                Return r = (Return)s;
+                if (r.expr() != null && lhs != null) {
+                    result.add(new Assign(r.location(),
+                            copier.copy(lhs), copier.copy(r.expr())));
+                }
+                result.add(new Jump(r.location(), cont));
+            }
+            else {
+                result.add(s.accept(copier));
+            }
+        }
+        result.add(new LabelStmt(null, cont));
+
+        // The call is replaced by references in the body.
+        references.put(callee, references.get(callee) - 1);
+        addReferences(scan(callee.ir()));
+        inlined.add(callee);
+        return result;
+    }
+
+    private DefinedVariable copyVariable(LocalScope scope,
+            DefinedFunction callee, DefinedVariable var) {
+        String base = callee.name() + "." + var.name();
+        String name = base;
+        for (int n = 2; scope.isDefinedLocally(name); n++) {
+            name = base + "." + n;
+        }
+        DefinedVariable copy = new DefinedVariable(false,
+                new TypeNode(var.type()), name, null);
+        scope.defineVariable(copy);
+        return copy;
+    }
+
+    private void removeInlinedFunctions(IR ir) {
+        Iterator<DefinedFunction> it = ir.definedFunctions().iterator();
+        while (it.hasNext()) {
+            DefinedFunction f = it.next();
+            if (f.isPrivate() && inlined.contains(f)
+                    && references.get(f) == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private void addReferences(Scanner s) {
+        for (Map.Entry<Function, Integer> ent : s.references.entrySet()) {
+            Integer n = references.get(ent.getKey());
+            references.put(ent.getKey(),
+                    (n == null ? 0 : n) + ent.getValue());
+        }
+    }
+
+    private Scanner scan(List<Stmt> stmts) {
+        Scanner s = new Scanner();
+        for (Stmt stmt : stmts) {
+            stmt.accept(s);
+        }
+        return s;
+    }
+
+    /** Counts IR nodes and references to functions. */
+    static private class Scanner implements IRVisitor<Void, Void> {
+        int size = 0;
+        final Map<Function, Integer> references =
+                new LinkedHashMap<Function, Integer>();
+
+        private void refer(Entity ent) {
+            if (ent instanceof Function) {
+                Integer n = references.get(ent);
+                references.put((Function)ent, (n == null ? 0 : n) + 1);
+            }
+        }
+
+        public Void visit(ExprStmt s) {
+            size++;
+            s.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Assign s) {
+            size++;
+            s.lhs().accept(this);
+            s.rhs().accept(this);
+            return null;
+        }
+
+        public Void visit(CJump s) {
+            size++;
+            s.cond().accept(this);
+            return null;
+        }
+
+        public Void visit(Jump s) {
+            size++;
+            return null;
+        }
+
+        public Void visit(Switch s) {
+            size += 1 + s.cases().size();
+            s.cond().accept(this);
+            return null;
+        }
+
+        public Void visit(LabelStmt s) {
+            return null;
+        }
+
+        public Void visit(Return s) {
+            size++;
+            if (s.expr() != null) s.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Uni node) {
+            size++;
+            node.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Bin node) {
+            size++;
+            node.left().accept(this);
+            node.right().accept(this);
+            return null;
+        }
+
+        public Void visit(Call node) {
+            size++;
+            node.expr().accept(this);
+            for (Expr arg : node.args()) {
+                arg.accept(this);
+            }
+            return null;
+        }
+
+        public Void visit(Addr node) {
+            size++;
+            refer(node.entity());
+            return null;
+        }
+
+        public Void visit(Mem node) {
+            size++;
+            node.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Var node) {
+            size++;
+            refer(node.entity());
+            return null;
+        }
+
+        public Void visit(Int node) {
+            size++;
+            return null;
+        }
+
+        public Void visit(Str node) {
+            size++;
+            return null;
+        }
+    }
+}
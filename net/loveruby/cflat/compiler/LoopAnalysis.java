@@ -0,0 +1,170 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.ir.ssa.SSAForm;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+
+/**
+ * Loops of a function and the queries on induction variables and
+ * invariants shared by the loop optimizers.
+ *
+ * The CFG is built with a preheader for every loop.  A variable is
+ * aliased unless it is a parameter or local variable whose address
+ * is not taken.  Assignments are those of the current loop, collected
+ * by setLoop; they are not updated when the loop is changed.
+ */
+class LoopAnalysis {
+    private final DefinedFunction function;
+    private final ControlFlowGraph graph;
+    private final DominatorTree dom;
+    private final List<Loop> loops;
+    private final Set<Entity> aliased;
+    private final Set<Entity> locals;
+    private final Type pointerType;
+
+    // Per loop
+    private Loop loop;
+    private final Map<Entity, List<Assign>> updates =
+            new LinkedHashMap<Entity, List<Assign>>();
+    private final Map<Assign, BasicBlock> blocks =
+            new HashMap<Assign, BasicBlock>();
+
+    /** Returns the analysis of F, or null if F has no loop. */
+    static LoopAnalysis analyze(DefinedFunction f, Type pointerType) {
+        ControlFlowGraph g = ControlFlowGraph.build(f.ir());
+        g.removeUnreachableBlocks();
+        List<Loop> loops = Loop.findLoops(g, new DominatorTree(g));
+        if (loops.isEmpty()) return null;
+        for (Loop l : loops) {
+            g.preheader(l);
+        }
+        return new LoopAnalysis(f, g, pointerType);
+    }
+
+    private LoopAnalysis(DefinedFunction f, ControlFlowGraph g,
+            Type pointerType) {
+        this.function = f;
+        this.graph = g;
+        this.dom = new DominatorTree(g);
+        this.loops = Loop.findLoops(g, dom);
+        this.aliased = SSAForm.addressTakenVariables(g);
+        this.locals = new HashSet<Entity>(f.parameters());
+        this.locals.addAll(f.localVariables());
+        this.pointerType = pointerType;
+    }
+
+    DefinedFunction function() {
+        return function;
+    }
+
+    ControlFlowGraph graph() {
+        return graph;
+    }
+
+    DominatorTree dominatorTree() {
+        return dom;
+    }
+
+    List<Loop> loops() {
+        return loops;
+    }
+
+    Loop loop() {
+        return loop;
+    }
+
+    /** Makes L the current loop and collects its assignments. */
+    void setLoop(Loop l) {
+        loop = l;
+        updates.clear();
+        blocks.clear();
+        for (BasicBlock b : l.blocks()) {
+            for (Stmt s : b.stmts()) {
+                if (! (s instanceof Assign)) continue;
+                Assign a = (Assign)s;
+                if (! (a.lhs() instanceof Addr)) continue;
+                Entity ent = ((Addr)a.lhs()).entity();
+                List<Assign> list = updates.get(ent);
+                if (list == null) {
+                    list = new ArrayList<Assign>();
+                    updates.put(ent, list);
+                }
+                list.add(a);
+                blocks.put(a, b);
+            }
+        }
+    }
+
+    /** Assignments to each variable in the loop, in order. */
+    Map<Entity, List<Assign>> updates() {
+        return updates;
+    }
+
+    /** Returns the block of the loop which has S. */
+    BasicBlock blockOf(Assign s) {
+        return blocks.get(s);
+    }
+
+    /** Allocates a temporary of type T, which is not aliased. */
+    DefinedVariable allocateTmp(net.loveruby.cflat.type.Type t) {
+        DefinedVariable var = function.lvarScope().allocateTmp(t);
+        locals.add(var);
+        return var;
+    }
+
+    /**
+     * Returns C if S is ENT = ENT + C and ENT can be an induction
+     * variable: not aliased and of the size of a pointer.  Otherwise
+     * returns null.
+     */
+    Long step(Entity ent, Assign s) {
+        if (isAliased(ent) || ! ent.type().isScalar()) return null;
+        if (ent.type().size() != pointerType.size()) return null;
+        if (! (s.rhs() instanceof Bin)) return null;
+        Bin rhs = (Bin)s.rhs();
+        if (rhs.op() != Op.ADD || ! (rhs.left() instanceof Var)) return null;
+        if (((Var)rhs.left()).entity() != ent) return null;
+        if (! (rhs.right() instanceof Int)) return null;
+        long c = ConstantFolder.wrap(((Int)rhs.right()).value(), rhs.type());
+        return c == 0 ? null : c;
+    }
+
+    /** Returns true if B reaches itself in the loop not via the header. */
+    boolean hasCycleAvoidingHeader(BasicBlock b) {
+        Set<BasicBlock> visited = new HashSet<BasicBlock>();
+        LinkedList<BasicBlock> work = new LinkedList<BasicBlock>();
+        work.add(b);
+        while (! work.isEmpty()) {
+            for (BasicBlock succ : work.removeFirst().successors()) {
+                if (succ == b) return true;
+                if (succ == loop.header() || ! loop.contains(succ)) continue;
+                if (visited.add(succ)) work.add(succ);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if E has the same value throughout the loop and
+     * can be evaluated anywhere: no loads and no assigned variables.
+     */
+    boolean isInvariant(Expr e) {
+        if (e instanceof Var) {
+            Entity ent = ((Var)e).entity();
+            return ! updates.containsKey(ent) && ! isAliased(ent);
+        }
+        if (e instanceof Bin) {
+            return isInvariant(((Bin)e).left())
+                    && isInvariant(((Bin)e).right());
+        }
+        if (e instanceof Uni) return isInvariant(((Uni)e).expr());
+        if (e instanceof Mem || e instanceof Call) return false;
+        return true;    // Int, Str, Addr
+    }
+
+    boolean isAliased(Entity ent) {
+        return aliased.contains(ent) || ! locals.contains(ent);
+    }
+}
@@ -0,0 +1,348 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.ir.ssa.SSAForm;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+
+/**
+ * Loop-invariant code motion (-O2).
+ *
+ * Finds natural loops, gives each a preheader, and moves expressions
+ * whose values do not change in the loop to temporaries assigned in
+ * the preheader.  Inner loops are processed first, so an expression
+ * invariant in nested loops moves out step by step.
+ *
+ * A variable is invariant if the loop does not assign it.  Memory,
+ * and variables whose address is taken or which are not local, are
+ * invariant only if the loop has neither calls nor stores to them
+ * or through pointers.
+ *
+ * The preheader evaluates an expression even if the loop would not,
+ * so an expression which may trap (a load through a pointer, or a
+ * division by a variable) moves only if it is evaluated in every
+ * iteration which leaves the loop, and the loop has no call whose
+ * effects would come after the trap.  Only values of the natural
+ * size which involve a load or two or more operations move.
+ */
+class LoopInvariantHoister {
+    private final Type pointerType;
+    private final net.loveruby.cflat.type.Type tmpType;
+
+    // Per function
+    private DefinedFunction function;
+    private DominatorTree dom;
+    private Set<Entity> aliased;
+    private Set<Entity> locals;
+
+    // Per loop
+    private final Set<Entity> assigned = new HashSet<Entity>();
+    private boolean writesMemory;
+    private boolean hasCall;
+    private BasicBlock preheader;
+    private final Map<List<Object>, DefinedVariable> temps =
+            new HashMap<List<Object>, DefinedVariable>();
+
+    LoopInvariantHoister(Type pointerType, TypeTable types) {
+        this.pointerType = pointerType;
+        this.tmpType = types.ptrDiffType();
+    }
+
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(optimize(f));
+        }
+    }
+
+    private List<Stmt> optimize(DefinedFunction f) {
+        ControlFlowGraph g = ControlFlowGraph.build(f.ir());
+        g.removeUnreachableBlocks();
+        List<Loop> loops = Loop.findLoops(g, new DominatorTree(g));
+        if (loops.isEmpty()) return f.ir();
+        for (Loop loop : loops) {
+            g.preheader(loop);
+        }
+        dom = new DominatorTree(g);
+        loops = Loop.findLoops(g, dom);
+        function = f;
+        aliased = SSAForm.addressTakenVariables(g);
+        locals = new HashSet<Entity>(f.parameters());
+        locals.addAll(f.localVariables());
+        int total = 0;
+        for (Loop loop : loops) {
+            int n = hoist(g, loop);
+            if (n > 0) {
+                f.addRemark("hoisted " + n + " invariant "
+                        + (n == 1 ? "expression" : "expressions")
+                        + " out of loop", loop.header().location());
+            }
+            total += n;
+        }
+        function = null;
+        dom = null;
+        aliased = null;
+        locals = null;
+        return total == 0 ? f.ir() : g.toStmts();
+    }
+
+    /** Hoists invariants of LOOP.  Returns the number of them. */
+    private int hoist(ControlFlowGraph g, Loop loop) {
+        scanEffects(loop);
+        preheader = g.preheader(loop);
+        temps.clear();
+        List<BasicBlock> exits = loop.exitingBlocks();
+        for (BasicBlock b : loop.blocks()) {
+            boolean mayTrap = ! hasCall && ! exits.isEmpty();
+            for (BasicBlock e : exits) {
+                if (! dom.dominates(b, e)) mayTrap = false;
+            }
+            List<Stmt> stmts = b.stmts();
+            for (int i = 0; i < stmts.size(); i++) {
+                stmts.set(i, hoist(stmts.get(i), mayTrap));
+            }
+            b.setTerminator(hoist(b.terminator(), mayTrap));
+        }
+        return temps.size();
+    }
+
+    private void scanEffects(Loop loop) {
+        assigned.clear();
+        writesMemory = false;
+        hasCall = false;
+        for (BasicBlock b : loop.blocks()) {
+            for (Stmt s : b.stmts()) {
+                if (s instanceof Assign) {
+                    Expr lhs = ((Assign)s).lhs();
+                    if (lhs instanceof Addr) {
+                        Entity ent = ((Addr)lhs).entity();
+                        assigned.add(ent);
+                        if (isAliased(ent)) writesMemory = true;
+                    }
+                    else {
+                        writesMemory = true;
+                    }
+                    if (containsCall(((Assign)s).rhs())) hasCall = true;
+                }
+                else if (s instanceof ExprStmt) {
+                    if (containsCall(((ExprStmt)s).expr())) hasCall = true;
+                }
+            }
+        }
+    }
+
+    //
+    // Rewriting
+    //
+
+    private Stmt hoist(Stmt s, boolean mayTrap) {
+        Location loc = s.location();
+        if (s instanceof Assign) {
+            Assign a = (Assign)s;
+            Expr lhs = (a.lhs() instanceof Addr) ? a.lhs() : hoist(a.lhs(), mayTrap);
+            Expr rhs = hoist(a.rhs(), mayTrap);
+            if (lhs == a.lhs() && rhs == a.rhs()) return s;
+            return new Assign(loc, lhs, rhs);
+        }
+        else if (s instanceof ExprStmt) {
+            Expr e = hoist(((ExprStmt)s).expr(), mayTrap);
+            return e == ((ExprStmt)s).expr() ? s : new ExprStmt(loc, e);
+        }
+        else if (s instanceof CJump) {
+            CJump c = (CJump)s;
+            Expr cond = hoist(c.cond(), mayTrap);
+            if (cond == c.cond()) return s;
+            return new CJump(loc, cond, c.thenLabel(), c.elseLabel());
+        }
+        else if (s instanceof Switch) {
+            Switch c = (Switch)s;
+            Expr cond = hoist(c.cond(), mayTrap);
+            if (cond == c.cond()) return s;
+            return new Switch(loc, cond, c.cases(),
+                    c.defaultLabel(), c.endLabel());
+        }
+        else if (s instanceof Return && ((Return)s).expr() != null) {
+            Expr e = hoist(((Return)s).expr(), mayTrap);
+            return e == ((Return)s).expr() ? s : new Return(loc, e);
+        }
+        else {
+            return s;
+        }
+    }
+
+    /** Returns E whose largest invariant subexpressions are hoisted. */
+    private Expr hoist(Expr e, boolean mayTrap) {
+        if (isInvariant(e) && (mayTrap || ! canTrap(e))
+                && e.type() != null && e.type().size() == pointerType.size()
+                && loads(e) + operations(e) >= 2) {
+            List<Object> key = key(e);
+            DefinedVariable tmp = temps.get(key);
+            if (tmp == null) {
+                tmp = function.lvarScope().allocateTmp(tmpType);
+                locals.add(tmp);
+                temps.put(key, tmp);
+                preheader.stmts().add(new Assign(preheader.location(),
+                        new Addr(pointerType, tmp), e));
+            }
+            return new Var(e.type(), tmp);
+        }
+        if (e instanceof Bin) {
+            Bin b = (Bin)e;
+            Expr left = hoist(b.left(), mayTrap);
+            Expr right = hoist(b.right(), mayTrap);
+            if (left == b.left() && right == b.right()) return e;
+            return new Bin(b.type(), b.op(), left, right);
+        }
+        else if (e instanceof Uni) {
+            Uni u = (Uni)e;
+            Expr expr = hoist(u.expr(), mayTrap);
+            return expr == u.expr() ? e : new Uni(u.type(), u.op(), expr);
+        }
+        else if (e instanceof Mem) {
+            Expr expr = hoist(((Mem)e).expr(), mayTrap);
+            return expr == ((Mem)e).expr() ? e : new Mem(e.type(), expr);
+        }
+        else if (e instanceof Call) {
+            Call c = (Call)e;
+            boolean changed = false;
+            Expr expr = hoist(c.expr(), mayTrap);
+            if (expr != c.expr()) changed = true;
+            List<Expr> args = new ArrayList<Expr>(c.args().size());
+            for (Expr arg : c.args()) {
+                Expr a = hoist(arg, mayTrap);
+                if (a != arg) changed = true;
+                args.add(a);
+            }
+            return changed ? new Call(c.type(), expr, args) : e;
+        }
+        else {
+            return e;
+        }
+    }
+
+    //
+    // Analysis of expressions
+    //
+
+    private boolean isInvariant(Expr e) {
+        if (e instanceof Var) {
+            Entity ent = ((Var)e).entity();
+            if (assigned.contains(ent)) return false;
+            return ! isAliased(ent) || ! (writesMemory || hasCall);
+        }
+        if (e instanceof Bin) {
+            return isInvariant(((Bin)e).left())
+                    && isInvariant(((Bin)e).right());
+        }
+        if (e instanceof Uni) return isInvariant(((Uni)e).expr());
+        if (e instanceof Mem) {
+            return ! writesMemory && ! hasCall
+                    && isInvariant(((Mem)e).expr());
+        }
+        if (e instanceof Call) return false;
+        return true;    // Int, Str, Addr
+    }
+
+    /** Returns true if E may trap: loads through pointers, divisions. */
+    private boolean canTrap(Expr e) {
+        if (e instanceof Bin) {
+            Bin b = (Bin)e;
+            if (isDivision(b.op()) && ! isSafeDivisor(b.right())) return true;
+            return canTrap(b.left()) || canTrap(b.right());
+        }
+        if (e instanceof Uni) return canTrap(((Uni)e).expr());
+        if (e instanceof Mem) return ! isObjectAddress(((Mem)e).expr());
+        return false;
+    }
+
+    /** Returns true if E is the address of a variable plus a constant. */
+    private boolean isObjectAddress(Expr e) {
+        if (e instanceof Addr) return true;
+        if (e instanceof Bin && ((Bin)e).op() == Op.ADD) {
+            return ((Bin)e).left() instanceof Addr
+                    && ((Bin)e).right() instanceof Int;
+        }
+        return false;
+    }
+
+    private boolean isDivision(Op op) {
+        return op == Op.S_DIV || op == Op.U_DIV
+                || op == Op.S_MOD || op == Op.U_MOD;
+    }
+
+    /** Neither 0 nor -1, which overflows INT_MIN / -1. */
+    private boolean isSafeDivisor(Expr e) {
+        if (! (e instanceof Int)) return false;
+        long v = ConstantFolder.wrap(((Int)e).value(), e.type());
+        return v != 0 && v != -1;
+    }
+
+    /** Loads from memory, counted twice as an operation. */
+    private int loads(Expr e) {
+        if (e instanceof Var) {
+            return isAliased(((Var)e).entity()) ? 2 : 0;
+        }
+        if (e instanceof Bin) {
+            return loads(((Bin)e).left()) + loads(((Bin)e).right());
+        }
+        if (e instanceof Uni) return loads(((Uni)e).expr());
+        if (e instanceof Mem) return 2 + loads(((Mem)e).expr());
+        return 0;
+    }
+
+    private int operations(Expr e) {
+        if (e instanceof Bin) {
+            return 1 + operations(((Bin)e).left())
+                    + operations(((Bin)e).right());
+        }
+        if (e instanceof Uni) return 1 + operations(((Uni)e).expr());
+        if (e instanceof Mem) return operations(((Mem)e).expr());
+        return 0;
+    }
+
+    /** Returns the structure of E; invariants of the same are equal. */
+    private List<Object> key(Expr e) {
+        if (e instanceof Var) {
+            return Arrays.<Object>asList("var", ((Var)e).entity(), e.type());
+        }
+        if (e instanceof Int) {
+            return Arrays.<Object>asList("int", e.type(), ((Int)e).value());
+        }
+        if (e instanceof Addr) {
+            return Arrays.<Object>asList("addr", ((Addr)e).entity());
+        }
+        if (e instanceof Str) {
+            return Arrays.<Object>asList("str", ((Str)e).entry());
+        }
+        if (e instanceof Bin) {
+            Bin b = (Bin)e;
+            return Arrays.<Object>asList("bin", b.op(), b.type(),
+                    key(b.left()), key(b.right()));
+        }
+        if (e instanceof Uni) {
+            Uni u = (Uni)e;
+            return Arrays.<Object>asList("uni", u.op(), u.type(), key(u.expr()));
+        }
+        if (e instanceof Mem) {
+            return Arrays.<Object>asList("mem", e.type(), key(((Mem)e).expr()));
+        }
+        throw new Error("must not happen: key of " + e.getClass());
+    }
+
+    private boolean isAliased(Entity ent) {
+        return aliased.contains(ent) || ! locals.contains(ent);
+    }
+
+    static private boolean containsCall(Expr e) {
+        if (e instanceof Call) return true;
+        if (e instanceof Bin) {
+            return containsCall(((Bin)e).left())
+                    || containsCall(((Bin)e).right());
+        }
+        if (e instanceof Uni) return containsCall(((Uni)e).expr());
+        if (e instanceof Mem) return containsCall(((Mem)e).expr());
+        return false;
+    }
+}
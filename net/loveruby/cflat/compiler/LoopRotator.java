@@ -0,0 +1,124 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Loop rotation (-O2).
+ *
+ * The IRGenerator emits the test of while and for loops at the top,
+ * so every iteration jumps back to the test and then branches.  If
+ * the header of a loop only tests and branches into the loop or out
+ * of it, a copy of the header becomes the end of the preheader, a
+ * guard which enters the loop or skips it, and the header moves
+ * after the last block of the loop.  The body then falls through to
+ * the test, whose branch back into the loop is the only jump of an
+ * iteration.
+ *
+ * Headers larger than HEADER_LIMIT IR nodes are not copied.
+ */
+class LoopRotator {
+    static private final int HEADER_LIMIT = 16;
+
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(optimize(f));
+        }
+    }
+
+    private List<Stmt> optimize(DefinedFunction f) {
+        ControlFlowGraph g = ControlFlowGraph.build(f.ir());
+        g.removeUnreachableBlocks();
+        List<Loop> loops = Loop.findLoops(g, new DominatorTree(g));
+        if (loops.isEmpty()) return f.ir();
+        for (Loop loop : loops) {
+            g.preheader(loop);
+        }
+        loops = Loop.findLoops(g, new DominatorTree(g));
+        boolean changed = false;
+        for (Loop loop : loops) {
+            changed |= rotate(f, g, loop);
+        }
+        return changed ? g.toStmts() : f.ir();
+    }
+
+    private boolean rotate(DefinedFunction f, ControlFlowGraph g, Loop loop) {
+        BasicBlock header = loop.header();
+        if (! (header.terminator() instanceof CJump)) return false;
+        CJump test = (CJump)header.terminator();
+        BasicBlock thenBlock = g.blockOf(test.thenLabel());
+        BasicBlock elseBlock = g.blockOf(test.elseLabel());
+        if (loop.contains(thenBlock) == loop.contains(elseBlock)) return false;
+        if (thenBlock == header || elseBlock == header) return false;
+        if (size(header) > HEADER_LIMIT) return false;
+        BasicBlock pre = g.preheader(loop);
+        IRCopier copier = new IRCopier(new HashMap<Entity, Entity>(),
+                new HashMap<Label, Label>());
+        for (Stmt s : header.stmts()) {
+            pre.stmts().add(copier.copy(s));
+        }
+        pre.setTerminator(copier.copy(test));
+        int last = 0;
+        for (BasicBlock b : loop.blocks()) {
+            last = Math.max(last, g.blocks().indexOf(b));
+        }
+        g.moveBlock(header, last + 1);
+        g.computeEdges();
+        f.addRemark("rotated loop", header.location());
+        return true;
+    }
+
+    /** Returns the number of IR nodes of B. */
+    static int size(BasicBlock b) {
+        int n = size(b.terminator());
+        for (Stmt s : b.stmts()) {
+            n += size(s);
+        }
+        return n;
+    }
+
+    static int size(Stmt s) {
+        if (s instanceof Assign) {
+            return 1 + size(((Assign)s).lhs()) + size(((Assign)s).rhs());
+        }
+        else if (s instanceof ExprStmt) {
+            return 1 + size(((ExprStmt)s).expr());
+        }
+        else if (s instanceof CJump) {
+            return 1 + size(((CJump)s).cond());
+        }
+        else if (s instanceof Switch) {
+            return 1 + ((Switch)s).cases().size() + size(((Switch)s).cond());
+        }
+        else if (s instanceof Return && ((Return)s).expr() != null) {
+            return 1 + size(((Return)s).expr());
+        }
+        else {
+            return 1;
+        }
+    }
+
+    static int size(Expr e) {
+        if (e instanceof Bin) {
+            return 1 + size(((Bin)e).left()) + size(((Bin)e).right());
+        }
+        else if (e instanceof Uni) {
+            return 1 + size(((Uni)e).expr());
+        }
+        else if (e instanceof Mem) {
+            return 1 + size(((Mem)e).expr());
+        }
+        else if (e instanceof Call) {
+            int n = 1 + size(((Call)e).expr());
+            for (Expr arg : ((Call)e).args()) {
+                n += size(arg);
+            }
+            return n;
+        }
+        else {
+            return 1;
+        }
+    }
+}
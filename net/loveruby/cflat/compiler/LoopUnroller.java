@@ -0,0 +1,367 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Type;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Loop unrolling (-O2).
+ *
+ * An innermost loop is unrolled if its header tests a counter I
+ * against an invariant bound N, and I is a local variable whose
+ * address is not taken and which the loop assigns only by I = I + C
+ * once in every iteration.  The loop after unrolling must be within
+ * the limit in IR nodes.
+ *
+ * If the initial value of I and N are constants, the trip count T is
+ * known.  A loop which fits the limit T times is replaced by T copies
+ * of its body.  Otherwise the loop is copied K times, K being a power
+ * of two up to MAX_FACTOR, and only the first copy tests I, against
+ * the value it has after the largest multiple of K iterations.  The
+ * original loop follows as the remainder loop and runs the rest.
+ * For an unknown trip count, C must be 1 or -1 and the preheader
+ * computes the number of iterations and the final value.
+ *
+ * Decisions are recorded as remarks of the function.
+ */
+class LoopUnroller {
+    static private final int MAX_FACTOR = 4;
+    static private final long MAX_TRIP_COUNT = 1 << 16;
+
+    private final Type pointerType;
+    private final net.loveruby.cflat.type.Type tmpType;
+    private final int limit;
+    private final ConstantFolder folder = new ConstantFolder();
+
+    // Per function
+    private LoopAnalysis analysis;
+
+    // Per loop
+    private Loop loop;
+
+    /** LIMIT is the maximum size of a loop after unrolling. */
+    LoopUnroller(int limit, Type pointerType, TypeTable types) {
+        this.limit = limit;
+        this.pointerType = pointerType;
+        this.tmpType = types.ptrDiffType();
+    }
+
+    /** The counter of a loop and the test of the header. */
+    static private final class Counter {
+        final Entity entity;
+        final long step;
+        final Op op;            // stays in the loop if I op N
+        final Expr bound;
+        final Label body;
+        final Label exit;
+
+        Counter(Entity entity, long step, Op op, Expr bound,
+                Label body, Label exit) {
+            this.entity = entity;
+            this.step = step;
+            this.op = op;
+            this.bound = bound;
+            this.body = body;
+            this.exit = exit;
+        }
+    }
+
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(optimize(f));
+        }
+    }
+
+    private List<Stmt> optimize(DefinedFunction f) {
+        analysis = LoopAnalysis.analyze(f, pointerType);
+        if (analysis == null) return f.ir();
+        ControlFlowGraph g = analysis.graph();
+        List<Loop> loops = analysis.loops();
+        boolean changed = false;
+        for (Loop l : loops) {
+            if (! isInnermost(l, loops)) continue;
+            analysis.setLoop(l);
+            loop = l;
+            changed |= unroll(g);
+        }
+        analysis = null;
+        loop = null;
+        if (! changed) return f.ir();
+        g.removeUnreachableBlocks();
+        return g.toStmts();
+    }
+
+    static private boolean isInnermost(Loop loop, List<Loop> loops) {
+        for (Loop l : loops) {
+            if (l != loop && loop.contains(l.header())) return false;
+        }
+        return true;
+    }
+
+    private boolean unroll(ControlFlowGraph g) {
+        DefinedFunction f = analysis.function();
+        Location loc = loop.header().location();
+        int size = 0;
+        for (BasicBlock b : loop.blocks()) {
+            size += LoopRotator.size(b);
+        }
+        if (size * 2 > limit) {
+            f.addRemark("loop not unrolled: " + size + " IR nodes", loc);
+            return false;
+        }
+        Counter counter = counter(g);
+        if (counter == null) {
+            f.addRemark("loop not unrolled: no counter", loc);
+            return false;
+        }
+        Type t = pointerType;
+        BasicBlock pre = g.preheader(loop);
+        Long init = initialValue(pre, counter.entity);
+        long trips = -1;    // unknown
+        if (init != null && counter.bound instanceof Int) {
+            trips = tripCount(counter, init);
+        }
+        if (trips == 0) return false;
+        if (trips > 0 && trips * size <= limit) {
+            // Full unrolling: the last copy leaves the loop.
+            copyLoop(g, (int)trips, counter, null, counter.exit);
+            f.addRemark("unrolled loop fully (" + trips
+                    + (trips == 1 ? " iteration)" : " iterations)"), loc);
+            return true;
+        }
+        int factor = 1;
+        while (factor * 2 <= MAX_FACTOR && factor * 2 * size <= limit) {
+            factor *= 2;
+        }
+        Expr end;
+        Label exit = loop.header().label();
+        if (trips > 0) {
+            long rest = trips % factor;
+            end = new Int(t, ConstantFolder.wrap(
+                    init + (trips - rest) * counter.step, t));
+            if (rest == 0) exit = counter.exit;
+        }
+        else {
+            if (! isCountable(counter)) {
+                f.addRemark("loop not unrolled: unknown trip count", loc);
+                return false;
+            }
+            end = new Var(t, endValue(pre, counter, init, factor));
+        }
+        Expr cond = new Bin(t, Op.NEQ, new Var(t, counter.entity), end);
+        copyLoop(g, factor, counter, cond, exit);
+        f.addRemark("unrolled loop by " + factor
+                + (exit == counter.exit ? "" : " with remainder loop"), loc);
+        return true;
+    }
+
+    /**
+     * Inserts COUNT copies of the loop before it, each falling into
+     * the next one, and redirects the preheader to them.  The header
+     * of the first copy branches by COND to the body or to EXIT; if
+     * COND is null, the last copy goes to EXIT and no copy tests.
+     */
+    private void copyLoop(ControlFlowGraph g, int count, Counter counter,
+            Expr cond, Label exit) {
+        BasicBlock header = loop.header();
+        Location loc = header.terminator().location();
+        BasicBlock body = g.blockOf(counter.body);
+        BasicBlock pre = g.preheader(loop);
+        int index = g.blocks().size();
+        for (BasicBlock b : loop.blocks()) {
+            index = Math.min(index, g.blocks().indexOf(b));
+        }
+        List<Map<BasicBlock, BasicBlock>> copies =
+                new ArrayList<Map<BasicBlock, BasicBlock>>();
+        for (int i = 0; i < count; i++) {
+            Map<BasicBlock, BasicBlock> copy =
+                    new HashMap<BasicBlock, BasicBlock>();
+            for (BasicBlock b : loop.blocks()) {
+                copy.put(b, g.insertBlock(index++, b.location()));
+            }
+            copies.add(copy);
+        }
+        for (int i = 0; i < count; i++) {
+            Map<BasicBlock, BasicBlock> copy = copies.get(i);
+            Label next;
+            if (i + 1 < count) {
+                next = copies.get(i + 1).get(header).label();
+            }
+            else {
+                next = (cond == null) ? exit : copies.get(0).get(header).label();
+            }
+            Map<Label, Label> labels = new HashMap<Label, Label>();
+            for (BasicBlock b : loop.blocks()) {
+                for (Label label : b.labels()) {
+                    labels.put(label, b == header ? next : copy.get(b).label());
+                }
+            }
+            IRCopier copier = new IRCopier(new HashMap<Entity, Entity>(), labels);
+            for (BasicBlock b : loop.blocks()) {
+                BasicBlock nb = copy.get(b);
+                for (Stmt s : b.stmts()) {
+                    nb.stmts().add(copier.copy(s));
+                }
+                nb.setTerminator(copier.copy(b.terminator()));
+            }
+            BasicBlock h = copy.get(header);
+            Label bodyLabel = copy.get(body).label();
+            if (i == 0 && cond != null) {
+                h.setTerminator(new CJump(loc, cond, bodyLabel, exit));
+            }
+            else {
+                h.setTerminator(new Jump(loc, bodyLabel));
+            }
+        }
+        pre.setTerminator(ControlFlowGraph.retarget(pre.terminator(),
+                new HashSet<Label>(header.labels()),
+                copies.get(0).get(header).label()));
+        g.computeEdges();
+    }
+
+    /**
+     * Appends to PRE the computation of the value of the counter after
+     * the largest multiple of FACTOR iterations, and returns the
+     * temporary holding it.  INIT is the initial value if known.
+     */
+    private DefinedVariable endValue(BasicBlock pre, Counter counter,
+            Long init, int factor) {
+        Type t = pointerType;
+        Location loc = pre.location();
+        Expr i = (init == null)
+                ? new Var(t, counter.entity) : new Int(t, init);
+        Expr n = counter.bound;
+        Expr diff = counter.step > 0
+                ? new Bin(t, Op.SUB, n, i)
+                : new Bin(t, Op.SUB, i, n);
+        switch (counter.op) {
+        case S_LTEQ: case U_LTEQ: case S_GTEQ: case U_GTEQ:
+            // Wraps to 0 for the whole range; then the remainder
+            // loop runs all iterations.
+            diff = new Bin(t, Op.ADD, diff, new Int(t, 1));
+            break;
+        default:
+            break;
+        }
+        // cnt = diff & -(i op n), the number of iterations.
+        Expr enters = new Uni(t, Op.UMINUS, new Bin(t, counter.op, i, n));
+        Expr cnt = new Bin(t, Op.BIT_AND, diff, enters);
+        Expr iterations = new Bin(t, Op.BIT_AND, cnt, new Int(t, -factor));
+        Expr end = new Bin(t, counter.step > 0 ? Op.ADD : Op.SUB,
+                i, iterations);
+        DefinedVariable var = analysis.allocateTmp(tmpType);
+        pre.stmts().add(new Assign(loc, new Addr(pointerType, var),
+                end.accept(folder)));
+        return var;
+    }
+
+    /** Returns the number of iterations up to MAX_TRIP_COUNT, or -1. */
+    private long tripCount(Counter counter, long init) {
+        Type t = pointerType;
+        long i = init;
+        for (long n = 0; n <= MAX_TRIP_COUNT; n++) {
+            Expr stays = new Bin(t, counter.op,
+                    new Int(t, i), counter.bound).accept(folder);
+            if (! (stays instanceof Int)) return -1;
+            if (((Int)stays).value() == 0) return n;
+            i = ConstantFolder.wrap(i + counter.step, t);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the constant assigned to ENT last before PRE enters the
+     * loop, following single predecessors, or null.
+     */
+    private Long initialValue(BasicBlock pre, Entity ent) {
+        BasicBlock b = pre;
+        for (int n = 0; n < 8; n++) {
+            List<Stmt> stmts = b.stmts();
+            for (int i = stmts.size() - 1; i >= 0; i--) {
+                if (! (stmts.get(i) instanceof Assign)) continue;
+                Assign s = (Assign)stmts.get(i);
+                if (! (s.lhs() instanceof Addr)) continue;
+                if (((Addr)s.lhs()).entity() != ent) continue;
+                if (! (s.rhs() instanceof Int)) return null;
+                return ConstantFolder.wrap(((Int)s.rhs()).value(), s.rhs().type());
+            }
+            if (b.predecessors().size() != 1) return null;
+            b = b.predecessors().get(0);
+            if (b.successors().size() != 1) return null;
+        }
+        return null;
+    }
+
+    //
+    // Counter
+    //
+
+    /**
+     * Returns the counter tested by the header, or null.  The header
+     * must do nothing but the test: its statements would run once
+     * more than the body, which the copies do not keep.
+     */
+    private Counter counter(ControlFlowGraph g) {
+        BasicBlock header = loop.header();
+        if (! header.stmts().isEmpty()) return null;
+        if (! (header.terminator() instanceof CJump)) return null;
+        CJump test = (CJump)header.terminator();
+        boolean thenIn = loop.contains(g.blockOf(test.thenLabel()));
+        boolean elseIn = loop.contains(g.blockOf(test.elseLabel()));
+        if (thenIn == elseIn) return null;
+        Label body = thenIn ? test.thenLabel() : test.elseLabel();
+        if (g.blockOf(body) == header) return null;
+        if (! (test.cond() instanceof Bin)) return null;
+        Bin cond = (Bin)test.cond();
+        Op op = thenIn ? cond.op() : cond.op().negated();
+        if (op == null) return null;
+        Label exit = thenIn ? test.elseLabel() : test.thenLabel();
+        Counter c = counter(cond.left(), op, cond.right(), body, exit);
+        if (c != null) return c;
+        op = op.swapped();
+        if (op == null) return null;
+        return counter(cond.right(), op, cond.left(), body, exit);
+    }
+
+    private Counter counter(Expr var, Op op, Expr bound,
+            Label body, Label exit) {
+        if (! (var instanceof Var)) return null;
+        Entity ent = ((Var)var).entity();
+        List<Assign> updates = analysis.updates().get(ent);
+        if (updates == null || updates.size() != 1) return null;
+        if (! analysis.isInvariant(bound)) return null;
+        Assign update = updates.get(0);
+        BasicBlock updateBlock = analysis.blockOf(update);
+        Long step = analysis.step(ent, update);
+        if (step == null) return null;
+        // Exactly once in every iteration which returns to the header.
+        if (updateBlock == loop.header()) return null;
+        DominatorTree dom = analysis.dominatorTree();
+        for (BasicBlock latch : loop.latches()) {
+            if (! dom.dominates(updateBlock, latch)) return null;
+        }
+        if (analysis.hasCycleAvoidingHeader(updateBlock)) return null;
+        return new Counter(ent, step, op, bound, body, exit);
+    }
+
+    /**
+     * Returns true if the trip count of COUNTER can be computed at
+     * run time: I goes one by one toward N.
+     */
+    private boolean isCountable(Counter counter) {
+        switch (counter.op) {
+        case NEQ:
+            return counter.step == 1 || counter.step == -1;
+        case S_LT: case U_LT: case S_LTEQ: case U_LTEQ:
+            return counter.step == 1;
+        case S_GT: case U_GT: case S_GTEQ: case U_GTEQ:
+            return counter.step == -1;
+        default:
+            return false;
+        }
+    }
+}
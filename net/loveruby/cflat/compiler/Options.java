@@ -1,9 +1,13 @@
 package net.loveruby.cflat.compiler;
 import net.loveruby.cflat.parser.LibraryLoader;
+import net.loveruby.cflat.parser.SourceCache;
+import net.loveruby.cflat.parser.PrecompiledHeaderCache;
 import net.loveruby.cflat.type.TypeTable;
 import net.loveruby.cflat.asm.*;
 import net.loveruby.cflat.sysdep.*;
 import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import net.loveruby.cflat.utils.TimeReport;
 import net.loveruby.cflat.exception.*;
 import java.util.List;
 import java.util.ListIterator;
@@ -13,7 +17,12 @@ import java.io.PrintStream;
 
 class Options {
     static Options parse(String[] args) {
-        Options opts = new Options();
+        return parse(args, CommandEnvironment.inherited(), null);
+    }
+
+    static Options parse(String[] args,
+            CommandEnvironment env, SourceCache headerCache) {
+        Options opts = new Options(env, headerCache);
         opts.parseArgs(args);
         return opts;
     }
@@ -22,13 +31,33 @@ class Options {
     private Platform platform = new X86Linux();
     private String outputFileName;
     private boolean verbose = false;
-    private LibraryLoader loader = new LibraryLoader();
+    private List<String> loadPath = LibraryLoader.defaultLoadPath();
     private boolean debugParser = false;
+    private PrecompiledHeaderCache pchCache = null;
+    private boolean pchStats = false;
+    private int jobs = 1;
+    private boolean pipe = false;
+    private boolean saveTemps = false;
+    private TimeReport timeReport = TimeReport.DISABLED;
+    private boolean jsonTimeReport = false;
+    private int timeReportTop = 10;
+    private PeepholeStats peepholeStats = PeepholeStats.DISABLED;
+    private BuildCache buildCache = null;
     private CodeGeneratorOptions genOptions = new CodeGeneratorOptions();
     private AssemblerOptions asOptions = new AssemblerOptions();
     private LinkerOptions ldOptions = new LinkerOptions();
     private List<LdArg> ldArgs;
     private List<SourceFile> sourceFiles;
+    private boolean quitRequested = false;
+    private final CommandEnvironment env;
+    private final SourceCache headerCache;
+
+    private Options(CommandEnvironment env, SourceCache headerCache) {
+        this.env = env;
+        this.headerCache = headerCache;
+        asOptions.environment = env;
+        ldOptions.environment = env;
+    }
 
     CompilerMode mode() {
         return mode;
@@ -94,14 +123,78 @@ class Options {
         return this.debugParser;
     }
 
+    int jobs() {
+        return this.jobs;
+    }
+
+    /**
+     * True if assembly code is passed to the assembler through a pipe.
+     * --save-temps disables -pipe, since it requires assembly files.
+     */
+    boolean isPipeMode() {
+        return pipe && ! saveTemps;
+    }
+
+    /** True if --version or --help was given and nothing to compile. */
+    boolean isQuitRequested() {
+        return this.quitRequested;
+    }
+
+    CommandEnvironment environment() {
+        return env;
+    }
+
+    /** Returns the time report; it is disabled unless --time-report. */
+    TimeReport timeReport() {
+        return timeReport;
+    }
+
+    boolean isJSONTimeReport() {
+        return jsonTimeReport;
+    }
+
+    /** Number of functions in the time report. */
+    int timeReportTop() {
+        return timeReportTop;
+    }
+
+    /** Returns the peephole rule counts; disabled unless --peephole-stats. */
+    PeepholeStats peepholeStats() {
+        return peepholeStats;
+    }
+
+    /** Returns the build cache, or null if --cache-dir is not given. */
+    BuildCache buildCache() {
+        return buildCache;
+    }
+
+    /**
+     * Returns a new LibraryLoader for a compilation unit.
+     * Imported declarations are modified by semantic analysis,
+     * so they must not be shared between source files.
+     */
     LibraryLoader loader() {
-        return this.loader;
+        return new LibraryLoader(new ArrayList<String>(loadPath),
+                env.directory(), headerCache, pchCache);
+    }
+
+    /** Returns the precompiled header cache, or null if not used. */
+    PrecompiledHeaderCache pchCache() {
+        return pchCache;
+    }
+
+    boolean isPchStatsRequired() {
+        return pchStats;
     }
 
     TypeTable typeTable() {
         return platform.typeTable();
     }
 
+    CodeGeneratorOptions genOptions() {
+        return genOptions;
+    }
+
     CodeGenerator codeGenerator(ErrorHandler h) {
         return platform.codeGenerator(genOptions, h);
     }
@@ -153,14 +246,45 @@ class Options {
                     mode = CompilerMode.fromOption(arg);
                 }
                 else if (arg.startsWith("-I")) {
-                    loader.addLoadPath(getOptArg(arg, args));
+                    loadPath.add(getOptArg(arg, args));
                 }
                 else if (arg.equals("--debug-parser")) {
                     debugParser = true;
                 }
+                else if (arg.equals("--pch-dir")) {
+                    pchCache = new PrecompiledHeaderCache(
+                            env.file(nextArg(arg, args)));
+                }
+                else if (arg.equals("--pch-stats")) {
+                    pchStats = true;
+                }
                 else if (arg.startsWith("-o")) {
                     outputFileName = getOptArg(arg, args);
                 }
+                else if (arg.startsWith("-j")) {
+                    jobs = parseJobs(getOptArg(arg, args));
+                }
+                else if (arg.equals("-pipe")) {
+                    pipe = true;
+                }
+                else if (arg.equals("--save-temps")
+                        || arg.equals("-save-temps")) {
+                    saveTemps = true;
+                }
+                else if (arg.equals("--time-report")
+                        || arg.equals("--time-report=text")) {
+                    enableTimeReport(false);
+                }
+                else if (arg.equals("--time-report=json")) {
+                    enableTimeReport(true);
+                }
+                else if (arg.equals("--time-report-top")) {
+                    timeReportTop = parseTimeReportTop(nextArg(arg, args));
+                }
+                else if (arg.equals("--cache-dir")) {
+                    buildCache = new BuildCache(
+                            env.file(nextArg(arg, args)), env);
+                }
                 else if (arg.equals("-fpic")
                         || arg.equals("-fPIC")) {
                     genOptions.generatePIC();
@@ -174,7 +298,19 @@ class Options {
                     if (! type.matches("^([0123s]|)$")) {
                         parseError("unknown optimization switch: " + arg);
                     }
-                    genOptions.setOptimizationLevel(type.equals("0") ? 0 : 1);
+                    genOptions.setOptimizationLevel(optimizationLevel(type));
+                }
+                else if (arg.equals("--inline-threshold")) {
+                    genOptions.setInlineThreshold(
+                            parseInlineThreshold(nextArg(arg, args)));
+                }
+                else if (arg.equals("--unroll-limit")) {
+                    genOptions.setUnrollLimit(
+                            parseUnrollLimit(nextArg(arg, args)));
+                }
+                else if (arg.equals("--peephole-stats")) {
+                    peepholeStats = new PeepholeStats();
+                    genOptions.setPeepholeStats(peepholeStats);
                 }
                 else if (arg.equals("-fverbose-asm")
                         || arg.equals("--verbose-asm")) {
@@ -235,13 +371,15 @@ class Options {
                     ldOptions.verbose = true;
                 }
                 else if (arg.equals("--version")) {
-                    System.out.printf("%s version %s\n",
+                    env.out().printf("%s version %s\n",
                         Compiler.ProgramName, Compiler.Version);
-                    System.exit(0);
+                    quitRequested = true;
+                    return;
                 }
                 else if (arg.equals("--help")) {
-                    printUsage(System.out);
-                    System.exit(0);
+                    printUsage(env.out());
+                    quitRequested = true;
+                    return;
                 }
                 else {
                     parseError("unknown option: " + arg);
@@ -259,6 +397,9 @@ class Options {
         if (mode == null) {
             mode = CompilerMode.Link;
         }
+        if (pchStats && pchCache == null) {
+            parseError("--pch-stats requires --pch-dir");
+        }
         sourceFiles = selectSourceFiles(ldArgs);
         if (sourceFiles.isEmpty()) {
             parseError("no input file");
@@ -275,6 +416,75 @@ class Options {
         }
     }
 
+    private int parseJobs(String n) {
+        try {
+            int jobs = Integer.parseInt(n);
+            if (jobs < 1) {
+                parseError("invalid number of jobs: " + n);
+            }
+            return jobs;
+        }
+        catch (NumberFormatException ex) {
+            parseError("invalid number of jobs: " + n);
+            return 1;   // never reach
+        }
+    }
+
+    // -O0: none, -O, -O1, -Os: peephole, -O2, -O3: register allocation
+    private int optimizationLevel(String type) {
+        if (type.equals("0")) return 0;
+        if (type.equals("2") || type.equals("3")) return 2;
+        return 1;
+    }
+
+    private void enableTimeReport(boolean json) {
+        timeReport = new TimeReport();
+        jsonTimeReport = json;
+        genOptions.setTimeReport(timeReport);
+    }
+
+    private int parseTimeReportTop(String n) {
+        try {
+            int top = Integer.parseInt(n);
+            if (top < 0) {
+                parseError("invalid number of functions: " + n);
+            }
+            return top;
+        }
+        catch (NumberFormatException ex) {
+            parseError("invalid number of functions: " + n);
+            return 0;   // never reach
+        }
+    }
+
+    private int parseInlineThreshold(String n) {
+        try {
+            int threshold = Integer.parseInt(n);
+            if (threshold < 0) {
+                parseError("invalid inline threshold: " + n);
+            }
+            return threshold;
+        }
+        catch (NumberFormatException ex) {
+            parseError("invalid inline threshold: " + n);
+            return 0;   // never reach
+        }
+    }
+
+    private int parseUnrollLimit(String n) {
+        try {
+            int limit = Integer.parseInt(n);
+            if (limit < 0) {
+                parseError("invalid unroll limit: " + n);
+            }
+            return limit;
+        }
+        catch (NumberFormatException ex) {
+            parseError("invalid unroll limit: " + n);
+            return 0;   // never reach
+        }
+    }
+
     private void parseError(String msg) {
         throw new OptionParseError(msg);
     }
@@ -341,23 +551,48 @@ class Options {
         out.println("  -c               Generates an object file and quit.");
         out.println("  -o PATH          Places output in file PATH.");
         out.println("  -v               Turn on verbose mode.");
+        out.println("  -j N             Compiles N source files in parallel.");
+        out.println("  --cache-dir DIR  Reuses assembly and object files cached in DIR.");
+        out.println("  -pipe            Passes assembly code to the assembler by a pipe.");
+        out.println("  --save-temps     Keeps assembly files (disables -pipe).");
+        out.println("  --time-report[=text|json]");
+        out.println("                   Reports time and memory used by each phase.");
+        out.println("  --time-report-top N");
+        out.println("                   Reports N slowest functions (default 10).");
+        out.println("  --server         Runs as a compile server for bin/cbc.");
+        out.println("  --batch FILE     Runs command lines in FILE concurrently.");
         out.println("  --version        Shows compiler version and quit.");
         out.println("  --help           Prints this message and quit.");
         out.println("");
         out.println("Optimization Options:");
         out.println("  -O               Enables optimization.");
-        out.println("  -O1, -O2, -O3    Equivalent to -O.");
-        out.println("  -Os              Equivalent to -O.");
+        out.println("  -O1, -Os         Equivalent to -O.");
+        out.println("  -O2, -O3         Also propagates constants, eliminates common");
+        out.println("                   subexpressions, hoists loop invariants, reduces");
+        out.println("                   strength, unrolls and rotates loops, and");
+        out.println("                   allocates registers.");
         out.println("  -O0              Disables optimization (default).");
+        out.println("  --inline-threshold N");
+        out.println("                   Inlines functions larger than a call by up to N IR nodes");
+        out.println("                   (default 0 at -O1, 16 at -O2).");
+        out.println("  --unroll-limit N");
+        out.println("                   Unrolls innermost loops up to N IR nodes after unrolling");
+        out.println("                   (default 0 at -O1, 64 at -O2).");
+        out.println("  --peephole-stats Reports how many times each peephole rule applied.");
         out.println("");
         out.println("Parser Options:");
         out.println("  -I PATH          Adds PATH as import file directory.");
+        out.println("  --pch-dir DIR    Stores precompiled import files in DIR.");
+        out.println("  --pch-stats      Reports precompiled import file hits and misses.");
         out.println("  --debug-parser   Dumps parsing process.");
         out.println("");
         out.println("Code Generator Options:");
         out.println("  -O               Enables optimization.");
-        out.println("  -O1, -O2, -O3    Equivalent to -O.");
-        out.println("  -Os              Equivalent to -O.");
+        out.println("  -O1, -Os         Equivalent to -O.");
+        out.println("  -O2, -O3         Also propagates constants, eliminates common");
+        out.println("                   subexpressions, hoists loop invariants, reduces");
+        out.println("                   strength, unrolls and rotates loops, and");
+        out.println("                   allocates registers.");
         out.println("  -O0              Disables optimization (default).");
         out.println("  -fPIC            Generates PIC assembly.");
         out.println("  -fpic            Equivalent to -fPIC.");
@@ -0,0 +1,553 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.type.TypeTable;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+
+/**
+ * Strength reduction of induction variables in loops (-O2).
+ *
+ * A basic induction variable of a loop is a local variable whose
+ * address is not taken and which the loop assigns only by I = I + C.
+ * An address BASE + I * S, BASE being invariant, is a derived one:
+ * a new variable P is set to it in the preheader, bumped by C * S
+ * right after I is, and replaces the address in the loop.
+ *
+ * If the header tests I against an invariant N and C is 1 or -1,
+ * the test is replaced by P != BASE + N' * S, N' being N or, if the
+ * loop would not be entered, the initial value of I; a derived
+ * address evaluated in every iteration makes this exact.  Then, if
+ * I is used nowhere else in the loop and is dead after it, the
+ * update of I is removed.
+ *
+ * x86 scales indices in addressing modes for free, so the loop is
+ * rewritten only when the counter goes away.
+ */
+class StrengthReducer {
+    private final Type pointerType;
+    private final net.loveruby.cflat.type.Type tmpType;
+    private final ConstantFolder folder = new ConstantFolder();
+
+    // Per function
+    private LoopAnalysis analysis;
+    private DominatorTree dom;
+
+    // Per loop
+    private Loop loop;
+
+    // Per induction variable
+    private Entity iv;
+    private final Map<List<Object>, Family> families =
+            new LinkedHashMap<List<Object>, Family>();
+    private int familyUses;
+
+    StrengthReducer(Type pointerType, TypeTable types) {
+        this.pointerType = pointerType;
+        this.tmpType = types.ptrDiffType();
+    }
+
+    /** Addresses BASE + IV * SCALE in a loop. */
+    static private final class Family {
+        final Expr base;
+        final long scale;
+        boolean everyIteration;
+        DefinedVariable var;
+
+        Family(Expr base, long scale) {
+            this.base = base;
+            this.scale = scale;
+        }
+    }
+
+    /** The exit test of the header to be replaced. */
+    static private final class ExitTest {
+        final Op op;            // EQ or NEQ on the derived variable
+        final Op selectOp;      // selects the initial value, or null
+        final Expr bound;
+
+        ExitTest(Op op, Op selectOp, Expr bound) {
+            this.op = op;
+            this.selectOp = selectOp;
+            this.bound = bound;
+        }
+    }
+
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(optimize(f));
+        }
+    }
+
+    private List<Stmt> optimize(DefinedFunction f) {
+        analysis = LoopAnalysis.analyze(f, pointerType);
+        if (analysis == null) return f.ir();
+        ControlFlowGraph g = analysis.graph();
+        dom = analysis.dominatorTree();
+        boolean changed = false;
+        for (Loop l : analysis.loops()) {
+            analysis.setLoop(l);
+            loop = l;
+            changed |= optimize(g);
+        }
+        analysis = null;
+        dom = null;
+        loop = null;
+        return changed ? g.toStmts() : f.ir();
+    }
+
+    private boolean optimize(ControlFlowGraph g) {
+        boolean changed = false;
+        for (Map.Entry<Entity, List<Assign>> ent
+                : analysis.updates().entrySet()) {
+            if (ent.getValue().size() != 1) continue;
+            Assign update = ent.getValue().get(0);
+            Long step = analysis.step(ent.getKey(), update);
+            if (step == null) continue;
+            changed |= reduce(g, ent.getKey(), update,
+                    analysis.blockOf(update), step);
+        }
+        return changed;
+    }
+
+    private boolean reduce(ControlFlowGraph g, Entity ent,
+            Assign update, BasicBlock updateBlock, long step) {
+        iv = ent;
+        families.clear();
+        familyUses = 0;
+        int uses = 0;
+        for (BasicBlock b : loop.blocks()) {
+            for (Stmt s : b.stmts()) {
+                uses += countUses(s);
+                if (s != update) collect(s, b);
+            }
+            uses += countUses(b.terminator());
+            collect(b.terminator(), b);
+        }
+        if (families.isEmpty()) return false;
+        ExitTest test = exitTest(step, updateBlock);
+        int testUses = (test == null) ? 0 : 1;
+        if (uses != 1 + familyUses + testUses) return false;
+        if (isLiveAfterLoop(ent)) return false;
+
+        Type t = update.rhs().type();
+        BasicBlock pre = g.preheader(loop);
+        Location loc = pre.location();
+        for (Family fam : families.values()) {
+            fam.var = allocateTmp();
+        }
+        if (test != null) {
+            Family fam = null;
+            for (Family f : families.values()) {
+                if (f.everyIteration) {
+                    fam = f;
+                    break;
+                }
+            }
+            // Computed first, so that I is dead before the pointers
+            // are set and a register is left for them.
+            DefinedVariable limit = allocateTmp();
+            pre.stmts().add(new Assign(loc, new Addr(pointerType, limit),
+                    address(t, fam, bound(t, test))));
+            CJump j = (CJump)loop.header().terminator();
+            loop.header().setTerminator(new CJump(j.location(),
+                    new Bin(t, test.op, new Var(t, fam.var), new Var(t, limit)),
+                    j.thenLabel(), j.elseLabel()));
+        }
+        for (Family fam : families.values()) {
+            pre.stmts().add(new Assign(loc, new Addr(pointerType, fam.var),
+                    address(t, fam, new Var(t, ent))));
+        }
+        for (BasicBlock b : loop.blocks()) {
+            List<Stmt> stmts = b.stmts();
+            for (int i = 0; i < stmts.size(); i++) {
+                stmts.set(i, rewrite(stmts.get(i)));
+            }
+            if (b != loop.header() || test == null) {
+                b.setTerminator(rewrite(b.terminator()));
+            }
+        }
+        List<Stmt> stmts = updateBlock.stmts();
+        int pos = indexOf(stmts, update);
+        stmts.remove(pos);
+        for (Family fam : families.values()) {
+            Expr bump = new Bin(t, Op.ADD, new Var(t, fam.var),
+                    new Int(t, ConstantFolder.wrap(step * fam.scale, t)));
+            stmts.add(pos++, new Assign(update.location(),
+                    new Addr(pointerType, fam.var), bump));
+        }
+        String msg = "strength-reduced " + ent.name() + " to "
+                + families.size()
+                + (families.size() == 1 ? " pointer" : " pointers")
+                + (test == null ? "" : ", replaced the exit test")
+                + ", removed " + ent.name() + " from loop";
+        analysis.function().addRemark(msg, loop.header().location());
+        return true;
+    }
+
+    private DefinedVariable allocateTmp() {
+        return analysis.allocateTmp(tmpType);
+    }
+
+    private int indexOf(List<Stmt> stmts, Stmt s) {
+        for (int i = 0; i < stmts.size(); i++) {
+            if (stmts.get(i) == s) return i;
+        }
+        throw new Error("must not happen: statement not found");
+    }
+
+    //
+    // Derived induction variables
+    //
+
+    /** Returns BASE + INDEX * SCALE of FAM, folded. */
+    private Expr address(Type t, Family fam, Expr index) {
+        Expr scaled = new Bin(t, Op.MUL, index, new Int(t, fam.scale));
+        return new Bin(t, Op.ADD, fam.base, scaled).accept(folder);
+    }
+
+    /** Collects derived addresses in S, evaluated in block B. */
+    private void collect(Stmt s, BasicBlock b) {
+        for (Expr e : exprsOf(s)) {
+            collect(e, b);
+        }
+    }
+
+    private void collect(Expr e, BasicBlock b) {
+        Family fam = match(e);
+        if (fam != null) {
+            List<Object> key = familyKey(fam);
+            Family f = families.get(key);
+            if (f == null) {
+                f = fam;
+                families.put(key, f);
+            }
+            boolean every = true;
+            for (BasicBlock latch : loop.latches()) {
+                if (! dom.dominates(b, latch)) every = false;
+            }
+            f.everyIteration |= every;
+            familyUses++;
+            return;
+        }
+        for (Expr x : operands(e)) {
+            collect(x, b);
+        }
+    }
+
+    /** Returns the family of E if E is BASE + IV * S, or null. */
+    private Family match(Expr e) {
+        if (! (e instanceof Bin) || ((Bin)e).op() != Op.ADD) return null;
+        if (e.type().size() != pointerType.size()) return null;
+        Bin b = (Bin)e;
+        Long s = scale(b.right());
+        if (s != null && analysis.isInvariant(b.left())) {
+            return new Family(b.left(), s);
+        }
+        s = scale(b.left());
+        if (s != null && analysis.isInvariant(b.right())) {
+            return new Family(b.right(), s);
+        }
+        return null;
+    }
+
+    /** Returns S if E is IV * S or IV << K (S = 2^K) with S > 1. */
+    private Long scale(Expr e) {
+        if (! (e instanceof Bin)) return null;
+        Bin b = (Bin)e;
+        if (! isVar(b.left(), iv) || ! (b.right() instanceof Int)) return null;
+        long c = ((Int)b.right()).value();
+        if (b.op() == Op.MUL && c > 1) return c;
+        if (b.op() == Op.BIT_LSHIFT && c > 0 && c < 31) return 1L << c;
+        return null;
+    }
+
+    private List<Object> familyKey(Family fam) {
+        return Arrays.<Object>asList(key(fam.base), fam.scale);
+    }
+
+    private Stmt rewrite(Stmt s) {
+        Location loc = s.location();
+        if (s instanceof Assign) {
+            Assign a = (Assign)s;
+            Expr lhs = (a.lhs() instanceof Addr) ? a.lhs() : rewrite(a.lhs());
+            Expr rhs = rewrite(a.rhs());
+            if (lhs == a.lhs() && rhs == a.rhs()) return s;
+            return new Assign(loc, lhs, rhs);
+        }
+        else if (s instanceof ExprStmt) {
+            Expr e = rewrite(((ExprStmt)s).expr());
+            return e == ((ExprStmt)s).expr() ? s : new ExprStmt(loc, e);
+        }
+        else if (s instanceof CJump) {
+            CJump c = (CJump)s;
+            Expr cond = rewrite(c.cond());
+            if (cond == c.cond()) return s;
+            return new CJump(loc, cond, c.thenLabel(), c.elseLabel());
+        }
+        else if (s instanceof Switch) {
+            Switch c = (Switch)s;
+            Expr cond = rewrite(c.cond());
+            if (cond == c.cond()) return s;
+            return new Switch(loc, cond, c.cases(),
+                    c.defaultLabel(), c.endLabel());
+        }
+        else if (s instanceof Return && ((Return)s).expr() != null) {
+            Expr e = rewrite(((Return)s).expr());
+            return e == ((Return)s).expr() ? s : new Return(loc, e);
+        }
+        else {
+            return s;
+        }
+    }
+
+    private Expr rewrite(Expr e) {
+        Family fam = match(e);
+        if (fam != null) {
+            return new Var(e.type(), families.get(familyKey(fam)).var);
+        }
+        if (e instanceof Bin) {
+            Bin b = (Bin)e;
+            Expr left = rewrite(b.left());
+            Expr right = rewrite(b.right());
+            if (left == b.left() && right == b.right()) return e;
+            return new Bin(b.type(), b.op(), left, right);
+        }
+        else if (e instanceof Uni) {
+            Uni u = (Uni)e;
+            Expr expr = rewrite(u.expr());
+            return expr == u.expr() ? e : new Uni(u.type(), u.op(), expr);
+        }
+        else if (e instanceof Mem) {
+            Expr expr = rewrite(((Mem)e).expr());
+            return expr == ((Mem)e).expr() ? e : new Mem(e.type(), expr);
+        }
+        else if (e instanceof Call) {
+            Call c = (Call)e;
+            boolean changed = false;
+            Expr expr = rewrite(c.expr());
+            if (expr != c.expr()) changed = true;
+            List<Expr> args = new ArrayList<Expr>(c.args().size());
+            for (Expr arg : c.args()) {
+                Expr a = rewrite(arg);
+                if (a != arg) changed = true;
+                args.add(a);
+            }
+            return changed ? new Call(c.type(), expr, args) : e;
+        }
+        else {
+            return e;
+        }
+    }
+
+    //
+    // Exit test
+    //
+
+    /**
+     * Returns the replacement of the test of the header, or null.
+     * I must go one by one up to the bound, being bumped at most
+     * once between tests.
+     */
+    private ExitTest exitTest(long step, BasicBlock updateBlock) {
+        if (step != 1 && step != -1) return null;
+        if (! (loop.header().terminator() instanceof CJump)) return null;
+        boolean every = false;
+        for (Family fam : families.values()) {
+            every |= fam.everyIteration;
+        }
+        if (! every) return null;
+        if (analysis.hasCycleAvoidingHeader(updateBlock)) return null;
+        Expr cond = ((CJump)loop.header().terminator()).cond();
+        if (! (cond instanceof Bin)) return null;
+        Bin b = (Bin)cond;
+        Op op = b.op();
+        Expr bound;
+        if (isVar(b.left(), iv) && analysis.isInvariant(b.right())) {
+            bound = b.right();
+        }
+        else if (isVar(b.right(), iv) && analysis.isInvariant(b.left())) {
+            bound = b.left();
+            op = op.swapped();
+            if (op == null) return null;
+        }
+        else {
+            return null;
+        }
+        switch (op) {
+        case EQ:
+        case NEQ:
+            return new ExitTest(op, null, bound);
+        case S_LT:
+        case U_LT:
+            if (step != 1) return null;
+            return new ExitTest(Op.NEQ, op, bound);
+        case S_GTEQ:
+        case U_GTEQ:
+            if (step != 1) return null;
+            return new ExitTest(Op.EQ, op.negated(), bound);
+        case S_GT:
+        case U_GT:
+            if (step != -1) return null;
+            return new ExitTest(Op.NEQ, op, bound);
+        case S_LTEQ:
+        case U_LTEQ:
+            if (step != -1) return null;
+            return new ExitTest(Op.EQ, op.negated(), bound);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Returns the bound of I, which is the initial value of I if the
+     * loop is not entered: N ^ ((N ^ I) & -(N select I)).
+     */
+    private Expr bound(Type t, ExitTest test) {
+        if (test.selectOp == null) return test.bound;
+        Expr n = test.bound;
+        Expr i = new Var(t, iv);
+        Expr mask = new Uni(t, Op.UMINUS, new Bin(t, test.selectOp, n, i));
+        return new Bin(t, Op.BIT_XOR, n,
+                new Bin(t, Op.BIT_AND, new Bin(t, Op.BIT_XOR, n, i), mask));
+    }
+
+    //
+    // Liveness of the induction variable
+    //
+
+    /** Returns true if ENT may be used after leaving the loop. */
+    private boolean isLiveAfterLoop(Entity ent) {
+        Set<BasicBlock> liveIn = new HashSet<BasicBlock>();
+        LinkedList<BasicBlock> work = new LinkedList<BasicBlock>();
+        Set<BasicBlock> defining = new HashSet<BasicBlock>();
+        for (BasicBlock b : dom.reversePostorder()) {
+            iv = ent;
+            boolean defined = false;
+            boolean exposed = false;
+            for (Stmt s : b.stmts()) {
+                if (! defined && countUses(s) > 0) exposed = true;
+                if (s instanceof Assign && isVar(((Assign)s).lhs(), ent)) {
+                    defined = true;
+                }
+            }
+            if (! defined && countUses(b.terminator()) > 0) exposed = true;
+            if (defined) defining.add(b);
+            if (exposed && liveIn.add(b)) work.add(b);
+        }
+        while (! work.isEmpty()) {
+            for (BasicBlock pred : work.removeFirst().predecessors()) {
+                if (! defining.contains(pred) && liveIn.add(pred)) {
+                    work.add(pred);
+                }
+            }
+        }
+        for (BasicBlock b : loop.blocks()) {
+            for (BasicBlock succ : b.successors()) {
+                if (! loop.contains(succ) && liveIn.contains(succ)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //
+    // Expressions
+    //
+
+    /** Returns true if E is Var of ENT, or Addr of ENT as an lvalue. */
+    private boolean isVar(Expr e, Entity ent) {
+        if (e instanceof Var) return ((Var)e).entity() == ent;
+        if (e instanceof Addr) return ((Addr)e).entity() == ent;
+        return false;
+    }
+
+    /** Counts uses of the induction variable in S. */
+    private int countUses(Stmt s) {
+        int n = 0;
+        for (Expr e : exprsOf(s)) {
+            n += countUses(e);
+        }
+        return n;
+    }
+
+    private int countUses(Expr e) {
+        if (e instanceof Var) return ((Var)e).entity() == iv ? 1 : 0;
+        int n = 0;
+        for (Expr x : operands(e)) {
+            n += countUses(x);
+        }
+        return n;
+    }
+
+    /** Expressions S evaluates, excluding Addr of an assigned variable. */
+    static private List<Expr> exprsOf(Stmt s) {
+        List<Expr> result = new ArrayList<Expr>();
+        if (s instanceof Assign) {
+            if (! (((Assign)s).lhs() instanceof Addr)) {
+                result.add(((Assign)s).lhs());
+            }
+            result.add(((Assign)s).rhs());
+        }
+        else if (s instanceof ExprStmt) {
+            result.add(((ExprStmt)s).expr());
+        }
+        else if (s instanceof CJump) {
+            result.add(((CJump)s).cond());
+        }
+        else if (s instanceof Switch) {
+            result.add(((Switch)s).cond());
+        }
+        else if (s instanceof Return && ((Return)s).expr() != null) {
+            result.add(((Return)s).expr());
+        }
+        return result;
+    }
+
+    static private List<Expr> operands(Expr e) {
+        List<Expr> result = new ArrayList<Expr>();
+        if (e instanceof Bin) {
+            result.add(((Bin)e).left());
+            result.add(((Bin)e).right());
+        }
+        else if (e instanceof Uni) {
+            result.add(((Uni)e).expr());
+        }
+        else if (e instanceof Mem) {
+            result.add(((Mem)e).expr());
+        }
+        else if (e instanceof Call) {
+            result.add(((Call)e).expr());
+            result.addAll(((Call)e).args());
+        }
+        return result;
+    }
+
+    private List<Object> key(Expr e) {
+        if (e instanceof Var) {
+            return Arrays.<Object>asList("var", ((Var)e).entity(), e.type());
+        }
+        if (e instanceof Int) {
+            return Arrays.<Object>asList("int", e.type(), ((Int)e).value());
+        }
+        if (e instanceof Addr) {
+            return Arrays.<Object>asList("addr", ((Addr)e).entity());
+        }
+        if (e instanceof Str) {
+            return Arrays.<Object>asList("str", ((Str)e).entry());
+        }
+        if (e instanceof Bin) {
+            Bin b = (Bin)e;
+            return Arrays.<Object>asList("bin", b.op(), b.type(),
+                    key(b.left()), key(b.right()));
+        }
+        if (e instanceof Uni) {
+            Uni u = (Uni)e;
+            return Arrays.<Object>asList("uni", u.op(), u.type(), key(u.expr()));
+        }
+        throw new Error("must not happen: key of " + e.getClass());
+    }
+}
@@ -0,0 +1,329 @@
+package net.loveruby.cflat.compiler;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Type;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Finds tail calls (-O1).
+ *
+ * A call whose result is returned at once becomes Return of the call.
+ * That is Assign of the call to a local variable, or a call statement,
+ * followed by Return of the variable, or of nothing, respectively.
+ * Jumps and copies of the result to other local variables, as left
+ * by the Inliner, may come between them.
+ * Return of a call is created only if the function takes no address
+ * of its local variables and calls neither alloca nor setjmp, so that
+ * its frame is dead at the call and may be reused by the callee.
+ *
+ * A tail call of the function itself becomes assignments of the
+ * arguments to the parameters and a jump to the entry.
+ */
+class TailCallEliminator {
+    // alloca allocates in the frame; setjmp returns to the frame.
+    static private final String[] FRAME_USERS = {
+        "alloca", "setjmp", "_setjmp", "sigsetjmp", "__sigsetjmp"
+    };
+
+    private final Type pointerType;
+
+    TailCallEliminator(Type pointerType) {
+        this.pointerType = pointerType;
+    }
+
+    public void optimize(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            if (isFrameDeadAtReturn(f)) {
+                f.setIR(eliminateTailCalls(f));
+            }
+        }
+    }
+
+    private List<Stmt> eliminateTailCalls(DefinedFunction f) {
+        List<Stmt> stmts = f.ir();
+        Map<Label, Integer> labels = new HashMap<Label, Integer>();
+        for (int i = 0; i < stmts.size(); i++) {
+            if (stmts.get(i) instanceof LabelStmt) {
+                labels.put(((LabelStmt)stmts.get(i)).label(), i);
+            }
+        }
+        List<Stmt> result = new ArrayList<Stmt>();
+        Label entry = null;
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt s = stmts.get(i);
+            Call call = tailCall(f, stmts, i, labels);
+            if (call == null) {
+                result.add(s);
+                continue;
+            }
+            // Statements up to the next label are unreachable.
+            while (i + 1 < stmts.size()
+                    && ! (stmts.get(i + 1) instanceof LabelStmt)) {
+                i++;
+            }
+            if (isSelfCall(f, call)) {
+                if (entry == null) entry = new Label();
+                f.addRemark("eliminated tail recursion", s.location());
+                result.addAll(reenter(f, call, entry, s.location()));
+            }
+            else {
+                if (call.isStaticCall()) {
+                    f.addRemark("tail call " + call.function().name(),
+                            s.location());
+                }
+                result.add(new Return(s.location(), call));
+            }
+        }
+        if (entry != null) {
+            result.add(0, new LabelStmt(null, entry));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the call of STMTS[INDEX] if it is a tail call,
+     * or null.  LABELS maps labels to their indexes.
+     */
+    private Call tailCall(DefinedFunction f, List<Stmt> stmts, int index,
+            Map<Label, Integer> labels) {
+        Stmt s = stmts.get(index);
+        Call call;
+        Entity result;      // variable holding the result, or null
+        if (s instanceof ExprStmt && ((ExprStmt)s).expr() instanceof Call) {
+            call = (Call)((ExprStmt)s).expr();
+            result = null;
+        }
+        else if (s instanceof Assign && ((Assign)s).lhs() instanceof Addr
+                && ((Assign)s).rhs() instanceof Call) {
+            call = (Call)((Assign)s).rhs();
+            result = ((Addr)((Assign)s).lhs()).entity();
+            if (! isLocal(f, result)) return null;
+        }
+        else {
+            return null;
+        }
+        Set<Integer> visited = new HashSet<Integer>();
+        int i = index + 1;
+        while (visited.add(i)) {
+            if (i == stmts.size()) {
+                return (result == null && f.isVoid()) ? call : null;
+            }
+            Stmt next = stmts.get(i);
+            if (next instanceof LabelStmt) {
+                i++;
+            }
+            else if (next instanceof Jump) {
+                i = labels.get(((Jump)next).label());
+            }
+            else if (next instanceof Assign && result != null
+                    && isCopy((Assign)next, result, call.type())
+                    && isLocal(f, ((Addr)((Assign)next).lhs()).entity())) {
+                result = ((Addr)((Assign)next).lhs()).entity();
+                i++;
+            }
+            else if (next instanceof Return) {
+                Expr ret = ((Return)next).expr();
+                if (result == null) {
+                    return ret == null ? call : null;
+                }
+                return isVarOf(ret, result) && ret.type() == call.type()
+                        ? call : null;
+            }
+            else {
+                return null;
+            }
+        }
+        return null;    // infinite loop
+    }
+
+    /** Returns true if S assigns variable ENT of type T to a variable. */
+    private boolean isCopy(Assign s, Entity ent, Type t) {
+        return s.lhs() instanceof Addr
+                && isVarOf(s.rhs(), ent) && s.rhs().type() == t;
+    }
+
+    private boolean isSelfCall(DefinedFunction f, Call call) {
+        return call.isStaticCall() && call.function() == f
+                && ! f.isVararg()
+                && call.args().size() == f.parameters().size();
+    }
+
+    /**
+     * Returns statements which assign the arguments of CALL to the
+     * parameters of F and jump to ENTRY.  An argument refering to
+     * a parameter assigned before it is saved to a temporary first.
+     */
+    private List<Stmt> reenter(DefinedFunction f, Call call,
+            Label entry, Location loc) {
+        List<Stmt> result = new ArrayList<Stmt>();
+        List<Expr> values = new ArrayList<Expr>();
+        Set<Entity> assigned = new HashSet<Entity>();
+        for (int i = 0; i < call.args().size(); i++) {
+            CBCParameter param = f.parameters().get(i);
+            Expr arg = call.args().get(i);
+            if (refersTo(arg, assigned)) {
+                DefinedVariable tmp = f.lvarScope().allocateTmp(param.type());
+                result.add(new Assign(loc,
+                        new Addr(pointerType, tmp), arg));
+                arg = new Var(arg.type(), tmp);
+            }
+            values.add(arg);
+            if (! isVarOf(arg, param)) {
+                assigned.add(param);
+            }
+        }
+        for (int i = 0; i < values.size(); i++) {
+            CBCParameter param = f.parameters().get(i);
+            if (isVarOf(values.get(i), param)) continue;
+            result.add(new Assign(loc,
+                    new Addr(pointerType, param), values.get(i)));
+        }
+        result.add(new Jump(loc, entry));
+        return result;
+    }
+
+    private boolean isVarOf(Expr e, Entity ent) {
+        return e instanceof Var && ((Var)e).entity() == ent;
+    }
+
+    private boolean refersTo(Expr e, Set<Entity> ents) {
+        if (e instanceof Var) return ents.contains(((Var)e).entity());
+        if (e instanceof Addr) return ents.contains(((Addr)e).entity());
+        if (e instanceof Bin) {
+            return refersTo(((Bin)e).left(), ents)
+                    || refersTo(((Bin)e).right(), ents);
+        }
+        if (e instanceof Uni) return refersTo(((Uni)e).expr(), ents);
+        if (e instanceof Mem) return refersTo(((Mem)e).expr(), ents);
+        if (e instanceof Call) {
+            Call c = (Call)e;
+            if (refersTo(c.expr(), ents)) return true;
+            for (Expr arg : c.args()) {
+                if (refersTo(arg, ents)) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isLocal(DefinedFunction f, Entity ent) {
+        return f.parameters().contains(ent)
+                || f.lvarScope().allLocalVariables().contains(ent);
+    }
+
+    /**
+     * Returns true if nothing refers to the frame of F after it
+     * returns: no local variable has its address taken, except to
+     * be assigned, and no function using the frame is called.
+     */
+    private boolean isFrameDeadAtReturn(DefinedFunction f) {
+        FrameScanner s = new FrameScanner();
+        for (Stmt stmt : f.ir()) {
+            stmt.accept(s);
+        }
+        for (Function func : s.functions) {
+            if (Arrays.asList(FRAME_USERS).contains(func.name())) {
+                return false;
+            }
+        }
+        for (Entity ent : s.addressTaken) {
+            if (isLocal(f, ent)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Collects entities whose address is taken, other than as the
+     * destination of Assign, and functions refered.
+     */
+    static private class FrameScanner implements IRVisitor<Void, Void> {
+        final Set<Entity> addressTaken = new HashSet<Entity>();
+        final Set<Function> functions = new HashSet<Function>();
+
+        private void refer(Entity ent) {
+            if (ent instanceof Function) {
+                functions.add((Function)ent);
+            }
+        }
+
+        public Void visit(ExprStmt s) {
+            s.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Assign s) {
+            if (! (s.lhs() instanceof Addr)) {
+                s.lhs().accept(this);
+            }
+            s.rhs().accept(this);
+            return null;
+        }
+
+        public Void visit(CJump s) {
+            s.cond().accept(this);
+            return null;
+        }
+
+        public Void visit(Jump s) {
+            return null;
+        }
+
+        public Void visit(Switch s) {
+            s.cond().accept(this);
+            return null;
+        }
+
+        public Void visit(LabelStmt s) {
+            return null;
+        }
+
+        public Void visit(Return s) {
+            if (s.expr() != null) s.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Uni node) {
+            node.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Bin node) {
+            node.left().accept(this);
+            node.right().accept(this);
+            return null;
+        }
+
+        public Void visit(Call node) {
+            node.expr().accept(this);
+            for (Expr arg : node.args()) {
+                arg.accept(this);
+            }
+            return null;
+        }
+
+        public Void visit(Addr node) {
+            addressTaken.add(node.entity());
+            refer(node.entity());
+            return null;
+        }
+
+        public Void visit(Mem node) {
+            node.expr().accept(this);
+            return null;
+        }
+
+        public Void visit(Var node) {
+            refer(node.entity());
+            return null;
+        }
+
+        public Void visit(Int node) {
+            return null;
+        }
+
+        public Void visit(Str node) {
+            return null;
+        }
+    }
+}
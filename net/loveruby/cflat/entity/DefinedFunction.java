@@ -2,16 +2,19 @@ package net.loveruby.cflat.entity;
 import net.loveruby.cflat.type.Type;
 import net.loveruby.cflat.ast.TypeNode;
 import net.loveruby.cflat.ast.BlockNode;
+import net.loveruby.cflat.ast.Location;
 import net.loveruby.cflat.ir.Stmt;
 import net.loveruby.cflat.asm.Label;
 import net.loveruby.cflat.exception.*;
 import java.util.List;
+import java.util.ArrayList;
 
 public class DefinedFunction extends Function {
     protected Params params;
     protected BlockNode body;
     protected LocalScope scope;
     protected List<Stmt> ir;
+    protected List<String> remarks = new ArrayList<String>();
 
     public DefinedFunction(boolean priv, TypeNode type,
             String name, Params params, BlockNode body) {
@@ -28,6 +31,10 @@ public class DefinedFunction extends Function {
         return params.parameters();
     }
 
+    public boolean isVararg() {
+        return params.isVararg();
+    }
+
     public BlockNode body() {
         return body;
     }
@@ -40,6 +47,16 @@ public class DefinedFunction extends Function {
         this.ir = ir;
     }
 
+    /** Remarks of optimizers, printed in verbose assembly. */
+    public List<String> remarks() {
+        return remarks;
+    }
+
+    /** Adds a remark about the code at LOC, which may be null. */
+    public void addRemark(String msg, Location loc) {
+        remarks.add(loc == null ? msg : msg + " at " + loc);
+    }
+
     public void setScope(LocalScope scope) {
         this.scope = scope;
     }
@@ -5,6 +5,7 @@ import net.loveruby.cflat.ast.ExprNode;
 import net.loveruby.cflat.ir.Expr;
 import net.loveruby.cflat.asm.Symbol;
 import net.loveruby.cflat.asm.NamedSymbol;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DefinedVariable extends Variable {
     protected ExprNode initializer;
@@ -19,11 +20,12 @@ public class DefinedVariable extends Variable {
         sequence = -1;
     }
 
-    static private long tmpSeq = 0;
+    // shared by parallel build workers
+    static private final AtomicLong tmpSeq = new AtomicLong();
 
     static public DefinedVariable tmp(Type t) {
         return new DefinedVariable(false,
-                new TypeNode(t), "@tmp" + tmpSeq++, null);
+                new TypeNode(t), "@tmp" + tmpSeq.getAndIncrement(), null);
     }
 
     public boolean isDefined() {
@@ -104,4 +104,47 @@ public enum Op {
             throw new Error("unknown unary op: " + op);
         }
     }
+
+    public boolean isComparison() {
+        return negated() != null;
+    }
+
+    /** Returns the op of the same result for swapped operands, or null. */
+    public Op swapped() {
+        switch (this) {
+        case ADD:
+        case MUL:
+        case BIT_AND:
+        case BIT_OR:
+        case BIT_XOR:
+        case EQ:
+        case NEQ:       return this;
+        case S_GT:      return S_LT;
+        case S_GTEQ:    return S_LTEQ;
+        case S_LT:      return S_GT;
+        case S_LTEQ:    return S_GTEQ;
+        case U_GT:      return U_LT;
+        case U_GTEQ:    return U_LTEQ;
+        case U_LT:      return U_GT;
+        case U_LTEQ:    return U_GTEQ;
+        default:        return null;
+        }
+    }
+
+    /** Returns the comparison of the opposite result, or null. */
+    public Op negated() {
+        switch (this) {
+        case EQ:        return NEQ;
+        case NEQ:       return EQ;
+        case S_GT:      return S_LTEQ;
+        case S_GTEQ:    return S_LT;
+        case S_LT:      return S_GTEQ;
+        case S_LTEQ:    return S_GT;
+        case U_GT:      return U_LTEQ;
+        case U_GTEQ:    return U_LT;
+        case U_LT:      return U_GTEQ;
+        case U_LTEQ:    return U_GT;
+        default:        return null;
+        }
+    }
 }
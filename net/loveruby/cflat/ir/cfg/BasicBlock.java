@@ -0,0 +1,93 @@
+package net.loveruby.cflat.ir.cfg;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * A basic block: labels, straight-line statements, and one
+ * terminator (Jump, CJump, Switch or Return) which is the only
+ * branch of the block.  Falling through to the next block is
+ * represented by an explicit Jump.
+ */
+public class BasicBlock {
+    private final List<Label> labels = new ArrayList<Label>();
+    private final List<Stmt> stmts = new ArrayList<Stmt>();
+    private Stmt terminator;
+    final List<BasicBlock> successors = new ArrayList<BasicBlock>();
+    final List<BasicBlock> predecessors = new ArrayList<BasicBlock>();
+    Location location;
+
+    BasicBlock(Location loc) {
+        this.location = loc;
+    }
+
+    /** Labels of this block; the first one is the primary label. */
+    public List<Label> labels() {
+        return labels;
+    }
+
+    /** Returns the primary label, or null if the block has no label. */
+    public Label label() {
+        return labels.isEmpty() ? null : labels.get(0);
+    }
+
+    /** Statements except labels and the terminator. */
+    public List<Stmt> stmts() {
+        return stmts;
+    }
+
+    public Stmt terminator() {
+        return terminator;
+    }
+
+    public void setTerminator(Stmt stmt) {
+        this.terminator = stmt;
+    }
+
+    /** Returns true if this block has no statement but the terminator. */
+    public boolean isEmpty() {
+        return stmts.isEmpty();
+    }
+
+    /** Successors in the order of the targets of the terminator. */
+    public List<BasicBlock> successors() {
+        return successors;
+    }
+
+    public List<BasicBlock> predecessors() {
+        return predecessors;
+    }
+
+    public Location location() {
+        return location;
+    }
+
+    /** Returns the targets of the terminator. */
+    public List<Label> targets() {
+        return targetsOf(terminator);
+    }
+
+    static List<Label> targetsOf(Stmt s) {
+        List<Label> result = new ArrayList<Label>();
+        if (s instanceof Jump) {
+            result.add(((Jump)s).label());
+        }
+        else if (s instanceof CJump) {
+            result.add(((CJump)s).thenLabel());
+            result.add(((CJump)s).elseLabel());
+        }
+        else if (s instanceof Switch) {
+            for (Case c : ((Switch)s).cases()) {
+                result.add(c.label);
+            }
+            result.add(((Switch)s).defaultLabel());
+        }
+        return result;
+    }
+
+    static boolean isTerminator(Stmt s) {
+        return (s instanceof Jump) || (s instanceof CJump)
+                || (s instanceof Switch) || (s instanceof Return);
+    }
+}
@@ -0,0 +1,148 @@
+package net.loveruby.cflat.ir.cfg;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.entity.DefinedFunction;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Simplifies the control flow of functions (-O1):
+ *
+ *   - jumps to an empty block which only jumps are threaded to
+ *     the final destination
+ *   - CJump on a constant, or to the same label twice, becomes Jump
+ *   - blocks unreachable from the entry are removed
+ *   - a block with a single predecessor which jumps to it is merged
+ *     into the predecessor
+ *   - unused labels and jumps to the next block are dropped
+ *
+ * Repeats until nothing changes.
+ */
+public class CFGSimplifier {
+    public void simplify(IR ir) {
+        for (DefinedFunction f : ir.definedFunctions()) {
+            f.setIR(simplify(f.ir()));
+        }
+    }
+
+    public List<Stmt> simplify(List<Stmt> stmts) {
+        ControlFlowGraph g = ControlFlowGraph.build(stmts);
+        boolean changed = true;
+        while (changed) {
+            changed = simplifyBranches(g);
+            changed |= threadJumps(g);
+            if (changed) g.computeEdges();
+            changed |= g.removeUnreachableBlocks();
+            changed |= mergeBlocks(g);
+        }
+        return g.toStmts();
+    }
+
+    private boolean simplifyBranches(ControlFlowGraph g) {
+        boolean changed = false;
+        for (BasicBlock b : g.blocks()) {
+            if (! (b.terminator() instanceof CJump)) continue;
+            CJump s = (CJump)b.terminator();
+            Label dest = null;
+            if (s.cond() instanceof Int) {
+                dest = ((Int)s.cond()).value() != 0
+                        ? s.thenLabel() : s.elseLabel();
+            }
+            else if (s.thenLabel() == s.elseLabel()
+                    && ! hasSideEffect(s.cond())) {
+                dest = s.thenLabel();
+            }
+            if (dest != null) {
+                b.setTerminator(new Jump(s.location(), dest));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean hasSideEffect(Expr e) {
+        if (e instanceof Call) return true;
+        if (e instanceof Bin) {
+            return hasSideEffect(((Bin)e).left())
+                    || hasSideEffect(((Bin)e).right());
+        }
+        if (e instanceof Uni) return hasSideEffect(((Uni)e).expr());
+        if (e instanceof Mem) return hasSideEffect(((Mem)e).expr());
+        return false;
+    }
+
+    private boolean threadJumps(ControlFlowGraph g) {
+        boolean changed = false;
+        for (BasicBlock b : g.blocks()) {
+            Stmt t = b.terminator();
+            if (t instanceof Jump) {
+                Jump s = (Jump)t;
+                Label dest = finalDestination(g, s.label());
+                if (dest != s.label()) {
+                    b.setTerminator(new Jump(s.location(), dest));
+                    changed = true;
+                }
+            }
+            else if (t instanceof CJump) {
+                CJump s = (CJump)t;
+                Label thenLabel = finalDestination(g, s.thenLabel());
+                Label elseLabel = finalDestination(g, s.elseLabel());
+                if (thenLabel != s.thenLabel() || elseLabel != s.elseLabel()) {
+                    b.setTerminator(new CJump(s.location(), s.cond(),
+                            thenLabel, elseLabel));
+                    changed = true;
+                }
+            }
+            else if (t instanceof Switch) {
+                Switch s = (Switch)t;
+                boolean threaded = false;
+                List<Case> cases = new ArrayList<Case>();
+                for (Case c : s.cases()) {
+                    Label dest = finalDestination(g, c.label);
+                    if (dest != c.label) threaded = true;
+                    cases.add(new Case(c.value, dest));
+                }
+                Label defaultLabel = finalDestination(g, s.defaultLabel());
+                if (threaded || defaultLabel != s.defaultLabel()) {
+                    b.setTerminator(new Switch(s.location(), s.cond(),
+                            cases, defaultLabel, s.endLabel()));
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Follows empty blocks ending with Jump from LABEL, and returns
+     * the label of the first non-empty block.  Stops at cycles.
+     */
+    private Label finalDestination(ControlFlowGraph g, Label label) {
+        Set<BasicBlock> visited = new HashSet<BasicBlock>();
+        Label dest = label;
+        while (true) {
+            BasicBlock b = g.blockOf(dest);
+            if (! b.isEmpty() || ! (b.terminator() instanceof Jump)) break;
+            if (! visited.add(b)) break;
+            Label next = ((Jump)b.terminator()).label();
+            if (g.blockOf(next) == b) break;
+            dest = next;
+        }
+        return dest;
+    }
+
+    private boolean mergeBlocks(ControlFlowGraph g) {
+        boolean changed = false;
+        for (int i = 0; i < g.blocks().size(); i++) {
+            BasicBlock a = g.blocks().get(i);
+            while (a.terminator() instanceof Jump) {
+                BasicBlock b = a.successors().get(0);
+                if (b == a || b == g.entry()) break;
+                if (b.predecessors().size() != 1) break;
+                if (g.blocks().indexOf(b) < i) i--;
+                g.merge(a, b);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,244 @@
+package net.loveruby.cflat.ir.cfg;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ast.Location;
+import net.loveruby.cflat.asm.Label;
+import java.util.*;
+
+/**
+ * Control flow graph of a function body.
+ *
+ * Blocks are kept in the layout order of the IR; the first block is
+ * the entry.  A block which falls off the end of the function ends
+ * with Return(null).  #toStmts writes the blocks back as IR,
+ * omitting jumps to the next block and unused labels.
+ */
+public class ControlFlowGraph {
+    private final List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+    private final Map<Label, BasicBlock> blockMap =
+            new HashMap<Label, BasicBlock>();
+
+    static public ControlFlowGraph build(List<Stmt> stmts) {
+        ControlFlowGraph g = new ControlFlowGraph();
+        g.split(stmts);
+        g.computeEdges();
+        return g;
+    }
+
+    private void split(List<Stmt> stmts) {
+        BasicBlock block = null;
+        Location loc = null;
+        for (Stmt s : stmts) {
+            if (s.location() != null) loc = s.location();
+            if (s instanceof LabelStmt) {
+                Label label = ((LabelStmt)s).label();
+                if (block == null || ! block.isEmpty()) {
+                    BasicBlock next = new BasicBlock(loc);
+                    if (block != null) {
+                        block.setTerminator(new Jump(loc, label));
+                        blocks.add(block);
+                    }
+                    block = next;
+                }
+                block.labels().add(label);
+                blockMap.put(label, block);
+            }
+            else {
+                if (block == null) {
+                    block = new BasicBlock(loc);
+                }
+                if (BasicBlock.isTerminator(s)) {
+                    block.setTerminator(s);
+                    blocks.add(block);
+                    block = null;
+                }
+                else {
+                    block.stmts().add(s);
+                }
+            }
+        }
+        if (block != null || blocks.isEmpty()) {
+            if (block == null) block = new BasicBlock(loc);
+            block.setTerminator(new Return(loc, null));
+            blocks.add(block);
+        }
+    }
+
+    /** Blocks in the layout order. */
+    public List<BasicBlock> blocks() {
+        return blocks;
+    }
+
+    public BasicBlock entry() {
+        return blocks.get(0);
+    }
+
+    /** Returns the block labeled LABEL. */
+    public BasicBlock blockOf(Label label) {
+        BasicBlock b = blockMap.get(label);
+        if (b == null) {
+            throw new Error("no block for label: " + label);
+        }
+        return b;
+    }
+
+    /** Recomputes successors and predecessors from terminators. */
+    public void computeEdges() {
+        for (BasicBlock b : blocks) {
+            b.successors.clear();
+            b.predecessors.clear();
+        }
+        for (BasicBlock b : blocks) {
+            for (Label target : b.targets()) {
+                BasicBlock succ = blockOf(target);
+                b.successors.add(succ);
+                succ.predecessors.add(b);
+            }
+        }
+    }
+
+    /** Removes blocks which are not reachable from the entry. */
+    public boolean removeUnreachableBlocks() {
+        Set<BasicBlock> reached = new HashSet<BasicBlock>();
+        LinkedList<BasicBlock> queue = new LinkedList<BasicBlock>();
+        queue.add(entry());
+        reached.add(entry());
+        while (! queue.isEmpty()) {
+            for (BasicBlock succ : queue.removeFirst().successors) {
+                if (reached.add(succ)) queue.add(succ);
+            }
+        }
+        if (reached.size() == blocks.size()) return false;
+        Iterator<BasicBlock> it = blocks.iterator();
+        while (it.hasNext()) {
+            BasicBlock b = it.next();
+            if (! reached.contains(b)) {
+                it.remove();
+                for (Label label : b.labels()) {
+                    blockMap.remove(label);
+                }
+            }
+        }
+        computeEdges();
+        return true;
+    }
+
+    /**
+     * Appends block B to block A, which must be the only predecessor
+     * of B and jump to B, and removes B.
+     */
+    void merge(BasicBlock a, BasicBlock b) {
+        a.stmts().addAll(b.stmts());
+        a.setTerminator(b.terminator());
+        a.successors.clear();
+        a.successors.addAll(b.successors);
+        for (BasicBlock succ : b.successors) {
+            Collections.replaceAll(succ.predecessors, b, a);
+        }
+        blocks.remove(b);
+        for (Label label : b.labels()) {
+            blockMap.remove(label);
+        }
+    }
+
+    /**
+     * Returns the preheader of LOOP, inserting an empty block before
+     * the header if LOOP has none.  Entries of LOOP are redirected
+     * to the new block, which jumps to the header.
+     */
+    public BasicBlock preheader(Loop loop) {
+        BasicBlock b = loop.preheader();
+        if (b != null) return b;
+        BasicBlock header = loop.header();
+        Label label = new Label();
+        BasicBlock pre = new BasicBlock(header.location());
+        pre.labels().add(label);
+        pre.setTerminator(new Jump(header.location(), header.label()));
+        blockMap.put(label, pre);
+        Set<Label> headerLabels = new HashSet<Label>(header.labels());
+        for (BasicBlock entry : loop.entries()) {
+            entry.setTerminator(retarget(entry.terminator(),
+                    headerLabels, label));
+        }
+        blocks.add(blocks.indexOf(header), pre);
+        computeEdges();
+        return pre;
+    }
+
+    /**
+     * Inserts a new block with a new label at INDEX of the layout
+     * order.  The caller sets its terminator and calls #computeEdges.
+     */
+    public BasicBlock insertBlock(int index, Location loc) {
+        BasicBlock b = new BasicBlock(loc);
+        Label label = new Label();
+        b.labels().add(label);
+        blockMap.put(label, b);
+        blocks.add(index, b);
+        return b;
+    }
+
+    /** Moves block B to INDEX of the layout order. */
+    public void moveBlock(BasicBlock b, int index) {
+        int from = blocks.indexOf(b);
+        blocks.remove(from);
+        blocks.add(from < index ? index - 1 : index, b);
+    }
+
+    /** Returns T whose targets in FROM are replaced by TO. */
+    static public Stmt retarget(Stmt t, Set<Label> from, Label to) {
+        if (t instanceof Jump) {
+            Jump s = (Jump)t;
+            return new Jump(s.location(), retarget(s.label(), from, to));
+        }
+        else if (t instanceof CJump) {
+            CJump s = (CJump)t;
+            return new CJump(s.location(), s.cond(),
+                    retarget(s.thenLabel(), from, to),
+                    retarget(s.elseLabel(), from, to));
+        }
+        else if (t instanceof Switch) {
+            Switch s = (Switch)t;
+            List<Case> cases = new ArrayList<Case>();
+            for (Case c : s.cases()) {
+                cases.add(new Case(c.value, retarget(c.label, from, to)));
+            }
+            return new Switch(s.location(), s.cond(), cases,
+                    retarget(s.defaultLabel(), from, to), s.endLabel());
+        }
+        else {
+            return t;
+        }
+    }
+
+    static private Label retarget(Label label, Set<Label> from, Label to) {
+        return from.contains(label) ? to : label;
+    }
+
+    public List<Stmt> toStmts() {
+        Set<Label> used = new HashSet<Label>();
+        for (BasicBlock b : blocks) {
+            used.addAll(b.targets());
+        }
+        List<Stmt> result = new ArrayList<Stmt>();
+        for (int i = 0; i < blocks.size(); i++) {
+            BasicBlock b = blocks.get(i);
+            for (Label label : b.labels()) {
+                if (used.contains(label)) {
+                    result.add(new LabelStmt(b.location(), label));
+                }
+            }
+            result.addAll(b.stmts());
+            Stmt t = b.terminator();
+            if (t instanceof Jump && i + 1 < blocks.size()
+                    && blocks.get(i + 1).labels().contains(((Jump)t).label())) {
+                continue;   // falls through
+            }
+            if (t instanceof Return && ((Return)t).expr() == null
+                    && i + 1 == blocks.size()) {
+                continue;   // falls off the end
+            }
+            result.add(t);
+        }
+        return result;
+    }
+}
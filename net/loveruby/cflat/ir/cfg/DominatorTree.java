@@ -0,0 +1,127 @@
+package net.loveruby.cflat.ir.cfg;
+import java.util.*;
+
+/**
+ * Dominator tree and dominance frontiers of a control flow graph,
+ * computed by the iterative algorithm of Cooper, Harvey and Kennedy.
+ * All blocks must be reachable from the entry.
+ */
+public class DominatorTree {
+    private final List<BasicBlock> order = new ArrayList<BasicBlock>();
+    private final Map<BasicBlock, Integer> number =
+            new HashMap<BasicBlock, Integer>();
+    private final Map<BasicBlock, BasicBlock> idom =
+            new HashMap<BasicBlock, BasicBlock>();
+    private final Map<BasicBlock, List<BasicBlock>> children =
+            new HashMap<BasicBlock, List<BasicBlock>>();
+    private final Map<BasicBlock, Set<BasicBlock>> frontiers =
+            new HashMap<BasicBlock, Set<BasicBlock>>();
+
+    public DominatorTree(ControlFlowGraph g) {
+        computeOrder(g.entry());
+        computeDominators(g.entry());
+        computeFrontiers();
+    }
+
+    /** Blocks in reverse postorder; dominators come first. */
+    public List<BasicBlock> reversePostorder() {
+        return order;
+    }
+
+    /** Returns the immediate dominator of B, or null for the entry. */
+    public BasicBlock idom(BasicBlock b) {
+        BasicBlock d = idom.get(b);
+        return d == b ? null : d;
+    }
+
+    /** Blocks immediately dominated by B. */
+    public List<BasicBlock> children(BasicBlock b) {
+        return children.get(b);
+    }
+
+    public Set<BasicBlock> frontier(BasicBlock b) {
+        return frontiers.get(b);
+    }
+
+    /** Returns true if A dominates B. */
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        for (BasicBlock x = b; x != null; x = idom(x)) {
+            if (x == a) return true;
+        }
+        return false;
+    }
+
+    private void computeOrder(BasicBlock entry) {
+        // Iterative DFS; a block is appended when all of its
+        // successors are done.
+        Set<BasicBlock> visited = new HashSet<BasicBlock>();
+        LinkedList<BasicBlock> stack = new LinkedList<BasicBlock>();
+        LinkedList<Iterator<BasicBlock>> iters =
+                new LinkedList<Iterator<BasicBlock>>();
+        visited.add(entry);
+        stack.addFirst(entry);
+        iters.addFirst(entry.successors().iterator());
+        while (! stack.isEmpty()) {
+            Iterator<BasicBlock> it = iters.getFirst();
+            if (it.hasNext()) {
+                BasicBlock succ = it.next();
+                if (visited.add(succ)) {
+                    stack.addFirst(succ);
+                    iters.addFirst(succ.successors().iterator());
+                }
+            }
+            else {
+                order.add(stack.removeFirst());
+                iters.removeFirst();
+            }
+        }
+        Collections.reverse(order);
+        for (int i = 0; i < order.size(); i++) {
+            number.put(order.get(i), i);
+            children.put(order.get(i), new ArrayList<BasicBlock>());
+            frontiers.put(order.get(i), new LinkedHashSet<BasicBlock>());
+        }
+    }
+
+    private void computeDominators(BasicBlock entry) {
+        idom.put(entry, entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : order) {
+                if (b == entry) continue;
+                BasicBlock d = null;
+                for (BasicBlock pred : b.predecessors()) {
+                    if (idom.get(pred) == null) continue;
+                    d = (d == null) ? pred : intersect(pred, d);
+                }
+                if (d != idom.get(b)) {
+                    idom.put(b, d);
+                    changed = true;
+                }
+            }
+        }
+        for (BasicBlock b : order) {
+            if (b != entry) children.get(idom.get(b)).add(b);
+        }
+    }
+
+    private BasicBlock intersect(BasicBlock a, BasicBlock b) {
+        while (a != b) {
+            while (number.get(a) > number.get(b)) a = idom.get(a);
+            while (number.get(b) > number.get(a)) b = idom.get(b);
+        }
+        return a;
+    }
+
+    private void computeFrontiers() {
+        for (BasicBlock b : order) {
+            if (new HashSet<BasicBlock>(b.predecessors()).size() < 2) continue;
+            for (BasicBlock pred : b.predecessors()) {
+                for (BasicBlock x = pred; x != idom.get(b); x = idom.get(x)) {
+                    frontiers.get(x).add(b);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.loveruby.cflat.ir.cfg;
+import java.util.*;
+
+/**
+ * A natural loop: the header, which dominates all blocks of the
+ * loop, and blocks which reach a back edge to the header without
+ * passing the header.  Loops sharing a header are one loop.
+ */
+public class Loop {
+    private final BasicBlock header;
+    private final Set<BasicBlock> blocks = new LinkedHashSet<BasicBlock>();
+    private final List<BasicBlock> latches = new ArrayList<BasicBlock>();
+
+    private Loop(BasicBlock header) {
+        this.header = header;
+    }
+
+    /**
+     * Finds natural loops of G, inner loops first.  Back edges of
+     * irreducible regions are not loops.
+     */
+    static public List<Loop> findLoops(ControlFlowGraph g, DominatorTree dom) {
+        Map<BasicBlock, Loop> loops = new LinkedHashMap<BasicBlock, Loop>();
+        for (BasicBlock b : g.blocks()) {
+            for (BasicBlock succ : b.successors()) {
+                if (! dom.dominates(succ, b)) continue;
+                Loop loop = loops.get(succ);
+                if (loop == null) {
+                    loop = new Loop(succ);
+                    loops.put(succ, loop);
+                }
+                if (! loop.latches.contains(b)) {
+                    loop.latches.add(b);
+                }
+            }
+        }
+        List<Loop> result = new ArrayList<Loop>(loops.values());
+        for (Loop loop : result) {
+            loop.collectBlocks(g);
+        }
+        // An inner loop is a proper subset of outer ones.
+        Collections.sort(result, new Comparator<Loop>() {
+            public int compare(Loop x, Loop y) {
+                return Integer.compare(x.blocks.size(), y.blocks.size());
+            }
+        });
+        return result;
+    }
+
+    private void collectBlocks(ControlFlowGraph g) {
+        Set<BasicBlock> body = new HashSet<BasicBlock>();
+        body.add(header);
+        LinkedList<BasicBlock> work = new LinkedList<BasicBlock>();
+        for (BasicBlock latch : latches) {
+            if (body.add(latch)) work.add(latch);
+        }
+        while (! work.isEmpty()) {
+            for (BasicBlock pred : work.removeFirst().predecessors()) {
+                if (body.add(pred)) work.add(pred);
+            }
+        }
+        // Keeps the layout order.
+        for (BasicBlock b : g.blocks()) {
+            if (body.contains(b)) blocks.add(b);
+        }
+    }
+
+    public BasicBlock header() {
+        return header;
+    }
+
+    /** Blocks of the loop in the layout order. */
+    public Set<BasicBlock> blocks() {
+        return blocks;
+    }
+
+    public boolean contains(BasicBlock b) {
+        return blocks.contains(b);
+    }
+
+    /** Blocks which jump back to the header. */
+    public List<BasicBlock> latches() {
+        return latches;
+    }
+
+    /** Blocks of the loop which may leave the loop. */
+    public List<BasicBlock> exitingBlocks() {
+        List<BasicBlock> result = new ArrayList<BasicBlock>();
+        for (BasicBlock b : blocks) {
+            if (b.terminator() instanceof net.loveruby.cflat.ir.Return) {
+                result.add(b);
+                continue;
+            }
+            for (BasicBlock succ : b.successors()) {
+                if (! blocks.contains(succ)) {
+                    result.add(b);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Predecessors of the header out of the loop. */
+    public List<BasicBlock> entries() {
+        List<BasicBlock> result = new ArrayList<BasicBlock>();
+        for (BasicBlock pred : header.predecessors()) {
+            if (! blocks.contains(pred) && ! result.contains(pred)) {
+                result.add(pred);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the only entry of the loop if it jumps to the header
+     * and nowhere else, or null.
+     */
+    public BasicBlock preheader() {
+        List<BasicBlock> entries = entries();
+        if (entries.size() != 1) return null;
+        BasicBlock b = entries.get(0);
+        if (b.successors().size() != 1) return null;
+        return b;
+    }
+}
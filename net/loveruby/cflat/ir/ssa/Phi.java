@@ -0,0 +1,37 @@
+package net.loveruby.cflat.ir.ssa;
+import net.loveruby.cflat.ir.cfg.BasicBlock;
+import java.util.*;
+
+/**
+ * A phi function at the head of a block: its value is the operand
+ * of the predecessor the control came from.
+ */
+public class Phi {
+    private final BasicBlock block;
+    private final Value value;
+    private final Map<BasicBlock, Value> operands =
+            new LinkedHashMap<BasicBlock, Value>();
+
+    Phi(BasicBlock block, Value value) {
+        this.block = block;
+        this.value = value;
+        value.phi = this;
+    }
+
+    public BasicBlock block() {
+        return block;
+    }
+
+    public Value value() {
+        return value;
+    }
+
+    /** Operands by predecessor block. */
+    public Map<BasicBlock, Value> operands() {
+        return operands;
+    }
+
+    public String toString() {
+        return value + " = phi" + operands.values();
+    }
+}
@@ -0,0 +1,393 @@
+package net.loveruby.cflat.ir.ssa;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.ir.cfg.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+
+/**
+ * SSA form of a function body over its control flow graph.
+ *
+ * Only promoted variables are renamed: scalar parameters and local
+ * variables of the natural size whose address is not taken, that is,
+ * which appear in Addr only as the destination of Assign (mem2reg).
+ * Other variables, and memory, stay as they are.
+ *
+ * Statements are rebuilt with a fresh Var node for each use of a
+ * promoted variable, and #valueOf maps it to its SSA name.  Phis are
+ * placed on the iterated dominance frontiers of the definitions of
+ * variables live across blocks (semi-pruned SSA), and are kept in
+ * this object rather than in the IR.
+ *
+ * Since all versions of a variable still live in the variable, the
+ * statements are plain IR at any time.  As long as no version is
+ * moved over another definition of its variable, versions never
+ * interfere, and #toStmts converts back out of SSA by just dropping
+ * phis.
+ */
+public class SSAForm {
+    private final ControlFlowGraph graph;
+    private final DominatorTree domTree;
+    private final Set<Entity> promoted;
+    private final Map<BasicBlock, List<Phi>> phis =
+            new HashMap<BasicBlock, List<Phi>>();
+    private final Map<Var, Value> uses = new IdentityHashMap<Var, Value>();
+    private final Map<Assign, Value> defs =
+            new IdentityHashMap<Assign, Value>();
+    private final List<Value> values = new ArrayList<Value>();
+    private final Map<Entity, Integer> versions = new HashMap<Entity, Integer>();
+    private final Map<Entity, LinkedList<Value>> stacks =
+            new HashMap<Entity, LinkedList<Value>>();
+
+    /**
+     * Builds SSA form of G, whose entry must have no predecessor
+     * and whose blocks must all be reachable.  Statements of G
+     * are replaced.
+     */
+    static public SSAForm build(ControlFlowGraph g, Set<Entity> promoted) {
+        SSAForm ssa = new SSAForm(g, promoted);
+        ssa.placePhis();
+        ssa.rename(g.entry());
+        return ssa;
+    }
+
+    /**
+     * Returns variables of F which can be promoted, F's IR being
+     * the blocks of G.
+     */
+    static public Set<Entity> promotableVariables(DefinedFunction f,
+            ControlFlowGraph g, Type naturalType) {
+        Set<Entity> result = new LinkedHashSet<Entity>();
+        for (CBCParameter param : f.parameters()) {
+            if (isScalar(param, naturalType)) result.add(param);
+        }
+        for (DefinedVariable var : f.localVariables()) {
+            if (isScalar(var, naturalType)) result.add(var);
+        }
+        result.removeAll(addressTakenVariables(g));
+        return result;
+    }
+
+    /**
+     * Returns entities which appear in Addr other than as the
+     * destination of Assign in the blocks of G.
+     */
+    static public Set<Entity> addressTakenVariables(ControlFlowGraph g) {
+        Set<Entity> result = new HashSet<Entity>();
+        for (BasicBlock b : g.blocks()) {
+            for (Stmt s : b.stmts()) {
+                if (s instanceof Assign) {
+                    Assign a = (Assign)s;
+                    if (! (a.lhs() instanceof Addr)) {
+                        collectAddressTaken(a.lhs(), result);
+                    }
+                    collectAddressTaken(a.rhs(), result);
+                }
+                else if (s instanceof ExprStmt) {
+                    collectAddressTaken(((ExprStmt)s).expr(), result);
+                }
+            }
+            collectAddressTaken(condition(b.terminator()), result);
+        }
+        return result;
+    }
+
+    static private boolean isScalar(Entity ent, Type naturalType) {
+        return ent.type().isScalar()
+                && ent.type().size() == naturalType.size();
+    }
+
+    static private void collectAddressTaken(Expr e, Set<Entity> vars) {
+        if (e == null) return;
+        if (e instanceof Addr) {
+            vars.add(((Addr)e).entity());
+        }
+        else if (e instanceof Bin) {
+            collectAddressTaken(((Bin)e).left(), vars);
+            collectAddressTaken(((Bin)e).right(), vars);
+        }
+        else if (e instanceof Uni) {
+            collectAddressTaken(((Uni)e).expr(), vars);
+        }
+        else if (e instanceof Mem) {
+            collectAddressTaken(((Mem)e).expr(), vars);
+        }
+        else if (e instanceof Call) {
+            collectAddressTaken(((Call)e).expr(), vars);
+            for (Expr arg : ((Call)e).args()) {
+                collectAddressTaken(arg, vars);
+            }
+        }
+    }
+
+    /** Returns the expression of a terminator, or null. */
+    static private Expr condition(Stmt t) {
+        if (t instanceof CJump) return ((CJump)t).cond();
+        if (t instanceof Switch) return ((Switch)t).cond();
+        if (t instanceof Return) return ((Return)t).expr();
+        return null;
+    }
+
+    private SSAForm(ControlFlowGraph g, Set<Entity> promoted) {
+        if (! g.entry().predecessors().isEmpty()) {
+            throw new Error("must not happen: entry block has predecessors");
+        }
+        this.graph = g;
+        this.domTree = new DominatorTree(g);
+        this.promoted = promoted;
+        for (Entity ent : promoted) {
+            LinkedList<Value> stack = new LinkedList<Value>();
+            stack.addFirst(newValue(ent));
+            stacks.put(ent, stack);
+        }
+        for (BasicBlock b : g.blocks()) {
+            phis.put(b, new ArrayList<Phi>());
+        }
+    }
+
+    public ControlFlowGraph graph() {
+        return graph;
+    }
+
+    public DominatorTree dominatorTree() {
+        return domTree;
+    }
+
+    /** Phis at the head of B. */
+    public List<Phi> phis(BasicBlock b) {
+        return phis.get(b);
+    }
+
+    /** All SSA names, including those on the entry. */
+    public List<Value> values() {
+        return values;
+    }
+
+    /** Returns the SSA name a use refers to, or null if not promoted. */
+    public Value valueOf(Var use) {
+        return uses.get(use);
+    }
+
+    /** Returns the SSA name defined by S, or null. */
+    public Value definedBy(Assign s) {
+        return defs.get(s);
+    }
+
+    /**
+     * Returns a new Assign of RHS to the destination of S, which
+     * defines the SSA name S defined.
+     */
+    public Assign redefine(Assign s, Expr rhs) {
+        Value v = defs.remove(s);
+        Assign def = new Assign(s.location(), s.lhs(), rhs);
+        if (v != null) {
+            v.assign = def;
+            defs.put(def, v);
+        }
+        return def;
+    }
+
+    /** Returns the variable S assigns if it is promoted, or null. */
+    public Entity promotedDestination(Assign s) {
+        if (! (s.lhs() instanceof Addr)) return null;
+        Entity ent = ((Addr)s.lhs()).entity();
+        return promoted.contains(ent) ? ent : null;
+    }
+
+    /** Converts back out of SSA form. */
+    public List<Stmt> toStmts() {
+        return graph.toStmts();
+    }
+
+    private Value newValue(Entity ent) {
+        Integer n = versions.get(ent);
+        int version = (n == null) ? 0 : n + 1;
+        versions.put(ent, version);
+        Value v = new Value(ent, version);
+        values.add(v);
+        return v;
+    }
+
+    //
+    // Phi placement
+    //
+
+    private void placePhis() {
+        Set<Entity> nonLocals = new HashSet<Entity>();
+        Map<Entity, Set<BasicBlock>> defBlocks =
+                new LinkedHashMap<Entity, Set<BasicBlock>>();
+        for (BasicBlock b : graph.blocks()) {
+            Set<Entity> killed = new HashSet<Entity>();
+            for (Stmt s : b.stmts()) {
+                if (s instanceof Assign) {
+                    Assign a = (Assign)s;
+                    if (promotedDestination(a) == null) {
+                        collectUses(a.lhs(), killed, nonLocals);
+                    }
+                    collectUses(a.rhs(), killed, nonLocals);
+                    Entity ent = promotedDestination(a);
+                    if (ent != null) {
+                        killed.add(ent);
+                        Set<BasicBlock> blocks = defBlocks.get(ent);
+                        if (blocks == null) {
+                            blocks = new HashSet<BasicBlock>();
+                            defBlocks.put(ent, blocks);
+                        }
+                        blocks.add(b);
+                    }
+                }
+                else if (s instanceof ExprStmt) {
+                    collectUses(((ExprStmt)s).expr(), killed, nonLocals);
+                }
+            }
+            collectUses(condition(b.terminator()), killed, nonLocals);
+        }
+        for (Map.Entry<Entity, Set<BasicBlock>> ent : defBlocks.entrySet()) {
+            if (! nonLocals.contains(ent.getKey())) continue;
+            Set<BasicBlock> placed = new HashSet<BasicBlock>();
+            LinkedList<BasicBlock> work =
+                    new LinkedList<BasicBlock>(ent.getValue());
+            while (! work.isEmpty()) {
+                for (BasicBlock df : domTree.frontier(work.removeFirst())) {
+                    if (placed.add(df)) {
+                        phis.get(df).add(new Phi(df, newValue(ent.getKey())));
+                        if (! ent.getValue().contains(df)) work.add(df);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Adds promoted variables used in E and not in KILLED to RESULT. */
+    private void collectUses(Expr e, Set<Entity> killed, Set<Entity> result) {
+        if (e == null) return;
+        if (e instanceof Var) {
+            Entity ent = ((Var)e).entity();
+            if (promoted.contains(ent) && ! killed.contains(ent)) {
+                result.add(ent);
+            }
+        }
+        else if (e instanceof Bin) {
+            collectUses(((Bin)e).left(), killed, result);
+            collectUses(((Bin)e).right(), killed, result);
+        }
+        else if (e instanceof Uni) {
+            collectUses(((Uni)e).expr(), killed, result);
+        }
+        else if (e instanceof Mem) {
+            collectUses(((Mem)e).expr(), killed, result);
+        }
+        else if (e instanceof Call) {
+            collectUses(((Call)e).expr(), killed, result);
+            for (Expr arg : ((Call)e).args()) {
+                collectUses(arg, killed, result);
+            }
+        }
+    }
+
+    //
+    // Renaming
+    //
+
+    private void rename(BasicBlock b) {
+        List<Entity> pushed = new ArrayList<Entity>();
+        for (Phi phi : phis.get(b)) {
+            push(phi.value(), pushed);
+        }
+        List<Stmt> stmts = b.stmts();
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt s = stmts.get(i);
+            if (s instanceof Assign) {
+                Assign a = (Assign)s;
+                Entity ent = promotedDestination(a);
+                Expr rhs = rename(a.rhs());
+                if (ent != null) {
+                    Assign def = new Assign(a.location(),
+                            new Addr(a.lhs().type(), ent), rhs);
+                    Value v = newValue(ent);
+                    v.assign = def;
+                    defs.put(def, v);
+                    push(v, pushed);
+                    stmts.set(i, def);
+                }
+                else {
+                    stmts.set(i, new Assign(a.location(),
+                            rename(a.lhs()), rhs));
+                }
+            }
+            else if (s instanceof ExprStmt) {
+                stmts.set(i, new ExprStmt(s.location(),
+                        rename(((ExprStmt)s).expr())));
+            }
+        }
+        b.setTerminator(renameTerminator(b.terminator()));
+        for (BasicBlock succ : new LinkedHashSet<BasicBlock>(b.successors())) {
+            for (Phi phi : phis.get(succ)) {
+                phi.operands().put(b,
+                        stacks.get(phi.value().entity()).getFirst());
+            }
+        }
+        for (BasicBlock child : domTree.children(b)) {
+            rename(child);
+        }
+        for (Entity ent : pushed) {
+            stacks.get(ent).removeFirst();
+        }
+    }
+
+    private void push(Value v, List<Entity> pushed) {
+        stacks.get(v.entity()).addFirst(v);
+        pushed.add(v.entity());
+    }
+
+    private Stmt renameTerminator(Stmt t) {
+        if (t instanceof CJump) {
+            CJump s = (CJump)t;
+            return new CJump(s.location(), rename(s.cond()),
+                    s.thenLabel(), s.elseLabel());
+        }
+        else if (t instanceof Switch) {
+            Switch s = (Switch)t;
+            return new Switch(s.location(), rename(s.cond()),
+                    s.cases(), s.defaultLabel(), s.endLabel());
+        }
+        else if (t instanceof Return && ((Return)t).expr() != null) {
+            return new Return(t.location(), rename(((Return)t).expr()));
+        }
+        else {
+            return t;
+        }
+    }
+
+    private Expr rename(Expr e) {
+        if (e instanceof Var) {
+            Var var = (Var)e;
+            if (! promoted.contains(var.entity())) return var;
+            Var use = new Var(var.type(), var.entity());
+            uses.put(use, stacks.get(var.entity()).getFirst());
+            return use;
+        }
+        else if (e instanceof Bin) {
+            Bin b = (Bin)e;
+            return new Bin(b.type(), b.op(), rename(b.left()), rename(b.right()));
+        }
+        else if (e instanceof Uni) {
+            Uni u = (Uni)e;
+            return new Uni(u.type(), u.op(), rename(u.expr()));
+        }
+        else if (e instanceof Mem) {
+            return new Mem(e.type(), rename(((Mem)e).expr()));
+        }
+        else if (e instanceof Call) {
+            Call c = (Call)e;
+            List<Expr> args = new ArrayList<Expr>(c.args().size());
+            for (Expr arg : c.args()) {
+                args.add(rename(arg));
+            }
+            return new Call(c.type(), rename(c.expr()), args);
+        }
+        else {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package net.loveruby.cflat.ir.ssa;
+import net.loveruby.cflat.ir.Assign;
+import net.loveruby.cflat.entity.Entity;
+
+/**
+ * An SSA name: a version of a promoted variable.
+ * It is defined by an Assign, by a Phi, or, for version 0,
+ * on the entry to the function.
+ */
+public class Value {
+    private final Entity entity;
+    private final int version;
+    Assign assign;
+    Phi phi;
+
+    Value(Entity entity, int version) {
+        this.entity = entity;
+        this.version = version;
+    }
+
+    public Entity entity() {
+        return entity;
+    }
+
+    public int version() {
+        return version;
+    }
+
+    /** The defining Assign, or null. */
+    public Assign assign() {
+        return assign;
+    }
+
+    /** The defining Phi, or null. */
+    public Phi phi() {
+        return phi;
+    }
+
+    /** Returns true if this is the value on the entry to the function. */
+    public boolean isEntryValue() {
+        return assign == null && phi == null;
+    }
+
+    public String toString() {
+        return entity.name() + "_" + version;
+    }
+}
@@ -9,6 +9,11 @@ public class LibraryLoader {
     protected List<String> loadPath;
     protected LinkedList<String> loadingLibraries;
     protected Map<String, Declarations> loadedLibraries;
+    protected File baseDirectory;       // null means the current directory
+    protected SourceCache sourceCache;  // may be null
+    protected PrecompiledHeaderCache pchCache;  // may be null
+    protected Map<String, File> libraryFiles;
+    protected Map<String, List<String>> importedLibraries;
 
     static public List<String> defaultLoadPath() {
         List<String> pathes = new ArrayList<String>();
@@ -21,9 +26,26 @@ public class LibraryLoader {
     }
 
     public LibraryLoader(List<String> loadPath) {
+        this(loadPath, null, null, null);
+    }
+
+    /**
+     * Creates a loader which resolves relative load pathes against
+     * BASEDIR and reads header files through CACHE.
+     * Error messages refer header files by the unresolved path.
+     * If PCHCACHE is not null, header files are loaded from
+     * precompiled headers when possible.
+     */
+    public LibraryLoader(List<String> loadPath, File baseDir,
+            SourceCache cache, PrecompiledHeaderCache pchCache) {
         this.loadPath = loadPath;
         this.loadingLibraries = new LinkedList<String>();
         this.loadedLibraries = new HashMap<String, Declarations>();
+        this.baseDirectory = baseDir;
+        this.sourceCache = cache;
+        this.pchCache = pchCache;
+        this.libraryFiles = new HashMap<String, File>();
+        this.importedLibraries = new HashMap<String, List<String>>();
     }
 
     public void addLoadPath(String path) {
@@ -37,23 +59,74 @@ public class LibraryLoader {
                                         + loadingLibraries.getLast()
                                         + ": " + libid);
         }
+        if (! loadingLibraries.isEmpty()) {
+            importedLibraries(loadingLibraries.getLast()).add(libid);
+        }
         loadingLibraries.addLast(libid);   // stop recursive import
         Declarations decls = loadedLibraries.get(libid);
         if (decls != null) {
             // Already loaded import file.  Returns cached declarations.
+            loadingLibraries.removeLast();
             return decls;
         }
-        decls = Parser.parseDeclFile(searchLibrary(libid), this, handler);
+        File file = searchLibrary(libid);
+        libraryFiles.put(libid, file);
+        if (pchCache != null) {
+            decls = pchCache.load(libid, file, this, handler);
+        }
+        else {
+            decls = parseDeclFile(file, handler);
+        }
         loadedLibraries.put(libid, decls);
         loadingLibraries.removeLast();
         return decls;
     }
 
+    protected Declarations parseDeclFile(File file, ErrorHandler handler)
+                                            throws CompileException {
+        if (sourceCache == null) {
+            return Parser.parseDeclFile(resolve(file), this, handler);
+        }
+        Reader src = sourceCache.open(resolve(file));
+        return new Parser(src, file.getPath(), this, handler).parseDecls();
+    }
+
+    /** Libraries imported by LIBID directly, in the order of import. */
+    List<String> importedLibraries(String libid) {
+        List<String> libs = importedLibraries.get(libid);
+        if (libs == null) {
+            libs = new ArrayList<String>();
+            importedLibraries.put(libid, libs);
+        }
+        return libs;
+    }
+
+    /** Libraries imported by LIBID directly or indirectly. */
+    List<String> transitiveImports(String libid) {
+        Set<String> result = new LinkedHashSet<String>();
+        LinkedList<String> queue = new LinkedList<String>();
+        queue.add(libid);
+        while (! queue.isEmpty()) {
+            for (String id : importedLibraries(queue.removeFirst())) {
+                if (result.add(id)) queue.add(id);
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    Declarations loadedLibrary(String libid) {
+        return loadedLibraries.get(libid);
+    }
+
+    File libraryFile(String libid) {
+        return libraryFiles.get(libid);
+    }
+
     public File searchLibrary(String libid) throws FileException {
         try {
             for (String path : loadPath) {
                 File file = new File(path + "/" + libPath(libid) + ".hb");
-                if (file.exists()) {
+                if (resolve(file).exists()) {
                     return file;
                 }
             }
@@ -65,6 +138,13 @@ public class LibraryLoader {
         }
     }
 
+    protected File resolve(File file) {
+        if (baseDirectory == null || file.isAbsolute()) {
+            return file;
+        }
+        return new File(baseDirectory, file.getPath());
+    }
+
     protected String libPath(String id) {
         return id.replace('.', '/');
     }
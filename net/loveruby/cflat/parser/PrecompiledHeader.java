@@ -0,0 +1,667 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.ast.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.type.*;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.*;
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Binary form of the declarations of a library header file.
+ *
+ * A precompiled header holds the dependency records (the header file
+ * itself and all header files imported by it, with their mtime, size
+ * and SHA-256), the list of imported libraries and the declarations
+ * defined in the header itself.  Imported declarations are not
+ * stored; they are loaded through LibraryLoader as the parser does.
+ *
+ * The contents after the header are checked by CRC-32, so that
+ * a corrupt or truncated file is parsed again instead of decoded.
+ *
+ * Only nodes which appear in declaration files are supported.
+ * Headers including other nodes (e.g. complex constant expressions)
+ * are not precompiled.
+ */
+class PrecompiledHeader {
+    static private final int MAGIC = 0x43424843;    // "CBHC"
+    // Increment this when the format or the stored AST classes change.
+    static private final int FORMAT_VERSION = 2;
+
+    static private final Charset UTF8 = Charset.forName("UTF-8");
+
+    static class Dependency {
+        final String libid;
+        final String path;
+        final long lastModified;
+        final long length;
+        final byte[] hash;
+
+        Dependency(String libid, String path,
+                   long lastModified, long length, byte[] hash) {
+            this.libid = libid;
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /** Thrown when a node cannot be stored in a precompiled header. */
+    static class UnsupportedNodeException extends Exception {
+        static private final long serialVersionUID = 1L;
+
+        UnsupportedNodeException(String msg) {
+            super(msg);
+        }
+    }
+
+    static final int INVALID = 0;
+    static final int VALID = 1;
+    static final int VALID_BY_HASH = 2;   // mtime changed, contents not
+
+    private final List<Dependency> dependencies;
+    private final ByteBuffer body;
+
+    private PrecompiledHeader(List<Dependency> deps, ByteBuffer body) {
+        this.dependencies = deps;
+        this.body = body;
+    }
+
+    /**
+     * Maps a precompiled header file.
+     * Returns null if it does not exist or is not readable.
+     */
+    static PrecompiledHeader open(File file) {
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel ch = in.getChannel();
+                ByteBuffer buf =
+                        ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (buf.getInt() != MAGIC) return null;
+                if (buf.getInt() != FORMAT_VERSION) return null;
+                long crc = buf.getLong();
+                if (crc != crc32(buf.slice())) return null;
+                int n = buf.getInt();
+                List<Dependency> deps = new ArrayList<Dependency>(n);
+                for (int i = 0; i < n; i++) {
+                    String libid = getString(buf);
+                    String path = getString(buf);
+                    long mtime = buf.getLong();
+                    long len = buf.getLong();
+                    byte[] hash = new byte[buf.getInt()];
+                    buf.get(hash);
+                    deps.add(new Dependency(libid, path, mtime, len, hash));
+                }
+                return new PrecompiledHeader(deps, buf.slice());
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            return null;
+        }
+        catch (RuntimeException ex) {   // broken file
+            return null;
+        }
+    }
+
+    /**
+     * Checks all dependencies against the current load path
+     * and file system.
+     */
+    int validate(LibraryLoader loader) {
+        int result = VALID;
+        for (Dependency dep : dependencies) {
+            File file;
+            try {
+                file = loader.searchLibrary(dep.libid);
+            }
+            catch (FileException ex) {
+                return INVALID;
+            }
+            if (! file.getPath().equals(dep.path)) return INVALID;
+            File src = loader.resolve(file);
+            if (src.lastModified() == dep.lastModified
+                    && src.length() == dep.length) {
+                continue;
+            }
+            try {
+                if (! Arrays.equals(digest(src), dep.hash)) return INVALID;
+            }
+            catch (IOException ex) {
+                return INVALID;
+            }
+            result = VALID_BY_HASH;
+        }
+        return result;
+    }
+
+    /**
+     * Decodes declarations.  Imported libraries are loaded by LOADER.
+     * Returns null if the file is broken.
+     */
+    Declarations declarations(String sourceName,
+            LibraryLoader loader, ErrorHandler h) throws CompileException {
+        try {
+            return new Decoder(body.duplicate(), sourceName).decode(loader, h);
+        }
+        catch (BufferUnderflowException ex) {
+            return null;
+        }
+        catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the precompiled form of DECLS, the declarations of
+     * library LIBID loaded by LOADER.
+     */
+    static void write(File dest, String libid,
+            Declarations decls, LibraryLoader loader)
+            throws IOException, UnsupportedNodeException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        List<String> deps = loader.transitiveImports(libid);
+        deps.add(0, libid);
+        out.writeInt(deps.size());
+        for (String id : deps) {
+            File f = loader.libraryFile(id);
+            File src = loader.resolve(f);
+            // Takes stat before hashing, so that a file modified
+            // meanwhile is never regarded as valid.
+            long mtime = src.lastModified();
+            long len = src.length();
+            byte[] hash = digest(src);
+            putString(out, id);
+            putString(out, f.getPath());
+            out.writeLong(mtime);
+            out.writeLong(len);
+            out.writeInt(hash.length);
+            out.write(hash);
+        }
+        new Encoder(out).encode(libid, decls, loader);
+        out.close();
+        byte[] contents = buf.toByteArray();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(file);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.writeLong(crc32(ByteBuffer.wrap(contents)));
+        header.write(contents);
+        header.close();
+        writeAtomically(dest, file.toByteArray());
+    }
+
+    static private long crc32(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        crc.update(buf);
+        return crc.getValue();
+    }
+
+    static private void writeAtomically(File dest, byte[] data)
+                                                    throws IOException {
+        File dir = dest.getAbsoluteFile().getParentFile();
+        if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory()) {
+            throw new IOException("cannot create directory: " + dir);
+        }
+        File tmp = File.createTempFile("tmp", null, dir);
+        try {
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    static byte[] digest(File file) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(Files.readAllBytes(file.toPath()));
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new Error("SHA-256 is not supported??");
+        }
+    }
+
+    static private void putString(DataOutputStream out, String s)
+                                                    throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static private String getString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    // Node tags
+    static private final byte T_NULL = 0;
+    static private final byte T_VOID = 1;
+    static private final byte T_INTEGER = 2;
+    static private final byte T_POINTER = 3;
+    static private final byte T_ARRAY = 4;
+    static private final byte T_FUNCTION = 5;
+    static private final byte T_STRUCT = 6;
+    static private final byte T_UNION = 7;
+    static private final byte T_USER = 8;
+    static private final byte E_INTEGER = 16;
+    static private final byte E_STRING = 17;
+    static private final byte E_UNARY = 18;
+    static private final byte E_BINARY = 19;
+    static private final byte E_CAST = 20;
+    static private final byte E_VARIABLE = 21;
+
+    /**
+     * Writes imports and declarations defined in a header.
+     * The source name of locations is not stored, since all
+     * locations refer the header itself.
+     */
+    static private class Encoder {
+        private final DataOutputStream out;
+
+        Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void encode(String libid, Declarations decls, LibraryLoader loader)
+                throws IOException, UnsupportedNodeException {
+            List<String> imports = loader.importedLibraries(libid);
+            Declarations imported = new Declarations();
+            out.writeInt(imports.size());
+            for (String id : imports) {
+                putString(out, id);
+                imported.add(loader.loadedLibrary(id));
+            }
+            List<UndefinedVariable> vars =
+                    own(decls.vardecls(), imported.vardecls());
+            out.writeInt(vars.size());
+            for (UndefinedVariable var : vars) {
+                typeNode(var.typeNode());
+                putString(out, var.name());
+            }
+            List<UndefinedFunction> funcs =
+                    own(decls.funcdecls(), imported.funcdecls());
+            out.writeInt(funcs.size());
+            for (UndefinedFunction func : funcs) {
+                FunctionTypeRef ref = (FunctionTypeRef)func.typeNode().typeRef();
+                typeRef(ref.returnType());
+                putString(out, func.name());
+                // Params shares its location and varargs flag
+                // with ParamTypeRefs made by parametersTypeRef().
+                location(ref.params().location());
+                out.writeBoolean(ref.params().isVararg());
+                out.writeInt(func.parameters().size());
+                for (CBCParameter p : func.parameters()) {
+                    typeNode(p.typeNode());
+                    putString(out, p.name());
+                }
+            }
+            List<Constant> consts =
+                    own(decls.constants(), imported.constants());
+            out.writeInt(consts.size());
+            for (Constant c : consts) {
+                typeNode(c.typeNode());
+                putString(out, c.name());
+                expr(c.value());
+            }
+            compositeTypes(own(decls.defstructs(), imported.defstructs()));
+            compositeTypes(own(decls.defunions(), imported.defunions()));
+            List<TypedefNode> typedefs =
+                    own(decls.typedefs(), imported.typedefs());
+            out.writeInt(typedefs.size());
+            for (TypedefNode t : typedefs) {
+                location(t.location());
+                typeRef(t.realTypeRef());
+                putString(out, t.name());
+            }
+        }
+
+        // Declarations are compared by identity, as Declarations does.
+        private <T> List<T> own(List<T> all, List<T> imported) {
+            Set<T> set = Collections.newSetFromMap(
+                    new IdentityHashMap<T, Boolean>());
+            set.addAll(imported);
+            List<T> result = new ArrayList<T>();
+            for (T t : all) {
+                if (! set.contains(t)) result.add(t);
+            }
+            return result;
+        }
+
+        private void compositeTypes(List<? extends CompositeTypeDefinition> defs)
+                throws IOException, UnsupportedNodeException {
+            out.writeInt(defs.size());
+            for (CompositeTypeDefinition def : defs) {
+                location(def.location());
+                putString(out, def.name());
+                out.writeInt(def.members().size());
+                for (Slot s : def.members()) {
+                    typeNode(s.typeNode());
+                    putString(out, s.name());
+                }
+            }
+        }
+
+        private void typeNode(TypeNode n)
+                throws IOException, UnsupportedNodeException {
+            typeRef(n.typeRef());
+        }
+
+        private void typeRef(TypeRef ref)
+                throws IOException, UnsupportedNodeException {
+            if (ref instanceof VoidTypeRef) {
+                out.writeByte(T_VOID);
+                location(ref.location());
+            }
+            else if (ref instanceof IntegerTypeRef) {
+                out.writeByte(T_INTEGER);
+                location(ref.location());
+                putString(out, ((IntegerTypeRef)ref).name());
+            }
+            else if (ref instanceof PointerTypeRef) {
+                out.writeByte(T_POINTER);
+                typeRef(((PointerTypeRef)ref).baseType());
+            }
+            else if (ref instanceof ArrayTypeRef) {
+                ArrayTypeRef ary = (ArrayTypeRef)ref;
+                out.writeByte(T_ARRAY);
+                typeRef(ary.baseType());
+                out.writeLong(ary.isLengthUndefined() ? -1 : ary.length());
+            }
+            else if (ref instanceof FunctionTypeRef) {
+                FunctionTypeRef f = (FunctionTypeRef)ref;
+                out.writeByte(T_FUNCTION);
+                typeRef(f.returnType());
+                location(f.params().location());
+                out.writeBoolean(f.params().isVararg());
+                out.writeInt(f.params().typerefs().size());
+                for (TypeRef r : f.params().typerefs()) {
+                    typeRef(r);
+                }
+            }
+            else if (ref instanceof StructTypeRef) {
+                out.writeByte(T_STRUCT);
+                location(ref.location());
+                putString(out, ((StructTypeRef)ref).name());
+            }
+            else if (ref instanceof UnionTypeRef) {
+                out.writeByte(T_UNION);
+                location(ref.location());
+                putString(out, ((UnionTypeRef)ref).name());
+            }
+            else if (ref instanceof UserTypeRef) {
+                out.writeByte(T_USER);
+                location(ref.location());
+                putString(out, ((UserTypeRef)ref).name());
+            }
+            else {
+                throw new UnsupportedNodeException(ref.getClass().getName());
+            }
+        }
+
+        // Subclasses of these nodes have their own semantics,
+        // so node classes are compared exactly.
+        private void expr(ExprNode node)
+                throws IOException, UnsupportedNodeException {
+            Class<?> c = node.getClass();
+            if (c == IntegerLiteralNode.class) {
+                IntegerLiteralNode n = (IntegerLiteralNode)node;
+                out.writeByte(E_INTEGER);
+                location(n.location());
+                typeRef(n.typeNode().typeRef());
+                out.writeLong(n.value());
+            }
+            else if (c == StringLiteralNode.class) {
+                StringLiteralNode n = (StringLiteralNode)node;
+                out.writeByte(E_STRING);
+                location(n.location());
+                typeRef(n.typeNode().typeRef());
+                putString(out, n.value());
+            }
+            else if (c == UnaryOpNode.class) {
+                UnaryOpNode n = (UnaryOpNode)node;
+                out.writeByte(E_UNARY);
+                putString(out, n.operator());
+                expr(n.expr());
+            }
+            else if (c == BinaryOpNode.class) {
+                BinaryOpNode n = (BinaryOpNode)node;
+                out.writeByte(E_BINARY);
+                putString(out, n.operator());
+                expr(n.left());
+                expr(n.right());
+            }
+            else if (c == CastNode.class) {
+                CastNode n = (CastNode)node;
+                out.writeByte(E_CAST);
+                typeNode(n.typeNode());
+                expr(n.expr());
+            }
+            else if (c == VariableNode.class) {
+                VariableNode n = (VariableNode)node;
+                out.writeByte(E_VARIABLE);
+                location(n.location());
+                putString(out, n.name());
+            }
+            else {
+                throw new UnsupportedNodeException(c.getName());
+            }
+        }
+
+        private void location(Location loc) throws IOException {
+            if (loc == null) {
+                out.writeBoolean(false);
+                return;
+            }
+            out.writeBoolean(true);
+            CflatToken t = loc.token();
+            out.writeInt(t.kindID());
+            out.writeInt(t.lineno());
+            out.writeInt(t.column());
+            putString(out, t.image());
+        }
+    }
+
+    /** Reconstructs nodes in the same way as Parser does. */
+    static private class Decoder {
+        private final ByteBuffer buf;
+        private final String sourceName;
+
+        Decoder(ByteBuffer buf, String sourceName) {
+            this.buf = buf;
+            this.sourceName = sourceName;
+        }
+
+        Declarations decode(LibraryLoader loader, ErrorHandler h)
+                                            throws CompileException {
+            Declarations decls = new Declarations();
+            int nImports = buf.getInt();
+            for (int i = 0; i < nImports; i++) {
+                decls.add(loader.loadLibrary(getString(buf), h));
+            }
+            int n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                TypeNode t = typeNode();
+                decls.addVardecl(new UndefinedVariable(t, getString(buf)));
+            }
+            n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                TypeRef ret = typeRef();
+                String name = getString(buf);
+                Params ps = params();
+                TypeRef t = new FunctionTypeRef(ret, ps.parametersTypeRef());
+                decls.addFuncdecl(new UndefinedFunction(new TypeNode(t), name, ps));
+            }
+            n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                TypeNode t = typeNode();
+                String name = getString(buf);
+                decls.addConstant(new Constant(t, name, expr()));
+            }
+            n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                Location loc = location();
+                String name = getString(buf);
+                decls.addDefstruct(new StructNode(loc,
+                        new StructTypeRef(name), name, slots()));
+            }
+            n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                Location loc = location();
+                String name = getString(buf);
+                decls.addDefunion(new UnionNode(loc,
+                        new UnionTypeRef(name), name, slots()));
+            }
+            n = buf.getInt();
+            for (int i = 0; i < n; i++) {
+                Location loc = location();
+                TypeRef ref = typeRef();
+                decls.addTypedef(new TypedefNode(loc, ref, getString(buf)));
+            }
+            return decls;
+        }
+
+        private List<Slot> slots() {
+            int n = buf.getInt();
+            List<Slot> membs = new ArrayList<Slot>(n);
+            for (int i = 0; i < n; i++) {
+                TypeNode t = typeNode();
+                membs.add(new Slot(t, getString(buf)));
+            }
+            return membs;
+        }
+
+        private Params params() {
+            Location loc = location();
+            boolean vararg = buf.get() != 0;
+            int n = buf.getInt();
+            List<CBCParameter> list = new ArrayList<CBCParameter>(n);
+            for (int i = 0; i < n; i++) {
+                TypeNode t = typeNode();
+                list.add(new CBCParameter(t, getString(buf)));
+            }
+            Params ps = new Params(loc, list);
+            if (vararg) ps.acceptVarargs();
+            return ps;
+        }
+
+        private TypeNode typeNode() {
+            return new TypeNode(typeRef());
+        }
+
+        private TypeRef typeRef() {
+            byte tag = buf.get();
+            switch (tag) {
+            case T_VOID:
+                return new VoidTypeRef(location());
+            case T_INTEGER: {
+                Location loc = location();
+                return new IntegerTypeRef(getString(buf), loc);
+            }
+            case T_POINTER:
+                return new PointerTypeRef(typeRef());
+            case T_ARRAY: {
+                TypeRef base = typeRef();
+                long len = buf.getLong();
+                return (len < 0) ? new ArrayTypeRef(base)
+                                 : new ArrayTypeRef(base, len);
+            }
+            case T_FUNCTION: {
+                TypeRef ret = typeRef();
+                Location loc = location();
+                boolean vararg = buf.get() != 0;
+                int n = buf.getInt();
+                List<TypeRef> refs = new ArrayList<TypeRef>(n);
+                for (int i = 0; i < n; i++) {
+                    refs.add(typeRef());
+                }
+                return new FunctionTypeRef(ret,
+                        new ParamTypeRefs(loc, refs, vararg));
+            }
+            case T_STRUCT: {
+                Location loc = location();
+                return new StructTypeRef(loc, getString(buf));
+            }
+            case T_UNION: {
+                Location loc = location();
+                return new UnionTypeRef(loc, getString(buf));
+            }
+            case T_USER: {
+                Location loc = location();
+                return new UserTypeRef(loc, getString(buf));
+            }
+            default:
+                throw new IllegalArgumentException("unknown type tag: " + tag);
+            }
+        }
+
+        private ExprNode expr() {
+            byte tag = buf.get();
+            switch (tag) {
+            case E_INTEGER: {
+                Location loc = location();
+                TypeRef ref = typeRef();
+                return new IntegerLiteralNode(loc, ref, buf.getLong());
+            }
+            case E_STRING: {
+                Location loc = location();
+                TypeRef ref = typeRef();
+                return new StringLiteralNode(loc, ref, getString(buf));
+            }
+            case E_UNARY: {
+                String op = getString(buf);
+                return new UnaryOpNode(op, expr());
+            }
+            case E_BINARY: {
+                String op = getString(buf);
+                ExprNode left = expr();
+                return new BinaryOpNode(left, op, expr());
+            }
+            case E_CAST: {
+                TypeNode t = typeNode();
+                return new CastNode(t, expr());
+            }
+            case E_VARIABLE: {
+                Location loc = location();
+                return new VariableNode(loc, getString(buf));
+            }
+            default:
+                throw new IllegalArgumentException("unknown expr tag: " + tag);
+            }
+        }
+
+        private Location location() {
+            if (buf.get() == 0) return null;
+            Token t = new Token();
+            t.kind = buf.getInt();
+            t.beginLine = buf.getInt();
+            t.beginColumn = buf.getInt();
+            t.image = getString(buf);
+            return new Location(sourceName, t);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.ast.Declarations;
+import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.exception.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Directory of precompiled headers (--pch-dir DIR).
+ * A precompiled header is named after the absolute path of its
+ * header file, and is rewritten when it is found invalid.
+ * One instance is shared by all LibraryLoaders of a compiler run.
+ */
+public class PrecompiledHeaderCache {
+    private final File dir;
+    private final AtomicLong nHits = new AtomicLong();
+    private final AtomicLong nMisses = new AtomicLong();
+
+    public PrecompiledHeaderCache(File dir) {
+        this.dir = dir;
+    }
+
+    public long hits() {
+        return nHits.get();
+    }
+
+    public long misses() {
+        return nMisses.get();
+    }
+
+    Declarations load(String libid, File file,
+            LibraryLoader loader, ErrorHandler h) throws CompileException {
+        File pchFile = pchFileOf(loader.resolve(file));
+        PrecompiledHeader pch = PrecompiledHeader.open(pchFile);
+        if (pch != null) {
+            int status = pch.validate(loader);
+            if (status != PrecompiledHeader.INVALID) {
+                Declarations decls = pch.declarations(file.getPath(), loader, h);
+                if (decls != null) {
+                    nHits.incrementAndGet();
+                    if (status == PrecompiledHeader.VALID_BY_HASH) {
+                        // Records new mtime to skip hashing next time.
+                        store(pchFile, libid, decls, loader);
+                    }
+                    return decls;
+                }
+            }
+        }
+        nMisses.incrementAndGet();
+        // Forgets imports recorded by a broken precompiled header.
+        loader.importedLibraries(libid).clear();
+        Declarations decls = loader.parseDeclFile(file, h);
+        store(pchFile, libid, decls, loader);
+        return decls;
+    }
+
+    // Failing to write a precompiled header is not an error;
+    // the header is just parsed again next time.
+    private void store(File pchFile, String libid,
+            Declarations decls, LibraryLoader loader) {
+        try {
+            PrecompiledHeader.write(pchFile, libid, decls, loader);
+        }
+        catch (IOException ex) {
+            ;
+        }
+        catch (PrecompiledHeader.UnsupportedNodeException ex) {
+            ;
+        }
+    }
+
+    private File pchFileOf(File header) {
+        return new File(dir, hexDigest(header.getAbsolutePath()) + ".pch");
+    }
+
+    static private String hexDigest(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            StringBuilder buf = new StringBuilder();
+            for (byte b : md.digest(s.getBytes("UTF-8"))) {
+                buf.append(String.format("%02x", b & 0xff));
+            }
+            return buf.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new Error("SHA-256 is not supported??");
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.loveruby.cflat.parser;
+import net.loveruby.cflat.exception.FileException;
+import java.util.Map;
+import java.util.HashMap;
+import java.io.*;
+
+/**
+ * Contents of source files shared by LibraryLoaders of a long-running
+ * compiler process (cbc --server).
+ * Parsed Declarations cannot be shared, because semantic analysis
+ * modifies them; this cache holds the file contents instead and
+ * each LibraryLoader parses them again.
+ * An entry is reloaded when the file's mtime or size changes.
+ */
+public class SourceCache {
+    static public Reader openFile(File file) throws FileException {
+        try {
+            return new BufferedReader(
+                new InputStreamReader(new FileInputStream(file),
+                                      Parser.SOURCE_ENCODING));
+        }
+        catch (FileNotFoundException ex) {
+            throw new FileException(ex.getMessage());
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new Error("UTF-8 is not supported??: " + ex.getMessage());
+        }
+    }
+
+    static private class Entry {
+        final long lastModified;
+        final long length;
+        final char[] content;
+
+        Entry(long lastModified, long length, char[] content) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.content = content;
+        }
+
+        boolean isFresh(File file) {
+            return file.lastModified() == lastModified
+                    && file.length() == length;
+        }
+    }
+
+    private final Map<File, Entry> entries = new HashMap<File, Entry>();
+
+    public Reader open(File file) throws FileException {
+        File key = file.getAbsoluteFile();
+        Entry ent;
+        synchronized (this) {
+            ent = entries.get(key);
+            if (ent != null && ent.isFresh(key)) {
+                return new CharArrayReader(ent.content);
+            }
+        }
+        ent = load(key);
+        synchronized (this) {
+            entries.put(key, ent);
+        }
+        return new CharArrayReader(ent.content);
+    }
+
+    private Entry load(File file) throws FileException {
+        // Takes stat before reading, so that a file modified while
+        // reading is never regarded as fresh.
+        long mtime = file.lastModified();
+        long len = file.length();
+        Reader r = openFile(file);
+        try {
+            try {
+                CharArrayWriter buf = new CharArrayWriter();
+                char[] block = new char[8192];
+                int n;
+                while ((n = r.read(block)) >= 0) {
+                    buf.write(block, 0, n);
+                }
+                return new Entry(mtime, len, buf.toCharArray());
+            }
+            finally {
+                r.close();
+            }
+        }
+        catch (IOException ex) {
+            throw new FileException(ex.getMessage());
+        }
+    }
+}
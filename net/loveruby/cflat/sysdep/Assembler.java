@@ -1,7 +1,15 @@
 package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.utils.PipedCommand;
 import net.loveruby.cflat.exception.IPCException;
 
 public interface Assembler {
     void assemble(String srcPath, String destPath,
             AssemblerOptions opts) throws IPCException;
+
+    /**
+     * Starts an assembler which reads assembly source from
+     * the input of the returned command, and writes DESTPATH.
+     */
+    PipedCommand start(String destPath,
+            AssemblerOptions opts) throws IPCException;
 }
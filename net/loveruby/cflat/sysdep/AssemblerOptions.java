@@ -1,12 +1,23 @@
 package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.utils.CommandEnvironment;
 import java.util.List;
 import java.util.ArrayList;
 
 public class AssemblerOptions {
     public boolean verbose = false;
+    public CommandEnvironment environment = CommandEnvironment.inherited();
     List<String> args = new ArrayList<String>();
 
     public void addArg(String a) {
         args.add(a);
     }
+
+    /** Returns a string which identifies these options in build cache keys. */
+    public String fingerprint() {
+        StringBuilder buf = new StringBuilder();
+        for (String a : args) {
+            buf.append(a).append('\0');
+        }
+        return buf.toString();
+    }
 }
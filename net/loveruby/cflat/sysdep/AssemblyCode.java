@@ -1,8 +1,10 @@
 package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.asm.AsmWriter;
 import java.io.PrintStream;
 
 public interface AssemblyCode {
     String toSource();
+    void writeTo(AsmWriter w);
     void dump();
     void dump(PrintStream s);
 }
@@ -1,5 +1,14 @@
 package net.loveruby.cflat.sysdep;
 
+import net.loveruby.cflat.asm.AsmWriter;
+
 public interface CodeGenerator {
     AssemblyCode generate(net.loveruby.cflat.ir.IR ir);
+
+    /**
+     * Generates assembly code and writes it to OUT.
+     * The code is written as soon as each function is generated.
+     * The caller must flush OUT.
+     */
+    void generate(net.loveruby.cflat.ir.IR ir, AsmWriter out);
 }
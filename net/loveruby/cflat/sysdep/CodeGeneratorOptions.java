@@ -1,10 +1,15 @@
 package net.loveruby.cflat.sysdep;
+import net.loveruby.cflat.utils.TimeReport;
 
 public class CodeGeneratorOptions {
     protected int optimizeLevel;
     protected boolean generatePIC;
     protected boolean generatePIE;
     protected boolean verboseAsm;
+    protected int inlineThreshold = -1;     // -1: by optimization level
+    protected int unrollLimit = -1;         // -1: by optimization level
+    protected TimeReport timeReport = TimeReport.DISABLED;
+    protected PeepholeStats peepholeStats = PeepholeStats.DISABLED;
 
     public CodeGeneratorOptions() {
         optimizeLevel = 0;
@@ -21,6 +26,38 @@ public class CodeGeneratorOptions {
         return optimizeLevel;
     }
 
+    static public final int DEFAULT_INLINE_THRESHOLD = 16;
+
+    public void setInlineThreshold(int n) {
+        this.inlineThreshold = n;
+    }
+
+    /**
+     * Functions larger than a call by up to this many IR nodes are
+     * inlined.  By default, 0 at -O1 and DEFAULT_INLINE_THRESHOLD at
+     * -O2.
+     */
+    public int inlineThreshold() {
+        if (inlineThreshold >= 0) return inlineThreshold;
+        return optimizeLevel >= 2 ? DEFAULT_INLINE_THRESHOLD : 0;
+    }
+
+    static public final int DEFAULT_UNROLL_LIMIT = 64;
+
+    public void setUnrollLimit(int n) {
+        this.unrollLimit = n;
+    }
+
+    /**
+     * Innermost loops are unrolled while they are within this many IR
+     * nodes.  By default, 0 (no unrolling) at -O1 and
+     * DEFAULT_UNROLL_LIMIT at -O2.
+     */
+    public int unrollLimit() {
+        if (unrollLimit >= 0) return unrollLimit;
+        return optimizeLevel >= 2 ? DEFAULT_UNROLL_LIMIT : 0;
+    }
+
     public void generateVerboseAsm() {
         this.verboseAsm = true;
     }
@@ -48,4 +85,33 @@ public class CodeGeneratorOptions {
     public boolean isPIERequired() {
         return generatePIE;
     }
+
+    public void setTimeReport(TimeReport report) {
+        this.timeReport = report;
+    }
+
+    public TimeReport timeReport() {
+        return timeReport;
+    }
+
+    public void setPeepholeStats(PeepholeStats stats) {
+        this.peepholeStats = stats;
+    }
+
+    public PeepholeStats peepholeStats() {
+        return peepholeStats;
+    }
+
+    /**
+     * Returns a string which identifies these options in build cache
+     * keys.  It must include all options which affect generated code.
+     */
+    public String fingerprint() {
+        return "O" + optimizeLevel
+                + (generatePIC ? " pic" : "")
+                + (generatePIE ? " pie" : "")
+                + (inlineThreshold >= 0 ? " inline=" + inlineThreshold : "")
+                + (unrollLimit >= 0 ? " unroll=" + unrollLimit : "")
+                + (verboseAsm ? " verbose-asm" : "");
+    }
 }
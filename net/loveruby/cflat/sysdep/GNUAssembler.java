@@ -1,5 +1,6 @@
 package net.loveruby.cflat.sysdep;
 import net.loveruby.cflat.utils.CommandUtils;
+import net.loveruby.cflat.utils.PipedCommand;
 import net.loveruby.cflat.utils.ErrorHandler;
 import net.loveruby.cflat.exception.IPCException;
 import java.util.List;
@@ -21,7 +22,19 @@ class GNUAssembler implements Assembler {
         cmd.add("-o");
         cmd.add(destPath);
         cmd.add(srcPath);
-        CommandUtils.invoke(cmd, errorHandler, opts.verbose);
+        CommandUtils.invoke(cmd, errorHandler, opts.verbose, opts.environment);
     }
     // #@@}
+
+    public PipedCommand start(String destPath,
+                            AssemblerOptions opts) throws IPCException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("as");
+        cmd.addAll(opts.args);
+        cmd.add("-o");
+        cmd.add(destPath);
+        // No source file: as reads standard input.
+        return CommandUtils.start(cmd, errorHandler,
+                opts.verbose, opts.environment);
+    }
 }
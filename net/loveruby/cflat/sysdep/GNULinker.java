@@ -48,7 +48,7 @@ class GNULinker implements Linker {
         }
         cmd.add("-o");
         cmd.add(destPath);
-        CommandUtils.invoke(cmd, errorHandler, opts.verbose);
+        CommandUtils.invoke(cmd, errorHandler, opts.verbose, opts.environment);
     }
     // #@@}
 
@@ -71,7 +71,7 @@ class GNULinker implements Linker {
         }
         cmd.add("-o");
         cmd.add(destPath);
-        CommandUtils.invoke(cmd, errorHandler, opts.verbose);
+        CommandUtils.invoke(cmd, errorHandler, opts.verbose, opts.environment);
     }
     // #@@}
 }
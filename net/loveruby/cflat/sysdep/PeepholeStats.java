@@ -0,0 +1,67 @@
+package net.loveruby.cflat.sysdep;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts rewrites by each peephole rule (--peephole-stats).
+ * Counts are summed up over all source files, which may be compiled
+ * in parallel.
+ */
+public class PeepholeStats {
+    /** Stats which count nothing. */
+    static public final PeepholeStats DISABLED = new PeepholeStats(false);
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<String, AtomicLong> hits =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    public PeepholeStats() {
+        this(true);
+    }
+
+    private PeepholeStats(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void hit(String rule) {
+        if (! enabled) return;
+        AtomicLong n = hits.get(rule);
+        if (n == null) {
+            hits.putIfAbsent(rule, new AtomicLong());
+            n = hits.get(rule);
+        }
+        n.incrementAndGet();
+    }
+
+    public long hits(String rule) {
+        AtomicLong n = hits.get(rule);
+        return n == null ? 0 : n.get();
+    }
+
+    /** Returns "RULE: N hits" lines, most hit rules first. */
+    public List<String> report() {
+        List<Map.Entry<String, AtomicLong>> entries =
+                new ArrayList<Map.Entry<String, AtomicLong>>(hits.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            public int compare(Map.Entry<String, AtomicLong> x,
+                               Map.Entry<String, AtomicLong> y) {
+                int c = Long.compare(y.getValue().get(), x.getValue().get());
+                return c != 0 ? c : x.getKey().compareTo(y.getKey());
+            }
+        });
+        List<String> lines = new ArrayList<String>();
+        long total = 0;
+        for (Map.Entry<String, AtomicLong> ent : entries) {
+            long n = ent.getValue().get();
+            lines.add(ent.getKey() + ": " + n + (n == 1 ? " hit" : " hits"));
+            total += n;
+        }
+        lines.add(total + " rewrites in total");
+        return lines;
+    }
+}
@@ -14,6 +14,7 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     private List<Assembly> assemblies = new ArrayList<Assembly>();
     private int commentIndentLevel = 0;
     private Statistics statistics;
+    private AsmWriter output;       // null means not streaming
 
     AssemblyCode(Type naturalType, long stackWordSize,
             SymbolTable labelSymbols, boolean verbose) {
@@ -40,6 +41,29 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         return buf.toString();
     }
 
+    /**
+     * Makes #flush write assemblies to OUT.
+     * #toSource and #dump do not include flushed assemblies.
+     */
+    void streamTo(AsmWriter out) {
+        this.output = out;
+    }
+
+    /** Writes and discards assemblies added so far, if streaming. */
+    void flush() {
+        if (output == null) return;
+        writeTo(output);
+        assemblies.clear();
+        statistics = null;
+    }
+
+    public void writeTo(AsmWriter w) {
+        for (Assembly asm : assemblies) {
+            asm.writeTo(w, labelSymbols);
+            w.newline();
+        }
+    }
+
     public void dump() {
         dump(System.out);
     }
@@ -51,7 +75,8 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     }
 
     void apply(PeepholeOptimizer opt) {
-        assemblies = opt.optimize(assemblies);
+        assemblies = opt.optimize(assemblies, virtualStack.memrefs);
+        statistics = null;
     }
 
     private Statistics statistics() {
@@ -215,19 +240,19 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     }
 
     void _byte(Literal val) {
-        directive(".byte\t" + val.toSource());
+        assemblies.add(new LiteralDirective(".byte", val));
     }
 
     void _value(Literal val) {
-        directive(".value\t" + val.toSource());
+        assemblies.add(new LiteralDirective(".value", val));
     }
 
     void _long(Literal val) {
-        directive(".long\t" + val.toSource());
+        assemblies.add(new LiteralDirective(".long", val));
     }
 
     void _quad(Literal val) {
-        directive(".quad\t" + val.toSource());
+        assemblies.add(new LiteralDirective(".quad", val));
     }
 
     void _string(String str) {
@@ -303,7 +328,8 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     // #@@range/virtualPush{
     void virtualPush(Register reg) {
         if (verbose) {
-            comment("push " + reg.baseName() + " -> " + virtualStack.top());
+            // Offsets are not fixed yet; prints the depth instead.
+            comment("push " + reg.baseName() + " -> depth " + virtualStack.offset);
         }
         virtualStack.extend(stackWordSize);
         mov(reg, virtualStack.top());
@@ -313,7 +339,8 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
     // #@@range/virtualPop{
     void virtualPop(Register reg) {
         if (verbose) {
-            comment("pop  " + reg.baseName() + " <- " + virtualStack.top());
+            comment("pop  " + reg.baseName() + " <- depth "
+                    + (virtualStack.offset - stackWordSize));
         }
         mov(virtualStack.top(), reg);
         virtualStack.rewind(stackWordSize);
@@ -328,6 +355,11 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn("jmp", new DirectMemoryReference(label.symbol()));
     }
 
+    // jump to function by relative address
+    void jmp(Symbol sym) {
+        insn("jmp", new DirectMemoryReference(sym));
+    }
+
     void jnz(Label label) {
         insn("jnz", new DirectMemoryReference(label.symbol()));
     }
@@ -336,6 +368,47 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn("je", new DirectMemoryReference(label.symbol()));
     }
 
+    void jne(Label label) {
+        insn("jne", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jg(Label label) {
+        insn("jg", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jge(Label label) {
+        insn("jge", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jl(Label label) {
+        insn("jl", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jle(Label label) {
+        insn("jle", new DirectMemoryReference(label.symbol()));
+    }
+
+    void ja(Label label) {
+        insn("ja", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jae(Label label) {
+        insn("jae", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jb(Label label) {
+        insn("jb", new DirectMemoryReference(label.symbol()));
+    }
+
+    void jbe(Label label) {
+        insn("jbe", new DirectMemoryReference(label.symbol()));
+    }
+
+    // jump to the address stored in register or memory
+    void jmpAbsolute(Operand target) {
+        insn("jmp", new AbsoluteAddress(target));
+    }
+
     void cmp(Operand a, Register b) {
         insn(b.type, "cmp", a, b);
     }
@@ -420,6 +493,11 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn(src.type, "mov", src, dest);
     }
 
+    // store immediate
+    void mov(ImmediateValue src, MemoryReference dest, Type t) {
+        insn(t, "mov", src, dest);
+    }
+
     // for stack access
     void relocatableMov(Operand src, Operand dest) {
         assemblies.add(new Instruction("mov", typeSuffix(naturalType), src, dest, true));
@@ -433,6 +511,15 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn("movz", typeSuffix(src.type, dest.type), src, dest);
     }
 
+    // load and extend
+    void movsx(MemoryReference src, Type srcType, Register dest) {
+        insn("movs", typeSuffix(srcType, dest.type), src, dest);
+    }
+
+    void movzx(MemoryReference src, Type srcType, Register dest) {
+        insn("movz", typeSuffix(srcType, dest.type), src, dest);
+    }
+
     void movzb(Register src, Register dest) {
         insn("movz", "b" + typeSuffix(dest.type), src, dest);
     }
@@ -457,6 +544,16 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn(base.type, "imul", m, base);
     }
 
+    /** %edx:%eax = %eax * M, signed */
+    void imul(Register m) {
+        insn(m.type, "imul", m);
+    }
+
+    /** %edx:%eax = %eax * M, unsigned */
+    void mul(Register m) {
+        insn(m.type, "mul", m);
+    }
+
     void cltd() {
         insn("cltd");
     }
@@ -485,15 +582,15 @@ public class AssemblyCode implements net.loveruby.cflat.sysdep.AssemblyCode {
         insn(base.type, "xor", bits, base);
     }
 
-    void sar(Register bits, Register base) {
+    void sar(Operand bits, Register base) {
         insn(base.type, "sar", bits, base);
     }
 
-    void sal(Register bits, Register base) {
+    void sal(Operand bits, Register base) {
         insn(base.type, "sal", bits, base);
     }
 
-    void shr(Register bits, Register base) {
+    void shr(Operand bits, Register base) {
         insn(base.type, "shr", bits, base);
     }
 }
@@ -7,6 +7,7 @@ import net.loveruby.cflat.ast.Location;
 import net.loveruby.cflat.utils.AsmUtils;
 import net.loveruby.cflat.utils.ListUtils;
 import net.loveruby.cflat.utils.ErrorHandler;
+import net.loveruby.cflat.utils.TimeReport;
 import java.util.*;
 
 public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
@@ -21,6 +22,9 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         this.options = options;
         this.naturalType = naturalType;
         this.errorHandler = errorHandler;
+        if (options.optimizeLevel() >= 1) {
+            this.selector = new Selector();
+        }
     }
     // #@@}
 
@@ -28,10 +32,18 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     // #@@range/generate{
     public AssemblyCode generate(IR ir) {
         locateSymbols(ir);
-        return generateAssemblyCode(ir);
+        return generateAssemblyCode(ir, newAssemblyCode());
     }
     // #@@}
 
+    public void generate(IR ir, AsmWriter out) {
+        locateSymbols(ir);
+        AssemblyCode file = newAssemblyCode();
+        file.streamTo(out);
+        generateAssemblyCode(ir, file);
+        file.flush();
+    }
+
     static final String LABEL_SYMBOL_BASE = ".L";
     static final String CONST_SYMBOL_BASE = ".LC";
 
@@ -140,8 +152,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     //
 
     // #@@range/generateAssemblyCode{
-    private AssemblyCode generateAssemblyCode(IR ir) {
-        AssemblyCode file = newAssemblyCode();
+    private AssemblyCode generateAssemblyCode(IR ir, AssemblyCode file) {
         file._file(ir.fileName());
         if (ir.isGlobalVariableDefined()) {
             generateDataSection(file, ir.definedGlobalVariables());
@@ -246,6 +257,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             file.label(sym);
             compileFunctionBody(file, func);
             file._size(sym, ".-" + sym.toSource());
+            file.flush();
         }
     }
     // #@@}
@@ -406,7 +418,19 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
 
     // #@@range/compileFunctionBody{
     private void compileFunctionBody(AssemblyCode file, DefinedFunction func) {
-        StackFrameInfo frame = new StackFrameInfo();
+        TimeReport.Timer timer = options.timeReport().startFunction(
+                func.location().sourceName(), func.name());
+        try {
+            compileFunctionBody(file, func, new StackFrameInfo());
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+    private void compileFunctionBody(AssemblyCode file, DefinedFunction func,
+                                     StackFrameInfo frame) {
+        allocateRegisters(func);
         // #@@range/cfb_locate{
         locateParameters(func.parameters());
         frame.lvarSize = locateLocalVariables(func.lvarScope());
@@ -422,7 +446,9 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         // #@@}
 
         if (options.isVerboseAsm()) {
+            printRemarks(file, func.remarks());
             printStackFrameLayout(file, frame, func.localVariables());
+            printRegisterVariables(file);
         }
         // #@@range/cfb_gen{
         generateFunctionBody(file, body, frame);
@@ -435,8 +461,15 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         if (options.optimizeLevel() < 1) {
             return body;
         }
-        body.apply(PeepholeOptimizer.defaultSet());
-        body.reduceLabels();
+        TimeReport.Timer timer =
+                options.timeReport().startPhase("PeepholeOptimizer.optimize");
+        try {
+            body.apply(PeepholeOptimizer.defaultSet(options.peepholeStats()));
+            body.reduceLabels();
+        }
+        finally {
+            timer.stop();
+        }
         return body;
     }
     // #@@}
@@ -445,6 +478,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             StackFrameInfo frame, List<DefinedVariable> lvars) {
         List<MemInfo> vars = new ArrayList<MemInfo>();
         for (DefinedVariable var : lvars) {
+            if (registerOf(var) != null) continue;
             vars.add(new MemInfo(var.memref(), var.name()));
         }
         vars.add(new MemInfo(mem(0, bp()), "return address"));
@@ -469,6 +503,20 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         file.comment("-----------------------------------");
     }
 
+    private void printRemarks(AssemblyCode file, List<String> remarks) {
+        for (String remark : remarks) {
+            file.comment(remark);
+        }
+    }
+
+    private void printRegisterVariables(AssemblyCode file) {
+        if (regalloc == null) return;
+        for (Entity ent : regalloc.allocatedVariables()) {
+            file.comment(regalloc.registerOf(ent).toSource(null)
+                    + ": " + ent.name());
+        }
+    }
+
     class MemInfo {
         MemoryReference mem;
         String name;
@@ -482,18 +530,105 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     // #@@range/compileStmts{
     private AssemblyCode as;
     private Label epilogue;
+    private DefinedFunction function;
+    private List<Stmt> stmts;
+    private int stmtIndex;
 
     private AssemblyCode compileStmts(DefinedFunction func) {
         as = newAssemblyCode();
         epilogue = new Label();
-        for (Stmt s : func.ir()) {
+        function = func;
+        siblingCalls.clear();
+        loadRegisterParameters(func.parameters());
+        stmts = func.ir();
+        stmtIndex = 0;
+        if (selector != null) selector.clear();
+        for (Stmt s : stmts) {
             compileStmt(s);
+            stmtIndex++;
         }
         as.label(epilogue);
         return as;
     }
     // #@@}
 
+    //
+    // Register allocation (-O2)
+    //
+
+    private LinearScanAllocator regalloc;   // null if not allocated
+    private final List<Register> tempRegisters = new ArrayList<Register>();
+
+    private void allocateRegisters(DefinedFunction func) {
+        regalloc = null;
+        if (options.optimizeLevel() < 2) return;
+        TimeReport.Timer timer =
+                options.timeReport().startPhase("LinearScanAllocator");
+        try {
+            regalloc = new LinearScanAllocator(allocatableRegisters(), naturalType);
+            regalloc.allocate(func);
+        }
+        finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Variables are kept in callee-saved registers, so that calls
+     * need not save them.  %ecx and %edx are scratch registers of
+     * expressions, and %ebx is the GOT base register in PIC.
+     */
+    private List<Register> allocatableRegisters() {
+        List<Register> regs = new ArrayList<Register>();
+        if (! options.isPositionIndependent()) {
+            regs.add(bx());
+        }
+        regs.add(si());
+        regs.add(di());
+        return regs;
+    }
+
+    /** Returns the register of EXPR if it is a register variable. */
+    private Register registerOf(Expr expr) {
+        if (! expr.isVar()) return null;
+        return registerOf(expr.getEntityForce());
+    }
+
+    /** Returns the register of variable ENT, or null. */
+    private Register registerOf(Entity ent) {
+        if (regalloc == null) return null;
+        return regalloc.registerOf(ent);
+    }
+
+    private void loadRegisterParameters(List<CBCParameter> params) {
+        for (CBCParameter param : params) {
+            Register reg = registerOf(param);
+            if (reg != null) {
+                load(param.memref(), reg);
+            }
+        }
+    }
+
+    /**
+     * Returns a register which is free in the current statement,
+     * to keep a temporary value instead of the virtual stack.
+     * Returns null if no register is free.
+     */
+    private Register acquireTempRegister() {
+        if (regalloc == null) return null;
+        for (Register reg : regalloc.freeRegisters(stmtIndex)) {
+            if (! tempRegisters.contains(reg)) {
+                tempRegisters.add(reg);
+                return reg;
+            }
+        }
+        return null;
+    }
+
+    private void releaseTempRegister(Register reg) {
+        tempRegisters.remove(reg);
+    }
+
     // does NOT include BP
     // #@@range/usedCalleeSaveRegisters{
     private List<Register> usedCalleeSaveRegisters(AssemblyCode body) {
@@ -534,12 +669,62 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         if (options.isPositionIndependent() && body.doesUses(GOTBaseReg())) {
             loadGOTBaseAddress(file, GOTBaseReg());
         }
+        Map.Entry<Symbol, Label> last = trailingSiblingCall(body.assemblies());
         file.addAll(body.assemblies());
-        epilogue(file, frame.saveRegs);
+        if (last == null) {
+            epilogue(file, frame.saveRegs);
+        }
         file.virtualStack.fixOffset(0);
+        if (last != null) {
+            if (Statistics.collect(body.assemblies())
+                    .doesSymbolUsed(last.getValue())) {
+                file.label(last.getValue());
+            }
+            siblingCallExit(file, last.getKey(), frame.saveRegs);
+        }
+        for (Map.Entry<Symbol, Label> ent : siblingCalls.entrySet()) {
+            if (ent.equals(last)) continue;
+            file.label(ent.getValue());
+            siblingCallExit(file, ent.getKey(), frame.saveRegs);
+        }
     }
     // #@@}
 
+    /**
+     * Returns the sibling call which ASMS ends with, if the epilogue
+     * is unreachable, and removes its jump; the exit follows instead.
+     * Returns null otherwise.
+     */
+    private Map.Entry<Symbol, Label> trailingSiblingCall(List<Assembly> asms) {
+        if (asms.contains(epilogue)) return null;
+        for (int i = asms.size() - 1; i >= 0; i--) {
+            Assembly asm = asms.get(i);
+            if (asm.isComment()) continue;
+            if (! asm.isInstruction()) return null;
+            Instruction insn = (Instruction)asm;
+            if (! insn.mnemonic().equals("jmp")) return null;
+            for (Map.Entry<Symbol, Label> ent : siblingCalls.entrySet()) {
+                if (ent.getValue().symbol() == insn.jmpDestination()) {
+                    asms.remove(i);
+                    return ent;
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private void siblingCallExit(AssemblyCode file,
+            Symbol target, List<Register> savedRegs) {
+        leaveFrame(file, savedRegs);
+        if (target != null) {
+            file.jmp(target);
+        }
+        else {
+            file.jmpAbsolute(ax());
+        }
+    }
+
     // #@@range/prologue{
     private void prologue(AssemblyCode file,
             List<Register> saveRegs, long frameSize) {
@@ -563,6 +748,19 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
     // #@@}
 
+    /**
+     * Restores registers saved by the prologue and the stack,
+     * as the epilogue does, but does not return.
+     */
+    private void leaveFrame(AssemblyCode file, List<Register> savedRegs) {
+        for (int i = savedRegs.size() - 1; i >= 0; i--) {
+            file.mov(mem(-stackSizeFromWordNum(i + 1), bp()),
+                    savedRegs.get(i));
+        }
+        file.mov(bp(), sp());
+        file.pop(bp());
+    }
+
     // #@@range/locateParameters{
     static final private long PARAM_START_WORD = 2;
                                     // return addr and saved bp
@@ -589,6 +787,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         // #@@range/locateLocalVariables_loc{
         long len = parentStackLen;
         for (DefinedVariable var : scope.localVariables()) {
+            if (registerOf(var) != null) continue;
             len = alignStack(len + var.allocSize());
             var.setMemref(relocatableMem(-len, bp()));
         }
@@ -614,6 +813,7 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     // #@@range/fixLocalVariableOffsets{
     private void fixLocalVariableOffsets(LocalScope scope, long len) {
         for (DefinedVariable var : scope.allLocalVariables()) {
+            if (registerOf(var) != null) continue;
             var.memref().fixOffset(-len);
         }
     }
@@ -667,6 +867,10 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
 
     // #@@range/Return{
     public Void visit(Return node) {
+        if (node.expr() instanceof Call && isSiblingCall((Call)node.expr())) {
+            compileSiblingCall((Call)node.expr());
+            return null;
+        }
         if (node.expr() != null) {
             compile(node.expr());
         }
@@ -675,6 +879,59 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     }
     // #@@}
 
+    /**
+     * Labels of sibling calls by the callee symbol, or null for
+     * a function pointer in %eax.  They are emitted after the
+     * epilogue, when the saved registers are known.
+     */
+    private final Map<Symbol, Label> siblingCalls =
+            new LinkedHashMap<Symbol, Label>();
+
+    /**
+     * Returns true if tail call NODE can jump to the callee in the
+     * frame of the caller: its arguments must fit in the caller's
+     * incoming argument area.  PLT entries need the GOT address in
+     * %ebx, which is restored before the jump, so they are excluded.
+     */
+    private boolean isSiblingCall(Call node) {
+        if (node.isStaticCall() && ! node.function().isPrivate()
+                && shouldUsePLT(node.function())) {
+            return false;
+        }
+        return node.numArgs() <= function.parameters().size();
+    }
+
+    /**
+     * Implements tail call NODE as a sibling call: the arguments
+     * are stored to the caller's incoming argument area, and the
+     * callee returns directly to the caller's caller.
+     */
+    private void compileSiblingCall(Call node) {
+        for (Expr arg : ListUtils.reverse(node.args())) {
+            compile(arg);
+            as.push(ax());
+        }
+        Symbol target = null;
+        if (node.isStaticCall()) {
+            target = node.function().callingSymbol();
+        }
+        else {
+            compile(node.expr());
+        }
+        // Arguments may refer to parameters, so they are copied
+        // only after all of them are computed.
+        for (int i = 0; i < node.numArgs(); i++) {
+            as.mov(mem(stackSizeFromWordNum(i), sp()), cx());
+            as.mov(cx(), mem(stackSizeFromWordNum(PARAM_START_WORD + i), bp()));
+        }
+        Label label = siblingCalls.get(target);
+        if (label == null) {
+            label = new Label();
+            siblingCalls.put(target, label);
+        }
+        as.jmp(label);
+    }
+
     //
     // Statements
     //
@@ -713,27 +970,713 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
 
     // #@@range/CJump{
     public Void visit(CJump node) {
-        compile(node.cond());
-        Type t = node.cond().type();
-        as.test(ax(t), ax(t));
-        as.jnz(node.thenLabel());
-        as.jmp(node.elseLabel());
+        Expr cond = node.cond();
+        Label thenLabel = node.thenLabel();
+        Label elseLabel = node.elseLabel();
+        while (cond instanceof Uni && ((Uni)cond).op() == Op.NOT) {
+            cond = ((Uni)cond).expr();
+            Label tmp = thenLabel;
+            thenLabel = elseLabel;
+            elseLabel = tmp;
+        }
+        if (cond instanceof Bin && ((Bin)cond).op().isComparison()) {
+            // Branches on flags of cmp, without setCC.
+            Bin bin = (Bin)cond;
+            Register reg = registerOf(bin.left());
+            if (selector != null && reg != null
+                    && bin.type() == naturalType
+                    && bin.right().type() == naturalType
+                    && selector.derives(bin.right(), SRC)) {
+                // Compares the register variable itself.
+                as.cmp(selector.reduce(bin.right(), SRC), reg);
+            }
+            else {
+                Operand right = compileOperands(bin);
+                as.cmp(right, ax(bin.type()));
+            }
+            branch(bin.op(), thenLabel, elseLabel);
+            return null;
+        }
+        Register reg = registerOf(cond);
+        if (reg != null) {
+            as.test(reg, reg);
+        }
+        else {
+            compile(cond);
+            Type t = cond.type();
+            as.test(ax(t), ax(t));
+        }
+        branch(Op.NEQ, thenLabel, elseLabel);
         return null;
     }
     // #@@}
 
+    /**
+     * Jumps to THENLABEL if flags satisfy comparison OP, or ELSELABEL
+     * otherwise.  Falls through if the destination follows.
+     */
+    private void branch(Op op, Label thenLabel, Label elseLabel) {
+        if (isNextLabel(thenLabel)) {
+            jumpIf(op.negated(), elseLabel);
+        }
+        else {
+            jumpIf(op, thenLabel);
+            if (! isNextLabel(elseLabel)) {
+                as.jmp(elseLabel);
+            }
+        }
+    }
+
+    private void jumpIf(Op op, Label label) {
+        switch (op) {
+        case EQ:        as.je (label); break;
+        case NEQ:       as.jne(label); break;
+        case S_GT:      as.jg (label); break;
+        case S_GTEQ:    as.jge(label); break;
+        case S_LT:      as.jl (label); break;
+        case S_LTEQ:    as.jle(label); break;
+        case U_GT:      as.ja (label); break;
+        case U_GTEQ:    as.jae(label); break;
+        case U_LT:      as.jb (label); break;
+        case U_LTEQ:    as.jbe(label); break;
+        default:
+            throw new Error("not a comparison: " + op);
+        }
+    }
+
+    /** Returns true if LABEL is defined right after the current statement. */
+    private boolean isNextLabel(Label label) {
+        for (int i = stmtIndex + 1; i < stmts.size(); i++) {
+            Stmt s = stmts.get(i);
+            if (! (s instanceof LabelStmt)) break;
+            if (((LabelStmt)s).label() == label) return true;
+        }
+        return false;
+    }
+
     public Void visit(Switch node) {
         compile(node.cond());
         Type t = node.cond().type();
-        for (Case c : node.cases()) {
-            as.mov(imm(c.value), cx());
-            as.cmp(cx(t), ax(t));
-            as.je(c.label);
+        if (node.cases().size() < SWITCH_MIN_DISPATCH_CASES) {
+            for (Case c : node.cases()) {
+                as.mov(imm(c.value), cx());
+                as.cmp(cx(t), ax(t));
+                as.je(c.label);
+            }
+            as.jmp(node.defaultLabel());
+            return null;
+        }
+        if (t.size() < naturalType.size()) {
+            as.movsx(ax(t), ax());
         }
-        as.jmp(node.defaultLabel());
+        List<Case> cases = sortedCases(node.cases(), t);
+        compileSwitchDispatch(cases, 0, cases.size(), node.defaultLabel());
         return null;
     }
 
+    // Fewer cases are compared one by one.
+    static private final int SWITCH_MIN_DISPATCH_CASES = 4;
+    // Jump tables must be at least 1/3 full.
+    static private final int SWITCH_TABLE_MAX_SPREAD = 3;
+
+    /** Returns CASES sorted by value, sign-extended from type T. */
+    private List<Case> sortedCases(List<Case> cases, Type t) {
+        List<Case> result = new ArrayList<Case>();
+        for (Case c : cases) {
+            result.add(new Case(signExtend(c.value, t), c.label));
+        }
+        Collections.sort(result, new Comparator<Case>() {
+            public int compare(Case x, Case y) {
+                return Long.compare(x.value, y.value);
+            }
+        });
+        return result;
+    }
+
+    static private long signExtend(long value, Type t) {
+        switch (t) {
+        case INT8:  return (byte)value;
+        case INT16: return (short)value;
+        case INT32: return (int)value;
+        default:    return value;
+        }
+    }
+
+    /**
+     * Jumps to the label of the value of %eax in CASES[from, to):
+     * by a jump table if the values are dense, or by a balanced
+     * binary decision tree, comparing a few cases at leaves.
+     */
+    private void compileSwitchDispatch(List<Case> cases,
+            int from, int to, Label defaultLabel) {
+        int n = to - from;
+        if (n < SWITCH_MIN_DISPATCH_CASES) {
+            for (Case c : cases.subList(from, to)) {
+                as.cmp(imm(c.value), ax());
+                as.je(c.label);
+            }
+            as.jmp(defaultLabel);
+            return;
+        }
+        long span = cases.get(to - 1).value - cases.get(from).value + 1;
+        if (span <= (long)n * SWITCH_TABLE_MAX_SPREAD) {
+            compileJumpTable(cases.subList(from, to), defaultLabel);
+            return;
+        }
+        int mid = from + n / 2;
+        Label upper = new Label();
+        as.cmp(imm(cases.get(mid).value), ax());
+        as.je(cases.get(mid).label);
+        as.jg(upper);
+        compileSwitchDispatch(cases, from, mid, defaultLabel);
+        as.label(upper);
+        compileSwitchDispatch(cases, mid + 1, to, defaultLabel);
+    }
+
+    /**
+     * Jumps through a table of labels in .rodata, indexed by
+     * %eax minus the minimum value.  In PIC, entries are offsets
+     * from the GOT.
+     */
+    private void compileJumpTable(List<Case> cases, Label defaultLabel) {
+        long min = cases.get(0).value;
+        long max = cases.get(cases.size() - 1).value;
+        if (min != 0) {
+            as.sub(imm(min), ax());
+        }
+        as.cmp(imm(max - min), ax());
+        as.ja(defaultLabel);
+        Label table = new Label();
+        long size = naturalType.size();
+        if (options.isPositionIndependent()) {
+            as.mov(new IndexedMemoryReference(localGOTSymbol(table.symbol()),
+                    GOTBaseReg(), ax(), size), ax());
+            as.add(GOTBaseReg(), ax());
+            as.jmpAbsolute(ax());
+        }
+        else {
+            as.jmpAbsolute(new IndexedMemoryReference(table.symbol(),
+                    null, ax(), size));
+        }
+        as._section(".rodata");
+        as._align(size);
+        as.label(table);
+        Iterator<Case> it = cases.iterator();
+        Case c = it.next();
+        for (long v = min; v <= max; v++) {
+            Label dest = defaultLabel;
+            if (c.value == v) {
+                dest = c.label;
+                if (it.hasNext()) c = it.next();
+            }
+            Symbol sym = dest.symbol();
+            if (options.isPositionIndependent()) {
+                sym = localGOTSymbol(sym);
+            }
+            as._long(sym);
+        }
+        as._text();
+    }
+
+    //
+    // Instruction selection (-O1)
+    //
+
+    // Nonterminals of the instruction selector
+    static private final int REG = 0;       // value in %eax
+    static private final int SREG = 1;      // value in %eax, keeping others
+    static private final int IMM = 2;       // immediate value
+    static private final int RVAR = 3;      // register variable
+    static private final int MEM = 4;       // variable in memory
+    static private final int SRC = 5;       // source operand
+    static private final int OPERANDS = 6;  // Bin: left in %eax, right operand
+    static private final int RIDX = 7;      // scaled register variable
+    static private final int CIDX = 8;      // scaled index in %eax
+    static private final int SIDX = 9;      // scaled index in %eax, keeping others
+    static private final int RAMODE = 10;   // address by register variables
+    static private final int AMODE = 11;    // address by %eax, %ecx and them
+    static private final int SAMODE = 12;   // address by %eax and them
+    static private final String[] NONTERMINALS = {
+        "REG", "SREG", "IMM", "RVAR", "MEM", "SRC", "OPERANDS",
+        "RIDX", "CIDX", "SIDX", "RAMODE", "AMODE", "SAMODE"
+    };
+
+    static private final Op[] SIMPLE_OPS = {
+        Op.ADD, Op.SUB, Op.MUL, Op.BIT_AND, Op.BIT_OR, Op.BIT_XOR,
+        Op.EQ, Op.NEQ, Op.S_GT, Op.S_GTEQ, Op.S_LT, Op.S_LTEQ,
+        Op.U_GT, Op.U_GTEQ, Op.U_LT, Op.U_LTEQ
+    };
+    static private final Op[] COMMUTATIVE_OPS = {
+        Op.ADD, Op.MUL, Op.BIT_AND, Op.BIT_OR, Op.BIT_XOR, Op.EQ, Op.NEQ
+    };
+    static private final Op[] SHIFT_OPS = {
+        Op.BIT_LSHIFT, Op.BIT_RSHIFT, Op.ARITH_RSHIFT
+    };
+    static private final Op[] ADD_OPS = { Op.ADD };
+    static private final Op[] DIV_OPS = {
+        Op.S_DIV, Op.U_DIV, Op.S_MOD, Op.U_MOD
+    };
+
+    private Selector selector;      // null if not optimized
+
+    /**
+     * Rules of x86 instruction selection.  Selects immediate and
+     * memory source operands, scaled-index addressing modes for loads
+     * and stores, and lea for address arithmetic.  Any node falls back
+     * to the visitor.  Constants are expected on the right of Bin,
+     * as ConstantFolder leaves them.
+     */
+    private class Selector extends InstructionSelector {
+        final Condition registerVar = new Condition() {
+            boolean test(Expr node) {
+                return registerOf(node) != null;
+            }
+        };
+        final Condition memoryVar = new Condition() {
+            boolean test(Expr node) {
+                return node.isVar() && registerOf(node) == null
+                        && node.memref() != null;
+            }
+        };
+        final Condition hasImmediate = new Condition() {
+            boolean test(Expr node) {
+                return node.asmValue() != null;
+            }
+        };
+        final Condition widening = new Condition() {
+            boolean test(Expr node) {
+                Uni cast = (Uni)node;
+                return cast.expr().type().size() < cast.type().size();
+            }
+        };
+        final Condition natural = new Condition() {
+            boolean test(Expr node) {
+                return node.type() == naturalType;
+            }
+        };
+        // Memory and register operands must have the size of
+        // the instruction.
+        final Condition naturalBin = new Condition() {
+            boolean test(Expr node) {
+                Bin bin = (Bin)node;
+                return bin.type() == naturalType
+                        && bin.left().type() == naturalType
+                        && bin.right().type() == naturalType;
+            }
+        };
+        final Condition constantDivisor = new Condition() {
+            boolean test(Expr node) {
+                Bin bin = (Bin)node;
+                return bin.type().size() <= naturalType.size()
+                        && divisorOf(bin) != 0;
+            }
+        };
+
+        final Action immediate = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                return node.asmValue();
+            }
+        };
+        final Action registerVariable = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                return registerOf(node);
+            }
+        };
+        final Action memoryVariable = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                return node.memref();
+            }
+        };
+        final Action memoryOperand = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                return reduce(kids.get(0), RAMODE);
+            }
+        };
+        final Action loadConstant = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                loadConstant(node, ax());
+                return ax(node.type());
+            }
+        };
+        final Action loadVariable = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                loadVariable((Var)node, ax());
+                return ax(node.type());
+            }
+        };
+        final Action loadAddress = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                loadAddress(node.getEntityForce(), ax());
+                return ax(node.type());
+            }
+        };
+        final Action lea = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                as.lea(reduce(node, AMODE), ax());
+                return ax();
+            }
+        };
+        final Action binaryOp = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                Bin bin = (Bin)node;
+                compileBinaryOp(bin.op(), ax(bin.type()),
+                        reduce(node, OPERANDS));
+                return ax(bin.type());
+            }
+        };
+        final Action simpleBinaryOp = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                Bin bin = (Bin)node;
+                reduce(kids.get(0), SREG);
+                compileBinaryOp(bin.op(), ax(bin.type()),
+                        reduce(kids.get(1), SRC));
+                return ax(bin.type());
+            }
+        };
+        final Action operands = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                compile(kids.get(0));
+                return reduce(kids.get(1), SRC);
+            }
+        };
+        final Action swappedOperands = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                compile(kids.get(1));
+                return reduce(kids.get(0), SRC);
+            }
+        };
+        // Right first, moved to %ecx
+        final Action registerOperands = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                compile(kids.get(1));
+                as.mov(ax(), cx());
+                reduce(kids.get(0), SREG);
+                return cx(node.type());
+            }
+        };
+        final Action divideByConstant = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                Bin bin = (Bin)node;
+                compile(kids.get(0));
+                compileDivisionByConstant(bin.op(), bin.type(),
+                        divisorOf(bin));
+                return ax(bin.type());
+            }
+        };
+        final Action fixedOperands = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                return compileFixedOperands((Bin)node);
+            }
+        };
+        final Action visit = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                node.accept(CodeGenerator.this);
+                return ax(node.type());
+            }
+        };
+        // Index first, moved to %ecx: (%eax,%ecx,s)
+        final Action simpleBaseComputedIndex = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                IndexedMemoryReference idx =
+                        (IndexedMemoryReference)reduce(kids.get(1), CIDX);
+                as.mov(ax(), cx());
+                reduce(kids.get(0), SREG);
+                return indexed(ax(), index(cx(), idx.scale()));
+            }
+        };
+        // Base first, moved to %ecx: (%ecx,%eax,s)
+        final Action computedBaseSimpleIndex = new Action() {
+            Operand emit(Expr node, List<Expr> kids) {
+                compile(kids.get(0));
+                as.mov(ax(), cx());
+                return indexed(cx(), reduce(kids.get(1), SIDX));
+            }
+        };
+
+        /** Loads from the address of nonterminal NT. */
+        private class Load extends Action {
+            private final int nt;
+
+            Load(int nt) { this.nt = nt; }
+
+            Operand emit(Expr node, List<Expr> kids) {
+                load((MemoryReference)reduce(kids.get(0), nt),
+                        ax(node.type()));
+                return ax(node.type());
+            }
+        }
+
+        /** Loads and extends by the cast from the address of NT. */
+        private class LoadExtend extends Action {
+            private final int nt;
+
+            LoadExtend(int nt) { this.nt = nt; }
+
+            Operand emit(Expr node, List<Expr> kids) {
+                Uni cast = (Uni)node;
+                MemoryReference src =
+                        (MemoryReference)reduce(kids.get(0), nt);
+                if (cast.op() == Op.S_CAST) {
+                    as.movsx(src, cast.expr().type(), ax(cast.type()));
+                }
+                else {
+                    as.movzx(src, cast.expr().type(), ax(cast.type()));
+                }
+                return ax(cast.type());
+            }
+        }
+
+        /** Scaled index in the register of nonterminal NT. */
+        private class Index extends Action {
+            private final int nt;
+
+            Index(int nt) { this.nt = nt; }
+
+            Operand emit(Expr node, List<Expr> kids) {
+                Register reg = (Register)emitKid(kids.get(0), nt);
+                return index(reg.forType(naturalType),
+                        scaleOf(node, kids.get(0)));
+            }
+        }
+
+        /** "(reg)" by the register of nonterminal NT. */
+        private class Base extends Action {
+            private final int nt;
+
+            Base(int nt) { this.nt = nt; }
+
+            Operand emit(Expr node, List<Expr> kids) {
+                Register reg = (Register)emitKid(node, nt);
+                return mem(reg.forType(naturalType));
+            }
+        }
+
+        /**
+         * "(base,index,s)" where at most one of BASE and INDEX emits
+         * code.  It is emitted first.
+         */
+        private class BaseIndex extends Action {
+            private final int base;
+            private final int index;
+
+            BaseIndex(int base, int index) {
+                this.base = base;
+                this.index = index;
+            }
+
+            Operand emit(Expr node, List<Expr> kids) {
+                if (base == RVAR) {
+                    Operand idx = emitKid(kids.get(1), index);
+                    return indexed((Register)reduce(kids.get(0), RVAR), idx);
+                }
+                emitKid(kids.get(0), base);
+                return indexed(ax(), reduce(kids.get(1), index));
+            }
+        }
+
+        /** Address of nonterminal NT displaced by the constant. */
+        private class Displacement extends Action {
+            private final int nt;
+
+            Displacement(int nt) { this.nt = nt; }
+
+            Operand emit(Expr node, List<Expr> kids) {
+                return displaced((MemoryReference)reduce(kids.get(0), nt),
+                        ((Int)((Bin)node).right()).value());
+            }
+        }
+
+        Selector() {
+            super(NONTERMINALS);
+            // Leaves
+            rule(IMM,  node(Int.class), 0, immediate);
+            rule(IMM,  node(Str.class).where(hasImmediate), 0, immediate);
+            rule(RVAR, node(Var.class).where(registerVar), 0,
+                    registerVariable);
+            rule(MEM,  node(Var.class).where(memoryVar), 0, memoryVariable);
+
+            // Source operands
+            rule(SRC, nt(IMM), 0, null);
+            rule(SRC, nt(RVAR).where(natural), 0, null);
+            rule(SRC, nt(MEM), 0, null);
+            rule(SRC, deref(nt(RAMODE)), 0, memoryOperand);
+
+            // Values in %eax, keeping other registers
+            rule(SREG, nt(IMM), 1, loadConstant);
+            rule(SREG, node(Str.class), 1, loadConstant);
+            rule(SREG, node(Var.class), 1, loadVariable);
+            rule(SREG, node(Addr.class), 1, loadAddress);
+            rule(SREG, deref(nt(SAMODE)), 1, new Load(SAMODE));
+            addLoadExtendRules(SREG, SAMODE);
+            rule(SREG, bin(SIMPLE_OPS, nt(SREG), nt(SRC)).where(naturalBin),
+                    1, simpleBinaryOp);
+            rule(SREG, bin(SHIFT_OPS, nt(SREG), nt(IMM)).where(naturalBin),
+                    1, simpleBinaryOp);
+
+            // Values in %eax
+            rule(REG, nt(SREG), 0, null);
+            rule(REG, deref(nt(AMODE)), 1, new Load(AMODE));
+            addLoadExtendRules(REG, AMODE);
+            rule(REG, nt(OPERANDS), 1, binaryOp);
+            rule(REG, nt(AMODE).where(natural), 1, lea);
+            rule(REG, bin(DIV_OPS, nt(REG), node(Int.class))
+                    .where(constantDivisor), 1, divideByConstant);
+
+            // Operands of Bin
+            rule(OPERANDS, bin(SIMPLE_OPS, nt(REG), nt(SRC)).where(naturalBin),
+                    0, operands);
+            rule(OPERANDS,
+                    bin(COMMUTATIVE_OPS, nt(SRC), nt(REG)).where(naturalBin),
+                    0, swappedOperands);
+            rule(OPERANDS, bin(SHIFT_OPS, nt(REG), nt(IMM)).where(naturalBin),
+                    0, operands);
+            rule(OPERANDS, bin(nt(SREG), nt(REG)).where(naturalBin),
+                    1, registerOperands);
+            // Leaves on the right are loaded to %ecx directly.
+            rule(OPERANDS, bin(nt(REG), node(Int.class)), 1, fixedOperands);
+            rule(OPERANDS, bin(nt(REG), node(Str.class)), 1, fixedOperands);
+            rule(OPERANDS, bin(nt(REG), node(Var.class)), 1, fixedOperands);
+            rule(OPERANDS, bin(nt(REG), node(Addr.class)), 1, fixedOperands);
+            rule(new Rule(OPERANDS, node(Bin.class), 2, fixedOperands) {
+                int cost(Expr node) {
+                    return cost + childrenCost(node, REG);
+                }
+            });
+
+            // Scaled indexes
+            addIndexRules(RIDX, RVAR);
+            addIndexRules(CIDX, REG);
+            addIndexRules(SIDX, SREG);
+
+            // Addressing modes
+            rule(RAMODE, nt(RVAR).where(natural), 0, new Base(RVAR));
+            rule(RAMODE, nt(RIDX), 0, null);
+            commutativeRule(RAMODE, ADD_OPS, nt(RVAR), nt(RIDX), 0,
+                    new BaseIndex(RVAR, RIDX));
+            rule(RAMODE, plusConstant(nt(RAMODE)), 0,
+                    new Displacement(RAMODE));
+
+            rule(SAMODE, nt(RAMODE), 0, null);
+            rule(SAMODE, nt(SREG).where(natural), 0, new Base(SREG));
+            rule(SAMODE, nt(SIDX), 0, null);
+            commutativeRule(SAMODE, ADD_OPS, nt(SREG), nt(RIDX), 0,
+                    new BaseIndex(SREG, RIDX));
+            commutativeRule(SAMODE, ADD_OPS, nt(RVAR), nt(SIDX), 0,
+                    new BaseIndex(RVAR, SIDX));
+            rule(SAMODE, plusConstant(nt(SAMODE)), 0,
+                    new Displacement(SAMODE));
+
+            rule(AMODE, nt(SAMODE), 0, null);
+            rule(AMODE, nt(REG).where(natural), 0, new Base(REG));
+            rule(AMODE, nt(CIDX), 0, null);
+            commutativeRule(AMODE, ADD_OPS, nt(REG), nt(RIDX), 0,
+                    new BaseIndex(REG, RIDX));
+            commutativeRule(AMODE, ADD_OPS, nt(RVAR), nt(CIDX), 0,
+                    new BaseIndex(RVAR, CIDX));
+            commutativeRule(AMODE, ADD_OPS, nt(SREG), nt(CIDX), 1,
+                    simpleBaseComputedIndex);
+            commutativeRule(AMODE, ADD_OPS, nt(REG), nt(SIDX), 1,
+                    computedBaseSimpleIndex);
+            rule(AMODE, plusConstant(nt(AMODE)), 0, new Displacement(AMODE));
+
+            // Anything else by the visitor
+            rule(new Rule(REG, any(), 2, visit) {
+                int cost(Expr node) {
+                    return cost + childrenCost(node, REG);
+                }
+            });
+        }
+
+        /** movsx and movzx from memory */
+        private void addLoadExtendRules(int lhs, int address) {
+            Action action = new LoadExtend(address);
+            rule(lhs, uni(Op.S_CAST, deref(nt(address))).where(widening),
+                    1, action);
+            rule(lhs, uni(Op.U_CAST, deref(nt(address))).where(widening),
+                    1, action);
+        }
+
+        /** index, index * 1, 2, 4, 8, index << 1, 2, 3 */
+        private void addIndexRules(int lhs, int index) {
+            Action action = new Index(index);
+            rule(lhs, nt(index).where(natural), 0, action);
+            rule(lhs, bin(Op.MUL, nt(index), intValue(1, 2, 4, 8))
+                    .where(natural), 0, action);
+            rule(lhs, bin(Op.BIT_LSHIFT, nt(index), intValue(1, 2, 3))
+                    .where(natural), 0, action);
+        }
+
+        private Pattern plusConstant(Pattern base) {
+            return bin(Op.ADD, base, node(Int.class)).where(natural);
+        }
+
+        /** Returns the scale of index NODE, whose kid is INDEX. */
+        private long scaleOf(Expr node, Expr index) {
+            if (node == index) return 1;
+            Bin bin = (Bin)node;
+            long n = ((Int)bin.right()).value();
+            return (bin.op() == Op.MUL) ? n : (1 << n);
+        }
+
+        /** Reduces KID to NT; REG is compiled as an expression. */
+        private Operand emitKid(Expr kid, int nt) {
+            if (nt == REG) {
+                compile(kid);
+                return ax(kid.type());
+            }
+            return reduce(kid, nt);
+        }
+    }
+
+    /** Returns a scaled index "(,reg,scale)" to be combined with a base. */
+    private IndexedMemoryReference index(Register reg, long scale) {
+        return new IndexedMemoryReference(new IntegerLiteral(0),
+                null, reg, scale);
+    }
+
+    private IndexedMemoryReference indexed(Register base, Operand index) {
+        IndexedMemoryReference idx = (IndexedMemoryReference)index;
+        return new IndexedMemoryReference(idx.offset(),
+                base, idx.index(), idx.scale());
+    }
+
+    private boolean usesRegister(MemoryReference mem, Register reg) {
+        if (mem instanceof IndexedMemoryReference) {
+            IndexedMemoryReference m = (IndexedMemoryReference)mem;
+            return reg.equals(m.base()) || reg.equals(m.index());
+        }
+        return reg.equals(((IndirectMemoryReference)mem).base());
+    }
+
+    /** Returns MEM whose register FROM is replaced by TO. */
+    private MemoryReference replaceRegister(MemoryReference mem,
+            Register from, Register to) {
+        if (mem instanceof IndexedMemoryReference) {
+            IndexedMemoryReference m = (IndexedMemoryReference)mem;
+            return new IndexedMemoryReference(m.offset(),
+                    from.equals(m.base()) ? to : m.base(),
+                    from.equals(m.index()) ? to : m.index(), m.scale());
+        }
+        IndirectMemoryReference m = (IndirectMemoryReference)mem;
+        return new IndirectMemoryReference(
+                ((IntegerLiteral)m.offset()).value(),
+                from.equals(m.base()) ? to : m.base());
+    }
+
+    /** Returns MEM displaced by N bytes. */
+    private MemoryReference displaced(MemoryReference mem, long n) {
+        if (mem instanceof IndexedMemoryReference) {
+            IndexedMemoryReference m = (IndexedMemoryReference)mem;
+            return new IndexedMemoryReference(m.offset().plus(n),
+                    m.base(), m.index(), m.scale());
+        }
+        else {
+            IndirectMemoryReference m = (IndirectMemoryReference)mem;
+            return new IndirectMemoryReference(
+                    ((IntegerLiteral)m.offset()).value() + n, m.base());
+        }
+    }
+
     //
     // Expressions
     //
@@ -744,7 +1687,12 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             as.comment(n.getClass().getSimpleName() + " {");
             as.indentComment();
         }
-        n.accept(this);
+        if (selector != null) {
+            selector.reduce(n, REG);
+        }
+        else {
+            n.accept(this);
+        }
         if (options.isVerboseAsm()) {
             as.unindentComment();
             as.comment("}");
@@ -758,26 +1706,54 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         Op op = node.op();
         Type t = node.type();
         // #@@}
+        compileBinaryOp(op, ax(t), compileOperands(node));
+        return null;
+    }
+    // #@@}
+
+    /**
+     * Compiles the left operand of NODE to %eax, and returns the right
+     * operand as an immediate value, a register or a memory reference.
+     */
+    private Operand compileOperands(Bin node) {
+        if (selector != null) {
+            return selector.reduce(node, OPERANDS);
+        }
+        return compileFixedOperands(node);
+    }
+
+    /**
+     * Compiles operands by a few fixed shapes.  The right operand is
+     * an immediate value or a register.
+     */
+    private Operand compileFixedOperands(Bin node) {
+        Op op = node.op();
+        Type t = node.type();
         if (node.right().isConstant() && !doesRequireRegisterOperand(op)) {
             // #@@range/Bin_const{
             compile(node.left());
-            compileBinaryOp(op, ax(t), node.right().asmValue());
+            return node.right().asmValue();
             // #@@}
         }
         else if (node.right().isConstant()) {
             compile(node.left());
             loadConstant(node.right(), cx());
-            compileBinaryOp(op, ax(t), cx(t));
+            return cx(t);
         }
         else if (node.right().isVar()) {
             compile(node.left());
+            Register reg = registerOf(node.right());
+            if (reg != null && t == naturalType
+                    && !doesRequireRegisterOperand(op)) {
+                return reg;
+            }
             loadVariable((Var)node.right(), cx(t));
-            compileBinaryOp(op, ax(t), cx(t));
+            return cx(t);
         }
         else if (node.right().isAddr()) {
             compile(node.left());
             loadAddress(node.right().getEntityForce(), cx(t));
-            compileBinaryOp(op, ax(t), cx(t));
+            return cx(t);
         }
         else if (node.left().isConstant()
                 || node.left().isVar()
@@ -785,20 +1761,27 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             compile(node.right());
             as.mov(ax(), cx());
             compile(node.left());
-            compileBinaryOp(op, ax(t), cx(t));
+            return cx(t);
         }
         else {
             // #@@range/Bin_generic{
             compile(node.right());
-            as.virtualPush(ax());
-            compile(node.left());
-            as.virtualPop(cx());
-            compileBinaryOp(op, ax(t), cx(t));
+            Register tmp = acquireTempRegister();
+            if (tmp != null) {
+                as.mov(ax(), tmp);
+                compile(node.left());
+                as.mov(tmp, cx());
+                releaseTempRegister(tmp);
+            }
+            else {
+                as.virtualPush(ax());
+                compile(node.left());
+                as.virtualPop(cx());
+            }
+            return cx(t);
             // #@@}
         }
-        return null;
     }
-    // #@@}
 
     // #@@range/doesRequireRegisterOperand{
     private boolean doesRequireRegisterOperand(Op op) {
@@ -861,13 +1844,13 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
             as.xor(right, left);
             break;
         case BIT_LSHIFT:
-            as.sal(cl(), left);
+            as.sal(shiftCount(right), left);
             break;
         case BIT_RSHIFT:
-            as.shr(cl(), left);
+            as.shr(shiftCount(right), left);
             break;
         case ARITH_RSHIFT:
-            as.sar(cl(), left);
+            as.sar(shiftCount(right), left);
             break;
         // #@@}
         // #@@range/compileBinaryOp_cmpops{
@@ -893,6 +1876,122 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         // #@@}
     }
 
+    /**
+     * Returns the constant right operand of division NODE, sign or
+     * zero extended from the type of NODE.
+     */
+    private long divisorOf(Bin node) {
+        long d = ((Int)node.right()).value();
+        int bits = node.type().size() * 8;
+        if (node.op() == Op.S_DIV || node.op() == Op.S_MOD) {
+            return (d << (64 - bits)) >> (64 - bits);
+        }
+        else {
+            return (d << (64 - bits)) >>> (64 - bits);
+        }
+    }
+
+    /**
+     * Compiles division or modulo of %eax by constant D without div:
+     * by shifts for powers of 2, otherwise by multiplication with
+     * the reciprocal.  Narrower types are extended to 32 bits first.
+     * Uses %ecx and %edx.
+     */
+    private void compileDivisionByConstant(Op op, Type t, long d) {
+        boolean signed = (op == Op.S_DIV || op == Op.S_MOD);
+        boolean mod = (op == Op.S_MOD || op == Op.U_MOD);
+        if (t != naturalType) {
+            if (signed) as.movsx(ax(t), ax());
+            else as.movzx(ax(t), ax());
+        }
+        long abs = Math.abs(d);
+        if (abs == 1) {
+            if (mod) as.mov(imm(0), ax());
+            else if (d < 0) as.neg(ax());
+            return;
+        }
+        int k = Long.numberOfTrailingZeros(abs);
+        if (abs == (1L << k)) {
+            if (! signed) {
+                if (mod) as.and(imm(abs - 1), ax());
+                else as.shr(imm(k), ax());
+                return;
+            }
+            // Biases negative dividends to round toward zero.
+            if (mod) as.mov(ax(), cx());
+            as.cltd();
+            as.and(imm(abs - 1), dx());
+            as.add(dx(), ax());
+            if (mod) {
+                as.and(imm((int)-abs), ax());
+                as.sub(ax(), cx());
+                as.mov(cx(), ax());
+            }
+            else {
+                as.sar(imm(k), ax());
+                if (d < 0) as.neg(ax());
+            }
+            return;
+        }
+        as.mov(ax(), cx());
+        if (signed) {
+            compileSignedQuotient(d);
+        }
+        else {
+            compileUnsignedQuotient(d);
+        }
+        if (mod) {
+            as.imul(imm((int)d), ax());
+            as.sub(ax(), cx());
+            as.mov(cx(), ax());
+        }
+    }
+
+    /** %eax = %ecx / D, D > 2 and not a power of 2. */
+    private void compileUnsignedQuotient(long d) {
+        if (d > Integer.MAX_VALUE) {
+            as.cmp(imm((int)d), ax());
+            as.setae(al());
+            as.movzx(al(), ax());
+            return;
+        }
+        MagicNumber m = MagicNumber.unsigned(d);
+        as.mov(imm((int)m.multiplier), dx());
+        as.mul(dx());
+        if (m.add) {
+            // ((n - hi) / 2 + hi) >> (s - 1)
+            as.mov(cx(), ax());
+            as.sub(dx(), ax());
+            as.shr(imm(1), ax());
+            as.add(dx(), ax());
+            if (m.shift > 1) as.shr(imm(m.shift - 1), ax());
+        }
+        else {
+            as.mov(dx(), ax());
+            if (m.shift > 0) as.shr(imm(m.shift), ax());
+        }
+    }
+
+    /** %eax = %ecx / D, |D| > 2 and not a power of 2. */
+    private void compileSignedQuotient(long d) {
+        MagicNumber m = MagicNumber.signed(Math.abs(d));
+        as.mov(imm((int)m.multiplier), dx());
+        as.imul(dx());
+        as.mov(dx(), ax());
+        if (m.add) as.add(cx(), ax());
+        if (m.shift > 0) as.sar(imm(m.shift), ax());
+        // Rounds toward zero: +1 if the dividend is negative.
+        as.mov(cx(), dx());
+        as.shr(imm(31), dx());
+        as.add(dx(), ax());
+        if (d < 0) as.neg(ax());
+    }
+
+    /** Shift count is an immediate value or %cl. */
+    private Operand shiftCount(Operand right) {
+        return right.isRegister() ? cl() : right;
+    }
+
     // #@@range/Uni{
     public Void visit(Uni node) {
         Type src = node.expr().type();
@@ -953,7 +2052,22 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
 
     // #@@range/Assign{
     public Void visit(Assign node) {
-        if (node.lhs().isAddr() && node.lhs().memref() != null) {
+        // LHS is an address; Addr means the variable itself.
+        Register reg = node.lhs().isAddr()
+                ? registerOf(node.lhs().getEntityForce()) : null;
+        if (reg != null) {
+            if (node.rhs().isConstant()) {
+                loadConstant(node.rhs(), reg);
+            }
+            else {
+                compile(node.rhs());
+                as.mov(ax(), reg);
+            }
+        }
+        else if (selector != null) {
+            compileStore(node);
+        }
+        else if (node.lhs().isAddr() && node.lhs().memref() != null) {
             compile(node.rhs());
             store(ax(node.lhs().type()), node.lhs().memref());
         }
@@ -965,16 +2079,87 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
         }
         else {
             compile(node.rhs());
-            as.virtualPush(ax());
-            compile(node.lhs());
-            as.mov(ax(), cx());
-            as.virtualPop(ax());
+            Register tmp = acquireTempRegister();
+            if (tmp != null) {
+                as.mov(ax(), tmp);
+                compile(node.lhs());
+                as.mov(ax(), cx());
+                as.mov(tmp, ax());
+                releaseTempRegister(tmp);
+            }
+            else {
+                as.virtualPush(ax());
+                compile(node.lhs());
+                as.mov(ax(), cx());
+                as.virtualPop(ax());
+            }
             store(ax(node.lhs().type()), mem(cx()));
         }
         return null;
     }
     // #@@}
 
+    /**
+     * Stores by the addressing mode selected for the LHS.  An immediate
+     * is stored directly.  Otherwise the value is stored from %eax if
+     * the address needs no code, or from %edx.
+     */
+    private void compileStore(Assign node) {
+        Expr lhs = node.lhs();
+        Type t = lhs.type();
+        MemoryReference dest = null;
+        if (lhs.isAddr() && lhs.memref() != null) {
+            dest = lhs.memref();
+        }
+        if (selector.derives(node.rhs(), IMM)) {
+            if (dest == null) {
+                dest = (MemoryReference)selector.reduce(lhs, AMODE);
+            }
+            as.mov((ImmediateValue)selector.reduce(node.rhs(), IMM), dest, t);
+        }
+        else if (dest != null || selector.derives(lhs, RAMODE)) {
+            compile(node.rhs());
+            if (dest == null) {
+                dest = (MemoryReference)selector.reduce(lhs, RAMODE);
+            }
+            store(ax(t), dest);
+        }
+        else if (selector.costOf(node.rhs(), SREG)
+                <= selector.costOf(node.rhs(), REG) + 1) {
+            // Address first; the value does not break %ecx and %edx.
+            dest = (MemoryReference)selector.reduce(lhs, AMODE);
+            if (usesRegister(dest, ax())) {
+                as.mov(ax(), dx());
+                dest = replaceRegister(dest, ax(), dx());
+            }
+            selector.reduce(node.rhs(), SREG);
+            store(ax(t), dest);
+        }
+        else if (selector.derives(lhs, SAMODE)) {
+            // The address does not break %edx.
+            compile(node.rhs());
+            as.mov(ax(), dx());
+            dest = (MemoryReference)selector.reduce(lhs, SAMODE);
+            store(dx(t), dest);
+        }
+        else {
+            compile(node.rhs());
+            Register tmp = acquireTempRegister();
+            if (tmp != null) {
+                as.mov(ax(), tmp);
+                dest = (MemoryReference)selector.reduce(lhs, AMODE);
+                as.mov(tmp, dx());
+                releaseTempRegister(tmp);
+            }
+            else {
+                as.virtualPush(ax());
+                dest = (MemoryReference)selector.reduce(lhs, AMODE);
+                as.virtualPop(dx());
+            }
+            store(dx(t), dest);
+        }
+    }
+
     // #@@range/Mem{
     public Void visit(Mem node) {
         compile(node.expr());
@@ -1015,7 +2200,11 @@ public class CodeGenerator implements net.loveruby.cflat.sysdep.CodeGenerator,
     /** Loads variable content to the register. */
     // #@@range/loadVariable{
     private void loadVariable(Var var, Register dest) {
-        if (var.memref() == null) {
+        Register reg = registerOf(var);
+        if (reg != null) {
+            as.mov(reg, dest.forType(naturalType));
+        }
+        else if (var.memref() == null) {
             Register a = dest.forType(naturalType);
             as.mov(var.address(), a);
             load(mem(a), dest.forType(var.type()));
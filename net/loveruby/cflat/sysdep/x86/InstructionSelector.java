@@ -0,0 +1,321 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.asm.Operand;
+import java.util.*;
+
+/**
+ * Cost-based tree pattern matcher over IR expressions (BURS).
+ *
+ * A rule "N <- pattern [cost]" derives nonterminal N from a tree
+ * matching the pattern; nonterminal leaves of the pattern are the
+ * kids of the rule.  A chain rule "N <- M" derives N from M of the
+ * same node.  #label computes bottom-up, for each node and
+ * nonterminal, the rule of the least total cost; #reduce then emits
+ * code top-down by the chosen rules.
+ *
+ * Subclasses give the rule table by #rule.  On a tie, the rule given
+ * first wins.
+ */
+abstract class InstructionSelector {
+    static final int INFINITE_COST = Integer.MAX_VALUE / 4;
+
+    /** Condition on the node matched by a pattern. */
+    abstract static class Condition {
+        abstract boolean test(Expr node);
+    }
+
+    /** Emits code for NODE and returns its operand. */
+    abstract static class Action {
+        abstract Operand emit(Expr node, List<Expr> kids);
+    }
+
+    static final class Pattern {
+        final Class<? extends Expr> nodeClass;  // null matches any node
+        final Op[] ops;                         // Bin and Uni
+        final long[] values;                    // Int
+        final int nonTerminal;                  // -1 if not a leaf
+        final Pattern[] children;
+        Condition condition;
+
+        private Pattern(Class<? extends Expr> nodeClass, Op[] ops,
+                long[] values, int nonTerminal, Pattern... children) {
+            this.nodeClass = nodeClass;
+            this.ops = ops;
+            this.values = values;
+            this.nonTerminal = nonTerminal;
+            this.children = children;
+        }
+
+        /** Adds condition C to this pattern. */
+        Pattern where(Condition c) {
+            this.condition = c;
+            return this;
+        }
+
+        boolean isNonTerminal() {
+            return nonTerminal >= 0;
+        }
+
+        int numKids() {
+            if (isNonTerminal()) return 1;
+            int n = 0;
+            for (Pattern p : children) {
+                n += p.numKids();
+            }
+            return n;
+        }
+
+        boolean match(Expr node, List<Expr> kids, List<Integer> nts) {
+            if (isNonTerminal()) {
+                if (condition != null && ! condition.test(node)) return false;
+                kids.add(node);
+                nts.add(nonTerminal);
+                return true;
+            }
+            if (nodeClass != null && ! nodeClass.isInstance(node)) {
+                return false;
+            }
+            if (ops != null && ! Arrays.asList(ops).contains(opOf(node))) {
+                return false;
+            }
+            if (values != null && ! contains(values, ((Int)node).value())) {
+                return false;
+            }
+            if (children.length > 0) {
+                List<Expr> exprs = InstructionSelector.children(node);
+                if (exprs.size() != children.length) return false;
+                for (int i = 0; i < children.length; i++) {
+                    if (! children[i].match(exprs.get(i), kids, nts)) {
+                        return false;
+                    }
+                }
+            }
+            return condition == null || condition.test(node);
+        }
+
+        static private Op opOf(Expr node) {
+            if (node instanceof Bin) return ((Bin)node).op();
+            if (node instanceof Uni) return ((Uni)node).op();
+            return null;
+        }
+
+        static private boolean contains(long[] values, long n) {
+            for (long v : values) {
+                if (v == n) return true;
+            }
+            return false;
+        }
+    }
+
+    static Pattern nt(int nonTerminal) {
+        return new Pattern(null, null, null, nonTerminal);
+    }
+
+    static Pattern any() {
+        return new Pattern(null, null, null, -1);
+    }
+
+    static Pattern node(Class<? extends Expr> nodeClass) {
+        return new Pattern(nodeClass, null, null, -1);
+    }
+
+    static Pattern intValue(long... values) {
+        return new Pattern(Int.class, null, values, -1);
+    }
+
+    /** Bin of any operator. */
+    static Pattern bin(Pattern left, Pattern right) {
+        return bin((Op[])null, left, right);
+    }
+
+    static Pattern bin(Op op, Pattern left, Pattern right) {
+        return bin(new Op[] { op }, left, right);
+    }
+
+    /** Bin of one of OPS, or any operator if OPS is null. */
+    static Pattern bin(Op[] ops, Pattern left, Pattern right) {
+        return new Pattern(Bin.class, ops, null, -1, left, right);
+    }
+
+    static Pattern uni(Op op, Pattern expr) {
+        return new Pattern(Uni.class, new Op[] { op }, null, -1, expr);
+    }
+
+    static Pattern deref(Pattern expr) {
+        return new Pattern(Mem.class, null, null, -1, expr);
+    }
+
+    static class Rule {
+        final int lhs;
+        final Pattern pattern;
+        final int cost;
+        final Action action;    // null passes the operand of a chain rule
+        int rotation;           // kids are rotated left by this
+
+        Rule(int lhs, Pattern pattern, int cost, Action action) {
+            this.lhs = lhs;
+            this.pattern = pattern;
+            this.cost = cost;
+            this.action = action;
+        }
+
+        boolean isChainRule() {
+            return pattern.isNonTerminal();
+        }
+
+        /** Cost of this rule for NODE, excluding its kids. */
+        int cost(Expr node) {
+            return cost;
+        }
+    }
+
+    static private final class State {
+        final int[] costs;
+        final Rule[] rules;
+
+        State(int numNonTerminals) {
+            costs = new int[numNonTerminals];
+            rules = new Rule[numNonTerminals];
+            Arrays.fill(costs, INFINITE_COST);
+        }
+
+        boolean update(Rule rule, int cost) {
+            if (cost >= costs[rule.lhs]) return false;
+            costs[rule.lhs] = cost;
+            rules[rule.lhs] = rule;
+            return true;
+        }
+    }
+
+    private final String[] nonTerminalNames;
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final Map<Expr, State> states = new IdentityHashMap<Expr, State>();
+
+    InstructionSelector(String[] nonTerminalNames) {
+        this.nonTerminalNames = nonTerminalNames;
+    }
+
+    protected Rule rule(int lhs, Pattern pattern, int cost, Action action) {
+        Rule r = new Rule(lhs, pattern, cost, action);
+        rules.add(r);
+        return r;
+    }
+
+    protected Rule rule(Rule r) {
+        rules.add(r);
+        return r;
+    }
+
+    /**
+     * Adds rules for both "op(left, right)" and "op(right, left)".
+     * The action receives kids in the order of the former.
+     */
+    protected void commutativeRule(int lhs, Op[] ops,
+            Pattern left, Pattern right, int cost, Action action) {
+        rule(lhs, bin(ops, left, right), cost, action);
+        Rule swapped = rule(lhs, bin(ops, right, left), cost, action);
+        swapped.rotation = right.numKids();
+    }
+
+    /** Forgets labels. */
+    void clear() {
+        states.clear();
+    }
+
+    /** Returns true if NODE can be derived as nonterminal NT. */
+    boolean derives(Expr node, int nt) {
+        return label(node).costs[nt] < INFINITE_COST;
+    }
+
+    int costOf(Expr node, int nt) {
+        return label(node).costs[nt];
+    }
+
+    /** Sum of costs of children of NODE as nonterminal NT. */
+    int childrenCost(Expr node, int nt) {
+        int cost = 0;
+        for (Expr child : children(node)) {
+            cost += costOf(child, nt);
+        }
+        return cost;
+    }
+
+    /** Emits code for NODE as nonterminal NT by the cheapest rule. */
+    Operand reduce(Expr node, int nt) {
+        Rule rule = label(node).rules[nt];
+        if (rule == null) {
+            throw new Error("no rule to derive "
+                    + node.getClass().getSimpleName()
+                    + " as " + nonTerminalNames[nt]);
+        }
+        if (rule.action == null) {
+            return reduce(node, rule.pattern.nonTerminal);
+        }
+        return rule.action.emit(node, kidsOf(rule, node));
+    }
+
+    private List<Expr> kidsOf(Rule rule, Expr node) {
+        List<Expr> kids = new ArrayList<Expr>();
+        rule.pattern.match(node, kids, new ArrayList<Integer>());
+        Collections.rotate(kids, -rule.rotation);
+        return kids;
+    }
+
+    private State label(Expr node) {
+        State s = states.get(node);
+        if (s != null) return s;
+        for (Expr child : children(node)) {
+            label(child);
+        }
+        s = new State(nonTerminalNames.length);
+        List<Expr> kids = new ArrayList<Expr>();
+        List<Integer> nts = new ArrayList<Integer>();
+        for (Rule r : rules) {
+            if (r.isChainRule()) continue;
+            kids.clear();
+            nts.clear();
+            if (! r.pattern.match(node, kids, nts)) continue;
+            int cost = r.cost(node);
+            for (int i = 0; i < kids.size(); i++) {
+                cost += label(kids.get(i)).costs[nts.get(i)];
+            }
+            s.update(r, cost);
+        }
+        // Chain rules, until no cost decreases.
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule r : rules) {
+                if (! r.isChainRule()) continue;
+                Condition c = r.pattern.condition;
+                if (c != null && ! c.test(node)) continue;
+                int from = s.costs[r.pattern.nonTerminal];
+                if (from >= INFINITE_COST) continue;
+                changed |= s.update(r, from + r.cost(node));
+            }
+        }
+        states.put(node, s);
+        return s;
+    }
+
+    static List<Expr> children(Expr node) {
+        if (node instanceof Bin) {
+            return Arrays.asList(((Bin)node).left(), ((Bin)node).right());
+        }
+        else if (node instanceof Uni) {
+            return Collections.singletonList(((Uni)node).expr());
+        }
+        else if (node instanceof Mem) {
+            return Collections.singletonList(((Mem)node).expr());
+        }
+        else if (node instanceof Call) {
+            List<Expr> result = new ArrayList<Expr>();
+            result.add(((Call)node).expr());
+            result.addAll(((Call)node).args());
+            return result;
+        }
+        else {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.ir.*;
+import net.loveruby.cflat.entity.*;
+import net.loveruby.cflat.asm.Label;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+
+/**
+ * Linear-scan register allocator (Poletto and Sarkar) for -O2.
+ *
+ * Keeps local variables, IR temporaries and parameters of a function
+ * in registers.  A variable is a candidate if it is a word-sized
+ * scalar and its address is never taken; assignments to it
+ * (Assign with Addr lhs) are not address-taking.
+ *
+ * A live interval is the range of statement indexes of the IR which
+ * refer to the variable, extended to cover every loop (a backward
+ * jump and its target label) it overlaps.  Parameters are live
+ * from the function entry, where they are loaded.
+ * When registers run out, the interval which ends last is spilled
+ * and stays in its stack slot.
+ *
+ * Functions calling setjmp are not allocated, since longjmp restores
+ * callee-saved registers to their values at setjmp.
+ */
+class LinearScanAllocator implements IRVisitor<Void,Void> {
+    static private final String[] RETURNS_TWICE = {
+        "setjmp", "_setjmp", "sigsetjmp", "__sigsetjmp"
+    };
+
+    static private final class Interval {
+        final Entity entity;
+        int start;
+        int end;
+        Register register;
+
+        Interval(Entity entity, int pos) {
+            this.entity = entity;
+            this.start = pos;
+            this.end = pos;
+        }
+
+        boolean overlaps(int from, int to) {
+            return start <= to && end >= from;
+        }
+    }
+
+    private final List<Register> registers;
+    private final Type naturalType;
+    private final Map<Entity, Interval> intervals =
+            new LinkedHashMap<Entity, Interval>();
+    private final Set<Entity> addressTaken = new HashSet<Entity>();
+    private final Map<Label, Integer> labelPositions =
+            new HashMap<Label, Integer>();
+    private final List<Label> jumpTargets = new ArrayList<Label>();
+    private final List<Integer> jumpPositions = new ArrayList<Integer>();
+    private final List<Interval> allocated = new ArrayList<Interval>();
+    private boolean callsReturnsTwice = false;
+    private int position;
+
+    /** REGISTERS must be preserved by function calls. */
+    LinearScanAllocator(List<Register> registers, Type naturalType) {
+        this.registers = registers;
+        this.naturalType = naturalType;
+    }
+
+    void allocate(DefinedFunction func) {
+        for (CBCParameter param : func.parameters()) {
+            if (isCandidate(param)) {
+                intervals.put(param, null);
+            }
+        }
+        for (DefinedVariable var : func.localVariables()) {
+            if (isCandidate(var)) {
+                intervals.put(var, null);
+            }
+        }
+        position = 0;
+        for (Stmt stmt : func.ir()) {
+            stmt.accept(this);
+            position++;
+        }
+        if (callsReturnsTwice || registers.isEmpty()) return;
+        List<Interval> list = liveIntervals(func);
+        extendOverLoops(list);
+        linearScan(list);
+    }
+
+    private boolean isCandidate(Entity ent) {
+        return ent.type().isScalar()
+                && ent.type().size() == naturalType.size();
+    }
+
+    /** Returns the register of ENT, or null if ENT is in memory. */
+    Register registerOf(Entity ent) {
+        Interval i = intervals.get(ent);
+        return i == null ? null : i.register;
+    }
+
+    /** Returns allocated variables in the order of allocation. */
+    List<Entity> allocatedVariables() {
+        List<Entity> result = new ArrayList<Entity>();
+        for (Interval i : allocated) {
+            result.add(i.entity);
+        }
+        return result;
+    }
+
+    /**
+     * Returns registers which hold no variable during the statement
+     * at POS; they can keep temporary values in the statement.
+     */
+    List<Register> freeRegisters(int pos) {
+        List<Register> result = new ArrayList<Register>(registers);
+        for (Interval i : allocated) {
+            if (i.overlaps(pos, pos)) {
+                result.remove(i.register);
+            }
+        }
+        return result;
+    }
+
+    private List<Interval> liveIntervals(DefinedFunction func) {
+        for (Entity ent : addressTaken) {
+            intervals.remove(ent);
+        }
+        for (CBCParameter param : func.parameters()) {
+            Interval i = intervals.get(param);
+            if (i != null) {
+                i.start = 0;
+            }
+        }
+        List<Interval> list = new ArrayList<Interval>();
+        Iterator<Interval> it = intervals.values().iterator();
+        while (it.hasNext()) {
+            Interval i = it.next();
+            if (i == null) {
+                // Not referred.
+                it.remove();
+            }
+            else {
+                list.add(i);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Extends intervals which overlap a loop to the whole loop,
+     * since values must survive to the next iteration.
+     */
+    private void extendOverLoops(List<Interval> list) {
+        List<int[]> loops = new ArrayList<int[]>();
+        for (int n = 0; n < jumpTargets.size(); n++) {
+            Integer target = labelPositions.get(jumpTargets.get(n));
+            int from = jumpPositions.get(n);
+            if (target != null && target <= from) {
+                loops.add(new int[] { target, from });
+            }
+        }
+        for (Interval i : list) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int[] loop : loops) {
+                    if (i.overlaps(loop[0], loop[1])
+                            && (i.start > loop[0] || i.end < loop[1])) {
+                        i.start = Math.min(i.start, loop[0]);
+                        i.end = Math.max(i.end, loop[1]);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void linearScan(List<Interval> list) {
+        Collections.sort(list, new Comparator<Interval>() {
+            public int compare(Interval x, Interval y) {
+                return Integer.compare(x.start, y.start);
+            }
+        });
+        // Active intervals, sorted by end.
+        LinkedList<Interval> active = new LinkedList<Interval>();
+        LinkedList<Register> free = new LinkedList<Register>(registers);
+        for (Interval i : list) {
+            Iterator<Interval> it = active.iterator();
+            while (it.hasNext()) {
+                Interval a = it.next();
+                if (a.end >= i.start) break;
+                it.remove();
+                free.addFirst(a.register);
+            }
+            if (free.isEmpty()) {
+                Interval last = active.getLast();
+                if (last.end <= i.end) continue;    // spills i
+                // spills last
+                i.register = last.register;
+                last.register = null;
+                active.removeLast();
+                allocated.remove(last);
+            }
+            else {
+                i.register = free.removeFirst();
+            }
+            insertByEnd(active, i);
+            allocated.add(i);
+        }
+    }
+
+    private void insertByEnd(LinkedList<Interval> active, Interval i) {
+        ListIterator<Interval> it = active.listIterator();
+        while (it.hasNext()) {
+            if (it.next().end > i.end) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(i);
+    }
+
+    private void refer(Entity ent) {
+        if (! intervals.containsKey(ent)) return;
+        Interval i = intervals.get(ent);
+        if (i == null) {
+            intervals.put(ent, new Interval(ent, position));
+        }
+        else {
+            i.end = position;
+        }
+    }
+
+    private void jumpTo(Label label) {
+        jumpTargets.add(label);
+        jumpPositions.add(position);
+    }
+
+    //
+    // Statements
+    //
+
+    public Void visit(ExprStmt s) {
+        s.expr().accept(this);
+        return null;
+    }
+
+    public Void visit(Assign s) {
+        if (s.lhs() instanceof Addr) {
+            // Stores to the variable, not taking its address.
+            refer(((Addr)s.lhs()).entity());
+        }
+        else {
+            s.lhs().accept(this);
+        }
+        s.rhs().accept(this);
+        return null;
+    }
+
+    public Void visit(CJump s) {
+        s.cond().accept(this);
+        jumpTo(s.thenLabel());
+        jumpTo(s.elseLabel());
+        return null;
+    }
+
+    public Void visit(Jump s) {
+        jumpTo(s.label());
+        return null;
+    }
+
+    public Void visit(Switch s) {
+        s.cond().accept(this);
+        for (Case c : s.cases()) {
+            jumpTo(c.label);
+        }
+        jumpTo(s.defaultLabel());
+        return null;
+    }
+
+    public Void visit(LabelStmt s) {
+        labelPositions.put(s.label(), position);
+        return null;
+    }
+
+    public Void visit(Return s) {
+        if (s.expr() != null) {
+            s.expr().accept(this);
+        }
+        return null;
+    }
+
+    //
+    // Expressions
+    //
+
+    public Void visit(Uni s) {
+        s.expr().accept(this);
+        return null;
+    }
+
+    public Void visit(Bin s) {
+        s.left().accept(this);
+        s.right().accept(this);
+        return null;
+    }
+
+    public Void visit(Call s) {
+        if (s.isStaticCall()) {
+            if (Arrays.asList(RETURNS_TWICE).contains(s.function().name())) {
+                callsReturnsTwice = true;
+            }
+        }
+        else {
+            s.expr().accept(this);
+        }
+        for (Expr arg : s.args()) {
+            arg.accept(this);
+        }
+        return null;
+    }
+
+    public Void visit(Addr s) {
+        addressTaken.add(s.entity());
+        return null;
+    }
+
+    public Void visit(Mem s) {
+        s.expr().accept(this);
+        return null;
+    }
+
+    public Void visit(Var s) {
+        refer(s.entity());
+        return null;
+    }
+
+    public Void visit(Int s) {
+        return null;
+    }
+
+    public Void visit(Str s) {
+        return null;
+    }
+}
@@ -0,0 +1,77 @@
+package net.loveruby.cflat.sysdep.x86;
+import java.math.BigInteger;
+
+/**
+ * Multiplier and shift count to divide 32-bit integers by a constant
+ * (Granlund and Montgomery, "Division by Invariant Integers using
+ * Multiplication", PLDI 1994).
+ *
+ * The quotient of N by D is the high word of N * multiplier shifted
+ * right by #shift.  If #add is true, the multiplier needs 33 bits
+ * (unsigned) or is negative as a signed word (signed); its low 32 bits
+ * are given and N must be added back.
+ */
+final class MagicNumber {
+    final long multiplier;  // low 32 bits are used
+    final int shift;
+    final boolean add;
+
+    private MagicNumber(BigInteger multiplier, int shift, boolean add) {
+        this.multiplier = multiplier.longValue() & 0xFFFFFFFFL;
+        this.shift = shift;
+        this.add = add;
+    }
+
+    static private final BigInteger TWO_TO_32 = BigInteger.ONE.shiftLeft(32);
+
+    /**
+     * For unsigned D, 2 < D < 2^31, not a power of 2.
+     * If #add is true, #shift is positive.
+     */
+    static MagicNumber unsigned(long d) {
+        int l = log2Ceil(d);
+        for (int s = 0; s < l; s++) {
+            BigInteger m = multiplier(d, 32 + s, s);
+            if (m != null && m.compareTo(TWO_TO_32) < 0) {
+                return new MagicNumber(m, s, false);
+            }
+        }
+        // m < 2^33 and the error < 2^l always hold for s = l.
+        return new MagicNumber(multiplier(d, 32 + l, l), l, true);
+    }
+
+    /**
+     * For signed divisor of absolute value D, 2 < D < 2^31, not a
+     * power of 2.  The quotient must be incremented if N < 0, and
+     * negated if the divisor < 0.
+     */
+    static MagicNumber signed(long d) {
+        int l = log2Ceil(d);
+        for (int s = 0; s < l - 1; s++) {
+            BigInteger m = multiplier(d, 32 + s, s + 1);
+            if (m != null) {
+                return new MagicNumber(m, s, m.testBit(31));
+            }
+        }
+        // m < 2^32 and the error < 2^l always hold for s = l - 1.
+        BigInteger m = multiplier(d, 31 + l, l);
+        return new MagicNumber(m, l - 1, m.testBit(31));
+    }
+
+    /**
+     * Returns m = ceil(2^p / D) if it approximates 1/D closely enough
+     * for 32-bit dividends, i.e. the error m * D - 2^p is at most 2^e;
+     * null otherwise.
+     */
+    static private BigInteger multiplier(long d, int p, int e) {
+        BigInteger divisor = BigInteger.valueOf(d);
+        BigInteger pow = BigInteger.ONE.shiftLeft(p);
+        BigInteger m = pow.add(divisor).subtract(BigInteger.ONE).divide(divisor);
+        BigInteger error = m.multiply(divisor).subtract(pow);
+        return error.compareTo(BigInteger.ONE.shiftLeft(e)) <= 0 ? m : null;
+    }
+
+    static private int log2Ceil(long d) {
+        return 64 - Long.numberOfLeadingZeros(d - 1);
+    }
+}
@@ -1,279 +1,636 @@
 package net.loveruby.cflat.sysdep.x86;
 import net.loveruby.cflat.asm.*;
-import net.loveruby.cflat.utils.Cursor;
+import net.loveruby.cflat.sysdep.PeepholeStats;
 import java.util.*;
-
+import java.io.*;
+
+/**
+ * Peephole optimizer.
+ *
+ * Rewrites windows of consecutive instructions by the rules of
+ * peephole.rules (see PeepholeRuleParser for the syntax), and removes
+ * jumps to the next instruction.  A window never contains a label, and
+ * only its last instruction may transfer control.  Longer rules are
+ * tried first.
+ *
+ * Rewritten code is matched again with a worklist: the replacement and
+ * the instructions before it.  Rules may depend on register liveness,
+ * which a rewrite may change anywhere before it, so the whole code is
+ * matched again until a round rewrites nothing.
+ */
 public class PeepholeOptimizer {
-    private Map<String, List<Filter>> filterSet;
+    static private final String RULE_FILE = "peephole.rules";
+    static private final int MAX_ROUNDS = 8;
+    static private final int LIVENESS_SCAN_LIMIT = 200;
+
+    static private List<Filter> defaultFilters;
+
+    static public PeepholeOptimizer defaultSet() {
+        return defaultSet(PeepholeStats.DISABLED);
+    }
+
+    static public PeepholeOptimizer defaultSet(PeepholeStats stats) {
+        PeepholeOptimizer set = new PeepholeOptimizer(stats);
+        for (Filter filter : loadDefaultFilters()) {
+            set.add(filter);
+        }
+        return set;
+    }
+
+    static private synchronized List<Filter> loadDefaultFilters() {
+        if (defaultFilters == null) {
+            List<Filter> filters = new ArrayList<Filter>();
+            for (PeepholeRule rule : readRules(RULE_FILE)) {
+                filters.add(new RuleFilter(rule));
+            }
+            filters.add(new JumpEliminationFilter());
+            defaultFilters = filters;
+        }
+        return defaultFilters;
+    }
+
+    static private List<PeepholeRule> readRules(String name) {
+        InputStream in = PeepholeOptimizer.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new Error("peephole rule file not found: " + name);
+        }
+        try {
+            try {
+                return PeepholeRuleParser.parse(
+                        new InputStreamReader(in, "UTF-8"), name);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            throw new Error("could not read " + name + ": " + ex.getMessage());
+        }
+    }
+
+    private final Map<String, List<Filter>> filterSet;
+    private final List<Filter> anyHeadFilters;
+    private final PeepholeStats stats;
+    private int maxLength = 1;
 
     public PeepholeOptimizer() {
+        this(PeepholeStats.DISABLED);
+    }
+
+    public PeepholeOptimizer(PeepholeStats stats) {
         this.filterSet = new HashMap<String, List<Filter>>();
+        this.anyHeadFilters = new ArrayList<Filter>();
+        this.stats = stats;
     }
 
     public void add(Filter filter) {
+        maxLength = Math.max(maxLength, filter.length());
         String[] heads = filter.patternHeads();
-        for (int i = 0; i < heads.length; i++) {
-            String head = heads[i];
+        if (heads == null) {
+            addSorted(anyHeadFilters, filter);
+            return;
+        }
+        for (String head : heads) {
             List<Filter> list = filterSet.get(head);
             if (list == null) {
                 list = new ArrayList<Filter>();
-                list.add(filter);
                 filterSet.put(head, list);
             }
-            else {
-                list.add(filter);
-            }
+            addSorted(list, filter);
         }
     }
 
-    public List<Assembly> optimize(List<Assembly> assemblies) {
-        List<Assembly> result = new ArrayList<Assembly>();
-        Cursor<Assembly> cursor = new Cursor<Assembly>(assemblies);
-        while (cursor.hasNext()) {
-            Assembly asm = cursor.next();
-            if (asm.isInstruction()) {
-                Filter matched = matchFilter(cursor);
-                if (matched != null) {
-                    matched.optimize(cursor, result);
-                    continue;
-                }
-            }
-            result.add(asm);
+    /** Keeps longer filters first; filters of a length keep the order. */
+    private void addSorted(List<Filter> list, Filter filter) {
+        int i = list.size();
+        while (i > 0 && list.get(i - 1).length() < filter.length()) {
+            i--;
         }
-        return result;
+        list.add(i, filter);
     }
 
-    private Filter matchFilter(Cursor<Assembly> asms) {
-        Instruction insn = (Instruction)asms.current();
-        List<Filter> filters = filterSet.get(insn.mnemonic());
-        if (filters == null) return null;
-        if (filters.isEmpty()) return null;
-        for (Filter filter : filters) {
-            if (filter.match(asms)) {
-                return filter;
-            }
-        }
-        return null;
+    public List<Assembly> optimize(List<Assembly> assemblies) {
+        return optimize(assemblies,
+                Collections.<IndirectMemoryReference>emptyList());
     }
 
-    static public PeepholeOptimizer defaultSet() {
-        PeepholeOptimizer set = new PeepholeOptimizer();
-        set.loadDefaultFilters();
-        return set;
+    /**
+     * Optimizes ASSEMBLIES.  TEMPORARIES are the slots of the virtual
+     * stack; each value stored in a slot is loaded only once.
+     */
+    public List<Assembly> optimize(List<Assembly> assemblies,
+            List<IndirectMemoryReference> temporaries) {
+        Code code = new Code(assemblies, temporaries);
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            if (! code.rewriteAll()) break;
+        }
+        return code.toList();
     }
 
-    private void loadDefaultFilters() {
-        PeepholeOptimizer set = this;
+    //
+    // Code being optimized
+    //
+
+    static final class Node {
+        final Assembly asm;
+        Node prev;
+        Node next;
+        boolean removed = false;
+        boolean queued = false;
+
+        Node(Assembly asm) {
+            this.asm = asm;
+        }
+
+        boolean isInstruction() {
+            return asm.isInstruction();
+        }
+
+        Instruction insn() {
+            return (Instruction)asm;
+        }
+    }
 
-        // mov
-        set.add(new SingleInsnFilter(
-            new InsnPattern("mov", imm(0), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("xor", insn.operand2(), insn.operand2());
+    /** Instructions of a window and the facts rules ask about it. */
+    final class Code implements PeepholeRule.Context {
+        private final Node head = new Node(null);   // sentinel
+        private final Map<Symbol, Node> labels = new HashMap<Symbol, Node>();
+        private final Set<IndirectMemoryReference> temporaries;
+        private final Deque<Node> worklist = new ArrayDeque<Node>();
+        private Node[] window;
+
+        Code(List<Assembly> assemblies,
+                List<IndirectMemoryReference> temps) {
+            this.temporaries = Collections.newSetFromMap(
+                    new IdentityHashMap<IndirectMemoryReference, Boolean>());
+            this.temporaries.addAll(temps);
+            Node last = head;
+            for (Assembly asm : assemblies) {
+                last = insertAfter(last, new Node(asm));
+                if (asm.isLabel()) {
+                    labels.put(((Label)asm).symbol(), last);
                 }
             }
-        ));
-
-        // add
-        set.add(new SingleInsnFilter(
-            new InsnPattern("add", imm(-1), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("dec", insn.operand2());
-                }
+        }
+
+        List<Assembly> toList() {
+            List<Assembly> result = new ArrayList<Assembly>();
+            for (Node n = head.next; n != null; n = n.next) {
+                result.add(n.asm);
             }
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("add", imm(0), reg()),
-            null
-        ));
-        // #@@range/pattern{
-        set.add(new SingleInsnFilter(
-            new InsnPattern("add", imm(1), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("inc", insn.operand2());
-                }
+            return result;
+        }
+
+        /** Returns true if any code is rewritten. */
+        boolean rewriteAll() {
+            for (Node n = head.next; n != null; n = n.next) {
+                enqueue(n);
             }
-        ));
-        // #@@}
-
-        // sub
-        set.add(new SingleInsnFilter(
-            new InsnPattern("sub", imm(-1), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("inc", insn.operand2());
-                }
+            boolean changed = false;
+            while (! worklist.isEmpty()) {
+                Node n = worklist.removeFirst();
+                n.queued = false;
+                if (n.removed) continue;
+                if (rewrite(n)) changed = true;
             }
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("sub", imm(0), reg()),
-            null
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("sub", imm(1), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("dec", insn.operand2());
+            return changed;
+        }
+
+        private boolean rewrite(Node n) {
+            Instruction insn = n.insn();
+            List<Filter> filters = filterSet.get(insn.mnemonic());
+            if (filters != null) {
+                for (Filter filter : filters) {
+                    if (tryFilter(filter, n)) return true;
                 }
             }
-        ));
-
-        // imul
-        set.add(new SingleInsnFilter(
-            new InsnPattern("imul", imm(0), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("xor", insn.operand2(), insn.operand2());
-                }
+            for (Filter filter : anyHeadFilters) {
+                if (tryFilter(filter, n)) return true;
             }
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("imul", imm(1), reg()),
-            null
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("imul", imm(2), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("sal", imm(1), insn.operand2());
+            return false;
+        }
+
+        private boolean tryFilter(Filter filter, Node n) {
+            Node[] w = collectWindow(n, filter.length());
+            if (w == null) return false;
+            this.window = w;
+            if (! filter.apply(w, this)) return false;
+            stats.hit(filter.name());
+            return true;
+        }
+
+        /**
+         * Returns LEN instructions from N skipping comments, or null
+         * if a label, a directive or a jump comes before.
+         */
+        private Node[] collectWindow(Node n, int len) {
+            Node[] w = new Node[len];
+            int i = 0;
+            while (i < len) {
+                if (n == null) return null;
+                if (n.asm.isComment()) {
+                    n = n.next;
+                    continue;
                 }
+                if (! n.isInstruction()) return null;
+                if (i < len - 1 && isControlTransfer(n.insn())) return null;
+                w[i++] = n;
+                n = n.next;
             }
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("imul", imm(4), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("sal", imm(2), insn.operand2());
-                }
+            return w;
+        }
+
+        /**
+         * Replaces instructions W by INSNS.  Comments between
+         * them are kept.
+         */
+        void replace(Node[] w, List<Instruction> insns) {
+            Node before = w[0].prev;
+            Node pos = before;
+            for (Instruction insn : insns) {
+                pos = insertAfter(pos, new Node(insn));
+                enqueue(pos);
             }
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("imul", imm(8), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("sal", imm(3), insn.operand2());
-                }
+            for (Node n : w) {
+                remove(n);
             }
-        ));
-        set.add(new SingleInsnFilter(
-            new InsnPattern("imul", imm(16), reg()),
-            new InsnTransform() {
-                public Instruction apply(Instruction insn) {
-                    return insn.build("sal", imm(4), insn.operand2());
+            enqueueBackward(before);
+        }
+
+        /** Removes N and enqueues the instructions before it. */
+        void delete(Node n) {
+            remove(n);
+            enqueueBackward(n.prev);
+        }
+
+        private void remove(Node n) {
+            n.removed = true;
+            n.prev.next = n.next;
+            if (n.next != null) n.next.prev = n.prev;
+        }
+
+        /**
+         * Enqueues instructions from P backward, which may start
+         * a window including the code after P.
+         */
+        private void enqueueBackward(Node p) {
+            int count = 0;
+            while (p != head && count < maxLength - 1) {
+                if (p.asm.isLabel() || p.asm.isDirective()) break;
+                if (p.isInstruction()) {
+                    enqueue(p);
+                    count++;
                 }
+                p = p.prev;
             }
-        ));
-
-        // jmp
-        set.add(new JumpEliminationFilter());
-    }
+        }
 
-    private ImmediateValue imm(long n) {
-        return new ImmediateValue(n);
-    }
+        private void enqueue(Node n) {
+            if (n.queued || ! n.isInstruction()) return;
+            n.queued = true;
+            worklist.addLast(n);
+        }
 
-    private OperandPattern reg() {
-        return new AnyRegisterPattern();
-    }
+        private Node insertAfter(Node pos, Node n) {
+            n.prev = pos;
+            n.next = pos.next;
+            if (pos.next != null) pos.next.prev = n;
+            pos.next = n;
+            return n;
+        }
 
-    abstract class Filter {
-        abstract public String[] patternHeads();
-        abstract public boolean match(Cursor<Assembly> asms);
-        abstract public void optimize(Cursor<Assembly> src, List<Assembly> dest);
-    }
+        Node labelNode(Symbol sym) {
+            return labels.get(sym);
+        }
 
-    //
-    // single instruction optimization
-    //
+        //
+        // PeepholeRule.Context
+        //
 
-    class SingleInsnFilter extends Filter {
-        private InsnPattern pattern;
-        private InsnTransform transform;
+        public boolean isTemporary(Operand op) {
+            return temporaries.contains(op);
+        }
 
-        public SingleInsnFilter(InsnPattern pattern, InsnTransform transform) {
-            this.pattern = pattern;
-            this.transform = transform;
+        /**
+         * Relocatable memory references have no final offsets yet.
+         * A local variable has one reference object; slots of the
+         * virtual stack are equal if their offsets are.
+         */
+        public boolean isSameOperand(Operand a, Operand b) {
+            if (a == b) return true;
+            if (a instanceof Register && b instanceof Register) {
+                Register x = (Register)a;
+                Register y = (Register)b;
+                return x.equals(y) && x.type == y.type;
+            }
+            if (a instanceof ImmediateValue) {
+                return a.equals(b);
+            }
+            if (a instanceof DirectMemoryReference
+                    && b instanceof DirectMemoryReference) {
+                return ((DirectMemoryReference)a).value()
+                        .equals(((DirectMemoryReference)b).value());
+            }
+            if (a instanceof IndirectMemoryReference
+                    && b instanceof IndirectMemoryReference) {
+                IndirectMemoryReference x = (IndirectMemoryReference)a;
+                IndirectMemoryReference y = (IndirectMemoryReference)b;
+                if (! x.base().equals(y.base())) return false;
+                if (! x.offset().equals(y.offset())) return false;
+                return (x.isFixed() && y.isFixed())
+                        || (isTemporary(x) && isTemporary(y));
+            }
+            return false;
         }
 
-        /** Matching mnemonic of InstructionPattern */
-        public String[] patternHeads() {
-            return new String[] { pattern.name };
+        public boolean isDeadAfterWindow(Register reg) {
+            Node last = window[window.length - 1];
+            Node from = isControlTransfer(last.insn()) ? last : last.next;
+            return isDead(reg.registerClass(), from);
         }
 
-        public boolean match(Cursor<Assembly> asms) {
-            return pattern.match((Instruction)asms.current());
+        public boolean preserves(Instruction insn, Register reg) {
+            return ! accesses(insn, reg.registerClass());
         }
 
-        public void optimize(Cursor<Assembly> src, List<Assembly> dest) {
-            if (transform == null) {
-                ;   // remove instruction
-            }
-            else {
-                dest.add(transform.apply((Instruction)src.current()));
+        /**
+         * True if REG is written before read on all paths from FROM.
+         * Jumps are followed to their labels in this code; anything
+         * else unknown is assumed to read REG.
+         */
+        private boolean isDead(RegisterClass reg, Node from) {
+            Deque<Node> paths = new ArrayDeque<Node>();
+            Set<Node> visited = Collections.newSetFromMap(
+                    new IdentityHashMap<Node, Boolean>());
+            int budget = LIVENESS_SCAN_LIMIT;
+            paths.push(from);
+            while (! paths.isEmpty()) {
+                Node n = paths.pop();
+                while (true) {
+                    if (n == null) {
+                        if (isLiveAtExit(reg)) return false;
+                        break;
+                    }
+                    if (! visited.add(n)) break;
+                    if (--budget < 0) return false;
+                    if (n.asm.isLabel() || n.asm.isComment()) {
+                        n = n.next;
+                        continue;
+                    }
+                    if (! n.isInstruction()) return false;
+                    Instruction insn = n.insn();
+                    if (reads(insn, reg)) return false;
+                    String op = insn.mnemonic();
+                    if (op.equals("call")) {
+                        if (isCallerSaved(reg)) break;
+                    }
+                    else if (op.equals("ret")) {
+                        if (isLiveAtExit(reg)) return false;
+                        break;
+                    }
+                    else if (isJump(insn)) {
+                        if (! (insn.operand1() instanceof DirectMemoryReference)) {
+                            return false;   // indirect jump
+                        }
+                        Node target = labelNode(insn.jmpDestination());
+                        if (target == null) return false;
+                        paths.push(target);
+                        if (op.equals("jmp")) break;
+                    }
+                    else if (kills(insn, reg)) {
+                        break;
+                    }
+                    n = n.next;
+                }
             }
+            return true;
         }
     }
 
-    class InsnPattern {
-        private String name;
-        private OperandPattern pattern1;
-        private OperandPattern pattern2;
+    //
+    // Register usage of instructions
+    //
+
+    static private final Set<String> MOVES = new HashSet<String>(
+            Arrays.asList("mov", "movs", "movz", "lea"));
+    static private final Set<String> READ_ONLY = new HashSet<String>(
+            Arrays.asList("cmp", "test", "push"));
+    static private final Set<String> READ_WRITE = new HashSet<String>(
+            Arrays.asList("add", "sub", "and", "or", "xor", "adc", "sbb",
+                          "sal", "sar", "shr", "shl", "inc", "dec",
+                          "neg", "not"));
+
+    static boolean isJump(Instruction insn) {
+        String op = insn.mnemonic();
+        return op.equals("jmp")
+            || (op.startsWith("j")
+                && PeepholeRule.isConditionCode(op.substring(1)));
+    }
+
+    static boolean isControlTransfer(Instruction insn) {
+        String op = insn.mnemonic();
+        return isJump(insn) || op.equals("call") || op.equals("ret");
+    }
+
+    static private boolean isCallerSaved(RegisterClass reg) {
+        return reg == RegisterClass.AX
+            || reg == RegisterClass.CX
+            || reg == RegisterClass.DX;
+    }
+
+    /** The return value and callee-saved registers are used by the caller. */
+    static private boolean isLiveAtExit(RegisterClass reg) {
+        return reg != RegisterClass.CX && reg != RegisterClass.DX;
+    }
 
-        InsnPattern(String name, OperandPattern pat1, OperandPattern pat2) {
-            this.name = name;
-            this.pattern1 = pat1;
-            this.pattern2 = pat2;
+    /** True if INSN may read REG. */
+    static boolean reads(Instruction insn, RegisterClass reg) {
+        String op = insn.mnemonic();
+        int n = insn.numOperands();
+        for (int i = 0; i < n; i++) {
+            Operand o = PeepholeRule.operandOf(insn, i);
+            if (! (o instanceof Register)) {
+                if (mentions(o, reg)) return true;
+                continue;
+            }
+            if (registerClassOf(o) != reg) continue;
+            if (isSelfClear(insn)) continue;
+            if (i == n - 1 && writesWhole(insn)) continue;
+            return true;
+        }
+        if (op.equals("cltd")) return reg == RegisterClass.AX;
+        if (n == 1 && (op.equals("imul") || op.equals("mul"))) {
+            return reg == RegisterClass.AX;
+        }
+        if (op.equals("div") || op.equals("idiv")) {
+            return reg == RegisterClass.AX || reg == RegisterClass.DX;
         }
+        return ! isKnown(insn);
+    }
 
-        public boolean match(Instruction insn) {
-            return name.equals(insn.mnemonic())
-                && (pattern1 == null || pattern1.match(insn.operand1()))
-                && (pattern2 == null || pattern2.match(insn.operand2()));
+    /** True if INSN sets the whole of REG without reading it. */
+    static boolean kills(Instruction insn, RegisterClass reg) {
+        String op = insn.mnemonic();
+        if (op.equals("cltd")) return reg == RegisterClass.DX;
+        if (op.equals("imul") || op.equals("mul")
+                || op.equals("div") || op.equals("idiv")) {
+            if (insn.numOperands() == 1) {
+                return reg == RegisterClass.AX || reg == RegisterClass.DX;
+            }
         }
+        if (insn.numOperands() == 0) return false;
+        Operand dest = PeepholeRule.operandOf(insn, insn.numOperands() - 1);
+        return dest instanceof Register
+            && registerClassOf(dest) == reg
+            && writesWhole(insn);
     }
 
-    class AnyRegisterPattern implements OperandPattern {
-        public boolean match(Operand operand) {
-            return operand.isRegister();
+    /** True if INSN may read or write REG. */
+    static boolean accesses(Instruction insn, RegisterClass reg) {
+        if (! isKnown(insn) || isControlTransfer(insn)) return true;
+        if (reads(insn, reg) || kills(insn, reg)) return true;
+        for (int i = 0; i < insn.numOperands(); i++) {
+            if (mentions(PeepholeRule.operandOf(insn, i), reg)) return true;
         }
+        return false;
+    }
+
+    /**
+     * True if INSN overwrites its last operand, a 32-bit register,
+     * regardless of its value.  Writes to partial registers keep
+     * the other bits.
+     */
+    static private boolean writesWhole(Instruction insn) {
+        Operand dest = PeepholeRule.operandOf(insn, insn.numOperands() - 1);
+        if (! (dest instanceof Register)) return false;
+        if (((Register)dest).type != Type.INT32) return false;
+        String op = insn.mnemonic();
+        return MOVES.contains(op) || op.equals("pop") || isSelfClear(insn);
+    }
+
+    /** "xorl %eax, %eax" and "subl %eax, %eax" */
+    static private boolean isSelfClear(Instruction insn) {
+        String op = insn.mnemonic();
+        return (op.equals("xor") || op.equals("sub"))
+            && insn.numOperands() == 2
+            && insn.operand1() instanceof Register
+            && insn.operand1().equals(insn.operand2());
     }
 
-    interface InsnTransform {
-        abstract public Instruction apply(Instruction insn);
+    static private boolean isKnown(Instruction insn) {
+        String op = insn.mnemonic();
+        return MOVES.contains(op) || READ_ONLY.contains(op)
+            || READ_WRITE.contains(op) || op.equals("pop")
+            || op.equals("cltd") || op.equals("imul") || op.equals("mul")
+            || op.equals("div") || op.equals("idiv")
+            || op.startsWith("set") || isControlTransfer(insn);
+    }
+
+    static private RegisterClass registerClassOf(Operand reg) {
+        return ((Register)reg).registerClass();
+    }
+
+    static private boolean mentions(Operand op, RegisterClass reg) {
+        if (op instanceof Register) {
+            return registerClassOf(op) == reg;
+        }
+        if (op instanceof IndirectMemoryReference) {
+            return mentions(((IndirectMemoryReference)op).base(), reg);
+        }
+        if (op instanceof IndexedMemoryReference) {
+            IndexedMemoryReference mem = (IndexedMemoryReference)op;
+            return (mem.base() != null && mentions(mem.base(), reg))
+                || mentions(mem.index(), reg);
+        }
+        if (op instanceof AbsoluteAddress) {
+            return mentions(((AbsoluteAddress)op).register(), reg);
+        }
+        return false;
     }
 
     //
-    // jumpElimination
+    // Filters
     //
 
-    class JumpEliminationFilter extends Filter {
-        public JumpEliminationFilter() {
+    abstract static class Filter {
+        abstract public String name();
+        /** Mnemonics of the first instruction, or null for any. */
+        abstract public String[] patternHeads();
+        /** Number of instructions in the window. */
+        abstract public int length();
+        /** Rewrites window W of CODE and returns true, if matched. */
+        abstract boolean apply(Node[] w, Code code);
+    }
+
+    static final class RuleFilter extends Filter {
+        private final PeepholeRule rule;
+
+        RuleFilter(PeepholeRule rule) {
+            this.rule = rule;
         }
 
-        private String[] jmpInsns() {
-            return new String[] { "jmp", "jz", "jne", "je", "jne" };
+        public String name() {
+            return rule.name;
         }
 
         public String[] patternHeads() {
-            return jmpInsns();
+            return rule.patternHeads();
         }
 
-        public void optimize(Cursor<Assembly> src, List<Assembly> dest) {
-            ;   // remove jump
+        public int length() {
+            return rule.length();
         }
 
-        public boolean match(Cursor<Assembly> asms) {
-            Instruction insn = (Instruction)asms.current();
-            return doesLabelFollows(asms.clone(), insn.jmpDestination());
+        boolean apply(Node[] w, Code code) {
+            Instruction[] insns = new Instruction[w.length];
+            for (int i = 0; i < w.length; i++) {
+                insns[i] = w[i].insn();
+            }
+            List<Instruction> result = rule.rewrite(insns, code);
+            if (result == null) return false;
+            code.replace(w, result);
+            return true;
+        }
+    }
+
+    //
+    // jumpElimination
+    //
+
+    static final class JumpEliminationFilter extends Filter {
+        public String name() {
+            return "jump-to-next";
+        }
+
+        public String[] patternHeads() {
+            List<String> heads = new ArrayList<String>();
+            heads.add("jmp");
+            for (String cc : PeepholeRule.conditionCodes()) {
+                heads.add("j" + cc);
+            }
+            return heads.toArray(new String[heads.size()]);
+        }
+
+        public int length() {
+            return 1;
+        }
+
+        boolean apply(Node[] w, Code code) {
+            Instruction insn = w[0].insn();
+            if (! (insn.operand1() instanceof DirectMemoryReference)) {
+                return false;   // indirect jump
+            }
+            if (! doesLabelFollows(w[0].next, insn.jmpDestination())) {
+                return false;
+            }
+            code.delete(w[0]);
+            return true;
         }
 
         /**
-         * Returns true if jmpDest is found in asms before any instruction
-         * or directives.  For example, this method returns true if contents
-         * of asms are:
+         * Returns true if jmpDest is found before any instruction
+         * or directives.  For example, this method returns true if
+         * the code from N is:
          *
          *    if_end3:
          *          # comment
@@ -282,22 +639,15 @@ public class PeepholeOptimizer {
          *          mov
          *          add
          */
-        private boolean doesLabelFollows(Cursor<Assembly> asms, Symbol jmpDest) {
-            while (asms.hasNext()) {
-                Assembly asm = asms.next();
+        private boolean doesLabelFollows(Node n, Symbol jmpDest) {
+            for (; n != null; n = n.next) {
+                Assembly asm = n.asm;
                 if (asm.isLabel()) {
-                    Label label = (Label)asm;
-                    if (label.symbol().equals(jmpDest)) {
+                    if (((Label)asm).symbol().equals(jmpDest)) {
                         return true;
                     }
-                    else {
-                        continue;
-                    }
-                }
-                else if (asm.isComment()) {
-                    continue;
                 }
-                else {
+                else if (! asm.isComment()) {
                     // instructions or directives
                     return false;
                 }
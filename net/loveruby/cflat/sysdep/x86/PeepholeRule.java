@@ -0,0 +1,423 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.asm.*;
+import java.util.*;
+
+/**
+ * A peephole rule read from a rule file (see PeepholeRuleParser).
+ *
+ * A rule matches a window of consecutive instructions against its
+ * patterns, binding variables to operands, suffixes and condition
+ * codes.  If all conditions hold for the bindings, the window is
+ * replaced by the instructions built from the templates.
+ */
+final class PeepholeRule {
+    final String name;
+    final InsnPattern[] patterns;
+    final Condition[] conditions;
+    final InsnTemplate[] templates;
+
+    PeepholeRule(String name, List<InsnPattern> patterns,
+            List<Condition> conditions, List<InsnTemplate> templates) {
+        this.name = name;
+        this.patterns = patterns.toArray(new InsnPattern[patterns.size()]);
+        this.conditions =
+                conditions.toArray(new Condition[conditions.size()]);
+        this.templates =
+                templates.toArray(new InsnTemplate[templates.size()]);
+    }
+
+    int length() {
+        return patterns.length;
+    }
+
+    /** Mnemonics the first instruction may have, or null for any. */
+    String[] patternHeads() {
+        return patterns[0].mnemonic.heads();
+    }
+
+    /**
+     * Returns the replacement of WINDOW, or null if this rule
+     * does not match.
+     */
+    List<Instruction> rewrite(Instruction[] window, Context ctx) {
+        Bindings b = new Bindings();
+        for (int i = 0; i < patterns.length; i++) {
+            if (! patterns[i].match(window[i], b, ctx)) return null;
+        }
+        for (Condition cond : conditions) {
+            if (! cond.test(b, ctx)) return null;
+        }
+        List<Instruction> result = new ArrayList<Instruction>();
+        for (InsnTemplate t : templates) {
+            result.add(t.build(b));
+        }
+        return result;
+    }
+
+    public String toString() {
+        return "#<PeepholeRule " + name + ">";
+    }
+
+    /** Facts about the code around a window, given by the optimizer. */
+    interface Context {
+        /** True if OP is a slot of the virtual stack. */
+        boolean isTemporary(Operand op);
+        /** True if both operands denote the same register or memory. */
+        boolean isSameOperand(Operand a, Operand b);
+        /** True if REG is not read after the window before written. */
+        boolean isDeadAfterWindow(Register reg);
+        /** True if INSN neither reads nor writes REG. */
+        boolean preserves(Instruction insn, Register reg);
+    }
+
+    static final class Bindings {
+        private final Map<String, Object> values =
+                new HashMap<String, Object>();
+
+        Object get(String name) {
+            Object v = values.get(name);
+            if (v == null) {
+                throw new Error("must not happen: unbound variable " + name);
+            }
+            return v;
+        }
+
+        boolean has(String name) {
+            return values.containsKey(name);
+        }
+
+        void bind(String name, Object value) {
+            values.put(name, value);
+        }
+    }
+
+    //
+    // Condition codes
+    //
+
+    /** Condition codes of jcc and setcc, with their inverse. */
+    static private final String[][] CONDITIONS = {
+        { "e", "ne" }, { "ne", "e" },
+        { "l", "ge" }, { "ge", "l" }, { "le", "g" }, { "g", "le" },
+        { "b", "ae" }, { "ae", "b" }, { "be", "a" }, { "a", "be" },
+        { "s", "ns" }, { "ns", "s" }
+    };
+
+    static boolean isConditionCode(String cc) {
+        return inverseCondition(canonicalCondition(cc)) != null;
+    }
+
+    /** "z" and "nz" are aliases of "e" and "ne". */
+    static String canonicalCondition(String cc) {
+        if (cc.equals("z")) return "e";
+        if (cc.equals("nz")) return "ne";
+        return cc;
+    }
+
+    static String inverseCondition(String cc) {
+        for (String[] pair : CONDITIONS) {
+            if (pair[0].equals(cc)) return pair[1];
+        }
+        return null;
+    }
+
+    static List<String> conditionCodes() {
+        List<String> result = new ArrayList<String>();
+        for (String[] pair : CONDITIONS) {
+            result.add(pair[0]);
+        }
+        result.add("z");
+        result.add("nz");
+        return result;
+    }
+
+    /** "jz" -> "je", "jnz" -> "jne", others as is. */
+    static String canonicalMnemonic(String mnemonic) {
+        if (mnemonic.startsWith("j") && ! mnemonic.equals("jmp")) {
+            return "j" + canonicalCondition(mnemonic.substring(1));
+        }
+        if (mnemonic.startsWith("set")) {
+            return "set" + canonicalCondition(mnemonic.substring(3));
+        }
+        return mnemonic;
+    }
+
+    //
+    // Mnemonics
+    //
+
+    /** Literal mnemonic, or PREFIX<C> which binds condition code C. */
+    static final class MnemonicPattern {
+        final String name;          // literal; null if conditional
+        final String prefix;        // "j" or "set"
+        final String condVar;
+        final boolean inverse;      // templates only
+
+        MnemonicPattern(String name) {
+            this.name = canonicalMnemonic(name);
+            this.prefix = null;
+            this.condVar = null;
+            this.inverse = false;
+        }
+
+        MnemonicPattern(String prefix, String condVar, boolean inverse) {
+            this.name = null;
+            this.prefix = prefix;
+            this.condVar = condVar;
+            this.inverse = inverse;
+        }
+
+        String[] heads() {
+            List<String> result = new ArrayList<String>();
+            if (name != null) {
+                result.add(name);
+                if (name.equals("je")) result.add("jz");
+                if (name.equals("jne")) result.add("jnz");
+                if (name.equals("sete")) result.add("setz");
+                if (name.equals("setne")) result.add("setnz");
+            }
+            else {
+                for (String cc : conditionCodes()) {
+                    result.add(prefix + cc);
+                }
+            }
+            return result.toArray(new String[result.size()]);
+        }
+
+        boolean match(String mnemonic, Bindings b) {
+            String m = canonicalMnemonic(mnemonic);
+            if (name != null) return name.equals(m);
+            if (! m.startsWith(prefix)) return false;
+            String cc = m.substring(prefix.length());
+            if (! isConditionCode(cc)) return false;
+            if (b.has(condVar)) return b.get(condVar).equals(cc);
+            b.bind(condVar, cc);
+            return true;
+        }
+
+        String build(Bindings b) {
+            if (name != null) return name;
+            String cc = (String)b.get(condVar);
+            return prefix + (inverse ? inverseCondition(cc) : cc);
+        }
+    }
+
+    //
+    // Instructions
+    //
+
+    static class InsnPattern {
+        final MnemonicPattern mnemonic;
+        final String suffix;            // null matches any suffix
+        final boolean suffixVar;
+        final OperandPattern[] operands;
+
+        InsnPattern(MnemonicPattern mnemonic, String suffix,
+                boolean suffixVar, List<OperandPattern> operands) {
+            this.mnemonic = mnemonic;
+            this.suffix = suffix;
+            this.suffixVar = suffixVar;
+            this.operands =
+                    operands.toArray(new OperandPattern[operands.size()]);
+        }
+
+        boolean match(Instruction insn, Bindings b, Context ctx) {
+            if (! mnemonic.match(insn.mnemonic(), b)) return false;
+            if (! matchSuffix(insn.suffix(), b)) return false;
+            if (insn.numOperands() != operands.length) return false;
+            for (int i = 0; i < operands.length; i++) {
+                if (! operands[i].match(operandOf(insn, i), b, ctx)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matchSuffix(String s, Bindings b) {
+            if (suffix == null) return true;
+            if (! suffixVar) return suffix.equals(s);
+            if (b.has(suffix)) return b.get(suffix).equals(s);
+            b.bind(suffix, s);
+            return true;
+        }
+    }
+
+    /** "*I" matches any instruction and binds it to I. */
+    static final class AnyInsnPattern extends InsnPattern {
+        final String var;
+
+        AnyInsnPattern(String var) {
+            super(null, null, false, new ArrayList<OperandPattern>());
+            this.var = var;
+        }
+
+        boolean match(Instruction insn, Bindings b, Context ctx) {
+            b.bind(var, insn);
+            return true;
+        }
+    }
+
+    static Operand operandOf(Instruction insn, int i) {
+        return i == 0 ? insn.operand1() : insn.operand2();
+    }
+
+    static class InsnTemplate {
+        final MnemonicPattern mnemonic;
+        final String suffix;
+        final boolean suffixVar;
+        final OperandTemplate[] operands;
+
+        InsnTemplate(MnemonicPattern mnemonic, String suffix,
+                boolean suffixVar, List<OperandTemplate> operands) {
+            this.mnemonic = mnemonic;
+            this.suffix = suffix;
+            this.suffixVar = suffixVar;
+            this.operands =
+                    operands.toArray(new OperandTemplate[operands.size()]);
+        }
+
+        Instruction build(Bindings b) {
+            String s = suffix == null ? ""
+                     : suffixVar ? (String)b.get(suffix) : suffix;
+            Operand[] ops = new Operand[operands.length];
+            for (int i = 0; i < operands.length; i++) {
+                ops[i] = operands[i].build(b);
+            }
+            return new Instruction(mnemonic.build(b), s, ops, false);
+        }
+    }
+
+    /** "*I" in templates emits the instruction bound to I. */
+    static final class BoundInsnTemplate extends InsnTemplate {
+        final String var;
+
+        BoundInsnTemplate(String var) {
+            super(null, null, false, new ArrayList<OperandTemplate>());
+            this.var = var;
+        }
+
+        Instruction build(Bindings b) {
+            return (Instruction)b.get(var);
+        }
+    }
+
+    //
+    // Operands
+    //
+
+    enum OperandKind {
+        REGISTER, IMMEDIATE, MEMORY, ANY;
+
+        boolean accepts(Operand op) {
+            switch (this) {
+            case REGISTER:  return op instanceof Register;
+            case IMMEDIATE: return op instanceof ImmediateValue;
+            case MEMORY:    return op.isMemoryReference();
+            case ANY:       return true;
+            default:
+                throw new Error("must not happen");
+            }
+        }
+    }
+
+    abstract static class OperandPattern {
+        abstract boolean match(Operand op, Bindings b, Context ctx);
+    }
+
+    interface OperandTemplate {
+        Operand build(Bindings b);
+    }
+
+    /** %eax, $0: matches an equal operand. */
+    static final class LiteralOperand
+            extends OperandPattern implements OperandTemplate {
+        final Operand value;
+
+        LiteralOperand(Operand value) {
+            this.value = value;
+        }
+
+        boolean match(Operand op, Bindings b, Context ctx) {
+            return ctx.isSameOperand(value, op);
+        }
+
+        public Operand build(Bindings b) {
+            return value;
+        }
+    }
+
+    /** %R, $K, @M, ?X: binds an operand of the kind to a variable. */
+    static final class OperandVariable
+            extends OperandPattern implements OperandTemplate {
+        final String name;
+        final OperandKind kind;
+
+        OperandVariable(String name, OperandKind kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        boolean match(Operand op, Bindings b, Context ctx) {
+            if (! kind.accepts(op)) return false;
+            if (b.has(name)) {
+                return ctx.isSameOperand((Operand)b.get(name), op);
+            }
+            b.bind(name, op);
+            return true;
+        }
+
+        public Operand build(Bindings b) {
+            return (Operand)b.get(name);
+        }
+    }
+
+    //
+    // Conditions
+    //
+
+    abstract static class Condition {
+        abstract boolean test(Bindings b, Context ctx);
+    }
+
+    /** "dead %R": R is not used after the window. */
+    static final class DeadCondition extends Condition {
+        final OperandTemplate reg;
+
+        DeadCondition(OperandTemplate reg) {
+            this.reg = reg;
+        }
+
+        boolean test(Bindings b, Context ctx) {
+            return ctx.isDeadAfterWindow((Register)reg.build(b));
+        }
+    }
+
+    /** "temp @M": M is a virtual stack slot, dead once reloaded. */
+    static final class TempCondition extends Condition {
+        final OperandTemplate mem;
+
+        TempCondition(OperandTemplate mem) {
+            this.mem = mem;
+        }
+
+        boolean test(Bindings b, Context ctx) {
+            return ctx.isTemporary(mem.build(b));
+        }
+    }
+
+    /** "preserves *I %R": I neither reads nor writes R. */
+    static final class PreservesCondition extends Condition {
+        final String insnVar;
+        final OperandTemplate reg;
+
+        PreservesCondition(String insnVar, OperandTemplate reg) {
+            this.insnVar = insnVar;
+            this.reg = reg;
+        }
+
+        boolean test(Bindings b, Context ctx) {
+            return ctx.preserves((Instruction)b.get(insnVar),
+                                 (Register)reg.build(b));
+        }
+    }
+}
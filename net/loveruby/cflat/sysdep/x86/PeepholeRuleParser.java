@@ -0,0 +1,323 @@
+package net.loveruby.cflat.sysdep.x86;
+import net.loveruby.cflat.sysdep.x86.PeepholeRule.*;
+import net.loveruby.cflat.asm.ImmediateValue;
+import net.loveruby.cflat.asm.Type;
+import java.util.*;
+import java.io.*;
+
+/**
+ * Reads peephole rules.  A rule file is a list of rules:
+ *
+ *     # comment
+ *     rule NAME
+ *         PATTERN...
+ *     where CONDITION, ...
+ *     =>
+ *         TEMPLATE...
+ *     end
+ *
+ * Each PATTERN matches one instruction, "mnemonic[:suffix] operand, ...".
+ * A suffix starting with an upper case letter is a variable.
+ * Without a suffix, any suffix matches.  Operands are:
+ *
+ *     %eax, %al   the register
+ *     $0          the immediate value
+ *     %R          any register
+ *     $K          any immediate value
+ *     @M          any memory reference
+ *     ?X          any operand
+ *
+ * A variable which appears twice matches the same operand.
+ * "set<C>" and "j<C>" match setcc and jcc and bind the condition code
+ * to C; "j<!C>" in a template is the inverse jump.  "*I" matches any
+ * instruction.  Conditions are:
+ *
+ *     dead %R             R is not read after the window
+ *     temp @M             M is a virtual stack slot (read only once)
+ *     preserves *I %R     I neither reads nor writes R
+ *
+ * TEMPLATEs have the same syntax as PATTERNs and build the replacement.
+ * No template deletes the window.
+ */
+public class PeepholeRuleParser {
+    private final String fileName;
+    private int lineNumber;
+
+    private PeepholeRuleParser(String fileName) {
+        this.fileName = fileName;
+    }
+
+    static public List<PeepholeRule> parse(Reader src, String fileName)
+            throws IOException {
+        return new PeepholeRuleParser(fileName).parseRules(
+                new BufferedReader(src));
+    }
+
+    private List<PeepholeRule> parseRules(BufferedReader r)
+            throws IOException {
+        List<PeepholeRule> rules = new ArrayList<PeepholeRule>();
+        String name = null;
+        List<InsnPattern> patterns = null;
+        List<Condition> conditions = null;
+        List<InsnTemplate> templates = null;
+        Map<String, Character> vars = null;
+        String line;
+        while ((line = r.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (name == null) {
+                if (! line.startsWith("rule ")) {
+                    error("rule expected: " + line);
+                }
+                name = line.substring(5).trim();
+                patterns = new ArrayList<InsnPattern>();
+                conditions = new ArrayList<Condition>();
+                vars = new HashMap<String, Character>();
+            }
+            else if (templates == null) {
+                if (line.equals("=>")) {
+                    if (patterns.isEmpty()) error("rule without pattern");
+                    templates = new ArrayList<InsnTemplate>();
+                }
+                else if (line.startsWith("where ")) {
+                    for (String c : line.substring(6).split(",")) {
+                        conditions.add(parseCondition(c.trim(), vars));
+                    }
+                }
+                else if (! conditions.isEmpty()) {
+                    error("pattern after where: " + line);
+                }
+                else {
+                    patterns.add(parsePattern(line, vars));
+                }
+            }
+            else if (line.equals("end")) {
+                rules.add(new PeepholeRule(name,
+                        patterns, conditions, templates));
+                name = null;
+                templates = null;
+            }
+            else {
+                templates.add(parseTemplate(line, vars));
+            }
+        }
+        if (name != null) error("unterminated rule: " + name);
+        return rules;
+    }
+
+    //
+    // Patterns
+    //
+
+    private InsnPattern parsePattern(String line, Map<String, Character> vars) {
+        String[] insn = splitInsn(line);
+        if (insn[0].startsWith("*")) {
+            if (insn.length > 1) error("operands after " + insn[0]);
+            return new AnyInsnPattern(define(insn[0], vars));
+        }
+        String[] mn = splitSuffix(insn[0]);
+        boolean suffixVar = mn[1] != null && isVariable(mn[1]);
+        if (suffixVar) define(":" + mn[1], vars);
+        List<OperandPattern> ops = new ArrayList<OperandPattern>();
+        for (int i = 1; i < insn.length; i++) {
+            ops.add((OperandPattern)parseOperand(insn[i], vars, true));
+        }
+        return new InsnPattern(parseMnemonic(mn[0], vars, true),
+                mn[1], suffixVar, ops);
+    }
+
+    private InsnTemplate parseTemplate(String line, Map<String, Character> vars) {
+        String[] insn = splitInsn(line);
+        if (insn[0].startsWith("*")) {
+            if (insn.length > 1) error("operands after " + insn[0]);
+            return new BoundInsnTemplate(reference(insn[0], vars));
+        }
+        String[] mn = splitSuffix(insn[0]);
+        boolean suffixVar = mn[1] != null && isVariable(mn[1]);
+        if (suffixVar) reference(":" + mn[1], vars);
+        List<OperandTemplate> ops = new ArrayList<OperandTemplate>();
+        for (int i = 1; i < insn.length; i++) {
+            ops.add((OperandTemplate)parseOperand(insn[i], vars, false));
+        }
+        return new InsnTemplate(parseMnemonic(mn[0], vars, false),
+                mn[1], suffixVar, ops);
+    }
+
+    /** "mov:S %A, @M" -> ["mov:S", "%A", "@M"] */
+    private String[] splitInsn(String line) {
+        String[] words = line.split("\\s+", 2);
+        if (words.length == 1) return words;
+        String[] ops = words[1].split(",", -1);
+        String[] result = new String[ops.length + 1];
+        result[0] = words[0];
+        for (int i = 0; i < ops.length; i++) {
+            result[i + 1] = ops[i].trim();
+            if (result[i + 1].isEmpty()) error("empty operand: " + line);
+        }
+        if (ops.length > 2) error("too many operands: " + line);
+        return result;
+    }
+
+    /** "mov:S" -> ["mov", "S"], "ret" -> ["ret", null] */
+    private String[] splitSuffix(String word) {
+        int colon = word.indexOf(':');
+        if (colon < 0) return new String[] { word, null };
+        return new String[] {
+            word.substring(0, colon), word.substring(colon + 1)
+        };
+    }
+
+    private MnemonicPattern parseMnemonic(String word,
+            Map<String, Character> vars, boolean pattern) {
+        int open = word.indexOf('<');
+        if (open < 0) {
+            if (! word.matches("[a-z]+")) error("bad mnemonic: " + word);
+            return new MnemonicPattern(word);
+        }
+        String prefix = word.substring(0, open);
+        if (! prefix.equals("j") && ! prefix.equals("set")) {
+            error("condition code is allowed only for j and set: " + word);
+        }
+        if (! word.endsWith(">")) error("bad mnemonic: " + word);
+        String cc = word.substring(open + 1, word.length() - 1);
+        boolean inverse = cc.startsWith("!");
+        if (inverse) {
+            if (pattern) error("inverse condition in pattern: " + word);
+            cc = cc.substring(1);
+        }
+        if (! isVariable(cc)) error("bad condition variable: " + word);
+        if (pattern && ! vars.containsKey("<" + cc)) {
+            define("<" + cc, vars);
+        }
+        else {
+            reference("<" + cc, vars);
+        }
+        return new MnemonicPattern(prefix, "<" + cc, inverse);
+    }
+
+    /**
+     * Returns a LiteralOperand or an OperandVariable, which are
+     * both patterns and templates.
+     */
+    private Object parseOperand(String word,
+            Map<String, Character> vars, boolean pattern) {
+        char sigil = word.charAt(0);
+        String name = word.substring(1);
+        if (isVariable(name)) {
+            OperandKind kind = operandKind(sigil, word);
+            if (pattern && ! vars.containsKey(word)) {
+                define(word, vars);
+            }
+            else {
+                reference(word, vars);
+            }
+            return new OperandVariable(word, kind);
+        }
+        switch (sigil) {
+        case '%':
+            return new LiteralOperand(register(name));
+        case '$':
+            try {
+                return new LiteralOperand(
+                        new ImmediateValue(Long.parseLong(name)));
+            }
+            catch (NumberFormatException ex) {
+                error("bad immediate value: " + word);
+                return null;   // never reach
+            }
+        default:
+            error("bad operand: " + word);
+            return null;   // never reach
+        }
+    }
+
+    private OperandKind operandKind(char sigil, String word) {
+        switch (sigil) {
+        case '%': return OperandKind.REGISTER;
+        case '$': return OperandKind.IMMEDIATE;
+        case '@': return OperandKind.MEMORY;
+        case '?': return OperandKind.ANY;
+        default:
+            error("bad operand: " + word);
+            return null;   // never reach
+        }
+    }
+
+    static private final String[] REGISTER_NAMES = {
+        "ax", "bx", "cx", "dx", "si", "di", "sp", "bp"
+    };
+
+    private Register register(String name) {
+        for (int i = 0; i < REGISTER_NAMES.length; i++) {
+            RegisterClass c = RegisterClass.values()[i];
+            String base = REGISTER_NAMES[i];
+            if (name.equals("e" + base)) return new Register(c, Type.INT32);
+            if (name.equals(base)) return new Register(c, Type.INT16);
+            if (i < 4 && name.equals(base.charAt(0) + "l")) {
+                return new Register(c, Type.INT8);
+            }
+        }
+        error("unknown register: %" + name);
+        return null;   // never reach
+    }
+
+    //
+    // Conditions
+    //
+
+    private Condition parseCondition(String cond, Map<String, Character> vars) {
+        String[] words = cond.split("\\s+");
+        if (words[0].equals("dead") && words.length == 2) {
+            return new DeadCondition(registerOperand(words[1], vars));
+        }
+        if (words[0].equals("temp") && words.length == 2) {
+            if (! words[1].startsWith("@")) {
+                error("temp requires a memory variable: " + cond);
+            }
+            return new TempCondition(
+                    (OperandTemplate)parseOperand(words[1], vars, false));
+        }
+        if (words[0].equals("preserves") && words.length == 3) {
+            return new PreservesCondition(reference(words[1], vars),
+                    registerOperand(words[2], vars));
+        }
+        error("bad condition: " + cond);
+        return null;   // never reach
+    }
+
+    private OperandTemplate registerOperand(String word,
+            Map<String, Character> vars) {
+        if (! word.startsWith("%")) error("register expected: " + word);
+        return (OperandTemplate)parseOperand(word, vars, false);
+    }
+
+    //
+    // Variables
+    //
+
+    private boolean isVariable(String name) {
+        return name.matches("[A-Z][A-Za-z0-9]*");
+    }
+
+    private String define(String var, Map<String, Character> vars) {
+        if (vars.containsKey(var) && var.startsWith("*")) {
+            error("instruction variable defined twice: " + var);
+        }
+        vars.put(var, var.charAt(0));
+        return var;
+    }
+
+    private String reference(String var, Map<String, Character> vars) {
+        if (! vars.containsKey(var)) {
+            error("undefined variable: " + var.replaceFirst("^[:<]", ""));
+        }
+        return var;
+    }
+
+    private void error(String msg) {
+        throw new Error(fileName + ":" + lineNumber + ": " + msg);
+    }
+}
@@ -1,6 +1,7 @@
 package net.loveruby.cflat.sysdep.x86;
 import net.loveruby.cflat.asm.Type;
 import net.loveruby.cflat.asm.SymbolTable;
+import net.loveruby.cflat.asm.AsmWriter;
 
 class Register extends net.loveruby.cflat.asm.Register {
     RegisterClass _class;
@@ -43,7 +44,25 @@ class Register extends net.loveruby.cflat.asm.Register {
         return "%" + typedName();
     }
 
+    public void writeTo(AsmWriter w, SymbolTable table) {
+        w.write('%');
+        w.write(typedName());
+    }
+
+    // Register names are cached to write them without allocation.
+    static private final String[][] typedNames =
+            new String[RegisterClass.values().length][Type.values().length];
+
     private String typedName() {
+        String name = typedNames[_class.ordinal()][type.ordinal()];
+        if (name == null) {
+            name = makeTypedName();
+            typedNames[_class.ordinal()][type.ordinal()] = name;
+        }
+        return name;
+    }
+
+    private String makeTypedName() {
         switch (type) {
         case INT8: return lowerByteRegister();
         case INT16: return baseName();
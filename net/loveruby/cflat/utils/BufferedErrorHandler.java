@@ -0,0 +1,38 @@
+package net.loveruby.cflat.utils;
+import java.io.*;
+
+/**
+ * ErrorHandler which holds its messages in memory until they are
+ * flushed to another ErrorHandler.  Used by parallel build workers,
+ * so that diagnostics are printed in the order of source files.
+ */
+public class BufferedErrorHandler extends ErrorHandler {
+    private final ByteArrayOutputStream buffer;
+
+    public BufferedErrorHandler(String progid) {
+        this(progid, new ByteArrayOutputStream());
+    }
+
+    private BufferedErrorHandler(String progid, ByteArrayOutputStream buf) {
+        super(progid, buf);
+        this.buffer = buf;
+    }
+
+    /** Returns buffered messages. */
+    public String messages() {
+        stream.flush();
+        return buffer.toString();
+    }
+
+    /** Writes buffered messages to h and clears the buffer. */
+    public void flushTo(ErrorHandler h) {
+        stream.flush();
+        h.stream.print(buffer.toString());
+        h.stream.flush();
+        h.nError += nError;
+        h.nWarning += nWarning;
+        buffer.reset();
+        nError = 0;
+        nWarning = 0;
+    }
+}
@@ -0,0 +1,48 @@
+package net.loveruby.cflat.utils;
+import java.util.Map;
+import java.io.File;
+import java.io.PrintStream;
+
+/**
+ * Working directory, environment variables and standard output
+ * of a compiler invocation.
+ * The compile server runs invocations for many clients in one JVM,
+ * so they cannot be taken from the JVM process itself.
+ */
+public class CommandEnvironment {
+    static public CommandEnvironment inherited() {
+        return new CommandEnvironment(null, null, System.out);
+    }
+
+    protected File directory;               // null means JVM's cwd
+    protected Map<String, String> variables;  // null means JVM's env
+    protected PrintStream out;
+
+    public CommandEnvironment(File directory,
+            Map<String, String> variables, PrintStream out) {
+        this.directory = directory;
+        this.variables = variables;
+        this.out = out;
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    public Map<String, String> variables() {
+        return variables;
+    }
+
+    public PrintStream out() {
+        return out;
+    }
+
+    /** Resolves a relative path against the working directory. */
+    public File file(String path) {
+        File file = new File(path);
+        if (directory == null || file.isAbsolute()) {
+            return file;
+        }
+        return new File(directory, path);
+    }
+}
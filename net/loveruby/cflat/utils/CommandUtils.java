@@ -7,15 +7,21 @@ import java.io.*;
 abstract public class CommandUtils {
     static public void invoke(List<String> cmdArgs,
             ErrorHandler errorHandler, boolean verbose) throws IPCException {
+        invoke(cmdArgs, errorHandler, verbose, CommandEnvironment.inherited());
+    }
+
+    static public void invoke(List<String> cmdArgs,
+            ErrorHandler errorHandler, boolean verbose,
+            CommandEnvironment env) throws IPCException {
         if (verbose) {
-            dumpCommand(cmdArgs);
+            dumpCommand(cmdArgs, env.out());
         }
         try {
             String[] cmd = cmdArgs.toArray(new String[] {});
-            Process proc = Runtime.getRuntime().exec(cmd);
+            Process proc = newProcess(cmd, env).start();
             proc.waitFor();
-            passThrough(proc.getInputStream());
-            passThrough(proc.getErrorStream());
+            passThrough(proc.getInputStream(), errorHandler);
+            passThrough(proc.getErrorStream(), errorHandler);
             if (proc.exitValue() != 0) {
                 errorHandler.error(cmd[0] + " failed."
                         + " (status " + proc.exitValue() + ")");
@@ -34,20 +40,55 @@ abstract public class CommandUtils {
         }
     }
 
-    static private void dumpCommand(List<String> args) {
+    /**
+     * Starts the command CMDARGS which reads its standard input
+     * from a pipe.  Its standard error is merged to standard output.
+     */
+    static public PipedCommand start(List<String> cmdArgs,
+            ErrorHandler errorHandler, boolean verbose,
+            CommandEnvironment env) throws IPCException {
+        if (verbose) {
+            dumpCommand(cmdArgs, env.out());
+        }
+        try {
+            String[] cmd = cmdArgs.toArray(new String[] {});
+            ProcessBuilder pb = newProcess(cmd, env);
+            pb.redirectErrorStream(true);
+            return new PipedCommand(cmd[0], pb.start());
+        }
+        catch (IOException ex) {
+            errorHandler.error(
+                    "IO error in external command: " + ex.getMessage());
+            throw new IPCException("compile error");
+        }
+    }
+
+    static private ProcessBuilder newProcess(String[] cmd,
+                                             CommandEnvironment env) {
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.directory(env.directory());
+        if (env.variables() != null) {
+            pb.environment().clear();
+            pb.environment().putAll(env.variables());
+        }
+        return pb;
+    }
+
+    static private void dumpCommand(List<String> args, PrintStream out) {
         String sep = "";
         for (String arg : args) {
-            System.out.print(sep); sep = " ";
-            System.out.print(arg);
+            out.print(sep); sep = " ";
+            out.print(arg);
         }
-        System.out.println("");
+        out.println("");
     }
 
-    static private void passThrough(InputStream s) throws IOException {
+    static void passThrough(InputStream s, ErrorHandler h)
+                                                    throws IOException {
         BufferedReader r = new BufferedReader(new InputStreamReader(s));
         String line;
         while ((line = r.readLine()) != null) {
-            System.err.println(line);
+            h.print(line);
         }
     }
 }
@@ -36,6 +36,11 @@ public class ErrorHandler {
         nWarning++;
     }
 
+    /** Prints a raw line, e.g. an output line of external commands. */
+    public void print(String line) {
+        stream.println(line);
+    }
+
     public boolean errorOccured() {
         return (nError > 0);
     }
@@ -0,0 +1,105 @@
+package net.loveruby.cflat.utils;
+import net.loveruby.cflat.exception.IPCException;
+import java.io.*;
+
+/**
+ * An external command which reads its standard input from a pipe.
+ * Use CommandUtils.start to create.
+ *
+ * The output of the command is read by another thread while
+ * the input is written, so that the command never blocks on a full
+ * output pipe.  The output is passed to the ErrorHandler on finish.
+ */
+public class PipedCommand {
+    private final String name;
+    private final Process proc;
+    private final PrintStream input;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final Thread reader;
+
+    PipedCommand(String name, Process proc) {
+        this.name = name;
+        this.proc = proc;
+        this.input = new PrintStream(
+                new BufferedOutputStream(proc.getOutputStream()));
+        this.reader = new Thread(new Runnable() {
+            public void run() {
+                readOutput();
+            }
+        });
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * The standard input of the command.  A write error
+     * (e.g. the command exited) is reported by #finish.
+     */
+    public PrintStream input() {
+        return input;
+    }
+
+    private void readOutput() {
+        InputStream s = proc.getInputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        try {
+            while ((n = s.read(buf)) > 0) {
+                synchronized (output) {
+                    output.write(buf, 0, n);
+                }
+            }
+        }
+        catch (IOException ex) {
+            ;
+        }
+    }
+
+    /**
+     * Closes the input and waits for the command to exit.
+     * Throws IPCException if the command failed.
+     */
+    public void finish(ErrorHandler h) throws IPCException {
+        input.close();
+        boolean writeFailed = input.checkError();
+        try {
+            int status = proc.waitFor();
+            reader.join();
+            passOutput(h);
+            if (status != 0) {
+                h.error(name + " failed. (status " + status + ")");
+                throw new IPCException("compile error");
+            }
+            if (writeFailed) {
+                h.error("IO error in external command: " + name
+                        + ": cannot write to pipe");
+                throw new IPCException("compile error");
+            }
+        }
+        catch (InterruptedException ex) {
+            abort();
+            h.error("external command interrupted: "
+                    + name + ": " + ex.getMessage());
+            throw new IPCException("compile error");
+        }
+    }
+
+    /** Kills the command.  Its output is discarded. */
+    public void abort() {
+        proc.destroy();
+        input.close();
+    }
+
+    private void passOutput(ErrorHandler h) {
+        byte[] bytes;
+        synchronized (output) {
+            bytes = output.toByteArray();
+        }
+        try {
+            CommandUtils.passThrough(new ByteArrayInputStream(bytes), h);
+        }
+        catch (IOException ex) {
+            throw new Error("must not happen: " + ex.getMessage());
+        }
+    }
+}
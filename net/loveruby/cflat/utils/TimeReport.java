@@ -0,0 +1,387 @@
+package net.loveruby.cflat.utils;
+import java.lang.annotation.Annotation;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Compile time report (--time-report).
+ *
+ * Measures wall time, CPU time and allocated bytes of each compiler
+ * phase and of each function in code generation.  CPU time and
+ * allocation are of the compiler thread, so they do not include
+ * external commands (as, ld).
+ * Phases of the same name are summed up over all source files.
+ * A phase started while another phase runs is reported nested.
+ *
+ * Each measurement is also emitted as a JFR event (cbc.Phase and
+ * cbc.Function), if the JVM supports JFR.
+ */
+public class TimeReport {
+    /** A report which measures nothing. */
+    static public final TimeReport DISABLED = new TimeReport(false);
+
+    static private final Timer NULL_TIMER = new Timer(null, null, null);
+
+    private final boolean enabled;
+    private final Map<String, Entry> phases =
+            new LinkedHashMap<String, Entry>();
+    private final List<Entry> functions = new ArrayList<Entry>();
+    private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    private FlightRecorder flightRecorder;
+
+    public TimeReport() {
+        this(true);
+    }
+
+    private TimeReport(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) {
+            this.flightRecorder = FlightRecorder.load();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Starts measuring the phase NAME.  Call Timer#stop at the end. */
+    public Timer startPhase(String name) {
+        if (! enabled) return NULL_TIMER;
+        return new Timer(this, null, name);
+    }
+
+    /** Starts measuring code generation of function NAME in FILE. */
+    public Timer startFunction(String file, String name) {
+        if (! enabled) return NULL_TIMER;
+        return new Timer(this, file, name);
+    }
+
+    static private final class Measure {
+        long wall;
+        long cpu;
+        long allocated;
+
+        void add(Measure m) {
+            wall += m.wall;
+            cpu += m.cpu;
+            allocated += m.allocated;
+        }
+    }
+
+    static private final class Entry {
+        final String file;
+        final String name;
+        final int depth;
+        final Measure measure = new Measure();
+
+        Entry(String file, String name, int depth) {
+            this.file = file;
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    static public final class Timer {
+        private final TimeReport report;
+        private final String file;      // null for phases
+        private final String name;
+        private final Measure start = new Measure();
+        private Entry phase;
+        private Object event;
+
+        private Timer(TimeReport report, String file, String name) {
+            this.report = report;
+            this.file = file;
+            this.name = name;
+            if (report == null) return;
+            if (file == null) {
+                // Registers the entry here to report phases
+                // in the order of start.
+                phase = report.phaseEntry(name, report.depth.get()[0]++);
+            }
+            if (report.flightRecorder != null) {
+                event = report.flightRecorder.begin(file != null);
+            }
+            start.allocated = allocatedBytes();
+            start.cpu = cpuTime();
+            start.wall = System.nanoTime();
+        }
+
+        public void stop() {
+            if (report == null) return;
+            Measure m = new Measure();
+            m.wall = System.nanoTime() - start.wall;
+            m.cpu = cpuTime() - start.cpu;
+            m.allocated = allocatedBytes() - start.allocated;
+            if (file == null) {
+                report.depth.get()[0]--;
+                report.addPhase(phase, m);
+            }
+            else {
+                report.addFunction(file, name, m);
+            }
+            if (event != null) {
+                report.flightRecorder.commit(event, file, name, m);
+            }
+        }
+    }
+
+    private synchronized Entry phaseEntry(String name, int depth) {
+        Entry ent = phases.get(name);
+        if (ent == null) {
+            ent = new Entry(null, name, depth);
+            phases.put(name, ent);
+        }
+        return ent;
+    }
+
+    private synchronized void addPhase(Entry ent, Measure m) {
+        ent.measure.add(m);
+    }
+
+    private synchronized void addFunction(String file, String name, Measure m) {
+        Entry ent = new Entry(file, name, 0);
+        ent.measure.add(m);
+        functions.add(ent);
+    }
+
+    private synchronized List<Entry> slowestFunctions(int n) {
+        List<Entry> result = new ArrayList<Entry>(functions);
+        Collections.sort(result, new Comparator<Entry>() {
+            public int compare(Entry x, Entry y) {
+                return Long.compare(y.measure.wall, x.measure.wall);
+            }
+        });
+        return result.subList(0, Math.min(n, result.size()));
+    }
+
+    private synchronized Measure total() {
+        Measure total = new Measure();
+        for (Entry ent : phases.values()) {
+            if (ent.depth == 0) total.add(ent.measure);
+        }
+        return total;
+    }
+
+    /** Returns the report as lines of text, with N slowest functions. */
+    public synchronized List<String> textReport(int n) {
+        List<String> lines = new ArrayList<String>();
+        lines.add(String.format("%-32s %10s %10s %12s",
+                "phase", "wall(ms)", "cpu(ms)", "alloc(KB)"));
+        for (Entry ent : phases.values()) {
+            lines.add(textLine(indent(ent.depth) + ent.name, ent.measure));
+        }
+        lines.add(textLine("total", total()));
+        List<Entry> funcs = slowestFunctions(n);
+        if (! funcs.isEmpty()) {
+            lines.add("slowest functions in CodeGenerator.compileFunctionBody:");
+            for (Entry ent : funcs) {
+                lines.add(textLine("  " + ent.file + ": " + ent.name,
+                                   ent.measure));
+            }
+        }
+        return lines;
+    }
+
+    static private String indent(int depth) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            buf.append("  ");
+        }
+        return buf.toString();
+    }
+
+    static private String textLine(String label, Measure m) {
+        return String.format("%-32s %10.2f %10.2f %12d",
+                label, m.wall / 1e6, m.cpu / 1e6, m.allocated / 1024);
+    }
+
+    /** Returns the report in JSON, with N slowest functions. */
+    public synchronized String jsonReport(int n) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"phases\":[");
+        String sep = "";
+        for (Entry ent : phases.values()) {
+            buf.append(sep); sep = ",";
+            buf.append("{\"name\":").append(jsonString(ent.name));
+            buf.append(",\"depth\":").append(ent.depth);
+            appendJSON(buf, ent.measure);
+            buf.append("}");
+        }
+        buf.append("],\"total\":{\"name\":\"total\"");
+        appendJSON(buf, total());
+        buf.append("},\"functions\":[");
+        sep = "";
+        for (Entry ent : slowestFunctions(n)) {
+            buf.append(sep); sep = ",";
+            buf.append("{\"file\":").append(jsonString(ent.file));
+            buf.append(",\"name\":").append(jsonString(ent.name));
+            appendJSON(buf, ent.measure);
+            buf.append("}");
+        }
+        buf.append("]}");
+        return buf.toString();
+    }
+
+    static private void appendJSON(StringBuilder buf, Measure m) {
+        buf.append(",\"wallNanos\":").append(m.wall);
+        buf.append(",\"cpuNanos\":").append(m.cpu);
+        buf.append(",\"allocatedBytes\":").append(m.allocated);
+    }
+
+    static private String jsonString(String s) {
+        StringBuilder buf = new StringBuilder();
+        buf.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+        return buf.toString();
+    }
+
+    static private final ThreadMXBean threadMXBean =
+            ManagementFactory.getThreadMXBean();
+
+    static private long cpuTime() {
+        if (! threadMXBean.isCurrentThreadCpuTimeSupported()) return 0;
+        return threadMXBean.getCurrentThreadCpuTime();
+    }
+
+    static private long allocatedBytes() {
+        if (! (threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean)threadMXBean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Emits JFR events through jdk.jfr.EventFactory.
+     * JFR is accessed by reflection, since it does not exist in
+     * older JVMs; load() returns null on such JVMs.
+     */
+    static private final class FlightRecorder {
+        private final Object phaseFactory;
+        private final Object functionFactory;
+        private final Method newEvent;
+        private final Method begin;
+        private final Method set;
+        private final Method commit;
+
+        static FlightRecorder load() {
+            try {
+                return new FlightRecorder();
+            }
+            catch (Exception ex) {
+                return null;
+            }
+        }
+
+        private FlightRecorder() throws Exception {
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Method create = factoryClass.getMethod("create",
+                    List.class, List.class);
+            phaseFactory = create.invoke(null,
+                    eventAnnotations("cbc.Phase", "Compiler Phase"),
+                    fields(false));
+            functionFactory = create.invoke(null,
+                    eventAnnotations("cbc.Function", "Function Code Generation"),
+                    fields(true));
+            newEvent = factoryClass.getMethod("newEvent");
+            begin = eventClass.getMethod("begin");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+        }
+
+        private List<Object> eventAnnotations(String name, String label)
+                                                    throws Exception {
+            List<Object> list = new ArrayList<Object>();
+            list.add(annotation("jdk.jfr.Name", name));
+            list.add(annotation("jdk.jfr.Label", label));
+            list.add(annotation("jdk.jfr.Category", new String[] { "cbc" }));
+            // Stack traces would only show this reflective call.
+            list.add(annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+            return list;
+        }
+
+        // Field order must match #commit.
+        private List<Object> fields(boolean isFunction) throws Exception {
+            List<Object> list = new ArrayList<Object>();
+            if (isFunction) {
+                list.add(field(String.class, "file", null, null));
+            }
+            list.add(field(String.class, "name", null, null));
+            list.add(field(long.class, "cpuTime",
+                    "jdk.jfr.Timespan", "NANOSECONDS"));
+            list.add(field(long.class, "allocated",
+                    "jdk.jfr.DataAmount", "BYTES"));
+            return list;
+        }
+
+        private Object field(Class<?> type, String name,
+                String annotation, String value) throws Exception {
+            Class<?> c = Class.forName("jdk.jfr.ValueDescriptor");
+            List<Object> annotations = new ArrayList<Object>();
+            if (annotation != null) {
+                annotations.add(annotation(annotation, value));
+            }
+            return c.getConstructor(Class.class, String.class, List.class)
+                    .newInstance(type, name, annotations);
+        }
+
+        private Object annotation(String className, Object value)
+                                                    throws Exception {
+            Class<? extends Annotation> type =
+                    Class.forName(className).asSubclass(Annotation.class);
+            Constructor<?> c = Class.forName("jdk.jfr.AnnotationElement")
+                    .getConstructor(Class.class, Object.class);
+            return c.newInstance(type, value);
+        }
+
+        Object begin(boolean isFunction) {
+            try {
+                Object event = newEvent.invoke(
+                        isFunction ? functionFactory : phaseFactory);
+                begin.invoke(event);
+                return event;
+            }
+            catch (Exception ex) {
+                return null;
+            }
+        }
+
+        void commit(Object event, String file, String name, Measure m) {
+            try {
+                int i = 0;
+                if (file != null) {
+                    set.invoke(event, i++, file);
+                }
+                set.invoke(event, i++, name);
+                set.invoke(event, i++, m.cpu);
+                set.invoke(event, i++, m.allocated);
+                commit.invoke(event);
+            }
+            catch (Exception ex) {
+                // Events are optional.
+                ;
+            }
+        }
+    }
+}
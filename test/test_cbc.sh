@@ -4,6 +4,9 @@
 #
 
 CBC=${CBC:-../bin/cbc}
+# Options for all compilations, e.g. CBFLAGS=-O2 (make test-O2).
+# Options given by each test come later and override them.
+CBFLAGS=${CBFLAGS:-}
 
 test_01_exec() {
     assert_stat 0 ./zero
@@ -74,8 +77,10 @@ test_07_arithmetic() {
     assert_out "1;4;15" ./mul
     assert_out "1;2;2;2;4" ./div
     assert_out "0;0;1;4;7" ./mod
+    assert_out "$(cat divconst.out)" ./divconst
 
     assert_out "3" ./assoc
+    assert_out "-2147483648;2147483647;0;-2147479015;0;4294967295;-128;0;-2147483648;-1;1;-1;2147483648;1;6;111101;1001" ./fold
 }
 
 test_08_bitop() {
@@ -94,6 +99,7 @@ test_09_cmp() {
     assert_out "0;0;1" ./lt
     assert_out "1;1;0" ./gteq
     assert_out "0;1;1" ./lteq
+    assert_out "$(cat cmpbranch.out)" ./cmpbranch
 }
 
 test_10_assign() {
@@ -142,6 +148,7 @@ test_17_jump() {
     assert_ok ./dowhile-continue
     assert_ok ./for-continue
     assert_compile_error continue-semcheck.cb
+    assert_out "10;0;13;7;3;3;11;610;3;2;5" ./gotolabel
 }
 
 test_18_array() {
@@ -213,6 +220,7 @@ test_22_pointer() {
     assert_out "7" ./ptrmemb2
     assert_out "OK;OK;OK;OK" ./addressof
     assert_out "-4;-5;-5;-3" ./ptrdiff
+    assert_out "396;-604;1435;2001;1;11;12;2;100;111;15;24;27;0;10;-3;2;69997" ./addrmode
     assert_compile_error deref-semcheck1.cb
     assert_compile_error deref-semcheck2.cb
     assert_compile_error deref-semcheck3.cb
@@ -274,6 +282,10 @@ test_27_switch() {
         assert_stdout "other"  ./switch x x x x x x
         assert_stdout "other"  ./switch x x x x x x x
     fi
+    assert_out "001233056700;0000;12345678;999999;1;42;1234567;0000;12345;000;1230045" ./switch2
+    # Jump tables refer to the GOT with -fPIC.
+    assert_compile_success -O2 -fPIC switch2.cb &&
+    assert_stdout "001233056700;0000;12345678;999999;1;42;1234567;0000;12345;000;1230045" ./switch2
 }
 
 test_28_syntax() {
@@ -293,6 +305,8 @@ test_29_import() {
 test_30_staticfunction() {
     assert_compile_success staticfunc.cb &&
     assert_private staticfunc private_function
+    assert_compile_success -O staticfunc.cb &&
+    assert_private staticfunc private_function
 }
 
 test_31_sizeof() {
@@ -332,6 +346,113 @@ test_37_setjmp() {
     assert_out "OK" ./setjmptest
 }
 
+test_38_regalloc() {
+    assert_out "-95;705;409;4782;15800" ./regpressure
+    assert_out "46;177;1;437;2030;-687;-3768;10;10;36;-66;1;437;2030;-687;-3768;10" ./regspill
+    assert_out "141;6;21;6765;5" ./regparam
+    assert_out "11;104" ./regsetjmp
+    # %ebx holds the GOT address with -fPIC.
+    assert_compile_success -O2 -fPIC regpressure.cb &&
+    assert_stdout "-95;705;409;4782;15800" ./regpressure
+    assert_compile_success -O2 -fPIC regspill.cb &&
+    assert_stdout "46;177;1;437;2030;-687;-3768;10;10;36;-66;1;437;2030;-687;-3768;10" ./regspill
+    assert_compile_success -O2 -fPIC regparam.cb &&
+    assert_stdout "141;6;21;6765;5" ./regparam
+    assert_compile_success -O2 -fPIC regsetjmp.cb &&
+    assert_stdout "11;104" ./regsetjmp
+}
+
+test_39_inline() {
+    assert_out "3;17;3628800;10;100000;5" ./inline
+    assert_compile_success -O --inline-threshold 1000 inline.cb &&
+    assert_stdout "3;17;3628800;10;100000;5" ./inline
+    assert_remark "inlined count (size 7)" -O --inline-threshold 1000 inline.cb
+    assert_remark "inlined sign (called once)" -O inline.cb
+    assert_remark "not inlined count: size 7 exceeds threshold" -O --inline-threshold 0 inline.cb
+    assert_remark "not inlined fact: recursive" -O --inline-threshold 1000 inline.cb
+    assert_remark "not inlined sum: variadic" -O inline.cb
+    assert_remark "not inlined scratch: calls alloca" -O inline.cb
+    assert_remark "not inlined protect: calls setjmp" -O inline.cb
+}
+
+test_40_tailcall() {
+    assert_out "231;312;231;21;832040;21;31;54" ./tailcall
+    assert_compile_success -O --inline-threshold 0 tailcall.cb &&
+    assert_stdout "231;312;231;21;832040;21;31;54" ./tailcall
+    assert_remark "eliminated tail recursion" -O --inline-threshold 0 tailcall.cb
+    assert_remark "tail call second" -O --inline-threshold 0 tailcall.cb
+    # Too deep to run without tail call elimination.
+    assert_compile_success -O tailcall2.cb &&
+    assert_stdout "5000000;0;01" ./tailcall2
+    assert_compile_success -O -fPIC tailcall2.cb &&
+    assert_stdout "5000000;0;01" ./tailcall2
+    assert_compile_success -O2 tailcall2.cb &&
+    assert_stdout "5000000;0;01" ./tailcall2
+    assert_remark "tail call pong" -O tailcall2.cb
+}
+
+test_41_sccp() {
+    assert_out "a;1;0;1;2;2" ./sccp
+    assert_compile_success -O2 sccp.cb &&
+    assert_stdout "a;1;0;1;2;2" ./sccp &&
+    assert_stdout "b;1;0;1;2;3;4;5;2" ./sccp x y z
+    # Links only if the dead calls are removed.
+    assert_compile_success -O2 sccp2.cb &&
+    assert_stdout "3;5;1;1" ./sccp2
+    assert_compile_success -O2 -fPIC sccp2.cb &&
+    assert_stdout "3;5;1;1" ./sccp2
+}
+
+test_42_cse() {
+    assert_out "10;10;5;17;7;31;31;43;57;2;10;10;26;1;7" ./cse
+    assert_compile_success -O2 cse.cb &&
+    assert_stdout "10;10;5;17;7;31;31;43;57;2;10;10;26;1;7" ./cse
+    assert_compile_success -O2 -fPIC cse.cb &&
+    assert_stdout "10;10;5;17;7;31;31;43;57;2;10;10;26;1;7" ./cse
+    assert_remark "reused 3 common subexpressions" -O2 cse.cb
+}
+
+test_43_licm() {
+    assert_out "0;30;30;0;3;283;33;40;138" ./licm
+    assert_compile_success -O2 licm.cb &&
+    assert_stdout "0;30;30;0;3;283;33;40;138" ./licm
+    assert_compile_success -O2 --unroll-limit 0 licm.cb &&
+    assert_stdout "0;30;30;0;3;283;33;40;138" ./licm
+    assert_remark "hoisted 1 invariant expression out of loop at licm.cb:39" -O2 licm.cb
+}
+
+test_44_strength() {
+    assert_out "55;1;0;9217;1;0;25;25;0;10741;2;2036;0;123456;12345;2807;0;1400" ./sr
+    assert_compile_success -O2 sr.cb &&
+    assert_stdout "55;1;0;9217;1;0;25;25;0;10741;2;2036;0;123456;12345;2807;0;1400" ./sr
+    assert_compile_success -O2 --unroll-limit 0 sr.cb &&
+    assert_stdout "55;1;0;9217;1;0;25;25;0;10741;2;2036;0;123456;12345;2807;0;1400" ./sr
+    assert_remark "strength-reduced i to 1 pointer, replaced the exit test, removed i from loop at sr.cb:44" -O2 sr.cb
+    assert_remark "strength-reduced wrap.i to 1 pointer, replaced the exit test" -O2 sr.cb
+}
+
+test_45_unroll() {
+    assert_out "0;1;1636;-879006;1;2;247;-719559383;0;2;384;2708;14720;21;21;3612;1;64;4;5510" ./unroll
+    assert_compile_success -O2 unroll.cb &&
+    assert_stdout "0;1;1636;-879006;1;2;247;-719559383;0;2;384;2708;14720;21;21;3612;1;64;4;5510" ./unroll
+    assert_compile_success -O2 --unroll-limit 0 unroll.cb &&
+    assert_stdout "0;1;1636;-879006;1;2;247;-719559383;0;2;384;2708;14720;21;21;3612;1;64;4;5510" ./unroll
+    assert_compile_success -O2 --unroll-limit 1000 unroll.cb &&
+    assert_stdout "0;1;1636;-879006;1;2;247;-719559383;0;2;384;2708;14720;21;21;3612;1;64;4;5510" ./unroll
+    assert_compile_success -O2 -fPIC --unroll-limit 1000 unroll.cb &&
+    assert_stdout "0;1;1636;-879006;1;2;247;-719559383;0;2;384;2708;14720;21;21;3612;1;64;4;5510" ./unroll
+    assert_remark "unrolled loop fully (1 iteration) at unroll.cb:57" -O2 unroll.cb
+    assert_remark "unrolled loop fully (7 iterations) at unroll.cb:69" -O2 --unroll-limit 1000 unroll.cb
+    assert_remark "unrolled loop by 4 with remainder loop at unroll.cb:81" -O2 --unroll-limit 1000 unroll.cb
+    assert_remark "unrolled loop by 4 with remainder loop at unroll.cb:105" -O2 --unroll-limit 1000 unroll.cb
+    assert_remark "loop not unrolled: no counter at unroll.cb:124" -O2 unroll.cb
+    assert_remark "loop not unrolled: no counter at unroll.cb:140" -O2 unroll.cb
+    assert_remark "loop not unrolled: no counter at unroll.cb:172" -O2 unroll.cb
+    assert_remark "loop not unrolled: no counter at unroll.cb:186" -O2 --unroll-limit 1000 unroll.cb
+    assert_remark "rotated loop at unroll.cb:153" -O2 unroll.cb
+    assert_no_remark "unrolled" -O2 --unroll-limit 0 unroll.cb
+}
+
 ###
 ### Local Assertions
 ###
@@ -364,6 +485,33 @@ assert_ok() {
     assert_out "OK" "$@"
 }
 
+# Asserts that the optimizer remarks MSG in the verbose assembly.
+assert_remark() {
+    msg="$1"; shift
+    assert_compile_success -S -fverbose-asm -o tc.s "$@" || return
+    shunit_begin_test
+    if ! grep -qF "# $msg" tc.s
+    then
+        echo "shunit[$@]: remark not found: $msg"
+        shunit_test_failed
+        return 1
+    fi
+    return 0
+}
+
+assert_no_remark() {
+    msg="$1"; shift
+    assert_compile_success -S -fverbose-asm -o tc.s "$@" || return
+    shunit_begin_test
+    if grep -qF "# $msg" tc.s
+    then
+        echo "shunit[$@]: unexpected remark: $msg"
+        shunit_test_failed
+        return 1
+    fi
+    return 0
+}
+
 symbol_visibility() {
     bin="$1"
     sym="$2"
@@ -383,12 +531,12 @@ assert_private() {
 }
 
 assert_compile_success() {
-    assert_status 0 $CBC "$@"
+    assert_status 0 $CBC $CBFLAGS "$@"
 }
 
 assert_compile_error() {
     shunit_begin_test
-    if "$CBC" "$@" >tc.out 2>&1
+    if "$CBC" $CBFLAGS "$@" >tc.out 2>&1
     then
         echo "shunit[$@]: compile error not occured"
         shunit_test_failed
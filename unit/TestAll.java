@@ -8,7 +8,16 @@ import org.junit.runners.Suite.*;
     TestCursor.class,
     TestTextUtils.class,
     TestAsmUtils.class,
-    TestListUtils.class
+    TestListUtils.class,
+    TestAsmWriter.class,
+    TestParallelBuild.class,
+    TestCompileServer.class,
+    TestBuildCache.class,
+    TestPrecompiledHeader.class,
+    TestPipeMode.class,
+    TestBatchCompiler.class,
+    TestPeepholeRuleParser.class,
+    TestTimeReport.class
 })
 public class TestAll {
     static public void main(String[] args) {
@@ -0,0 +1,45 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.asm.AsmWriter;
+import java.io.*;
+import java.nio.channels.Channels;
+
+public class TestAsmWriter {
+    static public void main(String[] args) {
+        JUnitCore.main(TestAsmWriter.class.getName());
+    }
+
+    @Test public void test_write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Small buffer to test overflow
+        AsmWriter w = new AsmWriter(Channels.newChannel(out), 4);
+        w.write("\tmovl\t");
+        w.write('$');
+        w.write(-12345L);
+        w.write(", ");
+        w.write(0L);
+        w.newline();
+        w.write(Long.MIN_VALUE);
+        w.write(Long.MAX_VALUE);
+        w.flush();
+        assertEquals("\tmovl\t$-12345, 0\n"
+                + Long.MIN_VALUE + Long.MAX_VALUE, out.toString());
+    }
+
+    @Test public void test_write_error() {
+        AsmWriter w = new AsmWriter(Channels.newChannel(new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        }), 4);
+        w.write("12345678");
+        try {
+            w.flush();
+            fail("flush must throw IOException");
+        }
+        catch (IOException ex) {
+            assertEquals("broken", ex.getMessage());
+        }
+    }
+}
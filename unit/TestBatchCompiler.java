@@ -0,0 +1,134 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.io.*;
+
+public class TestBatchCompiler {
+    static public void main(String[] args) {
+        JUnitCore.main(TestBatchCompiler.class.getName());
+    }
+
+    static final int N_ENTRIES = 8;
+
+    File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("cbc", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test public void test_grouped_output() throws Exception {
+        StringBuilder list = new StringBuilder();
+        list.append("# comment\n");
+        for (int i = 0; i < N_ENTRIES; i++) {
+            writeFile("f" + i + ".cb", i == 5 ? undefinedVariable()
+                                              : unusedVariables());
+            list.append("-S f" + i + ".cb\n");
+        }
+        writeFile("tc.batch", list.toString());
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < N_ENTRIES; i++) {
+            String f = "f" + i + ".cb";
+            if (i == 5) {
+                expected.add("tc.batch:" + (i + 2) + ": exit 1: -S " + f);
+                expected.add("  cbc: error: " + f
+                        + ":4: unresolved reference: undefined_var");
+                expected.add("  cbc: error: compile failed.");
+            }
+            else {
+                expected.add("tc.batch:" + (i + 2) + ": exit 0: -S " + f);
+                for (String var : new String[] {"a", "b", "c"}) {
+                    expected.add("  cbc: warning: " + f + ":"
+                            + (var.charAt(0) - 'a' + 4)
+                            + ": unused variable: " + var);
+                }
+            }
+        }
+        expected.add("cbc: batch: " + N_ENTRIES + " entries, 1 failed");
+        Result r = batch("tc.batch", "--batch-jobs", "4");
+        assertEquals(expected, r.lines);
+        assertEquals(1, r.status);
+    }
+
+    @Test public void test_succeeded() throws Exception {
+        writeFile("ok.cb", "int\nmain(int argc, char **argv)\n{\n"
+                + "    return 0;\n}\n");
+        writeFile("tc.batch", "-S ok.cb\n\n-S -o 'ok 2.s' ok.cb\n");
+        Result r = batch("tc.batch");
+        assertEquals(Arrays.asList(
+                "tc.batch:1: exit 0: -S ok.cb",
+                "tc.batch:3: exit 0: -S -o 'ok 2.s' ok.cb",
+                "cbc: batch: 2 entries, 0 failed"), r.lines);
+        assertEquals(0, r.status);
+        assertTrue(new File(dir, "ok 2.s").isFile());
+    }
+
+    private String unusedVariables() {
+        return "int\nmain(int argc, char **argv)\n{\n"
+                + "    int a;\n    int b;\n    int c;\n    return 0;\n}\n";
+    }
+
+    private String undefinedVariable() {
+        return "int\nmain(int argc, char **argv)\n{\n"
+                + "    return undefined_var;\n}\n";
+    }
+
+    static class Result {
+        int status;
+        List<String> lines = new ArrayList<String>();
+    }
+
+    private Result batch(String... args) throws Exception {
+        List<String> cmd = new ArrayList<String>(Arrays.asList("java",
+                "-classpath", classPath(),
+                "net.loveruby.cflat.compiler.Compiler", "--batch"));
+        cmd.addAll(Arrays.asList(args));
+        Process p = new ProcessBuilder(cmd)
+                .directory(dir)
+                .redirectErrorStream(true)
+                .start();
+        p.getOutputStream().close();
+        BufferedReader r = new BufferedReader(
+                new InputStreamReader(p.getInputStream()));
+        Result result = new Result();
+        String line;
+        while ((line = r.readLine()) != null) {
+            result.lines.add(line);
+        }
+        r.close();
+        result.status = p.waitFor();
+        return result;
+    }
+
+    // The batch runs in DIR, so relative entries must be resolved.
+    private String classPath() {
+        StringBuilder buf = new StringBuilder();
+        String sep = "";
+        for (String path : System.getProperty("java.class.path")
+                .split(File.pathSeparator)) {
+            buf.append(sep);
+            buf.append(new File(path).getAbsolutePath());
+            sep = File.pathSeparator;
+        }
+        return buf.toString();
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        Writer w = new FileWriter(new File(dir, name));
+        try {
+            w.write(content);
+        }
+        finally {
+            w.close();
+        }
+    }
+}
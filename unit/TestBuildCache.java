@@ -0,0 +1,176 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.compiler.Compiler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import java.util.*;
+import java.io.*;
+
+public class TestBuildCache {
+    static public void main(String[] args) {
+        JUnitCore.main(TestBuildCache.class.getName());
+    }
+
+    static final String MAIN =
+            "import a;\nint\nmain(int argc, char **argv)\n{\n    return f();\n}\n";
+
+    File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("cbc", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+        writeFile("main.cb", MAIN);
+        writeFile("a.hb", "import b;\nextern int f(void);\n");
+        writeFile("b.hb", "extern int g(void);\n");
+    }
+
+    @After public void tearDown() {
+        delete(dir);
+    }
+
+    private void delete(File f) {
+        if (f.isDirectory()) {
+            for (File ent : f.listFiles()) {
+                delete(ent);
+            }
+        }
+        f.delete();
+    }
+
+    @Test public void test_hit() throws IOException {
+        assertEquals(0, compile("-S", "main.cb"));
+        assertEquals(1, countEntries());
+        String asm = readFile("main.s");
+        new File(dir, "main.s").delete();
+        assertEquals(0, compile("-S", "main.cb"));
+        assertEquals(1, countEntries());
+        assertEquals(asm, readFile("main.s"));
+    }
+
+    @Test public void test_source_changed() throws IOException {
+        assertEquals(0, compile("-S", "main.cb"));
+        writeFile("main.cb", MAIN.replace("return f();", "return f() + 1;"));
+        assertMiss("-S", "main.cb");
+    }
+
+    @Test public void test_header_changed() throws IOException {
+        assertEquals(0, compile("-S", "main.cb"));
+        writeFile("a.hb", "import b;\nextern int f(void);\nextern int h(void);\n");
+        assertMiss("-S", "main.cb");
+    }
+
+    @Test public void test_transitive_header_changed() throws IOException {
+        assertEquals(0, compile("-S", "main.cb"));
+        writeFile("b.hb", "extern int g(void);\nextern int h(void);\n");
+        assertMiss("-S", "main.cb");
+    }
+
+    @Test public void test_generator_options() throws IOException {
+        assertEquals(0, compile("-S", "main.cb"));
+        assertMiss("-S", "-O", "main.cb");
+        assertMiss("-S", "-O", "-fPIC", "main.cb");
+    }
+
+    @Test public void test_inline_threshold() throws IOException {
+        assertEquals(0, compile("-S", "-O", "main.cb"));
+        assertMiss("-S", "-O", "--inline-threshold", "100", "main.cb");
+        assertMiss("-S", "-O", "--inline-threshold", "0", "main.cb");
+    }
+
+    @Test public void test_unroll_limit() throws IOException {
+        assertEquals(0, compile("-S", "-O2", "main.cb"));
+        assertMiss("-S", "-O2", "--unroll-limit", "0", "main.cb");
+        assertMiss("-S", "-O2", "--unroll-limit", "1000", "main.cb");
+    }
+
+    @Test public void test_assembler_options() throws IOException {
+        writeFile("empty.s", "\t.text\n");
+        assertEquals(0, compile("-c", "empty.s"));
+        assertEquals(1, countEntries());
+        assertEquals(0, compile("-c", "empty.s"));
+        assertEquals(1, countEntries());
+        assertMiss("-c", "-Wa,-W", "empty.s");
+    }
+
+    @Test public void test_replay_warnings() throws IOException {
+        writeFile("warn.cb", "int\nmain(int argc, char **argv)\n{\n"
+                + "    int unused;\n    return 0;\n}\n");
+        StringBuilder err = new StringBuilder();
+        assertEquals(0, compile(err, "-S", "warn.cb"));
+        String warning = "cbc: warning: warn.cb:4: unused variable: unused\n";
+        assertEquals(warning, err.toString());
+        assertEquals(1, countEntries());
+
+        err = new StringBuilder();
+        assertEquals(0, compile(err, "-S", "warn.cb"));
+        assertEquals(warning, err.toString());
+        assertEquals(1, countEntries());
+    }
+
+    /** Compiles ARGS and asserts that it creates a new cache entry. */
+    private void assertMiss(String... args) throws IOException {
+        int n = countEntries();
+        assertEquals(0, compile(args));
+        assertEquals(n + 1, countEntries());
+    }
+
+    private int countEntries() {
+        return countEntries(new File(dir, "cache"));
+    }
+
+    private int countEntries(File f) {
+        if (! f.isDirectory()) {
+            return f.getName().endsWith(".log") ? 0 : 1;
+        }
+        int n = 0;
+        for (File ent : f.listFiles()) {
+            n += countEntries(ent);
+        }
+        return n;
+    }
+
+    private int compile(String... args) {
+        return compile(new StringBuilder(), args);
+    }
+
+    private int compile(StringBuilder errBuf, String... args) {
+        List<String> argv = new ArrayList<String>(Arrays.asList(args));
+        argv.add("--cache-dir");
+        argv.add(new File(dir, "cache").getPath());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        CommandEnvironment env =
+                new CommandEnvironment(dir, null, new PrintStream(out));
+        int status = new Compiler("cbc", env, new PrintStream(err), null)
+                .commandMain(argv.toArray(new String[] {}));
+        errBuf.append(err.toString());
+        return status;
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        Writer w = new FileWriter(new File(dir, name));
+        try {
+            w.write(content);
+        }
+        finally {
+            w.close();
+        }
+    }
+
+    private String readFile(String name) throws IOException {
+        Reader r = new FileReader(new File(dir, name));
+        try {
+            StringBuilder buf = new StringBuilder();
+            char[] cbuf = new char[4096];
+            int n;
+            while ((n = r.read(cbuf)) > 0) {
+                buf.append(cbuf, 0, n);
+            }
+            return buf.toString();
+        }
+        finally {
+            r.close();
+        }
+    }
+}
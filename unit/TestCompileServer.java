@@ -0,0 +1,128 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+public class TestCompileServer {
+    static public void main(String[] args) {
+        JUnitCore.main(TestCompileServer.class.getName());
+    }
+
+    File dir;
+    Process server;
+    int port;
+    String token;
+
+    @Before public void setUp() throws Exception {
+        dir = File.createTempFile("cbc", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+        File serverFile = new File(dir, "server");
+        server = new ProcessBuilder("java",
+                "-classpath", System.getProperty("java.class.path"),
+                "net.loveruby.cflat.compiler.Compiler",
+                "--server", "--server-file", serverFile.getPath())
+                .redirectErrorStream(true)
+                .start();
+        for (int i = 0; i < 300 && ! serverFile.exists(); i++) {
+            Thread.sleep(100);
+        }
+        BufferedReader r = new BufferedReader(new FileReader(serverFile));
+        try {
+            String[] words = r.readLine().split(" ");
+            port = Integer.parseInt(words[0]);
+            token = words[1];
+        }
+        finally {
+            r.close();
+        }
+    }
+
+    @After public void tearDown() throws InterruptedException {
+        server.destroy();
+        server.waitFor();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test public void test_bad_token() throws IOException {
+        writeSource("ok.cb", "int main(int argc, char **argv) { return 0; }\n");
+        assertEquals(Arrays.asList(),
+                request("x" + token.substring(1), "--check-syntax", "ok.cb"));
+        assertEquals(Arrays.asList(),
+                request(token + "0", "--check-syntax", "ok.cb"));
+        assertEquals(Arrays.asList(),
+                request(null, "--check-syntax", "ok.cb"));
+    }
+
+    @Test public void test_stdout() throws IOException {
+        writeSource("ok.cb", "int main(int argc, char **argv) { return 0; }\n");
+        assertEquals(Arrays.asList("ok", "1:ok.cb: Syntax OK", "exit:0"),
+                request(token, "--check-syntax", "ok.cb"));
+    }
+
+    @Test public void test_stderr_and_status() throws IOException {
+        writeSource("ng.cb",
+                "int main(int argc, char **argv) { return undefined_var; }\n");
+        List<String> lines = request(token, "-S", "ng.cb");
+        assertEquals("ok", lines.get(0));
+        assertEquals("exit:1", lines.get(lines.size() - 1));
+        for (String line : lines.subList(1, lines.size() - 1)) {
+            assertTrue(line, line.startsWith("2:cbc: error: "));
+        }
+        assertTrue(lines.toString(), lines.size() > 2);
+        assertFalse(new File(dir, "ng.s").exists());
+    }
+
+    @Test public void test_version() throws IOException {
+        assertEquals(Arrays.asList("ok", "1:cbc version 1.0.0", "exit:0"),
+                request(token, "--version"));
+    }
+
+    private List<String> request(String tok, String... args)
+                                                throws IOException {
+        Socket sock = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            OutputStream out = sock.getOutputStream();
+            if (tok != null) {
+                writeRecord(out, "token=" + tok);
+            }
+            writeRecord(out, "cwd=" + dir.getPath());
+            for (String arg : args) {
+                writeRecord(out, "arg=" + arg);
+            }
+            writeRecord(out, "");
+            out.flush();
+            BufferedReader r = new BufferedReader(
+                    new InputStreamReader(sock.getInputStream(), "UTF-8"));
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+            return lines;
+        }
+        finally {
+            sock.close();
+        }
+    }
+
+    private void writeRecord(OutputStream out, String rec) throws IOException {
+        out.write(rec.getBytes("UTF-8"));
+        out.write(0);
+    }
+
+    private void writeSource(String name, String src) throws IOException {
+        Writer w = new FileWriter(new File(dir, name));
+        try {
+            w.write(src);
+        }
+        finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.compiler.Compiler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import java.util.*;
+import java.io.*;
+
+public class TestParallelBuild {
+    static public void main(String[] args) {
+        JUnitCore.main(TestParallelBuild.class.getName());
+    }
+
+    static final int N_FILES = 8;
+
+    File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("cbc", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test public void test_diagnostics_order() throws IOException {
+        List<String> args = new ArrayList<String>();
+        args.add("-j");
+        args.add("4");
+        args.add("-S");
+        for (int i = 0; i < N_FILES; i++) {
+            args.add(writeSource("f" + i + ".cb", unusedVariables()));
+        }
+        Result r = compile(args);
+        assertEquals(0, r.status);
+        assertEquals(expectedWarnings(N_FILES), r.errLines());
+        for (int i = 0; i < N_FILES; i++) {
+            assertTrue(new File(dir, "f" + i + ".s").isFile());
+        }
+    }
+
+    @Test public void test_failed_file() throws IOException {
+        List<String> args = new ArrayList<String>();
+        args.add("-j");
+        args.add("4");
+        args.add("-S");
+        for (int i = 0; i < N_FILES; i++) {
+            if (i == 3) {
+                args.add(writeSource("f3.cb",
+                        "int main(int argc, char **argv) { return undefined_var; }\n"));
+            }
+            else {
+                args.add(writeSource("f" + i + ".cb", unusedVariables()));
+            }
+        }
+        Result r = compile(args);
+        assertEquals(1, r.status);
+        List<String> lines = r.errLines();
+        // Diagnostics of f0-f2 are not interleaved with others,
+        // and the build stops at f3 as sequential build does.
+        List<String> expected = expectedWarnings(3);
+        assertEquals(expected, lines.subList(0, expected.size()));
+        for (String line : lines.subList(expected.size(), lines.size())) {
+            assertFalse(line, line.contains("warning"));
+        }
+        assertTrue(r.err, r.err.contains("f3.cb:1:"));
+        assertTrue(r.err, r.err.contains("undefined_var"));
+    }
+
+    private String unusedVariables() {
+        return "int\nmain(int argc, char **argv)\n{\n"
+                + "    int a;\n    int b;\n    int c;\n    return 0;\n}\n";
+    }
+
+    private List<String> expectedWarnings(int nFiles) {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < nFiles; i++) {
+            for (String var : new String[] {"a", "b", "c"}) {
+                lines.add("cbc: warning: f" + i + ".cb:"
+                        + (var.charAt(0) - 'a' + 4)
+                        + ": unused variable: " + var);
+            }
+        }
+        return lines;
+    }
+
+    private String writeSource(String name, String src) throws IOException {
+        Writer w = new FileWriter(new File(dir, name));
+        try {
+            w.write(src);
+        }
+        finally {
+            w.close();
+        }
+        return name;
+    }
+
+    static class Result {
+        int status;
+        String err;
+
+        List<String> errLines() {
+            List<String> lines = new ArrayList<String>();
+            for (String line : err.split("\n")) {
+                if (! line.isEmpty()) lines.add(line);
+            }
+            return lines;
+        }
+    }
+
+    private Result compile(List<String> args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        CommandEnvironment env =
+                new CommandEnvironment(dir, null, new PrintStream(out));
+        Result r = new Result();
+        r.status = new Compiler("cbc", env, new PrintStream(err), null)
+                .commandMain(args.toArray(new String[] {}));
+        r.err = err.toString();
+        return r;
+    }
+}
@@ -0,0 +1,118 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.sysdep.x86.PeepholeRuleParser;
+import java.util.*;
+import java.io.*;
+
+public class TestPeepholeRuleParser {
+    static public void main(String[] args) {
+        JUnitCore.main(TestPeepholeRuleParser.class.getName());
+    }
+
+    @Test public void test_default_rules() throws IOException {
+        InputStream in =
+                PeepholeRuleParser.class.getResourceAsStream("peephole.rules");
+        assertNotNull(in);
+        try {
+            List<?> rules = PeepholeRuleParser.parse(
+                    new InputStreamReader(in, "UTF-8"), "peephole.rules");
+            assertFalse(rules.isEmpty());
+            assertEquals("#<PeepholeRule setcc-jnz>", rules.get(0).toString());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Test public void test_parse() throws IOException {
+        List<?> rules = parse(
+            "# comment\n",
+            "\n",
+            "rule store-load   # trailing comment\n",
+            "    mov:S %A, @M\n",
+            "    *I\n",
+            "    mov:S @M, %B\n",
+            "where temp @M, preserves *I %B\n",
+            "=>\n",
+            "    *I\n",
+            "    mov:S %A, %B\n",
+            "end\n",
+            "rule jump\n",
+            "    set<C> %al\n",
+            "    test:l $0, ?X\n",
+            "    jne @L\n",
+            "=>\n",
+            "    j<!C> @L\n",
+            "end\n",
+            "rule delete\n",
+            "    mov:l %eax, %eax\n",
+            "=>\n",
+            "end\n");
+        assertEquals(3, rules.size());
+        assertEquals("#<PeepholeRule store-load>", rules.get(0).toString());
+        assertEquals("#<PeepholeRule jump>", rules.get(1).toString());
+        assertEquals("#<PeepholeRule delete>", rules.get(2).toString());
+    }
+
+    @Test public void test_empty() throws IOException {
+        assertEquals(0, parse("# nothing\n", "\n").size());
+    }
+
+    @Test public void test_errors() throws IOException {
+        assertError("t.rules:1: rule expected: mov %eax, %ebx",
+            "mov %eax, %ebx\n");
+        assertError("t.rules:2: unterminated rule: r",
+            "rule r\n", "    ret\n");
+        assertError("t.rules:2: rule without pattern",
+            "rule r\n", "=>\n", "end\n");
+        assertError("t.rules:4: pattern after where: ret",
+            "rule r\n", "    mov %A, %B\n", "where dead %A\n", "    ret\n");
+        assertError("t.rules:2: bad immediate value: $x1",
+            "rule r\n", "    mov $x1, %eax\n", "=>\n", "end\n");
+        assertError("t.rules:2: bad operand: eax",
+            "rule r\n", "    mov eax, %eax\n", "=>\n", "end\n");
+        assertError("t.rules:2: unknown register: %xyz",
+            "rule r\n", "    mov %xyz, %eax\n", "=>\n", "end\n");
+        assertError("t.rules:2: too many operands: mov %A, %B, %C",
+            "rule r\n", "    mov %A, %B, %C\n", "=>\n", "end\n");
+        assertError("t.rules:2: empty operand: mov %A,",
+            "rule r\n", "    mov %A,\n", "=>\n", "end\n");
+        assertError("t.rules:2: bad mnemonic: Mov",
+            "rule r\n", "    Mov %A, %B\n", "=>\n", "end\n");
+        assertError("t.rules:2: inverse condition in pattern: j<!C>",
+            "rule r\n", "    j<!C> @L\n", "=>\n", "end\n");
+        assertError("t.rules:2: condition code is allowed only for j and set: mov<C>",
+            "rule r\n", "    mov<C> %A, %B\n", "=>\n", "end\n");
+        assertError("t.rules:4: undefined variable: %B",
+            "rule r\n", "    mov %A, %eax\n", "=>\n", "    mov %A, %B\n", "end\n");
+        assertError("t.rules:4: undefined variable: S",
+            "rule r\n", "    mov %A, %eax\n", "=>\n", "    mov:S %A, %eax\n", "end\n");
+        assertError("t.rules:3: instruction variable defined twice: *I",
+            "rule r\n", "    *I\n", "    *I\n", "=>\n", "end\n");
+        assertError("t.rules:3: bad condition: live %A",
+            "rule r\n", "    mov %A, %B\n", "where live %A\n", "=>\n", "end\n");
+        assertError("t.rules:3: temp requires a memory variable: temp %A",
+            "rule r\n", "    mov %A, %B\n", "where temp %A\n", "=>\n", "end\n");
+    }
+
+    private void assertError(String msg, String... lines) throws IOException {
+        try {
+            parse(lines);
+        }
+        catch (Error err) {
+            assertEquals(msg, err.getMessage());
+            return;
+        }
+        fail("no error: " + msg);
+    }
+
+    private List<?> parse(String... lines) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (String line : lines) {
+            buf.append(line);
+        }
+        return PeepholeRuleParser.parse(
+                new StringReader(buf.toString()), "t.rules");
+    }
+}
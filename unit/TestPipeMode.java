@@ -0,0 +1,68 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.compiler.Compiler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import java.io.*;
+
+public class TestPipeMode {
+    static public void main(String[] args) {
+        JUnitCore.main(TestPipeMode.class.getName());
+    }
+
+    File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("cbc", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+        writeFile("main.cb", "int\nmain(int argc, char **argv)\n{\n"
+                + "    return 0;\n}\n");
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test public void test_as_failure() throws IOException {
+        // An object file left by a previous build must not survive.
+        writeFile("main.o", "stale");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = compile(err, "-pipe", "-c", "-Wa,--bogus-option",
+                "main.cb");
+        assertTrue(err.toString(), status != 0);
+        assertTrue(err.toString(), err.toString().contains("cbc: error: "));
+        assertFalse(new File(dir, "main.o").exists());
+        assertFalse(new File(dir, "main.s").exists());
+    }
+
+    @Test public void test_compile_error() throws IOException {
+        writeFile("main.cb", "int\nmain(int argc, char **argv)\n{\n"
+                + "    return undefined_var;\n}\n");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = compile(err, "-pipe", "-c", "main.cb");
+        assertTrue(err.toString(), status != 0);
+        assertFalse(new File(dir, "main.s").exists());
+    }
+
+    private int compile(ByteArrayOutputStream err, String... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CommandEnvironment env =
+                new CommandEnvironment(dir, null, new PrintStream(out));
+        return new Compiler("cbc", env, new PrintStream(err), null)
+                .commandMain(args);
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        Writer w = new FileWriter(new File(dir, name));
+        try {
+            w.write(content);
+        }
+        finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.compiler.Compiler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import java.util.*;
+import java.io.*;
+
+public class TestPrecompiledHeader {
+    static public void main(String[] args) {
+        JUnitCore.main(TestPrecompiledHeader.class.getName());
+    }
+
+    File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("cbc", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+        writeMain("f");
+        writeFile("a.hb", "import b;\nextern int f(void);\n");
+        writeFile("b.hb", "extern int g(void);\n");
+    }
+
+    @After public void tearDown() {
+        delete(dir);
+    }
+
+    private void delete(File f) {
+        if (f.isDirectory()) {
+            for (File ent : f.listFiles()) {
+                delete(ent);
+            }
+        }
+        f.delete();
+    }
+
+    @Test public void test_hit() throws IOException {
+        assertEquals("0 hits, 2 misses", compile());
+        assertEquals("2 hits, 0 misses", compile());
+    }
+
+    @Test public void test_stale_header() throws IOException {
+        assertEquals("0 hits, 2 misses", compile());
+        // A stale header would not declare h().
+        writeFile("a.hb", "import b;\nextern int f(void);\nextern int h(void);\n");
+        writeMain("h");
+        assertEquals("1 hits, 1 misses", compile());
+        assertEquals("2 hits, 0 misses", compile());
+    }
+
+    @Test public void test_stale_transitive_import() throws IOException {
+        assertEquals("0 hits, 2 misses", compile());
+        writeFile("b.hb", "extern int g(void);\nextern int h(void);\n");
+        writeMain("h");
+        assertEquals("0 hits, 2 misses", compile());
+        assertEquals("2 hits, 0 misses", compile());
+    }
+
+    @Test public void test_corrupt_pch() throws IOException {
+        assertEquals("0 hits, 2 misses", compile());
+        for (File pch : pchFiles()) {
+            RandomAccessFile f = new RandomAccessFile(pch, "rw");
+            try {
+                f.seek(f.length() / 2);
+                f.write(new byte[] {(byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff});
+            }
+            finally {
+                f.close();
+            }
+        }
+        assertEquals("0 hits, 2 misses", compile());
+        assertEquals("2 hits, 0 misses", compile());
+    }
+
+    @Test public void test_truncated_pch() throws IOException {
+        assertEquals("0 hits, 2 misses", compile());
+        for (File pch : pchFiles()) {
+            RandomAccessFile f = new RandomAccessFile(pch, "rw");
+            try {
+                f.setLength(f.length() / 2);
+            }
+            finally {
+                f.close();
+            }
+        }
+        assertEquals("0 hits, 2 misses", compile());
+        assertEquals("2 hits, 0 misses", compile());
+    }
+
+    @Test public void test_empty_pch() throws IOException {
+        assertEquals("0 hits, 2 misses", compile());
+        for (File pch : pchFiles()) {
+            new FileOutputStream(pch).close();
+        }
+        assertEquals("0 hits, 2 misses", compile());
+    }
+
+    private File[] pchFiles() {
+        File[] files = new File(dir, "pch").listFiles();
+        assertEquals(2, files.length);
+        return files;
+    }
+
+    /** Compiles main.cb and returns the PCH statistics. */
+    private String compile() {
+        String[] lines = run().split("\n");
+        String stats = lines[lines.length - 1];
+        String prefix = "cbc: pch: ";
+        assertTrue(stats, stats.startsWith(prefix));
+        return stats.substring(prefix.length());
+    }
+
+    private String run() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        CommandEnvironment env =
+                new CommandEnvironment(dir, null, new PrintStream(out));
+        int status = new Compiler("cbc", env, new PrintStream(err), null)
+                .commandMain(new String[] {"-S", "--pch-dir", "pch",
+                        "--pch-stats", "main.cb"});
+        assertEquals(err.toString(), 0, status);
+        return err.toString();
+    }
+
+    private void writeMain(String func) throws IOException {
+        writeFile("main.cb", "import a;\nint\nmain(int argc, char **argv)\n{\n"
+                + "    return " + func + "();\n}\n");
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        Writer w = new FileWriter(new File(dir, name));
+        try {
+            w.write(content);
+        }
+        finally {
+            w.close();
+        }
+    }
+}
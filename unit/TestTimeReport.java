@@ -0,0 +1,134 @@
+import org.junit.*;
+import org.junit.runner.*;
+import static org.junit.Assert.*;
+import net.loveruby.cflat.compiler.Compiler;
+import net.loveruby.cflat.utils.CommandEnvironment;
+import net.loveruby.cflat.utils.TimeReport;
+import java.util.*;
+import java.io.*;
+
+public class TestTimeReport {
+    static public void main(String[] args) {
+        JUnitCore.main(TestTimeReport.class.getName());
+    }
+
+    File dir;
+
+    @Before public void setUp() throws IOException {
+        dir = File.createTempFile("cbc", ".test");
+        dir.delete();
+        assertTrue(dir.mkdir());
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test public void test_nesting() {
+        TimeReport report = new TimeReport();
+        TimeReport.Timer outer = report.startPhase("outer");
+        TimeReport.Timer inner = report.startPhase("inner");
+        inner.stop();
+        outer.stop();
+        TimeReport.Timer next = report.startPhase("next");
+        next.stop();
+        String json = report.jsonReport(10);
+        assertTrue(json, json.contains("{\"name\":\"outer\",\"depth\":0,"));
+        assertTrue(json, json.contains("{\"name\":\"inner\",\"depth\":1,"));
+        assertTrue(json, json.contains("{\"name\":\"next\",\"depth\":0,"));
+        List<String> lines = report.textReport(10);
+        assertTrue(lines.get(1), lines.get(1).startsWith("outer "));
+        assertTrue(lines.get(2), lines.get(2).startsWith("  inner "));
+        assertTrue(lines.get(3), lines.get(3).startsWith("next "));
+        assertTrue(lines.get(4), lines.get(4).startsWith("total "));
+    }
+
+    @Test public void test_failed_phase() {
+        TimeReport report = new TimeReport();
+        try {
+            TimeReport.Timer timer = report.startPhase("failed");
+            try {
+                throw new IllegalStateException("failed");
+            }
+            finally {
+                timer.stop();
+            }
+        }
+        catch (IllegalStateException ex) {
+            ;
+        }
+        TimeReport.Timer next = report.startPhase("next");
+        next.stop();
+        String json = report.jsonReport(10);
+        assertTrue(json, json.contains("{\"name\":\"next\",\"depth\":0,"));
+    }
+
+    @Test public void test_disabled() {
+        TimeReport.Timer timer = TimeReport.DISABLED.startPhase("phase");
+        timer.stop();
+        assertFalse(TimeReport.DISABLED.isEnabled());
+        assertEquals("{\"phases\":[],\"total\":{\"name\":\"total\","
+                + "\"wallNanos\":0,\"cpuNanos\":0,\"allocatedBytes\":0},"
+                + "\"functions\":[]}",
+                TimeReport.DISABLED.jsonReport(10));
+    }
+
+    @Test public void test_json_option() throws IOException {
+        writeFile("main.cb", "int\nmain(int argc, char **argv)\n{\n"
+                + "    return argc;\n}\n");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = compile(err, "-S", "-O", "--time-report=json",
+                "main.cb");
+        assertEquals(err.toString(), 0, status);
+        String json = jsonLine(err.toString());
+        assertTrue(json, json.startsWith("{\"phases\":[{\"name\":\"Parser.parseFile\",\"depth\":0,"));
+        assertTrue(json, json.contains("{\"name\":\"CodeGenerator.generate\",\"depth\":0,"));
+        assertTrue(json, json.contains("{\"name\":\"PeepholeOptimizer.optimize\",\"depth\":1,"));
+        assertTrue(json, json.contains("{\"name\":\"writeFile\",\"depth\":0,"));
+        assertTrue(json, json.contains("\"total\":{\"name\":\"total\","));
+        assertTrue(json, json.contains("\"functions\":[{\"file\":\"main.cb\",\"name\":\"main\","));
+        assertTrue(json, json.endsWith("}]}"));
+    }
+
+    @Test public void test_json_option_on_error() throws IOException {
+        writeFile("main.cb", "int\nmain(int argc, char **argv)\n{\n"
+                + "    return argv * 2;\n}\n");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = compile(err, "-S", "--time-report=json", "main.cb");
+        assertTrue(err.toString(), status != 0);
+        String json = jsonLine(err.toString());
+        // The failed phase is measured too.
+        assertTrue(json, json.contains("{\"name\":\"TypeChecker\",\"depth\":0,"));
+        assertFalse(json, json.contains("{\"name\":\"TypeChecker\",\"depth\":0,\"wallNanos\":0,"));
+        assertFalse(json, json.contains("IRGenerator"));
+    }
+
+    private String jsonLine(String output) {
+        for (String line : output.split("\n")) {
+            if (line.startsWith("{")) return line;
+        }
+        fail("no JSON report: " + output);
+        return null;
+    }
+
+    private int compile(ByteArrayOutputStream err, String... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CommandEnvironment env =
+                new CommandEnvironment(dir, null, new PrintStream(out));
+        return new Compiler("cbc", env, new PrintStream(err), null)
+                .commandMain(args);
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        Writer w = new FileWriter(new File(dir, name));
+        try {
+            w.write(content);
+        }
+        finally {
+            w.close();
+        }
+    }
+}